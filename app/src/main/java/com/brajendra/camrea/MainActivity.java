@@ -4,23 +4,28 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
-import android.util.Base64;
 import android.view.View;
 import android.view.Window;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.brajendra.camrea.helper.CaptureStore;
 import com.brajendra.camrea.helper.CropCameraHelper;
 import com.brajendra.camrea.helper.OnCaptureCallback;
+import com.brajendra.camrea.upload.ChunkedUploader;
+import com.brajendra.camrea.upload.UploadItem;
+import com.brajendra.camrea.upload.UploadQueue;
+import com.brajendra.camrea.upload.UploadQueueListener;
 import com.brajendra.camrea.view.CameraSurfaceView;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
 /*
  * Created by Brajendra on 2021/02/02.
  */
@@ -39,6 +44,12 @@ public class MainActivity extends Activity implements OnCaptureCallback {
     //	Save the file path after taking the photo
     private String filepath;
 
+    //	Bitmap shown in imageView, owned by the review image cache
+    private Bitmap reviewBitmap;
+
+    //	Keeps confirmed pictures until the server has them, callbacks on the main thread, null without an endpoint
+    private UploadQueue uploadQueue;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -57,6 +68,36 @@ public class MainActivity extends Activity implements OnCaptureCallback {
 
         //Set the size of the rectangular area
         this.surfaceview.setMaskSize(900, 600);
+        //Review images are decoded, or handed over by the pipeline, at screen size
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        CropCameraHelper.getInstance().setReviewImageSize(metrics.widthPixels, metrics.heightPixels);
+
+        //Upload endpoint from the build, empty keeps confirmed pictures on the device only
+        String uploadUrl = BuildConfig.UPLOAD_URL;
+        Executor mainExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                runOnUiThread(command);
+            }
+        };
+        if (!uploadUrl.isEmpty()) {
+            ChunkedUploader uploader = new ChunkedUploader(uploadUrl, ChunkedUploader.DEFAULT_CHUNK_SIZE,
+                    ChunkedUploader.DEFAULT_CONCURRENCY, true, mainExecutor);
+            this.uploadQueue = new UploadQueue(new File(getFilesDir(), "upload_journal"), uploader,
+                    UploadQueue.DEFAULT_BATCH_ITEMS, UploadQueue.DEFAULT_BATCH_BYTES, mainExecutor);
+            this.uploadQueue.setListener(new UploadQueueListener() {
+                @Override
+                public void onItemChanged(UploadItem item) {
+                    if (item.getState() == UploadItem.State.UPLOADED) {
+                        markUploaded(item.getPath());
+                        Toast.makeText(MainActivity.this, "Upload finished, " + uploadQueue.getQueueDepth() + " waiting",
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
+            //Pictures confirmed before the app was closed are sent again
+            this.uploadQueue.start();
+        }
 
         btn_capture.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -76,6 +117,7 @@ public class MainActivity extends Activity implements OnCaptureCallback {
                 btn_recapture.setEnabled(false);
                 imageView.setVisibility(View.GONE);
                 surfaceview.setVisibility(View.VISIBLE);
+                releaseReviewBitmap();
                 deleteFile();
                 CropCameraHelper.getInstance().startPreview();
             }
@@ -84,34 +126,82 @@ public class MainActivity extends Activity implements OnCaptureCallback {
         btn_ok.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View arg0) {
-                Bitmap bitmap = BitmapFactory.decodeFile(filepath);
-                Toast.makeText(MainActivity.this, "Picture height：" + bitmap.getHeight() + "..." + "Picture width：" + bitmap.getWidth() + "...size of picture：" + bitmap.getByteCount() / 10240, Toast.LENGTH_LONG).show();
-
-                //Upload server to background
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-                byte[] datas = baos.toByteArray();
-                String imageDatasString = Base64.encodeToString(datas, Base64.DEFAULT);
-                //  uploadOnServer(Base64.encodeToString(datas, Base64.NO_WRAP));
+                if (filepath == null || filepath.equals("")) {
+                    return;
+                }
+                //Upload server to background, the queue keeps the picture until it is sent
+                btn_ok.setEnabled(false);
+                if (uploadQueue != null) {
+                    uploadQueue.enqueue(new File(filepath));
+                }
+                //The picture is kept, or belongs to the queue now, recapture must not delete it
+                filepath = null;
+                Toast.makeText(MainActivity.this, uploadQueue != null ? "Queued for upload" : "Saved",
+                        Toast.LENGTH_SHORT).show();
             }
         });
 
         btn_cancel.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View arg0) {
+                releaseReviewBitmap();
                 deleteFile();
                 finish();
             }
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (this.uploadQueue != null) {
+            this.uploadQueue.shutdown();
+        }
+    }
+
+    /**
+     * Take the review bitmap off screen, the review image cache keeps it
+     */
+    private void releaseReviewBitmap() {
+        if (this.reviewBitmap == null) {
+            return;
+        }
+        this.imageView.setImageBitmap(null);
+        this.reviewBitmap = null;
+    }
+
+    /**
+     * Record in the capture index that the server has a picture
+     */
+    private void markUploaded(String path) {
+        long id = CaptureStore.idOf(path);
+        if (id < 0) {
+            return;
+        }
+        try {
+            CropCameraHelper.getInstance().getCaptureStore().setStatus(id, CaptureStore.Status.UPLOADED);
+        } catch (IOException e) {
+            //The picture is on the server either way, only the index is behind
+        }
+    }
+
     /**
      * How about deleting picture files
+     * Goes through the capture index so the entry goes with the file
      */
     private void deleteFile() {
         if (this.filepath == null || this.filepath.equals("")) {
             return;
         }
+        long id = CaptureStore.idOf(this.filepath);
+        CropCameraHelper.getInstance().getReviewImageLoader().evict(id);
+        try {
+            if (id >= 0 && CropCameraHelper.getInstance().getCaptureStore().delete(id)) {
+                return;
+            }
+        } catch (IOException e) {
+            //Fall back to deleting the file alone
+        }
         File f = new File(this.filepath);
         if (f.exists()) {
             f.delete();
@@ -130,7 +220,10 @@ public class MainActivity extends Activity implements OnCaptureCallback {
         } else {
             this.imageView.setVisibility(View.VISIBLE);
             this.surfaceview.setVisibility(View.GONE);
-            this.imageView.setImageBitmap(BitmapFactory.decodeFile(filepath));
+            this.releaseReviewBitmap();
+            this.reviewBitmap = CropCameraHelper.getInstance().getReviewImageLoader()
+                    .load(CaptureStore.idOf(filepath), filepath);
+            this.imageView.setImageBitmap(this.reviewBitmap);
         }
         Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
     }
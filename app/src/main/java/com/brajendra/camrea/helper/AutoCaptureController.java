@@ -0,0 +1,89 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Decides when auto-capture fires, from the sharpness and motion of each analysed preview frame.
+ * <p>
+ * A shot is taken once the preview has been sharp and still for a number of frames in a row.
+ * After that the controller waits for the scene to move before arming again, so holding the
+ * phone over one page takes one picture.
+ */
+class AutoCaptureController {
+
+    //Laplacian variance a preview frame needs to count as in focus
+    static final double DEFAULT_MIN_SHARPNESS = 100;
+    //Mean luma change between frames, out of 255, that still counts as holding still
+    static final double DEFAULT_MAX_MOTION = 4;
+    //Sharp and still frames in a row before the shot
+    static final int DEFAULT_STABLE_FRAMES = 3;
+
+    //Receives auto-captured pictures, null while auto-capture is off
+    private OnCaptureCallback callback;
+    private double minSharpness = DEFAULT_MIN_SHARPNESS;
+    private double maxMotion = DEFAULT_MAX_MOTION;
+    private int requiredFrames = DEFAULT_STABLE_FRAMES;
+
+    private int stableFrames;
+    //False after a shot, until the scene moves
+    private boolean armed;
+    private double lastSharpness;
+    private double lastMotion;
+
+    synchronized void start(OnCaptureCallback callback) {
+        this.callback = callback;
+        this.armed = true;
+        this.stableFrames = 0;
+    }
+
+    synchronized void stop() {
+        this.callback = null;
+    }
+
+    synchronized boolean isEnabled() {
+        return this.callback != null;
+    }
+
+    synchronized void setThresholds(double minSharpness, double maxMotion, int stableFrames) {
+        this.minSharpness = minSharpness;
+        this.maxMotion = maxMotion;
+        this.requiredFrames = Math.max(1, stableFrames);
+    }
+
+    /**
+     * @return {sharpness, motion} of the last analysed frame
+     */
+    synchronized double[] getLastQuality() {
+        return new double[]{this.lastSharpness, this.lastMotion};
+    }
+
+    /**
+     * A preview frame was scored, analyser thread
+     *
+     * @param sharpness Laplacian variance
+     * @param motion    Mean luma change since the previous frame, Double.MAX_VALUE if there was none
+     * @return the callback to capture for, or null to keep waiting
+     */
+    synchronized OnCaptureCallback onFrame(double sharpness, double motion) {
+        this.lastSharpness = sharpness;
+        this.lastMotion = motion;
+        if (this.callback == null || motion == Double.MAX_VALUE) {
+            //Nothing to compare with right after the preview (re)started
+            this.stableFrames = 0;
+            return null;
+        }
+        boolean still = motion <= this.maxMotion;
+        if (!this.armed) {
+            this.armed = !still;
+            return null;
+        }
+        if (!still || sharpness < this.minSharpness) {
+            this.stableFrames = 0;
+            return null;
+        }
+        if (++this.stableFrames < this.requiredFrames) {
+            return null;
+        }
+        this.stableFrames = 0;
+        this.armed = false;
+        return this.callback;
+    }
+}
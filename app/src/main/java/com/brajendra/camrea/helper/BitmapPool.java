@@ -0,0 +1,276 @@
+package com.brajendra.camrea.helper;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Pool of mutable bitmaps reused across captures through BitmapFactory.Options.inBitmap.
+ * <p>
+ * Bitmaps are bucketed by allocation size (rounded up to a power of two) and evicted least
+ * recently used first once the byte budget is exceeded. From KitKat any pooled bitmap that is
+ * large enough can be reconfigured for a request; before that only an exact size match is reused.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    //Default byte budget
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private long maxBytes;
+    private long currentBytes;
+
+    //Size bucket -> bitmaps, and all bitmaps in least-recently-used-first order
+    private final TreeMap<Long, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private final LinkedHashMap<Bitmap, Long> lru = new LinkedHashMap<>();
+
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Change the byte budget, evicting if needed
+     *
+     * @param maxBytes
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.trimTo(maxBytes);
+    }
+
+    /**
+     * Take a mutable bitmap of exactly the given size out of the pool
+     *
+     * @return the bitmap, or null if nothing fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = byteCount(width, height, config);
+        if (needed > this.maxBytes) {
+            //Nothing that large is ever pooled
+            this.missCount++;
+            return null;
+        }
+        boolean reconfigurable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        Map.Entry<Long, ArrayDeque<Bitmap>> entry = this.buckets.ceilingEntry(bucketOf(needed));
+        while (entry != null) {
+            Iterator<Bitmap> it = entry.getValue().iterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next();
+                boolean fits = bitmap.getConfig() == config && (reconfigurable
+                        ? allocationBytes(bitmap) >= needed
+                        : bitmap.getWidth() == width && bitmap.getHeight() == height);
+                if (!fits) {
+                    continue;
+                }
+                it.remove();
+                this.lru.remove(bitmap);
+                this.currentBytes -= allocationBytes(bitmap);
+                if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                    bitmap.reconfigure(width, height, config);
+                }
+                this.hitCount++;
+                return bitmap;
+            }
+            //Pre-KitKat only the exact bucket can match
+            entry = reconfigurable ? this.buckets.higherEntry(entry.getKey()) : null;
+        }
+        this.missCount++;
+        return null;
+    }
+
+    /**
+     * Return a bitmap to the pool, it must not be used by the caller afterwards
+     *
+     * @param bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (this.lru.containsKey(bitmap)) {
+            return;
+        }
+        int bytes = allocationBytes(bitmap);
+        if (!bitmap.isMutable() || bytes > this.maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        long bucket = bucketOf(bytes);
+        ArrayDeque<Bitmap> deque = this.buckets.get(bucket);
+        if (deque == null) {
+            deque = new ArrayDeque<>();
+            this.buckets.put(bucket, deque);
+        }
+        deque.addFirst(bitmap);
+        this.lru.put(bitmap, bucket);
+        this.currentBytes += bytes;
+        this.trimTo(this.maxBytes);
+    }
+
+    /**
+     * Drop every pooled bitmap
+     */
+    public synchronized void clear() {
+        this.trimTo(0);
+    }
+
+    /**
+     * Decode a JPEG, reusing a pooled bitmap when one fits
+     *
+     * @param data
+     * @param sampleSize inSampleSize
+     * @return
+     */
+    public Bitmap decodeByteArray(byte[] data, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        this.prepare(options, options.outWidth, options.outHeight, sampleSize);
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            this.retryWithoutReuse(options);
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Decode a file, reusing a pooled bitmap when one fits
+     *
+     * @param path
+     * @param sampleSize inSampleSize
+     * @return
+     */
+    public Bitmap decodeFile(String path, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        this.prepare(options, options.outWidth, options.outHeight, sampleSize);
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            this.retryWithoutReuse(options);
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * Decode a region, reusing a pooled bitmap when one fits (Jelly Bean and later)
+     *
+     * @param decoder
+     * @param rect
+     * @param sampleSize inSampleSize
+     * @return
+     */
+    public Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect rect, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            this.prepare(options, rect.width(), rect.height(), sampleSize);
+        } else {
+            options.inSampleSize = sampleSize;
+        }
+        try {
+            return decoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            this.retryWithoutReuse(options);
+            return decoder.decodeRegion(rect, options);
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return this.missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return this.currentBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{bytes=" + this.currentBytes + "/" + this.maxBytes + ", bitmaps=" + this.lru.size()
+                + ", hits=" + this.hitCount + ", misses=" + this.missCount + ", evictions=" + this.evictionCount + "}";
+    }
+
+    private void prepare(BitmapFactory.Options options, int width, int height, int sampleSize) {
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        //Before KitKat inBitmap is only honoured for unsampled decodes
+        if (sampleSize > 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        int sample = Math.max(1, sampleSize);
+        int outWidth = (width + sample - 1) / sample;
+        int outHeight = (height + sample - 1) / sample;
+        if (outWidth > 0 && outHeight > 0) {
+            options.inBitmap = this.get(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    private void retryWithoutReuse(BitmapFactory.Options options) {
+        Log.w(TAG, "Pooled bitmap rejected by decoder");
+        if (options.inBitmap != null) {
+            this.put(options.inBitmap);
+            options.inBitmap = null;
+        }
+    }
+
+    private void trimTo(long bytes) {
+        Iterator<Map.Entry<Bitmap, Long>> it = this.lru.entrySet().iterator();
+        while (this.currentBytes > bytes && it.hasNext()) {
+            Map.Entry<Bitmap, Long> eldest = it.next();
+            Bitmap bitmap = eldest.getKey();
+            it.remove();
+            ArrayDeque<Bitmap> deque = this.buckets.get(eldest.getValue());
+            deque.remove(bitmap);
+            if (deque.isEmpty()) {
+                this.buckets.remove(eldest.getValue());
+            }
+            this.currentBytes -= allocationBytes(bitmap);
+            bitmap.recycle();
+            this.evictionCount++;
+        }
+    }
+
+    private static int allocationBytes(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static long byteCount(int width, int height, Bitmap.Config config) {
+        int bytesPerPixel = config == Bitmap.Config.ARGB_8888 ? 4 : (config == Bitmap.Config.ALPHA_8 ? 1 : 2);
+        return (long) width * height * bytesPerPixel;
+    }
+
+    /**
+     * Round up to a power of two, in long so sizes above 2^30 do not overflow
+     */
+    private static long bucketOf(long bytes) {
+        long highest = Long.highestOneBit(Math.max(1, bytes));
+        return highest == bytes ? bytes : highest << 1;
+    }
+}
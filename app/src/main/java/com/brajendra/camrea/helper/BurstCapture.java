@@ -0,0 +1,187 @@
+package com.brajendra.camrea.helper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.brajendra.camrea.kernel.YuvFrame;
+
+/**
+ * Back-to-back capture driven by {@link CropCameraHelper#startBurst}.
+ * <p>
+ * Shots go through the {@link CameraThread} like any other capture, one at a time, while
+ * earlier frames are still in the {@link CapturePipeline}. When the pipeline queue is full the
+ * next shot waits, so a long burst never holds more than a few JPEGs in memory. Results are
+ * re-ordered and delivered on the main thread in capture order.
+ */
+class BurstCapture {
+    private static final String TAG = "BurstCapture";
+
+    //How long to wait before checking the pipeline again when it is full
+    private static final long QUEUE_FULL_RETRY_MS = 20;
+
+    private final CropCameraHelper helper;
+    private final int frameCount;
+    private final OnBurstCaptureCallback callback;
+    private final Handler cameraHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean stopped;
+
+    //Camera thread
+    private int captured;
+
+    //Main thread
+    private final Map<Integer, Result> pending = new HashMap<>();
+    private int nextToDeliver;
+    private int totalCaptured = -1;
+    private boolean completed;
+    private long startNanos;
+    private long lastDeliveryNanos;
+
+    private final Runnable shootNext = new Runnable() {
+        @Override
+        public void run() {
+            shoot();
+        }
+    };
+
+    /**
+     * @param helper
+     * @param frameCount Number of frames, 0 to capture until stopped
+     * @param callback
+     */
+    BurstCapture(CropCameraHelper helper, int frameCount, OnBurstCaptureCallback callback) {
+        this.helper = helper;
+        this.frameCount = frameCount;
+        this.callback = callback;
+        Looper looper = Looper.myLooper();
+        this.cameraHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    void start() {
+        this.startNanos = System.nanoTime();
+        this.lastDeliveryNanos = this.startNanos;
+        this.helper.setHoldFocus(true);
+        this.shoot();
+    }
+
+    void stop() {
+        this.stopped = true;
+    }
+
+    private void shoot() {
+        if (this.stopped || this.helper.getCamera() == null || (this.frameCount > 0 && this.captured >= this.frameCount)) {
+            this.finishCapturing();
+            return;
+        }
+        if (!this.helper.getPipeline().hasCapacity()) {
+            this.cameraHandler.postDelayed(this.shootNext, QUEUE_FULL_RETRY_MS);
+            return;
+        }
+        final int index = this.captured;
+        //Through the camera thread, which refuses the shot unless the preview is running and no other shot is
+        //being taken; the focus is only run when it is not locked
+        this.helper.getCameraThread().capture(new CameraBackend.CaptureListener() {
+            @Override
+            public void onFocused() {
+            }
+
+            @Override
+            public void onShutter() {
+                helper.getShutterCallback().onShutter();
+            }
+
+            @Override
+            public void onJpeg(byte[] jpeg) {
+                captured++;
+                CaptureJob job = helper.newCaptureJob(jpeg, new OnCaptureCallback() {
+                    @Override
+                    public void onCapture(boolean success, String filePath) {
+                        onFrameResult(index, success, filePath);
+                    }
+                });
+                if (!helper.getPipeline().submit(job)) {
+                    postFrameResult(index, false, null);
+                }
+                shoot();
+            }
+
+            @Override
+            public void onFrame(YuvFrame frame, CaptureJob.FrameReleaser releaser) {
+                //Bursts run on the legacy camera only, which delivers JPEGs
+                releaser.release(frame);
+                this.onFailure();
+            }
+
+            @Override
+            public void onFailure() {
+                Log.e(TAG, "Burst capture failed");
+                stopped = true;
+                finishCapturing();
+            }
+        }, this.helper.isFocusLocked());
+    }
+
+    private void finishCapturing() {
+        this.helper.setHoldFocus(false);
+        final int total = this.captured;
+        this.mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                totalCaptured = total;
+                checkComplete();
+            }
+        });
+    }
+
+    private void postFrameResult(final int index, final boolean success, final String filePath) {
+        this.mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onFrameResult(index, success, filePath);
+            }
+        });
+    }
+
+    /**
+     * Main thread
+     */
+    private void onFrameResult(int index, boolean success, String filePath) {
+        this.pending.put(index, new Result(success, filePath));
+        Result result;
+        while ((result = this.pending.remove(this.nextToDeliver)) != null) {
+            this.lastDeliveryNanos = System.nanoTime();
+            this.callback.onBurstFrame(this.nextToDeliver, result.success, result.filePath);
+            this.nextToDeliver++;
+        }
+        this.checkComplete();
+    }
+
+    /**
+     * Main thread
+     */
+    private void checkComplete() {
+        if (this.completed || this.totalCaptured < 0 || this.nextToDeliver < this.totalCaptured) {
+            return;
+        }
+        this.completed = true;
+        float seconds = (this.lastDeliveryNanos - this.startNanos) / 1e9f;
+        float fps = seconds > 0 ? this.totalCaptured / seconds : 0;
+        this.helper.onBurstFinished(this);
+        this.callback.onBurstComplete(this.totalCaptured, fps);
+    }
+
+    private static class Result {
+        final boolean success;
+        final String filePath;
+
+        Result(boolean success, String filePath) {
+            this.success = success;
+            this.filePath = filePath;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.brajendra.camrea.helper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.brajendra.camrea.kernel.YuvFrame;
+
+/**
+ * {@link CameraBackend} on Camera2.
+ * <p>
+ * Stills are captured as YUV_420_888 through an ImageReader and handed to the pipeline as
+ * {@link YuvFrame}s that point straight at the Image planes: the crop reads the planes in place and
+ * the Image is closed once it is done, so there is no JPEG round trip and no full-frame copy.
+ * Camera callbacks run on a private "Camera2" thread.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Backend implements CameraBackend {
+    private static final String TAG = "Camera2Backend";
+
+    //One still in the pipeline, one being captured
+    private static final int MAX_IMAGES = 2;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread thread;
+    private Handler handler;
+    private volatile CameraDevice device;
+    private volatile CameraCaptureSession session;
+    private volatile StillReader reader;
+    private Surface previewSurface;
+    private String flashMode;
+    private int orientation;
+    private volatile boolean warmOpen;
+    //What the camera was opened with, kept to open it again when a session fails
+    private CameraManager manager;
+    private String cameraId;
+    private OpenRequest request;
+    private StreamConfigurationMap streams;
+
+    private volatile boolean previewRequested;
+    private volatile boolean isPreviewing;
+    private volatile PreviewListener previewListener;
+    //Camera2 thread: the running repeating request has not completed a frame yet
+    private boolean awaitingFirstFrame;
+
+    //Camera2 thread: captures waiting for their image, in request order
+    private final ArrayDeque<CaptureListener> pendingCaptures = new ArrayDeque<>();
+
+    @Override
+    public void open(OpenRequest request) {
+        this.release();
+        this.flashMode = request.flashMode;
+        CameraManager manager = (CameraManager) request.context.getSystemService(Context.CAMERA_SERVICE);
+        this.thread = new HandlerThread("Camera2");
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+        try {
+            String cameraId = findBackCamera(manager);
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (request.sensorOrientation) {
+                this.orientation = LegacyCameraBackend.displayOrientation(
+                        sensorOrientation == null ? 90 : sensorOrientation,
+                        facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT, request.displayRotation);
+            } else {
+                this.orientation = request.viewWidth > request.viewHeight ? 0 : 90;
+            }
+            this.manager = manager;
+            this.cameraId = cameraId;
+            this.request = request;
+            this.streams = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            this.configure(true);
+        } catch (CameraAccessException e) {
+            this.release();
+            throw new IllegalStateException("Unable to open camera", e);
+        }
+    }
+
+    /**
+     * Pick the preview and still sizes, from the capability cache when it has ones the camera still
+     * offers, and open the camera with them
+     *
+     * @param useCache false to negotiate the sizes again, after a session failed with cached ones
+     */
+    private void configure(boolean useCache) {
+        OpenRequest request = this.request;
+        List<int[]> previewSizes = toList(this.streams.getOutputSizes(SurfaceHolder.class));
+        List<int[]> stillSizes = toList(this.streams.getOutputSizes(ImageFormat.YUV_420_888));
+        CameraCapabilityCache cache = request.capabilities;
+        String key = CameraCapabilityCache.key("camera2", this.cameraId, request);
+        int[] cached = cache == null || !useCache ? null : cache.get(key);
+        if (cached != null && !(contains(previewSizes, cached[0], cached[1]) && contains(stillSizes, cached[2], cached[3]))) {
+            //Not offered any more, e.g. after an update that kept the fingerprint
+            cache.remove(key);
+            cached = null;
+        }
+        this.warmOpen = cached != null;
+        Size preview;
+        Size still;
+        if (cached != null) {
+            preview = new Size(cached[0], cached[1]);
+            still = new Size(cached[2], cached[3]);
+        } else {
+            int[] previewSize = new SizeSelector(previewSizes)
+                    .selectPreview(request.viewWidth, request.viewHeight, this.orientation);
+            int[] stillSize = new SizeSelector(stillSizes).selectPicture(request, previewSize, this.orientation);
+            preview = new Size(previewSize[0], previewSize[1]);
+            still = new Size(stillSize[0], stillSize[1]);
+            if (cache != null) {
+                cache.put(key, preview.getWidth(), preview.getHeight(), still.getWidth(), still.getHeight());
+            }
+        }
+
+        this.previewSurface = request.holder.getSurface();
+        this.reader = new StillReader(ImageReader.newInstance(still.getWidth(), still.getHeight(),
+                ImageFormat.YUV_420_888, MAX_IMAGES));
+        this.reader.reader.setOnImageAvailableListener(this.imageListener, this.handler);
+        this.openWithBufferSize(this.manager, this.cameraId, request.holder, preview);
+    }
+
+    /**
+     * Camera2 thread: the session would not take the cached sizes. Forget them, close the device and
+     * open it again with sizes negotiated from the stream configuration
+     */
+    private void reconfigure() {
+        CameraCapabilityCache cache = this.request.capabilities;
+        if (cache != null) {
+            cache.remove(CameraCapabilityCache.key("camera2", this.cameraId, this.request));
+        }
+        CameraDevice device = this.device;
+        StillReader reader = this.reader;
+        this.device = null;
+        this.session = null;
+        this.isPreviewing = false;
+        if (device != null) {
+            device.close();
+        }
+        if (reader != null) {
+            reader.close();
+        }
+        this.configure(false);
+    }
+
+    /**
+     * Size the preview buffer on the main thread, where the view lives, and open the camera once
+     * the layout pass that applies it has run. The view keeps its own size: surfaceChanged reports
+     * the buffer size, which CameraSurfaceView does not take as the view size
+     */
+    private void openWithBufferSize(final CameraManager manager, final String cameraId, final SurfaceHolder holder,
+                                    final Size preview) {
+        final StillReader owner = this.reader;
+        final Handler handler = this.handler;
+        this.mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (reader != owner) {
+                    //Released or opened again in the meantime
+                    return;
+                }
+                holder.setFixedSize(preview.getWidth(), preview.getHeight());
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (reader != owner) {
+                            return;
+                        }
+                        try {
+                            manager.openCamera(cameraId, deviceCallback, handler);
+                        } catch (CameraAccessException | SecurityException | IllegalArgumentException e) {
+                            Log.e(TAG, "Unable to open camera", e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void startPreview() {
+        this.previewRequested = true;
+        this.post(new Runnable() {
+            @Override
+            public void run() {
+                startRepeating();
+            }
+        });
+    }
+
+    @Override
+    public void setPreviewListener(PreviewListener listener) {
+        this.previewListener = listener;
+    }
+
+    @Override
+    public void stopPreview() {
+        this.previewRequested = false;
+        this.post(new Runnable() {
+            @Override
+            public void run() {
+                if (session != null && isPreviewing) {
+                    try {
+                        session.stopRepeating();
+                    } catch (CameraAccessException e) {
+                        Log.e(TAG, "Unable to stop preview", e);
+                    }
+                }
+                isPreviewing = false;
+            }
+        });
+    }
+
+    @Override
+    public boolean isPreviewing() {
+        return this.isPreviewing;
+    }
+
+    @Override
+    public void capture(final CaptureListener listener) {
+        if (!this.post(new Runnable() {
+            @Override
+            public void run() {
+                captureStill(listener);
+            }
+        })) {
+            listener.onFailure();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (this.thread == null) {
+            return;
+        }
+        final CameraCaptureSession session = this.session;
+        final CameraDevice device = this.device;
+        final StillReader reader = this.reader;
+        this.session = null;
+        this.device = null;
+        this.reader = null;
+        this.isPreviewing = false;
+        this.previewRequested = false;
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (session != null) {
+                    session.close();
+                }
+                if (device != null) {
+                    device.close();
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+                for (CaptureListener listener : pendingCaptures) {
+                    listener.onFailure();
+                }
+                pendingCaptures.clear();
+            }
+        });
+        this.thread.quitSafely();
+        this.thread = null;
+        this.handler = null;
+    }
+
+    @Override
+    public int getOrientation() {
+        return this.orientation;
+    }
+
+    @Override
+    public boolean isWarmOpen() {
+        return this.warmOpen;
+    }
+
+    private boolean post(Runnable runnable) {
+        Handler handler = this.handler;
+        return handler != null && handler.post(runnable);
+    }
+
+    /**
+     * Camera2 thread
+     */
+    private void startRepeating() {
+        if (this.session == null || !this.previewRequested || this.isPreviewing) {
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder = this.device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(this.previewSurface);
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            this.applyFlash(builder);
+            this.awaitingFirstFrame = true;
+            this.session.setRepeatingRequest(builder.build(), this.previewCallback, this.handler);
+            this.isPreviewing = true;
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Unable to start preview", e);
+        }
+    }
+
+    /**
+     * Camera2 thread
+     */
+    private void captureStill(final CaptureListener listener) {
+        if (this.session == null) {
+            listener.onFailure();
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder = this.device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(this.reader.reader.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            this.applyFlash(builder);
+            this.pendingCaptures.add(listener);
+            this.session.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                                             long timestamp, long frameNumber) {
+                    listener.onShutter();
+                }
+
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                            CaptureFailure failure) {
+                    if (pendingCaptures.remove(listener)) {
+                        listener.onFailure();
+                    }
+                }
+            }, this.handler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Still capture failed", e);
+            this.pendingCaptures.remove(listener);
+            listener.onFailure();
+        }
+    }
+
+    private final CameraCaptureSession.CaptureCallback previewCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                       TotalCaptureResult result) {
+            PreviewListener listener = previewListener;
+            if (awaitingFirstFrame) {
+                awaitingFirstFrame = false;
+                if (listener != null) {
+                    listener.onFirstFrame();
+                }
+            }
+        }
+    };
+
+    private void applyFlash(CaptureRequest.Builder builder) {
+        if ("on".equals(this.flashMode)) {
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
+        } else if ("auto".equals(this.flashMode)) {
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH);
+        } else {
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
+            builder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
+        }
+    }
+
+    private final CameraDevice.StateCallback deviceCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            if (reader == null) {
+                //Released while opening
+                camera.close();
+                return;
+            }
+            device = camera;
+            try {
+                camera.createCaptureSession(Arrays.asList(previewSurface, reader.reader.getSurface()),
+                        sessionCallback, handler);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Unable to create capture session", e);
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            camera.close();
+            if (device == camera) {
+                device = null;
+                session = null;
+                isPreviewing = false;
+            }
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error " + error);
+            this.onDisconnected(camera);
+        }
+    };
+
+    private final CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(CameraCaptureSession captureSession) {
+            if (device == null) {
+                captureSession.close();
+                return;
+            }
+            session = captureSession;
+            startRepeating();
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession captureSession) {
+            Log.e(TAG, "Capture session configuration failed");
+            if (warmOpen && reader != null) {
+                //The cached sizes may be what the camera refused, try once more without them
+                reconfigure();
+            }
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener imageListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader imageReader) {
+            final Image image;
+            try {
+                image = imageReader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                //Every image is still held by the pipeline
+                Log.w(TAG, "No free image for the still", e);
+                CaptureListener listener = pendingCaptures.poll();
+                if (listener != null) {
+                    listener.onFailure();
+                }
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            CaptureListener listener = pendingCaptures.poll();
+            if (listener == null) {
+                image.close();
+                return;
+            }
+            final StillReader owner = reader;
+            if (owner == null) {
+                image.close();
+                listener.onFailure();
+                return;
+            }
+            owner.acquired();
+            Image.Plane[] planes = image.getPlanes();
+            ByteBuffer y = planes[0].getBuffer();
+            ByteBuffer u = planes[1].getBuffer();
+            ByteBuffer v = planes[2].getBuffer();
+            YuvFrame frame = new YuvFrame(image.getWidth(), image.getHeight(), y, planes[0].getRowStride(),
+                    u, v, planes[1].getRowStride(), planes[1].getPixelStride());
+            listener.onFrame(frame, new CaptureJob.FrameReleaser() {
+                @Override
+                public void release(YuvFrame frame) {
+                    owner.released(image);
+                }
+            });
+        }
+    };
+
+    /**
+     * ImageReader that is only closed once the pipeline has handed back every image,
+     * closing it earlier would invalidate plane buffers that are still being cropped
+     */
+    private static final class StillReader {
+        final ImageReader reader;
+        private int held;
+        private boolean closed;
+
+        StillReader(ImageReader reader) {
+            this.reader = reader;
+        }
+
+        synchronized void acquired() {
+            this.held++;
+        }
+
+        synchronized void released(Image image) {
+            image.close();
+            this.held--;
+            if (this.closed && this.held == 0) {
+                this.reader.close();
+            }
+        }
+
+        synchronized void close() {
+            this.closed = true;
+            if (this.held == 0) {
+                this.reader.close();
+            }
+        }
+    }
+
+    private static String findBackCamera(CameraManager manager) throws CameraAccessException {
+        String[] ids = manager.getCameraIdList();
+        for (String id : ids) {
+            Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+        if (ids.length == 0) {
+            throw new IllegalStateException("No camera");
+        }
+        return ids[0];
+    }
+
+    private static boolean contains(List<int[]> sizes, int width, int height) {
+        for (int[] size : sizes) {
+            if (size[0] == width && size[1] == height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<int[]> toList(Size[] sizes) {
+        List<int[]> list = new ArrayList<>(sizes.length);
+        for (Size size : sizes) {
+            list.add(new int[]{size.getWidth(), size.getHeight()});
+        }
+        return list;
+    }
+}
@@ -0,0 +1,121 @@
+package com.brajendra.camrea.helper;
+
+import android.content.Context;
+import android.view.SurfaceHolder;
+
+import com.brajendra.camrea.kernel.YuvFrame;
+
+/**
+ * The camera API behind {@link CropCameraHelper}: {@link LegacyCameraBackend} (android.hardware.Camera),
+ * {@link Camera2Backend} (ImageReader, YUV_420_888), or a fake replaying recorded frames in the unit tests.
+ * <p>
+ * Methods are called on the helper's {@link CameraThread}. Listener callbacks may arrive on any thread.
+ */
+interface CameraBackend {
+
+    /**
+     * What the helper asks for when the camera is opened
+     */
+    class OpenRequest {
+        Context context;
+        SurfaceHolder holder;
+        int viewWidth;
+        int viewHeight;
+        int screenWidth;
+        int screenHeight;
+        //Camera.Parameters flash mode
+        String flashMode;
+        int jpegQuality;
+        //Orient the preview from the sensor and display rotation instead of the view's aspect
+        boolean sensorOrientation;
+        //Clockwise display rotation in degrees
+        int displayRotation;
+        //Mask in view pixels, oriented like the view, 0 without a mask
+        int maskWidth;
+        int maskHeight;
+        //Pixels the masked crop should come out at, oriented like the view
+        int cropWidth;
+        int cropHeight;
+        //Sizes negotiated on earlier opens, or null to always negotiate
+        CameraCapabilityCache capabilities;
+
+        /**
+         * Whether opening with the other request would configure the camera the same way
+         */
+        boolean sameAs(OpenRequest other) {
+            return other != null && this.context == other.context && this.holder == other.holder
+                    && this.viewWidth == other.viewWidth && this.viewHeight == other.viewHeight
+                    && this.screenWidth == other.screenWidth && this.screenHeight == other.screenHeight
+                    && (this.flashMode == null ? other.flashMode == null : this.flashMode.equals(other.flashMode))
+                    && this.jpegQuality == other.jpegQuality && this.sensorOrientation == other.sensorOrientation
+                    && this.displayRotation == other.displayRotation
+                    && this.maskWidth == other.maskWidth && this.maskHeight == other.maskHeight
+                    && this.cropWidth == other.cropWidth && this.cropHeight == other.cropHeight;
+        }
+    }
+
+    interface PreviewListener {
+        /**
+         * The first frame after a startPreview was displayed
+         */
+        void onFirstFrame();
+    }
+
+    interface CaptureListener {
+        /**
+         * The focus run before the shot finished, not called for shots taken without one
+         */
+        void onFocused();
+
+        /**
+         * The exposure started
+         */
+        void onShutter();
+
+        /**
+         * A JPEG still arrived
+         */
+        void onJpeg(byte[] jpeg);
+
+        /**
+         * A YUV still arrived, it must be handed back through the releaser once cropped
+         */
+        void onFrame(YuvFrame frame, CaptureJob.FrameReleaser releaser);
+
+        void onFailure();
+    }
+
+    /**
+     * Open and configure the camera
+     * Throws a RuntimeException if the camera cannot be opened
+     */
+    void open(OpenRequest request);
+
+    /**
+     * Start the preview, reporting its first frame to the preview listener
+     */
+    void startPreview();
+
+    void setPreviewListener(PreviewListener listener);
+
+    void stopPreview();
+
+    boolean isPreviewing();
+
+    /**
+     * Focus if needed and take a still
+     */
+    void capture(CaptureListener listener);
+
+    void release();
+
+    /**
+     * Clockwise rotation from the camera image to the preview as displayed
+     */
+    int getOrientation();
+
+    /**
+     * Whether the last open took its sizes from the capability cache instead of negotiating them
+     */
+    boolean isWarmOpen();
+}
@@ -0,0 +1,153 @@
+package com.brajendra.camrea.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Preview and picture sizes negotiated for a camera, kept across app starts.
+ * <p>
+ * Entries are keyed by camera API, camera id, device model and view / screen / mask / crop size, and stored in a
+ * small properties file in the app's files directory. The whole file is dropped when the build
+ * fingerprint changes, since an OS or firmware update can change what the camera supports.
+ * With an entry in place an open skips the size search; the legacy backend still checks the sizes
+ * against the supported lists and {@link #remove}s an entry the camera no longer accepts. Loaded
+ * lazily on the first lookup, which happens on the camera thread.
+ */
+class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+
+    static final String FILE_NAME = "camera_capabilities.properties";
+
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    private final Context context;
+    private final Properties entries = new Properties();
+    private File file;
+
+    CameraCapabilityCache(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @param api      "legacy" or "camera2"
+     * @param cameraId
+     * @param request  View, screen, mask and crop sizes the sizes were chosen for
+     */
+    static String key(String api, String cameraId, CameraBackend.OpenRequest request) {
+        return api + "/" + cameraId + "/" + Build.MODEL + "/" + request.viewWidth + "x" + request.viewHeight
+                + "/" + request.screenWidth + "x" + request.screenHeight
+                + "/" + request.maskWidth + "x" + request.maskHeight + "/" + request.cropWidth + "x" + request.cropHeight;
+    }
+
+    /**
+     * @return {previewWidth, previewHeight, pictureWidth, pictureHeight}, or null if the sizes have
+     * not been negotiated for this key yet
+     */
+    synchronized int[] get(String key) {
+        this.load();
+        String value = this.entries.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            int[] sizes = new int[4];
+            for (int i = 0; i < 4; i++) {
+                sizes[i] = Integer.parseInt(parts[i]);
+            }
+            return sizes;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remember the sizes chosen for a key and write the file
+     */
+    synchronized void put(String key, int previewWidth, int previewHeight, int pictureWidth, int pictureHeight) {
+        this.load();
+        this.entries.setProperty(key, previewWidth + "," + previewHeight + "," + pictureWidth + "," + pictureHeight);
+        this.save();
+    }
+
+    /**
+     * Forget the sizes for a key, e.g. when the camera rejected them, and write the file
+     */
+    synchronized void remove(String key) {
+        this.load();
+        if (this.entries.remove(key) != null) {
+            this.save();
+        }
+    }
+
+    private void load() {
+        if (this.file != null) {
+            return;
+        }
+        this.file = new File(this.context.getFilesDir(), FILE_NAME);
+        if (!this.file.exists()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(this.file);
+            this.entries.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + this.file, e);
+            this.entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (!Build.FINGERPRINT.equals(this.entries.getProperty(FINGERPRINT_KEY))) {
+            //Written by another OS or firmware build
+            this.entries.clear();
+            this.file.delete();
+        }
+    }
+
+    /**
+     * Write to a temporary file and rename it, a torn write must not leave a corrupt cache
+     */
+    private void save() {
+        this.entries.setProperty(FINGERPRINT_KEY, Build.FINGERPRINT);
+        File temp = new File(this.file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            this.entries.store(out, null);
+            out.close();
+            out = null;
+            if (!temp.renameTo(this.file)) {
+                Log.w(TAG, "Unable to replace " + this.file);
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + this.file, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
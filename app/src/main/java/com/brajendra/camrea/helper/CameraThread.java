@@ -0,0 +1,333 @@
+package com.brajendra.camrea.helper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.brajendra.camrea.helper.CropCameraHelper.CameraState;
+import com.brajendra.camrea.kernel.YuvFrame;
+
+/**
+ * Opens, configures, previews and releases the camera on a dedicated "CameraThread".
+ * <p>
+ * Commands are messages handled in order on that thread and move the camera through
+ * {@link CameraState}. An open still waiting in the queue is replaced by a newer one, and an open
+ * asking for the configuration already in place only makes sure the preview runs, so a series of
+ * surfaceChanged calls costs one Camera.open(). Legacy camera callbacks are delivered on this
+ * thread too, since it is the one that opened the camera.
+ */
+class CameraThread implements Handler.Callback, CameraBackend.PreviewListener {
+    private static final String TAG = "CameraThread";
+
+    private static final int MSG_OPEN = 1;
+    private static final int MSG_START_PREVIEW = 2;
+    private static final int MSG_CAPTURE = 3;
+    private static final int MSG_RELEASE = 4;
+
+    //How long release() waits for the camera to close before letting the surface go
+    private static final long RELEASE_TIMEOUT_MS = 2500;
+
+    private final CropCameraHelper helper;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile CameraState state = CameraState.CLOSED;
+    private volatile CameraBackend backend;
+    //Camera thread: what the open backend was configured with
+    private CameraBackend.OpenRequest configured;
+
+    //When the camera was asked to open, 0 once its first preview frame has been reported
+    private volatile long openStartNanos;
+    private volatile long firstFrameMillis = -1;
+    //Last open and configure, and whether it was served from the capability cache
+    private volatile long openMillis = -1;
+    private volatile boolean openWarm;
+    private volatile OnCameraStateCallback stateCallback;
+
+    CameraThread(CropCameraHelper helper) {
+        this.helper = helper;
+        HandlerThread thread = new HandlerThread("CameraThread");
+        thread.start();
+        this.handler = new Handler(thread.getLooper(), this);
+    }
+
+    /**
+     * Open the backend and start the preview, replacing an open that has not started yet
+     */
+    void open(CameraBackend backend, CameraBackend.OpenRequest request) {
+        this.handler.removeMessages(MSG_OPEN);
+        this.handler.sendMessage(this.handler.obtainMessage(MSG_OPEN, new OpenCommand(backend, request)));
+    }
+
+    void startPreview() {
+        this.handler.removeMessages(MSG_START_PREVIEW);
+        this.handler.sendEmptyMessage(MSG_START_PREVIEW);
+    }
+
+    /**
+     * Take a still, the listener fails right away unless the preview is running
+     *
+     * @param skipFocus Shoot without a focus run where the backend supports it
+     */
+    void capture(CameraBackend.CaptureListener listener, boolean skipFocus) {
+        this.handler.sendMessage(this.handler.obtainMessage(MSG_CAPTURE, skipFocus ? 1 : 0, 0, listener));
+    }
+
+    /**
+     * Close the camera, waiting for it so the preview surface can be destroyed afterwards
+     */
+    void release() {
+        this.handler.removeMessages(MSG_OPEN);
+        this.handler.removeMessages(MSG_START_PREVIEW);
+        CountDownLatch done = new CountDownLatch(1);
+        this.handler.sendMessage(this.handler.obtainMessage(MSG_RELEASE, done));
+        if (Looper.myLooper() == this.handler.getLooper()) {
+            return;
+        }
+        try {
+            if (!done.await(RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Camera still closing after " + RELEASE_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run on the camera thread after the commands already queued
+     */
+    boolean post(Runnable runnable) {
+        return this.handler.post(runnable);
+    }
+
+    CameraBackend getBackend() {
+        return this.backend;
+    }
+
+    CameraState getState() {
+        return this.state;
+    }
+
+    /**
+     * Milliseconds from the last open request to its first preview frame, -1 until there is one
+     */
+    long getTimeToFirstFrame() {
+        return this.firstFrameMillis;
+    }
+
+    /**
+     * Milliseconds the last open and configure took, -1 until there is one
+     */
+    long getOpenMillis() {
+        return this.openMillis;
+    }
+
+    boolean isOpenWarm() {
+        return this.openWarm;
+    }
+
+    void setStateCallback(OnCameraStateCallback callback) {
+        this.stateCallback = callback;
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_OPEN:
+                OpenCommand command = (OpenCommand) msg.obj;
+                this.handleOpen(command);
+                return true;
+            case MSG_START_PREVIEW:
+                this.handleStartPreview();
+                return true;
+            case MSG_CAPTURE:
+                this.handleCapture((CameraBackend.CaptureListener) msg.obj, msg.arg1 != 0);
+                return true;
+            case MSG_RELEASE:
+                this.close();
+                ((CountDownLatch) msg.obj).countDown();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void onFirstFrame() {
+        this.helper.onPreviewRunning();
+        long start = this.openStartNanos;
+        if (start == 0) {
+            //A preview restarted after a shot, not an open
+            return;
+        }
+        this.openStartNanos = 0;
+        final long millis = (System.nanoTime() - start) / 1000000;
+        this.firstFrameMillis = millis;
+        Log.i(TAG, "First preview frame " + millis + " ms after open");
+        final OnCameraStateCallback callback = this.stateCallback;
+        if (callback != null) {
+            this.mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFirstPreviewFrame(millis);
+                }
+            });
+        }
+    }
+
+    private void handleOpen(OpenCommand command) {
+        boolean open = this.state == CameraState.CONFIGURED || this.state == CameraState.PREVIEWING
+                || this.state == CameraState.CAPTURING;
+        if (open && command.backend == this.backend && command.request.sameAs(this.configured)) {
+            //Nothing changed, e.g. the surface was laid out again at the same size
+            if (this.state == CameraState.CONFIGURED) {
+                this.handleStartPreview();
+            }
+            return;
+        }
+        this.close();
+        this.backend = command.backend;
+        this.setState(CameraState.OPENING);
+        long start = System.nanoTime();
+        try {
+            command.backend.setPreviewListener(this);
+            command.backend.open(command.request);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to open camera", e);
+            command.backend.release();
+            this.setState(CameraState.CLOSED);
+            return;
+        }
+        this.reportOpen((System.nanoTime() - start) / 1000000, command.backend.isWarmOpen());
+        this.configured = command.request;
+        this.helper.onCameraOpened(command.backend.getOrientation());
+        this.setState(CameraState.CONFIGURED);
+        this.openStartNanos = command.requestedNanos;
+        this.handleStartPreview();
+    }
+
+    private void reportOpen(final long millis, final boolean warm) {
+        this.openMillis = millis;
+        this.openWarm = warm;
+        Log.i(TAG, "Camera opened in " + millis + " ms (" + (warm ? "warm" : "cold") + ")");
+        final OnCameraStateCallback callback = this.stateCallback;
+        if (callback != null) {
+            this.mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCameraOpened(millis, warm);
+                }
+            });
+        }
+    }
+
+    private void handleStartPreview() {
+        if (this.state != CameraState.CONFIGURED && this.state != CameraState.PREVIEWING) {
+            return;
+        }
+        this.backend.startPreview();
+        this.setState(CameraState.PREVIEWING);
+    }
+
+    private void handleCapture(final CameraBackend.CaptureListener listener, boolean skipFocus) {
+        if (this.state != CameraState.PREVIEWING) {
+            //Also refuses a second shot while one is being taken, takePicture would throw
+            listener.onFailure();
+            return;
+        }
+        this.setState(CameraState.CAPTURING);
+        final Runnable captured = new Runnable() {
+            @Override
+            public void run() {
+                if (state == CameraState.CAPTURING) {
+                    setState(CameraState.PREVIEWING);
+                }
+            }
+        };
+        try {
+            CameraBackend.CaptureListener backendListener = new CameraBackend.CaptureListener() {
+                @Override
+                public void onFocused() {
+                    listener.onFocused();
+                }
+
+                @Override
+                public void onShutter() {
+                    listener.onShutter();
+                }
+
+                @Override
+                public void onJpeg(byte[] jpeg) {
+                    handler.post(captured);
+                    listener.onJpeg(jpeg);
+                }
+
+                @Override
+                public void onFrame(YuvFrame frame, CaptureJob.FrameReleaser releaser) {
+                    handler.post(captured);
+                    listener.onFrame(frame, releaser);
+                }
+
+                @Override
+                public void onFailure() {
+                    handler.post(captured);
+                    listener.onFailure();
+                }
+            };
+            if (skipFocus && this.backend instanceof LegacyCameraBackend) {
+                ((LegacyCameraBackend) this.backend).takePicture(backendListener);
+            } else {
+                this.backend.capture(backendListener);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Capture failed", e);
+            captured.run();
+            listener.onFailure();
+        }
+    }
+
+    /**
+     * Camera thread
+     */
+    private void close() {
+        CameraBackend backend = this.backend;
+        if (backend == null || this.state == CameraState.CLOSED) {
+            return;
+        }
+        this.setState(CameraState.RELEASING);
+        this.helper.onCameraClosing();
+        backend.release();
+        this.configured = null;
+        this.openStartNanos = 0;
+        this.setState(CameraState.CLOSED);
+    }
+
+    private void setState(final CameraState state) {
+        this.state = state;
+        final OnCameraStateCallback callback = this.stateCallback;
+        if (callback != null) {
+            this.mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCameraStateChanged(state);
+                }
+            });
+        }
+    }
+
+    private static final class OpenCommand {
+        final CameraBackend backend;
+        final CameraBackend.OpenRequest request;
+        final long requestedNanos = System.nanoTime();
+
+        OpenCommand(CameraBackend backend, CameraBackend.OpenRequest request) {
+            this.backend = backend;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.brajendra.camrea.helper;
+
+import java.io.File;
+
+/**
+ * One saved capture as recorded in a {@link CaptureStore} index
+ */
+public class CaptureEntry {
+    final long id;
+    final long timestamp;
+    final int[] crop;
+    final long bytes;
+    CaptureStore.Status status;
+    final File file;
+    //Record number in the index file
+    int slot;
+
+    CaptureEntry(long id, long timestamp, int[] crop, long bytes, CaptureStore.Status status, File file, int slot) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.crop = crop;
+        this.bytes = bytes;
+        this.status = status;
+        this.file = file;
+        this.slot = slot;
+    }
+
+    /**
+     * Store id, increases with every capture
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * Shutter time, System.currentTimeMillis()
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return {left, top, right, bottom} of the crop in the camera image
+     */
+    public int[] getCropRect() {
+        return this.crop.clone();
+    }
+
+    /**
+     * Size of the saved file
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public CaptureStore.Status getStatus() {
+        return this.status;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureEntry{id=" + this.id + ", status=" + this.status + ", bytes=" + this.bytes + ", file=" + this.file + "}";
+    }
+}
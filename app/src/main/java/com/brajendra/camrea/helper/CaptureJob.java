@@ -0,0 +1,121 @@
+package com.brajendra.camrea.helper;
+
+import android.graphics.Bitmap;
+
+import com.brajendra.camrea.kernel.YuvFrame;
+import com.brajendra.camrea.upload.UploadQueue;
+
+/**
+ * A single capture travelling through the {@link CapturePipeline}.
+ * Settings are copied when the shutter fires so later changes do not affect queued captures.
+ */
+class CaptureJob {
+    //JPEG data from the camera
+    byte[] data;
+    //NV21 preview frame, used instead of data by the fast capture path
+    byte[] frame;
+    int frameWidth;
+    int frameHeight;
+    //Takes the preview frame back once it has been cropped
+    BufferRecycler recycler;
+    //YUV still from Camera2, used instead of data; frameWidth and frameHeight hold its size
+    YuvFrame yuv;
+    FrameReleaser releaser;
+    //Snapshot of CameraSurfaceView.getMaskSize(), null when there is no mask
+    int[] maskSize;
+    //Document found by auto-crop, corners as fractions of the sensor image; cropped to instead of the mask
+    float[] quad;
+    //Straighten the quad out with a perspective warp instead of cropping to its bounding box
+    boolean perspective;
+    //Picture directory set by setPictureSaveDictionaryPath
+    String saveDirectory;
+    OnCaptureCallback callback;
+    //Rotate and crop on all cores
+    boolean parallel;
+    //JPEG quality for re-encoded captures
+    int quality;
+    //fsync the file before it is moved into place
+    boolean syncOnSave;
+    //Crop the JPEG on DCT blocks when possible
+    boolean losslessCrop;
+    //Save in sensor orientation and tag the JPEG with the orientation instead of rotating pixels
+    boolean exifOrientation;
+    //Clockwise rotation from the sensor image to the display, used with exifOrientation
+    int orientation;
+    //Write the CaptureMetadata next to the picture
+    boolean writeMetadata;
+    //Smallest size the decoded crop is brought down to, oriented like the mask as the view shows it, 0 to keep full resolution
+    int outputWidth;
+    int outputHeight;
+    //Score the crop before it is encoded, and drop it instead of saving it when it falls short
+    boolean assessQuality;
+    boolean rejectPoorQuality;
+    double minSharpness;
+    double maxClipping;
+    double maxGlare;
+    //Saved captures are queued here for upload, null to skip
+    UploadQueue uploadQueue;
+    //Gets a review copy of the re-encoded crop, null to skip
+    ReviewImageLoader reviewLoader;
+    //Records this capture's spans, null while metrics are off
+    CaptureMetrics metrics;
+    //System.nanoTime of the shot being requested, and of the job being handed to the pipeline
+    long requestNanos;
+    long submitNanos;
+    //Shutter time
+    final long timestamp = System.currentTimeMillis();
+
+    //Stage results
+    Bitmap bitmap;
+    //Lossless crop plan, set when losslessCrop applies to this capture
+    LosslessJpegCropper cropper;
+    //Crop in source image coordinates, and the source image size
+    int[] cropRegion;
+    int sourceWidth;
+    int sourceHeight;
+    final CaptureReport report = new CaptureReport();
+    String filePath;
+    //Id in the picture directory's CaptureStore
+    long captureId;
+
+    CaptureJob(byte[] data, int[] maskSize, String saveDirectory, OnCaptureCallback callback) {
+        this.data = data;
+        this.maskSize = maskSize;
+        this.saveDirectory = saveDirectory;
+        this.callback = callback;
+    }
+
+    /**
+     * Job for an NV21 preview frame
+     */
+    static CaptureJob forPreviewFrame(byte[] frame, int width, int height, BufferRecycler recycler,
+                                      int[] maskSize, String saveDirectory, OnCaptureCallback callback) {
+        CaptureJob job = new CaptureJob(null, maskSize, saveDirectory, callback);
+        job.frame = frame;
+        job.frameWidth = width;
+        job.frameHeight = height;
+        job.recycler = recycler;
+        return job;
+    }
+
+    /**
+     * Job for a YUV still, cropped straight from its planes
+     */
+    static CaptureJob forYuvFrame(YuvFrame frame, FrameReleaser releaser, int[] maskSize, String saveDirectory,
+                                  OnCaptureCallback callback) {
+        CaptureJob job = new CaptureJob(null, maskSize, saveDirectory, callback);
+        job.yuv = frame;
+        job.frameWidth = frame.width;
+        job.frameHeight = frame.height;
+        job.releaser = releaser;
+        return job;
+    }
+
+    interface FrameReleaser {
+        void release(YuvFrame frame);
+    }
+
+    interface BufferRecycler {
+        void recycle(byte[] buffer);
+    }
+}
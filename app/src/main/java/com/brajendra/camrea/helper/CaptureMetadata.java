@@ -0,0 +1,84 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Where a capture came from: the crop in source image coordinates, how the saved image has to be
+ * rotated to be upright and when the shutter fired. Available from {@link CaptureReport#getMetadata}
+ * and, with {@link CropCameraHelper#setWriteMetadata}, as a JSON file next to the picture.
+ */
+public class CaptureMetadata {
+    private final long timestamp;
+    private final int[] crop;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int orientation;
+    private final boolean rotated;
+
+    CaptureMetadata(long timestamp, int[] crop, int imageWidth, int imageHeight, int orientation, boolean rotated) {
+        this.timestamp = timestamp;
+        this.crop = crop.clone();
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.orientation = orientation;
+        this.rotated = rotated;
+    }
+
+    /**
+     * Shutter time, System.currentTimeMillis()
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return {left, top, right, bottom} of the crop in the camera image (picture or preview frame)
+     */
+    public int[] getCropRect() {
+        return this.crop.clone();
+    }
+
+    /**
+     * Width of the camera image the crop was taken from
+     */
+    public int getImageWidth() {
+        return this.imageWidth;
+    }
+
+    /**
+     * Height of the camera image the crop was taken from
+     */
+    public int getImageHeight() {
+        return this.imageHeight;
+    }
+
+    /**
+     * Clockwise rotation from the camera image to what the user saw: 0, 90, 180 or 270
+     */
+    public int getOrientation() {
+        return this.orientation;
+    }
+
+    /**
+     * True when the rotation was applied to the pixels, false when it is only in the EXIF tag
+     */
+    public boolean isRotated() {
+        return this.rotated;
+    }
+
+    /**
+     * @return the metadata as a single JSON object
+     */
+    public String toJson() {
+        return "{\"timestamp\":" + this.timestamp
+                + ",\"crop\":[" + this.crop[0] + "," + this.crop[1] + "," + this.crop[2] + "," + this.crop[3] + "]"
+                + ",\"imageWidth\":" + this.imageWidth
+                + ",\"imageHeight\":" + this.imageHeight
+                + ",\"orientation\":" + this.orientation
+                + ",\"exifOrientation\":" + (this.rotated ? 1 : JpegExif.toExifOrientation(this.orientation))
+                + ",\"rotated\":" + this.rotated + "}";
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureMetadata" + this.toJson();
+    }
+}
@@ -0,0 +1,161 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Latency of each step of a capture, and how much memory a capture allocates, as histograms.
+ * <p>
+ * Spans are measured with System.nanoTime and recorded in microseconds. The camera side
+ * (focus, shutter lag, exposure and readout) is timed by {@link CropCameraHelper}, the rest by
+ * the {@link CapturePipeline}, so one capture adds one value to each span it went through:
+ * <ul>
+ * <li>FOCUS: shot requested to the focus run finished, legacy camera only</li>
+ * <li>SHUTTER: focus finished, or the shot requested without a focus run, to the exposure starting</li>
+ * <li>EXPOSURE: exposure started to the picture reaching the app</li>
+ * <li>QUEUE: picture handed to the pipeline to the pipeline starting on it</li>
+ * <li>DECODE, TRANSFORM, ASSESS, ENCODE, PERSIST: the {@link CaptureStage}s</li>
+ * <li>TOTAL: shot requested, or frame grabbed for fast capture, to the result being posted to the callback</li>
+ * </ul>
+ * The allocation estimate is the picture buffer the camera handed over plus the growth of the
+ * Java and native heaps while the pipeline worked on it; a collection in between makes it low.
+ * <p>
+ * While disabled nothing is timed: captures carry no metrics and the stages skip recording.
+ */
+public class CaptureMetrics {
+
+    public enum Span {
+        FOCUS, SHUTTER, EXPOSURE, QUEUE, DECODE, TRANSFORM, ASSESS, ENCODE, PERSIST, TOTAL
+    }
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private volatile boolean enabled;
+    private final Histogram[] spans = new Histogram[Span.values().length];
+    //Kilobytes
+    private final Histogram allocations = new Histogram();
+
+    CaptureMetrics() {
+        for (int i = 0; i < this.spans.length; i++) {
+            this.spans[i] = new Histogram();
+        }
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @param span
+     * @param nanos Elapsed System.nanoTime
+     */
+    void record(Span span, long nanos) {
+        this.spans[span.ordinal()].record(nanos / 1000);
+    }
+
+    void record(CaptureStage stage, long nanos) {
+        this.record(spanOf(stage), nanos);
+    }
+
+    void recordAllocation(long bytes) {
+        this.allocations.record(bytes / 1024);
+    }
+
+    /**
+     * Captures that went through a span
+     */
+    public long getCount(Span span) {
+        return this.spans[span.ordinal()].getCount();
+    }
+
+    /**
+     * @param span
+     * @param percentile 0 to 100, e.g. 95
+     * @return microseconds, within about 6%
+     */
+    public long getPercentileMicros(Span span, double percentile) {
+        return this.spans[span.ordinal()].getPercentile(percentile);
+    }
+
+    public long getMaxMicros(Span span) {
+        return this.spans[span.ordinal()].getMax();
+    }
+
+    public long getMeanMicros(Span span) {
+        return this.spans[span.ordinal()].getMean();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return estimated kilobytes allocated per capture
+     */
+    public long getAllocationPercentileKb(double percentile) {
+        return this.allocations.getPercentile(percentile);
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        for (Histogram histogram : this.spans) {
+            histogram.reset();
+        }
+        this.allocations.reset();
+    }
+
+    /**
+     * @return e.g. {"enabled":true,"spans":{"FOCUS":{"count":3,"meanUs":..,"p50Us":..,"p95Us":..,"p99Us":..,"maxUs":..},..},
+     * "allocationKb":{"count":3,..}}, spans nothing went through are left out
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"enabled\":").append(this.enabled).append(",\"spans\":{");
+        boolean first = true;
+        for (Span span : Span.values()) {
+            Histogram histogram = this.spans[span.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(span.name()).append("\":");
+            appendJson(json, histogram, "Us");
+        }
+        json.append("},\"allocationKb\":");
+        appendJson(json, this.allocations, "");
+        return json.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureMetrics" + this.toJson();
+    }
+
+    private static void appendJson(StringBuilder json, Histogram histogram, String unit) {
+        json.append("{\"count\":").append(histogram.getCount())
+                .append(",\"mean").append(unit).append("\":").append(histogram.getMean());
+        for (double percentile : PERCENTILES) {
+            json.append(",\"p").append((int) percentile).append(unit).append("\":")
+                    .append(histogram.getPercentile(percentile));
+        }
+        json.append(",\"max").append(unit).append("\":").append(histogram.getMax()).append('}');
+    }
+
+    private static Span spanOf(CaptureStage stage) {
+        switch (stage) {
+            case DECODE:
+                return Span.DECODE;
+            case TRANSFORM:
+                return Span.TRANSFORM;
+            case ASSESS:
+                return Span.ASSESS;
+            case ENCODE:
+                return Span.ENCODE;
+            default:
+                return Span.PERSIST;
+        }
+    }
+}
@@ -0,0 +1,889 @@
+package com.brajendra.camrea.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ImageFormat;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Debug;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.brajendra.camrea.kernel.ArgbKernel;
+import com.brajendra.camrea.kernel.Nv21Kernel;
+import com.brajendra.camrea.kernel.PerspectiveWarp;
+import com.brajendra.camrea.kernel.QualityScorer;
+import com.brajendra.camrea.kernel.StripeExecutor;
+import com.brajendra.camrea.kernel.Yuv420Kernel;
+
+/**
+ * Runs captures through decode -> transform -> encode -> persist on a dedicated thread.
+ * The queue is bounded: when it is full new captures are rejected instead of piling up in memory.
+ */
+class CapturePipeline {
+    private static final String TAG = "CapturePipeline";
+
+    //Default number of captures that may wait behind the one being processed
+    static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+    //Metadata file written next to the picture
+    static final String METADATA_SUFFIX = ".json";
+
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BitmapPool bitmapPool;
+
+    //Buffers reused by every capture, only touched on the pipeline thread
+    private final CaptureWriter writer = new CaptureWriter();
+    private final int[] frameRegion = new int[4];
+    private final Rect yuvRect = new Rect();
+    private byte[] cropBuffer;
+    //YUV still region repacked as NV21 for the perspective warp
+    private byte[] warpSource;
+    private byte[] yuvImageData;
+    private YuvImage yuvImage;
+    private int[] argbSource;
+    private int[] argbTarget;
+    private final Canvas scaleCanvas = new Canvas();
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect scaleRect = new Rect();
+    //Created the first time a PARALLEL capture comes in, shut down with the pipeline thread
+    private volatile StripeExecutor stripes;
+    private final QualityScorer scorer = new QualityScorer(QualityScorer.DEFAULT_ANALYSIS_WIDTH);
+
+    CapturePipeline(int queueCapacity, BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "CapturePipeline");
+            }
+        }, new ThreadPoolExecutor.AbortPolicy()) {
+            @Override
+            protected void terminated() {
+                //Every queued capture has been processed, none can need the stripe threads any more
+                if (stripes != null) {
+                    stripes.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Queue a capture
+     *
+     * @param job
+     * @return false if the queue is full and the capture was dropped
+     */
+    boolean submit(final CaptureJob job) {
+        if (job.metrics != null) {
+            job.submitNanos = System.nanoTime();
+        }
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    process(job);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Capture queue full, dropping capture");
+            return false;
+        }
+    }
+
+    /**
+     * Whether another capture can be queued without being rejected
+     */
+    boolean hasCapacity() {
+        return this.executor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * Stop taking captures and let the pipeline and stripe threads end once the queued ones are saved
+     */
+    void shutdown() {
+        this.executor.shutdown();
+    }
+
+    private void process(CaptureJob job) {
+        boolean success = false;
+        //Heap use when the capture was picked up, for the allocation estimate
+        long heapBefore = 0;
+        long nativeBefore = 0;
+        long inputBytes = 0;
+        if (job.metrics != null) {
+            job.metrics.record(CaptureMetrics.Span.QUEUE, System.nanoTime() - job.submitNanos);
+            Runtime runtime = Runtime.getRuntime();
+            heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            nativeBefore = Debug.getNativeHeapAllocatedSize();
+            inputBytes = job.data != null ? job.data.length
+                    : job.frame != null ? job.frame.length
+                    : job.yuv != null ? job.frameWidth * job.frameHeight * 3 / 2 : 0;
+        }
+        try {
+            long start = System.nanoTime();
+            boolean passThrough = false;
+            boolean lossless = false;
+            if (job.frame != null || job.yuv != null) {
+                //Preview frames and YUV stills are already raw, crop them to NV21 and encode just the crop
+                this.transformFrame(job);
+                start = this.stageComplete(job, CaptureStage.TRANSFORM, start);
+            } else if (this.isPassThrough(job)) {
+                //Nothing to crop or rotate, the camera's JPEG is saved as is
+                passThrough = true;
+                this.readBounds(job);
+                job.cropRegion = new int[]{0, 0, job.sourceWidth, job.sourceHeight};
+            } else if (job.losslessCrop && !isWarped(job) && this.planLosslessCrop(job)) {
+                //Blocks are cut out of the JPEG while encoding, nothing to decode up front
+                lossless = true;
+            } else {
+                this.decode(job);
+                start = this.stageComplete(job, CaptureStage.DECODE, start);
+                this.transform(job);
+                start = this.stageComplete(job, CaptureStage.TRANSFORM, start);
+            }
+
+            boolean keep = true;
+            if (job.assessQuality) {
+                keep = this.assess(job, passThrough || lossless);
+                start = this.stageComplete(job, CaptureStage.ASSESS, start);
+            }
+            if (keep) {
+                this.persist(job, passThrough, lossless, start);
+                success = true;
+                if (job.uploadQueue != null) {
+                    //In memory only, the queue journals it on its own thread
+                    job.uploadQueue.enqueue(new File(job.filePath));
+                }
+            } else {
+                //Nothing was encoded or written
+                Log.i(TAG, "Capture rejected, " + job.report.qualityScore);
+                if (job.callback instanceof OnCaptureStageCallback) {
+                    ((OnCaptureStageCallback) job.callback).onCaptureReport(job.report);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Capture processing failed", e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory while processing capture", e);
+        } finally {
+            if (job.bitmap != null) {
+                this.bitmapPool.put(job.bitmap);
+                job.bitmap = null;
+            }
+            if (job.frame != null && job.recycler != null) {
+                job.recycler.recycle(job.frame);
+            }
+            if (job.yuv != null && job.releaser != null) {
+                job.releaser.release(job.yuv);
+            }
+            job.frame = null;
+            job.yuv = null;
+            job.data = null;
+            job.cropper = null;
+        }
+        if (job.metrics != null) {
+            Runtime runtime = Runtime.getRuntime();
+            long heapGrowth = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+            long nativeGrowth = Debug.getNativeHeapAllocatedSize() - nativeBefore;
+            job.metrics.recordAllocation(inputBytes + Math.max(0, heapGrowth) + Math.max(0, nativeGrowth));
+        }
+        this.deliver(job, success);
+    }
+
+    /**
+     * Quality stage: score focus, clipping and glare of the crop before it is encoded
+     *
+     * @param compressed Nothing was decoded, score a downsampled decode of the camera JPEG
+     * @return false if the capture is to be dropped
+     */
+    private boolean assess(CaptureJob job, boolean compressed) {
+        if (compressed) {
+            this.scoreJpeg(job);
+        } else if (job.bitmap != null) {
+            Bitmap bitmap = job.bitmap;
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            this.ensureArgbBuffers(width * height, 0);
+            bitmap.getPixels(this.argbSource, 0, width, 0, 0, width, height);
+            this.scorer.scoreArgb(this.argbSource, 0, width, height, width);
+        } else {
+            //The NV21 crop starts with its luma plane
+            this.scorer.scoreLuma(this.cropBuffer, 0, job.frameWidth, job.frameHeight, job.frameWidth);
+        }
+        QualityScore score = new QualityScore();
+        score.sharpness = this.scorer.getSharpness();
+        score.shadowClipping = this.scorer.getShadowClipping();
+        score.highlightClipping = this.scorer.getHighlightClipping();
+        score.glare = this.scorer.getGlare();
+        score.analysisNanos = this.scorer.getLastNanos();
+        score.acceptable = score.sharpness >= job.minSharpness
+                && score.shadowClipping + score.highlightClipping <= job.maxClipping
+                && score.glare <= job.maxGlare;
+        job.report.qualityScore = score;
+        return score.acceptable || !job.rejectPoorQuality;
+    }
+
+    /**
+     * Score the crop region of a camera JPEG from a decode at a fraction of its size
+     * Only the region is decoded, like the decode stage does; the whole frame only when the region decoder fails
+     */
+    private void scoreJpeg(CaptureJob job) {
+        int[] region = job.cropRegion;
+        int sampleSize = 1;
+        while ((region[2] - region[0]) / (sampleSize * 2) >= QualityScorer.DEFAULT_ANALYSIS_WIDTH) {
+            sampleSize *= 2;
+        }
+        Bitmap bitmap = this.decodeRegion(job.data, region, sampleSize);
+        boolean wholeFrame = bitmap == null;
+        if (wholeFrame) {
+            bitmap = this.bitmapPool.decodeByteArray(job.data, sampleSize);
+        }
+        if (bitmap == null) {
+            throw new IllegalStateException("Unable to decode capture for scoring");
+        }
+        try {
+            int left = 0;
+            int top = 0;
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            if (wholeFrame) {
+                float scaleX = (float) bitmap.getWidth() / job.sourceWidth;
+                float scaleY = (float) bitmap.getHeight() / job.sourceHeight;
+                left = Math.min(bitmap.getWidth() - 1, (int) (region[0] * scaleX));
+                top = Math.min(bitmap.getHeight() - 1, (int) (region[1] * scaleY));
+                width = Math.max(1, Math.min(bitmap.getWidth(), (int) (region[2] * scaleX)) - left);
+                height = Math.max(1, Math.min(bitmap.getHeight(), (int) (region[3] * scaleY)) - top);
+            }
+            this.ensureArgbBuffers(width * height, 0);
+            bitmap.getPixels(this.argbSource, 0, width, left, top, width, height);
+            this.scorer.scoreArgb(this.argbSource, 0, width, height, width);
+        } finally {
+            this.bitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Encode and persist stages
+     *
+     * @param passThrough The camera JPEG is saved as is
+     * @param lossless    The crop is cut out of the camera JPEG
+     * @param start       When the previous stage ended
+     */
+    private void persist(CaptureJob job, boolean passThrough, boolean lossless, long start) throws IOException {
+        File target = this.newTarget(job);
+        this.writer.setSyncOnCommit(job.syncOnSave);
+        try {
+            OutputStream out = this.writer.open(target);
+            if (job.exifOrientation) {
+                out = this.tagOrientation(job, out, passThrough);
+            }
+            if (job.frame != null || job.yuv != null) {
+                this.encodeFrame(job, out);
+            } else if (passThrough) {
+                out.write(job.data);
+            } else if (lossless && !this.encodeLossless(job, out)) {
+                //Broken entropy data, start the file over from pixels
+                lossless = false;
+                this.writer.abort();
+                this.decode(job);
+                start = this.stageComplete(job, CaptureStage.DECODE, start);
+                this.transform(job);
+                start = this.stageComplete(job, CaptureStage.TRANSFORM, start);
+                out = this.writer.open(target);
+                this.encode(job, job.exifOrientation ? this.tagOrientation(job, out, false) : out);
+            } else if (!lossless) {
+                this.encode(job, out);
+            }
+            long now = System.nanoTime();
+            job.report.encodeNanos = now - start;
+            start = this.stageComplete(job, CaptureStage.ENCODE, start);
+
+            job.report.bytesWritten = this.writer.commit();
+            job.report.persistNanos = System.nanoTime() - start;
+            this.stageComplete(job, CaptureStage.PERSIST, start);
+        } catch (IOException e) {
+            this.writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            this.writer.abort();
+            throw e;
+        }
+        job.filePath = target.getPath();
+        job.report.filePath = job.filePath;
+        job.report.reencoded = !passThrough && !lossless;
+        if (job.report.reencoded) {
+            job.report.quality = job.quality;
+        }
+        job.report.lossless = lossless;
+        job.report.metadata = new CaptureMetadata(job.timestamp, job.cropRegion, job.sourceWidth,
+                job.sourceHeight, rotationOf(job), pixelRotationOf(job) != 0);
+        if (job.writeMetadata) {
+            this.writeMetadata(job.report.metadata, new File(target.getPath() + METADATA_SUFFIX));
+        }
+        CaptureStore.open(getImageDir(job.saveDirectory)).add(job.captureId, job.timestamp, job.cropRegion,
+                job.report.bytesWritten, job.syncOnSave);
+        job.report.captureId = job.captureId;
+        if (job.callback instanceof OnCaptureStageCallback) {
+            ((OnCaptureStageCallback) job.callback).onCaptureReport(job.report);
+        }
+    }
+
+    /**
+     * Put the orientation into the EXIF of the file being written
+     *
+     * @param passThrough The camera JPEG is copied as is, patch its EXIF instead of adding one
+     * @return the stream to write the JPEG to
+     */
+    private OutputStream tagOrientation(CaptureJob job, OutputStream out, boolean passThrough) {
+        int exifOrientation = JpegExif.toExifOrientation(job.orientation);
+        if (passThrough) {
+            if (JpegExif.patchOrientation(job.data, exifOrientation)) {
+                return out;
+            }
+            if (JpegExif.hasExif(job.data)) {
+                Log.w(TAG, "Camera EXIF has no orientation entry, leaving it untagged");
+                return out;
+            }
+        }
+        //Encoders do not write EXIF, add a segment holding just the orientation
+        return JpegExif.withOrientation(out, exifOrientation);
+    }
+
+    /**
+     * Save the metadata as JSON next to the picture
+     * A failure here does not fail the capture
+     */
+    private void writeMetadata(CaptureMetadata metadata, File file) {
+        try {
+            OutputStream out = this.writer.open(file);
+            out.write(metadata.toJson().getBytes("UTF-8"));
+            this.writer.commit();
+        } catch (IOException e) {
+            this.writer.abort();
+            Log.e(TAG, "Unable to write capture metadata", e);
+        }
+    }
+
+    private long stageComplete(CaptureJob job, CaptureStage stage, long start) {
+        long now = System.nanoTime();
+        if (job.metrics != null) {
+            job.metrics.record(stage, now - start);
+        }
+        if (job.callback instanceof OnCaptureStageCallback) {
+            ((OnCaptureStageCallback) job.callback).onStageComplete(stage, now - start);
+        }
+        return now;
+    }
+
+    private void deliver(final CaptureJob job, final boolean success) {
+        if (job.metrics != null) {
+            job.metrics.record(CaptureMetrics.Span.TOTAL, System.nanoTime() - job.requestNanos);
+        }
+        if (job.callback == null) {
+            return;
+        }
+        final String filePath = success ? job.filePath : null;
+        this.mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                job.callback.onCapture(success, filePath);
+            }
+        });
+    }
+
+    /**
+     * A camera JPEG can be saved untouched when there is no mask and no rotation
+     */
+    private boolean isPassThrough(CaptureJob job) {
+        int[] sizes = job.maskSize;
+        boolean masked = job.quad != null || (sizes != null && sizes[0] != 0 && sizes[1] != 0);
+        return !masked && pixelRotationOf(job) == 0;
+    }
+
+    /**
+     * Region to crop out of a width x height sensor image: the detected document's bounding box
+     * when there is one, otherwise the mask centered in the view
+     *
+     * @return out, or null to keep the whole image
+     */
+    private static int[] cropRegionOf(CaptureJob job, int width, int height, int[] out) {
+        if (job.quad != null) {
+            int[] region = CropRegionMapper.mapQuadBounds(job.quad, width, height, out);
+            if (region != null) {
+                return region;
+            }
+        }
+        int[] sizes = job.maskSize;
+        if (sizes != null && sizes[0] != 0 && sizes[1] != 0) {
+            return CropRegionMapper.mapCenteredMask(sizes[0], sizes[1], sizes[2], sizes[3],
+                    width, height, rotationOf(job), out);
+        }
+        return null;
+    }
+
+    /**
+     * Work out the MCU-aligned crop for a lossless capture
+     *
+     * @return false if the JPEG cannot be cropped losslessly
+     */
+    private boolean planLosslessCrop(CaptureJob job) {
+        LosslessJpegCropper cropper = LosslessJpegCropper.parse(job.data);
+        if (cropper == null) {
+            Log.i(TAG, "JPEG not suitable for lossless crop, decoding instead");
+            return false;
+        }
+        int width = cropper.getWidth();
+        int height = cropper.getHeight();
+        int[] region = cropRegionOf(job, width, height, new int[4]);
+        if (region == null) {
+            region = new int[]{0, 0, width, height};
+        }
+        region = cropper.snap(region, pixelRotationOf(job));
+        if (region == null) {
+            return false;
+        }
+        job.cropper = cropper;
+        job.cropRegion = region;
+        job.sourceWidth = width;
+        job.sourceHeight = height;
+        return true;
+    }
+
+    /**
+     * Encode stage for lossless captures, streams straight into the capture file
+     *
+     * @return false if the JPEG turned out to be corrupt
+     */
+    private boolean encodeLossless(CaptureJob job, OutputStream out) throws IOException {
+        try {
+            job.cropper.write(job.cropRegion, pixelRotationOf(job), out);
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Lossless crop failed, decoding instead", e);
+            return false;
+        }
+    }
+
+    /**
+     * Decode stage
+     * Only the masked region is decoded, so peak memory follows the mask area instead of the sensor area.
+     * With an output size the region is subsampled while it stays above that size, then scaled down to it
+     */
+    private void decode(CaptureJob job) {
+        byte[] data = job.data;
+        this.readBounds(job);
+        int[] region = cropRegionOf(job, job.sourceWidth, job.sourceHeight, new int[4]);
+
+        Bitmap bitmap = null;
+        if (region != null) {
+            bitmap = this.decodeRegion(data, region,
+                    sampleSizeFor(job, region[2] - region[0], region[3] - region[1]));
+        }
+        if (bitmap == null) {
+            bitmap = this.bitmapPool.decodeByteArray(data, sampleSizeFor(job, job.sourceWidth, job.sourceHeight));
+            region = null;
+        }
+        if (bitmap == null) {
+            throw new IllegalStateException("Unable to decode capture");
+        }
+        job.bitmap = this.scaleToOutput(job, bitmap);
+        job.cropRegion = region != null ? region : new int[]{0, 0, job.sourceWidth, job.sourceHeight};
+        //The compressed frame is no longer needed
+        job.data = null;
+    }
+
+    /**
+     * Shrink a decoded crop to the output size, keeping its aspect ratio so both sides stay at least as large
+     *
+     * @return the scaled bitmap, or the given one if it is not larger than the output size
+     */
+    private Bitmap scaleToOutput(CaptureJob job, Bitmap bitmap) {
+        int[] target = outputSizeOf(job);
+        if (target == null) {
+            return bitmap;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        double scale = Math.max((double) target[0] / width, (double) target[1] / height);
+        if (scale >= 1) {
+            return bitmap;
+        }
+        int outWidth = Math.max(target[0], (int) Math.round(width * scale));
+        int outHeight = Math.max(target[1], (int) Math.round(height * scale));
+        if (outWidth >= width && outHeight >= height) {
+            return bitmap;
+        }
+        Bitmap scaled = this.bitmapPool.get(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        if (scaled == null) {
+            scaled = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        }
+        this.scaleRect.set(0, 0, outWidth, outHeight);
+        this.scaleCanvas.setBitmap(scaled);
+        this.scaleCanvas.drawBitmap(bitmap, null, this.scaleRect, this.scalePaint);
+        this.scaleCanvas.setBitmap(null);
+        this.bitmapPool.put(bitmap);
+        return scaled;
+    }
+
+    /**
+     * Read the camera JPEG's size without decoding it
+     */
+    private void readBounds(CaptureJob job) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(job.data, 0, job.data.length, bounds);
+        job.sourceWidth = bounds.outWidth;
+        job.sourceHeight = bounds.outHeight;
+    }
+
+    /**
+     * Transform stage: rotate the cropped region for portrait captures
+     * Pixels go through {@link ArgbKernel} into a pooled bitmap, split across cores in PARALLEL mode
+     */
+    private void transform(CaptureJob job) {
+        if (isWarped(job)) {
+            this.warp(job);
+            return;
+        }
+        int rotation = pixelRotationOf(job);
+        if (rotation == 0) {
+            return;
+        }
+        Bitmap bitmap = job.bitmap;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int pixels = width * height;
+        this.ensureArgbBuffers(pixels, pixels);
+        bitmap.getPixels(this.argbSource, 0, width, 0, 0, width, height);
+        this.bitmapPool.put(bitmap);
+        job.bitmap = null;
+
+        ArgbKernel.cropRotate(this.argbSource, width, height, 0, 0, width, height, rotation, false,
+                this.argbTarget, job.parallel ? this.getStripes() : null);
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        Bitmap rotated = this.bitmapPool.get(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        if (rotated == null) {
+            rotated = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        }
+        rotated.setPixels(this.argbTarget, 0, outWidth, 0, 0, outWidth, outHeight);
+        job.bitmap = rotated;
+    }
+
+    /**
+     * Transform stage in PERSPECTIVE mode: straighten the detected document out of the decoded region,
+     * turning it upright in the same pass
+     */
+    private void warp(CaptureJob job) {
+        Bitmap bitmap = job.bitmap;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] region = job.cropRegion;
+        //The region may have been subsampled or scaled down to the output size while decoding
+        float[] quad = warpQuadOf(job, (float) width / (region[2] - region[0]),
+                (float) height / (region[3] - region[1]), region[0], region[1]);
+        int[] size = warpSizeOf(job, quad);
+        int outWidth = size[0];
+        int outHeight = size[1];
+        this.ensureArgbBuffers(width * height, outWidth * outHeight);
+        bitmap.getPixels(this.argbSource, 0, width, 0, 0, width, height);
+        this.bitmapPool.put(bitmap);
+        job.bitmap = null;
+
+        PerspectiveWarp.warpArgb(this.argbSource, width, height, PerspectiveWarp.quadToRect(quad, outWidth, outHeight),
+                this.argbTarget, outWidth, outHeight, job.parallel ? this.getStripes() : null);
+        Bitmap warped = this.bitmapPool.get(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        if (warped == null) {
+            warped = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        }
+        warped.setPixels(this.argbTarget, 0, outWidth, 0, 0, outWidth, outHeight);
+        job.bitmap = warped;
+    }
+
+    private void ensureArgbBuffers(int sourcePixels, int targetPixels) {
+        if (this.argbSource == null || this.argbSource.length < sourcePixels) {
+            this.argbSource = new int[sourcePixels];
+        }
+        if (this.argbTarget == null || this.argbTarget.length < targetPixels) {
+            this.argbTarget = new int[targetPixels];
+        }
+    }
+
+    private StripeExecutor getStripes() {
+        if (this.stripes == null) {
+            this.stripes = StripeExecutor.forAvailableProcessors();
+        }
+        return this.stripes;
+    }
+
+    /**
+     * Encode stage, streams straight into the capture file
+     * The review loader, if any, gets its scaled copy before the crop goes back to the pool
+     */
+    private void encode(CaptureJob job, OutputStream out) {
+        job.bitmap.compress(Bitmap.CompressFormat.JPEG, job.quality, out);
+        if (job.reviewLoader != null) {
+            job.reviewLoader.offer(job.captureId, job.bitmap);
+        }
+        this.bitmapPool.put(job.bitmap);
+        job.bitmap = null;
+    }
+
+    /**
+     * Transform stage for preview frames and YUV stills: cut the mask out into NV21, rotating portrait captures
+     */
+    private void transformFrame(CaptureJob job) {
+        int width = job.frameWidth;
+        int height = job.frameHeight;
+        int rotation = pixelRotationOf(job);
+        int[] region = cropRegionOf(job, width, height, this.frameRegion);
+        if (region == null) {
+            region = this.frameRegion;
+            region[0] = 0;
+            region[1] = 0;
+            region[2] = width;
+            region[3] = height;
+        }
+        //Chroma is subsampled 2x2, keep the crop on even coordinates
+        int left = region[0] & ~1;
+        int top = region[1] & ~1;
+        int cropWidth = (region[2] - left) & ~1;
+        int cropHeight = (region[3] - top) & ~1;
+        job.cropRegion = new int[]{left, top, left + cropWidth, top + cropHeight};
+        job.sourceWidth = width;
+        job.sourceHeight = height;
+        if (isWarped(job)) {
+            this.warpFrame(job, left, top, cropWidth, cropHeight);
+            return;
+        }
+
+        int size = Nv21Kernel.frameSize(cropWidth, cropHeight);
+        if (this.cropBuffer == null || this.cropBuffer.length < size) {
+            this.cropBuffer = new byte[size];
+        }
+        StripeExecutor stripes = job.parallel ? this.getStripes() : null;
+        if (job.yuv != null) {
+            Yuv420Kernel.cropRotate(job.yuv, left, top, cropWidth, cropHeight, rotation, false, this.cropBuffer, stripes);
+        } else {
+            Nv21Kernel.cropRotate(job.frame, width, height, left, top, cropWidth, cropHeight, rotation, false,
+                    this.cropBuffer, stripes);
+        }
+        boolean swap = rotation == 90 || rotation == 270;
+        job.frameWidth = swap ? cropHeight : cropWidth;
+        job.frameHeight = swap ? cropWidth : cropHeight;
+    }
+
+    /**
+     * Transform stage for frames in PERSPECTIVE mode, warps into the NV21 crop buffer
+     * Preview frames are warped in place; YUV stills are first repacked to NV21 over the document's bounding box
+     */
+    private void warpFrame(CaptureJob job, int left, int top, int cropWidth, int cropHeight) {
+        byte[] source;
+        int sourceWidth;
+        int sourceHeight;
+        float[] quad;
+        if (job.yuv != null) {
+            int size = Nv21Kernel.frameSize(cropWidth, cropHeight);
+            if (this.warpSource == null || this.warpSource.length < size) {
+                this.warpSource = new byte[size];
+            }
+            Yuv420Kernel.cropRotate(job.yuv, left, top, cropWidth, cropHeight, 0, false, this.warpSource, null);
+            source = this.warpSource;
+            sourceWidth = cropWidth;
+            sourceHeight = cropHeight;
+            quad = warpQuadOf(job, 1, 1, left, top);
+        } else {
+            source = job.frame;
+            sourceWidth = job.frameWidth;
+            sourceHeight = job.frameHeight;
+            quad = warpQuadOf(job, 1, 1, 0, 0);
+        }
+        int[] size = warpSizeOf(job, quad);
+        int outWidth = size[0] & ~1;
+        int outHeight = size[1] & ~1;
+        int frameSize = Nv21Kernel.frameSize(outWidth, outHeight);
+        if (this.cropBuffer == null || this.cropBuffer.length < frameSize) {
+            this.cropBuffer = new byte[frameSize];
+        }
+        PerspectiveWarp.warpNv21(source, sourceWidth, sourceHeight, PerspectiveWarp.quadToRect(quad, outWidth, outHeight),
+                this.cropBuffer, outWidth, outHeight, job.parallel ? this.getStripes() : null);
+        job.frameWidth = outWidth;
+        job.frameHeight = outHeight;
+    }
+
+    /**
+     * Encode stage for preview frames, streams straight into the capture file
+     */
+    private void encodeFrame(CaptureJob job, OutputStream out) {
+        int width = job.frameWidth;
+        int height = job.frameHeight;
+        if (this.yuvImage == null || this.yuvImageData != this.cropBuffer
+                || this.yuvRect.right != width || this.yuvRect.bottom != height) {
+            this.yuvImage = new YuvImage(this.cropBuffer, ImageFormat.NV21, width, height, null);
+            this.yuvImageData = this.cropBuffer;
+            this.yuvRect.set(0, 0, width, height);
+        }
+        this.yuvImage.compressToJpeg(this.yuvRect, job.quality, out);
+    }
+
+    /**
+     * Reserve the capture's store id and the file it is saved to
+     *
+     * @return the file, its directory exists
+     */
+    private File newTarget(CaptureJob job) throws IOException {
+        CaptureStore store = CaptureStore.open(getImageDir(job.saveDirectory));
+        job.captureId = store.newId(job.timestamp);
+        return store.fileFor(job.captureId);
+    }
+
+    /**
+     * Decode only the given sensor region of a JPEG
+     *
+     * @param data       JPEG data
+     * @param region     {left, top, right, bottom} in sensor coordinates
+     * @param sampleSize inSampleSize
+     * @return the region, or null if the region decoder is not available
+     */
+    private Bitmap decodeRegion(byte[] data, int[] region, int sampleSize) {
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            return this.bitmapPool.decodeRegion(decoder, new Rect(region[0], region[1], region[2], region[3]), sampleSize);
+        } catch (IOException e) {
+            Log.e(TAG, "Region decode failed", e);
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Clockwise rotation from the camera image to what the user saw
+     * Portrait captures are rotated by 90 degrees, unless the orientation was worked out from the camera
+     */
+    private static int rotationOf(CaptureJob job) {
+        if (job.exifOrientation) {
+            return job.orientation;
+        }
+        int[] sizes = job.maskSize;
+        return sizes != null && sizes[2] < sizes[3] ? 90 : 0;
+    }
+
+    /**
+     * The detected document is straightened instead of cropped to its bounding box
+     */
+    private static boolean isWarped(CaptureJob job) {
+        return job.perspective && job.quad != null;
+    }
+
+    /**
+     * Document corners in the pixels of a decoded region, reordered so the warp also applies the pixel rotation
+     *
+     * @param scaleX Region pixels per source pixel
+     * @param scaleY
+     * @param left   Region origin in source pixels
+     * @param top
+     * @return TL, TR, BR, BL of the upright document
+     */
+    private static float[] warpQuadOf(CaptureJob job, float scaleX, float scaleY, int left, int top) {
+        //A clockwise turn by k quarters puts source corner (i - k) at output corner i
+        int turns = pixelRotationOf(job) / 90;
+        float[] quad = new float[8];
+        for (int i = 0; i < 4; i++) {
+            int corner = (i - turns + 4) % 4;
+            quad[i * 2] = (job.quad[corner * 2] * job.sourceWidth - left) * scaleX;
+            quad[i * 2 + 1] = (job.quad[corner * 2 + 1] * job.sourceHeight - top) * scaleY;
+        }
+        return quad;
+    }
+
+    /**
+     * Warp output size: the output size when one is set, otherwise the document's own resolution
+     *
+     * @param quad Corners from {@link #warpQuadOf}
+     */
+    private static int[] warpSizeOf(CaptureJob job, float[] quad) {
+        int[] target = outputSizeOf(job);
+        if (target == null) {
+            return PerspectiveWarp.outputSize(quad);
+        }
+        //outputSizeOf is in sensor orientation, the warp output is already turned
+        int rotation = pixelRotationOf(job);
+        return rotation == 90 || rotation == 270 ? new int[]{target[1], target[0]} : target;
+    }
+
+    /**
+     * Output size in sensor orientation, or null to keep the full resolution
+     */
+    private static int[] outputSizeOf(CaptureJob job) {
+        if (job.outputWidth <= 0 || job.outputHeight <= 0) {
+            return null;
+        }
+        int rotation = rotationOf(job);
+        boolean swap = rotation == 90 || rotation == 270;
+        return swap ? new int[]{job.outputHeight, job.outputWidth} : new int[]{job.outputWidth, job.outputHeight};
+    }
+
+    /**
+     * Largest power-of-two inSampleSize that keeps a width x height sensor region at least as large as the output
+     */
+    private static int sampleSizeFor(CaptureJob job, int width, int height) {
+        int[] target = outputSizeOf(job);
+        if (target == null) {
+            return 1;
+        }
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= target[0] && height / (sampleSize * 2) >= target[1]) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Rotation applied to the pixels, EXIF-oriented captures stay in sensor orientation
+     */
+    private static int pixelRotationOf(CaptureJob job) {
+        return job.exifOrientation ? 0 : rotationOf(job);
+    }
+
+    /**
+     * Picture directory for setPictureSaveDictionaryPath, the store makes it when it is first used
+     *
+     * @return
+     */
+    static File getImageDir(String filePath) {
+        if (filePath == null || filePath.equals("")) {
+            return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM);
+        }
+        return new File(Environment.getExternalStorageDirectory().getPath() + filePath);
+    }
+}
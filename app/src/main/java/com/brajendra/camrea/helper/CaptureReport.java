@@ -0,0 +1,93 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * What the pipeline did with one capture, see {@link OnCaptureStageCallback#onCaptureReport}
+ */
+public class CaptureReport {
+    String filePath;
+    long captureId;
+    long bytesWritten;
+    long encodeNanos;
+    long persistNanos;
+    int quality;
+    boolean reencoded;
+    boolean lossless;
+    CaptureMetadata metadata;
+    QualityScore qualityScore;
+
+    public String getFilePath() {
+        return this.filePath;
+    }
+
+    /**
+     * Id of the capture in the picture directory's {@link CaptureStore}
+     */
+    public long getCaptureId() {
+        return this.captureId;
+    }
+
+    /**
+     * Size of the saved file
+     */
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    /**
+     * Time spent encoding and streaming the JPEG to the temporary file
+     */
+    public long getEncodeNanos() {
+        return this.encodeNanos;
+    }
+
+    /**
+     * Time spent flushing, syncing and renaming the file
+     */
+    public long getPersistNanos() {
+        return this.persistNanos;
+    }
+
+    /**
+     * JPEG quality used, 0 when the capture was saved without being re-encoded
+     */
+    public int getQuality() {
+        return this.quality;
+    }
+
+    /**
+     * False when the camera's JPEG was saved without decoding it
+     */
+    public boolean isReencoded() {
+        return this.reencoded;
+    }
+
+    /**
+     * True when the crop was cut out of the camera's JPEG without decoding pixels
+     */
+    public boolean isLossless() {
+        return this.lossless;
+    }
+
+    /**
+     * Crop, orientation and timestamp of the capture
+     */
+    public CaptureMetadata getMetadata() {
+        return this.metadata;
+    }
+
+    /**
+     * Focus, clipping and glare scores, null when the quality gate is off.
+     * A capture rejected by the gate is reported with this set and no file
+     */
+    public QualityScore getQualityScore() {
+        return this.qualityScore;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureReport{id=" + this.captureId + ", file=" + this.filePath + ", bytes=" + this.bytesWritten
+                + ", encodeMs=" + this.encodeNanos / 1000000 + ", persistMs=" + this.persistNanos / 1000000
+                + ", quality=" + this.quality + ", reencoded=" + this.reencoded + ", lossless=" + this.lossless
+                + (this.qualityScore != null ? ", " + this.qualityScore : "") + "}";
+    }
+}
@@ -0,0 +1,9 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Stages a capture goes through in the {@link CapturePipeline}; only the stages that ran are reported,
+ * e.g. a lossless crop has no DECODE or TRANSFORM and a JPEG saved as is only ENCODE and PERSIST
+ */
+public enum CaptureStage {
+    DECODE, TRANSFORM, ASSESS, ENCODE, PERSIST
+}
@@ -0,0 +1,449 @@
+package com.brajendra.camrea.helper;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Names, indexes and deletes the captures saved under one picture directory.
+ * <p>
+ * Ids are the shutter millisecond times 1000 plus a counter, and never go below the last id
+ * handed out, so captures in the same millisecond (or after the clock steps back) still get
+ * distinct, increasing ids. A capture is saved as img_&lt;id&gt;.jpg in one of 256 subdirectories
+ * picked by a hash of the id, so no directory grows past a few hundred files; subdirectories are
+ * made once.
+ * <p>
+ * Every saved capture is a fixed-size record in a .captures index file next to the
+ * subdirectories: id, timestamp, crop rect, size, status and a CRC32. The index is read once
+ * and kept in memory, so listing and paging never scan the directories. A new capture is
+ * appended, a status change rewrites its record in place, and once half the records are
+ * deleted the index is rewritten without them. A record the CRC rejects, e.g. one torn by a
+ * crash, is dropped when the index is read.
+ * <p>
+ * One instance per directory, shared through {@link #open}; thread safe.
+ */
+public class CaptureStore {
+    private static final String TAG = "CaptureStore";
+
+    public enum Status {
+        SAVED, UPLOADED, DELETED
+    }
+
+    private static final String INDEX_NAME = ".captures";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x43494458;
+    private static final int VERSION = 1;
+    //Magic, version, and the highest id handed out when the index was last rewritten
+    private static final int HEADER_SIZE = 16;
+    //id, timestamp, 4 crop ints, bytes, status, CRC32 of everything before it
+    private static final int RECORD_SIZE = 48;
+    private static final int STATUS_OFFSET = 40;
+    private static final int BUCKETS = 256;
+    //Fibonacci hashing multiplier; ids are mostly multiples of 1000, so their low bits cannot pick the bucket
+    private static final long BUCKET_MIX = 0x9E3779B97F4A7C15L;
+    //Deleted records tolerated before the index is rewritten, and never less than the live ones
+    private static final int COMPACT_SLACK = 64;
+
+    private static final Map<String, CaptureStore> STORES = new HashMap<>();
+
+    private final File root;
+    private final File indexFile;
+    //Live captures by increasing id
+    private final List<CaptureEntry> entries = new ArrayList<>();
+    private final boolean[] bucketMade = new boolean[BUCKETS];
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(this.record);
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile index;
+    private boolean loaded;
+    private int slots;
+    private int deletedSlots;
+    private long lastId;
+
+    /**
+     * Store for a picture directory, created on first use
+     *
+     * @param root
+     * @return
+     */
+    public static CaptureStore open(File root) {
+        synchronized (STORES) {
+            String key = root.getAbsolutePath();
+            CaptureStore store = STORES.get(key);
+            if (store == null) {
+                store = new CaptureStore(root);
+                STORES.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    private CaptureStore(File root) {
+        this.root = root;
+        this.indexFile = new File(root, INDEX_NAME);
+    }
+
+    /**
+     * Reserve an id for a capture about to be written
+     *
+     * @param timestamp Shutter time, System.currentTimeMillis()
+     * @return
+     */
+    public synchronized long newId(long timestamp) throws IOException {
+        this.load();
+        this.lastId = Math.max(this.lastId + 1, timestamp * 1000);
+        return this.lastId;
+    }
+
+    /**
+     * Where the capture with this id is saved; its subdirectory exists once this returns
+     *
+     * @param id
+     * @return
+     */
+    public synchronized File fileFor(long id) throws IOException {
+        File file = this.pathOf(id);
+        int bucket = bucketOf(id);
+        if (!this.bucketMade[bucket]) {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Unable to create " + dir);
+            }
+            this.bucketMade[bucket] = true;
+        }
+        return file;
+    }
+
+    /**
+     * Record a saved capture
+     *
+     * @param id        From {@link #newId}
+     * @param timestamp Shutter time
+     * @param crop      {left, top, right, bottom} in the camera image
+     * @param bytes     File size
+     * @param sync      fsync the index after the record
+     * @return
+     */
+    public synchronized CaptureEntry add(long id, long timestamp, int[] crop, long bytes, boolean sync)
+            throws IOException {
+        this.load();
+        CaptureEntry entry = new CaptureEntry(id, timestamp, crop.clone(), bytes, Status.SAVED, this.pathOf(id), this.slots);
+        this.encode(entry);
+        this.index.seek(offsetOf(entry.slot));
+        this.index.write(this.record);
+        if (sync) {
+            this.index.getFD().sync();
+        }
+        this.slots++;
+        //Ids only grow, except when they were reserved in a different order than they were saved
+        int at = this.entries.size();
+        while (at > 0 && this.entries.get(at - 1).id > id) {
+            at--;
+        }
+        this.entries.add(at, entry);
+        return entry;
+    }
+
+    /**
+     * Live captures
+     */
+    public synchronized int size() throws IOException {
+        this.load();
+        return this.entries.size();
+    }
+
+    /**
+     * Captures newest first
+     *
+     * @param offset Captures to skip
+     * @param count  Most captures to return
+     * @return
+     */
+    public synchronized List<CaptureEntry> list(int offset, int count) throws IOException {
+        this.load();
+        int size = this.entries.size();
+        List<CaptureEntry> page = new ArrayList<>(Math.max(0, Math.min(count, size - offset)));
+        for (int i = size - 1 - offset; i >= 0 && page.size() < count; i--) {
+            page.add(this.entries.get(i));
+        }
+        return page;
+    }
+
+    /**
+     * @param id
+     * @return the capture, or null if it is not in the store
+     */
+    public synchronized CaptureEntry get(long id) throws IOException {
+        this.load();
+        int i = this.indexOf(id);
+        return i < 0 ? null : this.entries.get(i);
+    }
+
+    /**
+     * Id of a file this store named
+     *
+     * @param path
+     * @return the id, or -1 if the file was not named by a store
+     */
+    public static long idOf(String path) {
+        String name = new File(path).getName();
+        if (!name.startsWith("img_") || !name.endsWith(".jpg")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(4, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Change the status of a capture, e.g. to UPLOADED
+     *
+     * @param id
+     * @param status
+     * @return false if the capture is not in the store
+     */
+    public synchronized boolean setStatus(long id, Status status) throws IOException {
+        if (status == Status.DELETED) {
+            return this.delete(id);
+        }
+        this.load();
+        int i = this.indexOf(id);
+        if (i < 0) {
+            return false;
+        }
+        CaptureEntry entry = this.entries.get(i);
+        entry.status = status;
+        this.writeStatus(entry);
+        return true;
+    }
+
+    /**
+     * Delete a capture's file, its metadata file and its index entry
+     *
+     * @param id
+     * @return false if the capture is not in the store
+     */
+    public synchronized boolean delete(long id) throws IOException {
+        this.load();
+        int i = this.indexOf(id);
+        if (i < 0) {
+            return false;
+        }
+        CaptureEntry entry = this.entries.remove(i);
+        entry.status = Status.DELETED;
+        this.writeStatus(entry);
+        this.deletedSlots++;
+        if (!entry.file.delete() && entry.file.exists()) {
+            Log.w(TAG, "Unable to delete " + entry.file);
+        }
+        new File(entry.file.getPath() + CapturePipeline.METADATA_SUFFIX).delete();
+        if (this.deletedSlots > COMPACT_SLACK && this.deletedSlots > this.entries.size()) {
+            this.compact();
+        }
+        return true;
+    }
+
+    private int indexOf(long id) {
+        int low = 0;
+        int high = this.entries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = this.entries.get(mid).id;
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the index the first time the store is used
+     */
+    private void load() throws IOException {
+        if (this.loaded) {
+            return;
+        }
+        if (!this.root.isDirectory() && !this.root.mkdirs()) {
+            throw new IOException("Unable to create " + this.root);
+        }
+        this.entries.clear();
+        this.slots = 0;
+        this.deletedSlots = 0;
+        boolean rewrite = false;
+        if (this.indexFile.exists()) {
+            byte[] data = readAll(this.indexFile);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (data.length < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.w(TAG, "Unreadable capture index, starting a new one");
+                rewrite = true;
+            } else {
+                //Ids of captures deleted before the last rewrite are not reused
+                this.lastId = buffer.getLong();
+                int count = (data.length - HEADER_SIZE) / RECORD_SIZE;
+                rewrite = (data.length - HEADER_SIZE) % RECORD_SIZE != 0;
+                for (int slot = 0; slot < count; slot++) {
+                    System.arraycopy(data, offsetOf(slot), this.record, 0, RECORD_SIZE);
+                    CaptureEntry entry = this.decode(slot);
+                    if (entry == null) {
+                        rewrite = true;
+                        continue;
+                    }
+                    this.lastId = Math.max(this.lastId, entry.id);
+                    if (entry.status == Status.DELETED) {
+                        this.deletedSlots++;
+                    } else {
+                        this.entries.add(entry);
+                    }
+                }
+                this.slots = count;
+                Collections.sort(this.entries, new Comparator<CaptureEntry>() {
+                    @Override
+                    public int compare(CaptureEntry a, CaptureEntry b) {
+                        return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+                    }
+                });
+            }
+        } else {
+            rewrite = true;
+        }
+        this.loaded = true;
+        if (rewrite || this.deletedSlots > COMPACT_SLACK) {
+            this.compact();
+        } else {
+            this.index = new RandomAccessFile(this.indexFile, "rw");
+        }
+    }
+
+    /**
+     * Rewrite the index with only the live captures, through a temporary file
+     */
+    private void compact() throws IOException {
+        File temp = new File(this.indexFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(this.lastId);
+            out.write(header.array());
+            for (int i = 0; i < this.entries.size(); i++) {
+                CaptureEntry entry = this.entries.get(i);
+                entry.slot = i;
+                this.encode(entry);
+                out.write(this.record);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (this.index != null) {
+            this.index.close();
+            this.index = null;
+        }
+        if (!temp.renameTo(this.indexFile)) {
+            throw new IOException("Unable to rename " + temp + " to " + this.indexFile);
+        }
+        this.index = new RandomAccessFile(this.indexFile, "rw");
+        this.slots = this.entries.size();
+        this.deletedSlots = 0;
+    }
+
+    private void writeStatus(CaptureEntry entry) throws IOException {
+        this.encode(entry);
+        this.index.seek(offsetOf(entry.slot) + STATUS_OFFSET);
+        this.index.write(this.record, STATUS_OFFSET, RECORD_SIZE - STATUS_OFFSET);
+    }
+
+    private void encode(CaptureEntry entry) {
+        ByteBuffer buffer = this.recordBuffer;
+        buffer.clear();
+        buffer.putLong(entry.id).putLong(entry.timestamp);
+        for (int i = 0; i < 4; i++) {
+            buffer.putInt(entry.crop[i]);
+        }
+        buffer.putLong(entry.bytes).putInt(entry.status.ordinal());
+        this.crc.reset();
+        this.crc.update(this.record, 0, RECORD_SIZE - 4);
+        buffer.putInt((int) this.crc.getValue());
+    }
+
+    /**
+     * @return the record in the record buffer, null if it does not check out
+     */
+    private CaptureEntry decode(int slot) {
+        this.crc.reset();
+        this.crc.update(this.record, 0, RECORD_SIZE - 4);
+        ByteBuffer buffer = this.recordBuffer;
+        buffer.clear();
+        if (buffer.getInt(RECORD_SIZE - 4) != (int) this.crc.getValue()) {
+            return null;
+        }
+        long id = buffer.getLong();
+        long timestamp = buffer.getLong();
+        int[] crop = new int[4];
+        for (int i = 0; i < 4; i++) {
+            crop[i] = buffer.getInt();
+        }
+        long bytes = buffer.getLong();
+        int status = buffer.getInt();
+        if (status < 0 || status >= Status.values().length) {
+            return null;
+        }
+        return new CaptureEntry(id, timestamp, crop, bytes, Status.values()[status], this.pathOf(id), slot);
+    }
+
+    private File pathOf(long id) {
+        String bucket = bucketName(bucketOf(id));
+        return new File(new File(this.root, bucket), "img_" + id + ".jpg");
+    }
+
+    /**
+     * Subdirectory of an id, from the top bits of the mixed id
+     */
+    static int bucketOf(long id) {
+        return (int) ((id * BUCKET_MIX) >>> 56);
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static String bucketName(int bucket) {
+        return bucket < 16 ? "0" + Integer.toHexString(bucket) : Integer.toHexString(bucket);
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
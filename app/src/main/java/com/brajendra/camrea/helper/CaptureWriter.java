@@ -0,0 +1,155 @@
+package com.brajendra.camrea.helper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes one capture at a time to disk through a single reusable buffer.
+ * <p>
+ * The encoder streams straight into {@link #open}'s stream, which fills a fixed buffer and
+ * writes it to a temporary file next to the target. {@link #commit} optionally fsyncs and then
+ * renames the temporary file, so a crash never leaves a half-written photo under the final name.
+ * Not thread safe: the capture pipeline owns one instance.
+ */
+class CaptureWriter {
+
+    //Large enough to cover several eMMC pages per write
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final BufferedFileStream stream = new BufferedFileStream(new byte[BUFFER_SIZE]);
+    private File target;
+    private File temp;
+
+    //fsync before the rename
+    private boolean syncOnCommit;
+
+    void setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    /**
+     * Start writing a file
+     *
+     * @param target Final file
+     * @return stream for the encoder, valid until commit or abort
+     */
+    OutputStream open(File target) throws IOException {
+        if (this.target != null) {
+            throw new IllegalStateException("Previous capture was not committed");
+        }
+        this.target = target;
+        this.temp = new File(target.getPath() + TEMP_SUFFIX);
+        this.stream.reset(new FileOutputStream(this.temp));
+        return this.stream;
+    }
+
+    /**
+     * Flush, optionally fsync, and move the file into place
+     *
+     * @return bytes written
+     */
+    long commit() throws IOException {
+        try {
+            this.stream.flush();
+            if (this.syncOnCommit) {
+                this.stream.file.getFD().sync();
+            }
+            this.stream.file.close();
+            this.stream.file = null;
+            if (!this.temp.renameTo(this.target)) {
+                throw new IOException("Unable to rename " + this.temp + " to " + this.target);
+            }
+            return this.stream.written;
+        } catch (IOException e) {
+            this.abort();
+            throw e;
+        } finally {
+            this.target = null;
+            this.temp = null;
+        }
+    }
+
+    /**
+     * Drop a partially written file
+     */
+    void abort() {
+        if (this.stream.file != null) {
+            try {
+                this.stream.file.close();
+            } catch (IOException e) {
+            }
+            this.stream.file = null;
+        }
+        if (this.temp != null && this.temp.exists()) {
+            this.temp.delete();
+        }
+        this.target = null;
+        this.temp = null;
+    }
+
+    /**
+     * BufferedOutputStream that can be pointed at a new file without reallocating its buffer
+     */
+    private static class BufferedFileStream extends OutputStream {
+        private final byte[] buffer;
+        private int count;
+        private long written;
+        private FileOutputStream file;
+
+        BufferedFileStream(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        void reset(FileOutputStream file) {
+            this.file = file;
+            this.count = 0;
+            this.written = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.count == this.buffer.length) {
+                this.drain();
+            }
+            this.buffer[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= this.buffer.length) {
+                //Larger than the buffer, no point copying it
+                this.drain();
+                this.file.write(b, off, len);
+                this.written += len;
+                return;
+            }
+            if (len > this.buffer.length - this.count) {
+                this.drain();
+            }
+            System.arraycopy(b, off, this.buffer, this.count, len);
+            this.count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.drain();
+        }
+
+        @Override
+        public void close() {
+            //Closed by CaptureWriter.commit / abort
+        }
+
+        private void drain() throws IOException {
+            if (this.count > 0) {
+                this.file.write(this.buffer, 0, this.count);
+                this.written += this.count;
+                this.count = 0;
+            }
+        }
+    }
+}
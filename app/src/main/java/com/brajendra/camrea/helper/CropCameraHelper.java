@@ -1,30 +1,22 @@
 package com.brajendra.camrea.helper;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
-
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.graphics.PixelFormat;
+import android.content.Context;
 import android.hardware.Camera;
-import android.hardware.Camera.AutoFocusCallback;
 import android.hardware.Camera.Parameters;
-import android.hardware.Camera.PictureCallback;
 import android.hardware.Camera.ShutterCallback;
-import android.hardware.Camera.Size;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
-import android.os.Environment;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Surface;
 import android.view.SurfaceHolder;
+import android.view.WindowManager;
 
+import com.brajendra.camrea.kernel.YuvFrame;
+import com.brajendra.camrea.upload.UploadQueue;
 import com.brajendra.camrea.view.CameraSurfaceView;
 
 /**
@@ -35,19 +27,66 @@ public class CropCameraHelper {
     private final String TAG = "CropCameraHelper";
     private ToneGenerator tone;
     private String filePath;
-    private boolean isPreviewing;
 
     private static CropCameraHelper helper;
-    private Camera camera;
     private CameraSurfaceView surfaceView;
 
-    private Size resolution;
+    //	Opens and drives the camera off the main thread
+    private final CameraThread cameraThread = new CameraThread(this);
+    //	Sizes negotiated on earlier opens, created with the first surface's context
+    private CameraCapabilityCache capabilityCache;
+    private CameraApi cameraApi = CameraApi.LEGACY;
+    //	Installed with setCameraBackend, used instead of cameraApi
+    private CameraBackend injectedBackend;
 
     //	Photo quality
     private int picQuality = 60;
 
-    //	Photo Size
-    private Size pictureSize;
+    //	fsync saved photos before they are moved into place
+    private boolean syncOnSave;
+
+    //	Crop camera JPEGs on DCT blocks instead of decoding and re-encoding them
+    private boolean losslessCrop;
+
+    //	Bitmaps reused across captures and reviews
+    private final BitmapPool bitmapPool = new BitmapPool(BitmapPool.DEFAULT_MAX_BYTES);
+
+    //	Decode, crop, encode and save captures off the camera thread, shut down when the camera is released
+    private CapturePipeline pipeline;
+    private final CaptureMetrics captureMetrics = new CaptureMetrics();
+    private final ReviewImageLoader reviewImageLoader = new ReviewImageLoader(bitmapPool, ReviewImageLoader.DEFAULT_MAX_BYTES);
+    //	Hand the pipeline's crop to the review loader, off until a review size is set
+    private boolean reviewHandoff;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //	Preview-frame capture path
+    private final PreviewFrameCapture previewCapture = new PreviewFrameCapture(this);
+
+    //	Running burst, if any
+    private volatile BurstCapture burst;
+
+    //	Find the document in preview frames and crop to it (legacy camera only)
+    private volatile boolean autoCrop;
+    //	Preview-frame analysis for auto-crop and auto-capture
+    private final PreviewAnalyzer previewAnalyzer = new PreviewAnalyzer(this);
+    private final AutoCaptureController autoCapture = new AutoCaptureController();
+    //	Last document found, corners as fractions of the camera image, and when it was found
+    private volatile float[] detectedQuad;
+    private volatile long detectedAt;
+    //	How long a document stays valid once it is no longer found
+    private static final long DETECTION_MAX_AGE_MS = 500;
+
+    private final ShutterCallback shutterCallback = new ShutterCallback() {
+        @Override
+        public void onShutter() {
+            if (tone == null) {
+                //Prompt the user
+                tone = new ToneGenerator(AudioManager.STREAM_MUSIC, ToneGenerator.MAX_VOLUME);
+            }
+            tone.startTone(ToneGenerator.TONE_PROP_BEEP);
+        }
+    };
 
     //	Flash mode (default: automatic, ANTIBANDING_OFF: off)
     private String flashlightStatus = Parameters.ANTIBANDING_OFF;
@@ -56,6 +95,62 @@ public class CropCameraHelper {
         AUTO, ON, OFF
     }
 
+    //	How the crop is rotated: on the pipeline thread only, or split across all cores
+    private TransformMode transformMode = TransformMode.SEQUENTIAL;
+
+    public enum TransformMode {
+        SEQUENTIAL, PARALLEL
+    }
+
+    //	How portrait captures are turned upright: by rotating pixels, or with the EXIF orientation tag
+    private RotationMode rotationMode = RotationMode.PIXELS;
+
+    public enum RotationMode {
+        PIXELS, EXIF
+    }
+
+    //	How a detected document is cut out: its bounding box, or straightened into a rectangle
+    private CropMode cropMode = CropMode.RECT;
+
+    public enum CropMode {
+        RECT, PERSPECTIVE
+    }
+
+    //	Score captures before saving them: not at all, report the scores, or also drop poor ones
+    private QualityGate qualityGate = QualityGate.OFF;
+    private double minSharpness = DEFAULT_MIN_SHARPNESS;
+    private double maxClipping = DEFAULT_MAX_CLIPPING;
+    private double maxGlare = DEFAULT_MAX_GLARE;
+    //	Quality gate defaults: Laplacian variance of the scored copy, clipped share, glare share
+    public static final double DEFAULT_MIN_SHARPNESS = 50;
+    public static final double DEFAULT_MAX_CLIPPING = 0.25;
+    public static final double DEFAULT_MAX_GLARE = 0.35;
+
+    //	Every saved capture is queued here for upload, null to only hand out file paths
+    private UploadQueue uploadQueue;
+
+    public enum QualityGate {
+        OFF, FLAG, REJECT
+    }
+
+    //	Write a CaptureMetadata JSON file next to each picture
+    private boolean writeMetadata;
+
+    //	Size the masked crop is saved at, oriented like the mask, 0 for one pixel per mask pixel on screen
+    private int outputWidth;
+    private int outputHeight;
+
+    //	Clockwise rotation from the camera image to the display, known once the camera is open
+    private volatile int orientation;
+
+    public enum CameraState {
+        CLOSED, OPENING, CONFIGURED, PREVIEWING, CAPTURING, RELEASING
+    }
+
+    public enum CameraApi {
+        LEGACY, CAMERA2
+    }
+
     private CropCameraHelper() {
     }
 
@@ -77,6 +172,31 @@ public class CropCameraHelper {
         return helper;
     }
 
+    /**
+     * Set whether saved photos are fsynced before being moved into place
+     * Slower on eMMC, but a photo reported as saved survives a power loss
+     *
+     * @param syncOnSave
+     * @return
+     */
+    public CropCameraHelper setSyncOnSave(boolean syncOnSave) {
+        this.syncOnSave = syncOnSave;
+        return helper;
+    }
+
+    /**
+     * Set whether camera JPEGs are cropped losslessly
+     * The crop grows to the JPEG's 8 or 16 pixel block grid and the picture quality setting is ignored,
+     * but nothing is decoded to pixels. Unsupported JPEGs fall back to the normal crop
+     *
+     * @param losslessCrop
+     * @return
+     */
+    public CropCameraHelper setLosslessCrop(boolean losslessCrop) {
+        this.losslessCrop = losslessCrop;
+        return helper;
+    }
+
     /**
      * Set flash mode
      *
@@ -100,6 +220,166 @@ public class CropCameraHelper {
         return helper;
     }
 
+    /**
+     * Set how captures are rotated and cropped
+     * PARALLEL splits large frames into stripes processed on every core
+     *
+     * @param mode
+     * @return
+     */
+    public CropCameraHelper setTransformMode(TransformMode mode) {
+        this.transformMode = mode;
+        return helper;
+    }
+
+    /**
+     * Set how the document found by auto-crop is cut out
+     * PERSPECTIVE maps its four corners onto the picture's corners, so a page shot at an angle comes out square;
+     * without a detected document the mask is cropped as usual
+     *
+     * @param mode
+     * @return
+     */
+    public CropCameraHelper setCropMode(CropMode mode) {
+        this.cropMode = mode;
+        return helper;
+    }
+
+    /**
+     * Score each crop for focus, exposure clipping and glare before it is encoded
+     * The scores come with {@link OnCaptureStageCallback#onCaptureReport}; with REJECT a capture that misses a
+     * threshold is not saved and its callback gets onCapture(false, null)
+     *
+     * @param gate
+     * @return
+     */
+    public CropCameraHelper setQualityGate(QualityGate gate) {
+        this.qualityGate = gate;
+        return helper;
+    }
+
+    /**
+     * @param minSharpness Laplacian variance of the downsampled crop, see {@link #DEFAULT_MIN_SHARPNESS}
+     * @param maxClipping  Share of pixels allowed to be crushed to black or blown out to white
+     * @param maxGlare     How much more blown out the worst part may be than the whole
+     * @return
+     */
+    public CropCameraHelper setQualityThresholds(double minSharpness, double maxClipping, double maxGlare) {
+        this.minSharpness = minSharpness;
+        this.maxClipping = maxClipping;
+        this.maxGlare = maxGlare;
+        return helper;
+    }
+
+    /**
+     * Queue every saved capture for upload before its callback runs
+     * Queuing costs the capture thread no disk write, the queue journals it on its own thread; the queue is
+     * started and shut down by its owner
+     *
+     * @param queue null to stop queuing
+     * @return
+     */
+    public CropCameraHelper setUploadQueue(UploadQueue queue) {
+        this.uploadQueue = queue;
+        return helper;
+    }
+
+    /**
+     * Set the camera API
+     * CAMERA2 captures YUV stills cropped straight from the ImageReader planes, it falls back to LEGACY
+     * before Lollipop. Fast capture and burst need LEGACY. Takes effect the next time the camera is opened
+     *
+     * @param api
+     * @return
+     */
+    public CropCameraHelper setCameraApi(CameraApi api) {
+        this.cameraApi = api;
+        return helper;
+    }
+
+    /**
+     * Replace the camera with the given backend, e.g. the fake one the unit tests replay recordings with
+     *
+     * @param backend Backend, or null to go back to {@link #setCameraApi}
+     */
+    void setCameraBackend(CameraBackend backend) {
+        this.injectedBackend = backend;
+    }
+
+    /**
+     * Set how captures are rotated upright
+     * In EXIF mode the orientation comes from the camera and the display rotation, the crop is saved
+     * in sensor orientation and tagged, and no rotated copy of the pixels is made.
+     * Takes effect the next time the camera is opened
+     *
+     * @param mode
+     * @return
+     */
+    public CropCameraHelper setRotationMode(RotationMode mode) {
+        this.rotationMode = mode;
+        return helper;
+    }
+
+    /**
+     * Set whether a JSON file with the crop, orientation and timestamp is saved next to each picture
+     *
+     * @param writeMetadata
+     * @return
+     */
+    public CropCameraHelper setWriteMetadata(boolean writeMetadata) {
+        this.writeMetadata = writeMetadata;
+        return helper;
+    }
+
+    /**
+     * Set the resolution the masked crop is saved at, in either orientation
+     * It is turned to match the mask as the view shows it, the same way the mask itself is turned,
+     * so a landscape size set for a card still fits the mask on a portrait screen.
+     * The picture size is the smallest one that still covers it, and the crop is decoded subsampled
+     * and scaled down to it, so a capture costs what the output needs rather than what the sensor has.
+     * Picture size changes take effect the next time the camera is opened
+     *
+     * @param width  Pixels, 0 to save one pixel per mask pixel on screen
+     * @param height
+     * @return
+     */
+    public CropCameraHelper setOutputResolution(int width, int height) {
+        this.outputWidth = width;
+        this.outputHeight = height;
+        return helper;
+    }
+
+    /**
+     * Set the resolution the masked crop is saved at from the physical size of what is photographed,
+     * e.g. 85.6 x 53.98 mm for an ID card, whichever way the screen is held
+     *
+     * @param widthMm
+     * @param heightMm
+     * @param dpi      Dots per inch wanted on the document
+     * @return
+     */
+    public CropCameraHelper setOutputPhysicalSize(float widthMm, float heightMm, int dpi) {
+        return this.setOutputResolution(Math.round(widthMm / 25.4f * dpi), Math.round(heightMm / 25.4f * dpi));
+    }
+
+    /**
+     * Set the byte budget of the bitmap pool
+     *
+     * @param maxBytes
+     * @return
+     */
+    public CropCameraHelper setBitmapPoolSize(long maxBytes) {
+        this.bitmapPool.setMaxBytes(maxBytes);
+        return helper;
+    }
+
+    /**
+     * Pool shared by the capture pipeline and anything decoding captures for review
+     */
+    public BitmapPool getBitmapPool() {
+        return this.bitmapPool;
+    }
+
     /**
      * Set file save path(default: /mnt/sdcard/DICM)
      *
@@ -111,13 +391,99 @@ public class CropCameraHelper {
         return helper;
     }
 
+    /**
+     * Time every step of each capture, from focus to the file being written, into {@link #getCaptureMetrics()}
+     * Off by default; while off nothing is timed
+     *
+     * @param enabled
+     * @return
+     */
+    public CropCameraHelper setCaptureMetricsEnabled(boolean enabled) {
+        this.captureMetrics.setEnabled(enabled);
+        return helper;
+    }
+
+    /**
+     * Per-step latency and allocation histograms of the captures taken while metrics were enabled
+     */
+    public CaptureMetrics getCaptureMetrics() {
+        return this.captureMetrics;
+    }
+
+    /**
+     * Loader for showing saved captures, decodes them at the review size and caches them by capture id
+     */
+    public ReviewImageLoader getReviewImageLoader() {
+        return this.reviewImageLoader;
+    }
+
+    /**
+     * Size captures are reviewed at, e.g. the screen size
+     * From then on a crop the pipeline re-encodes is also scaled to this size and cached, so reviewing it
+     * right after the shot needs no decode
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    public CropCameraHelper setReviewImageSize(int width, int height) {
+        this.reviewImageLoader.setTargetSize(width, height);
+        this.reviewHandoff = true;
+        return helper;
+    }
+
+    /**
+     * Index of the captures saved to the picture directory, to list, page and delete them without scanning it
+     */
+    public CaptureStore getCaptureStore() {
+        return CaptureStore.open(CapturePipeline.getImageDir(this.filePath));
+    }
+
     public CropCameraHelper setMaskSurfaceView(CameraSurfaceView surfaceView) {
         this.surfaceView = surfaceView;
         return helper;
     }
 
+    /**
+     * Set the callback told about camera state changes and the first preview frame after an open
+     *
+     * @param callback
+     * @return
+     */
+    public CropCameraHelper setOnCameraStateCallback(OnCameraStateCallback callback) {
+        this.cameraThread.setStateCallback(callback);
+        return helper;
+    }
+
+    public CameraState getCameraState() {
+        return this.cameraThread.getState();
+    }
+
+    /**
+     * Milliseconds from the last open to its first preview frame, -1 until there is one
+     */
+    public long getTimeToFirstPreviewFrame() {
+        return this.cameraThread.getTimeToFirstFrame();
+    }
+
+    /**
+     * Milliseconds the last open and configure took on the camera thread, -1 until there is one
+     */
+    public long getLastOpenMillis() {
+        return this.cameraThread.getOpenMillis();
+    }
+
+    /**
+     * Whether the last open reused cached sizes instead of querying and searching the supported ones
+     */
+    public boolean isLastOpenWarm() {
+        return this.cameraThread.isOpenWarm();
+    }
+
     /**
      * Open camera and open preview
+     * Returns right away, the camera is opened on the camera thread. An open that has not started
+     * yet is replaced, and an open with the configuration already in place is skipped
      *
      * @param holder       SurfaceHolder
      * @param format       Image Format
@@ -127,304 +493,557 @@ public class CropCameraHelper {
      * @param screenHeight
      */
     public void openCamera(SurfaceHolder holder, int format, int width, int height, int screenWidth, int screenHeight) {
-        if (this.camera != null) {
-            this.camera.release();
+        CameraBackend.OpenRequest request = new CameraBackend.OpenRequest();
+        request.context = this.surfaceView == null ? null : this.surfaceView.getContext();
+        request.holder = holder;
+        request.viewWidth = width;
+        request.viewHeight = height;
+        request.screenWidth = screenWidth;
+        request.screenHeight = screenHeight;
+        request.flashMode = this.flashlightStatus;
+        request.jpegQuality = this.picQuality;
+        request.sensorOrientation = this.rotationMode == RotationMode.EXIF;
+        request.displayRotation = this.getDisplayRotation();
+        int[] maskSize = this.surfaceView == null ? null : this.surfaceView.getMaskSize();
+        if (maskSize != null && maskSize[0] > 0 && maskSize[1] > 0) {
+            request.maskWidth = maskSize[0];
+            request.maskHeight = maskSize[1];
+            int[] output = SizeSelector.orientLike(this.outputWidth, this.outputHeight, maskSize);
+            //Without an output size, one output pixel per mask pixel on screen
+            request.cropWidth = output != null ? output[0] : maskSize[0];
+            request.cropHeight = output != null ? output[1] : maskSize[1];
+        }
+        if (this.capabilityCache == null && request.context != null) {
+            this.capabilityCache = new CameraCapabilityCache(request.context.getApplicationContext());
         }
-        this.camera = Camera.open();
-        this.initParameters(holder, format, width, height, screenWidth, screenHeight);
-        this.startPreview();
+        request.capabilities = this.capabilityCache;
+        this.cameraThread.open(this.selectBackend(), request);
     }
 
     /**
      * Take photo
+     * The result is processed in the background and delivered to the callback on the main thread
      */
     public void tackPicture(final OnCaptureCallback callback) {
-        this.camera.autoFocus(new AutoFocusCallback() {
+        this.capture(callback, false);
+    }
+
+    /**
+     * @param skipFocus Shoot with the focus as it is, the preview is known to be sharp
+     */
+    private void capture(final OnCaptureCallback callback, boolean skipFocus) {
+        //0 while metrics are off
+        final long requested = this.captureMetrics.isEnabled() ? System.nanoTime() : 0;
+        this.cameraThread.capture(new CameraBackend.CaptureListener() {
+            private volatile long focused;
+            private volatile long shutter;
+
+            @Override
+            public void onFocused() {
+                if (requested != 0) {
+                    this.focused = System.nanoTime();
+                }
+            }
+
+            @Override
+            public void onShutter() {
+                if (requested != 0) {
+                    this.shutter = System.nanoTime();
+                }
+                shutterCallback.onShutter();
+            }
+
+            @Override
+            public void onJpeg(byte[] jpeg) {
+                if (!getPipeline().submit(this.timed(newCaptureJob(jpeg, callback)))) {
+                    fail(callback);
+                }
+            }
+
+            @Override
+            public void onFrame(YuvFrame frame, CaptureJob.FrameReleaser releaser) {
+                if (!getPipeline().submit(this.timed(newYuvJob(frame, releaser, callback)))) {
+                    releaser.release(frame);
+                    fail(callback);
+                }
+            }
+
+            @Override
+            public void onFailure() {
+                fail(callback);
+            }
+
+            /**
+             * Record the camera side of the capture, the pipeline records the rest
+             */
+            private CaptureJob timed(CaptureJob job) {
+                if (requested == 0 || job.metrics == null) {
+                    return job;
+                }
+                long now = System.nanoTime();
+                long focused = this.focused;
+                long shutter = this.shutter;
+                if (focused != 0) {
+                    job.metrics.record(CaptureMetrics.Span.FOCUS, focused - requested);
+                }
+                if (shutter != 0) {
+                    job.metrics.record(CaptureMetrics.Span.SHUTTER, shutter - (focused != 0 ? focused : requested));
+                    job.metrics.record(CaptureMetrics.Span.EXPOSURE, now - shutter);
+                }
+                job.requestNanos = requested;
+                return job;
+            }
+        }, skipFocus);
+    }
+
+    /**
+     * Report a failed capture on the main thread, backends call back on their own threads
+     */
+    private void fail(final OnCaptureCallback callback) {
+        this.mainHandler.post(new Runnable() {
             @Override
-            public void onAutoFocus(boolean flag, Camera camera) {
-                camera.takePicture(new ShutterCallback() {
-                    @Override
-                    public void onShutter() {
-                        if (tone == null) {
-                            //Prompt the user
-                            tone = new ToneGenerator(AudioManager.STREAM_MUSIC, ToneGenerator.MAX_VOLUME);
-                        }
-                        tone.startTone(ToneGenerator.TONE_PROP_BEEP);
-                    }
-                }, null, new PictureCallback() {
-                    @Override
-                    public void onPictureTaken(byte[] data, Camera camera) {
-                        String filepath = savePicture(data);
-                        boolean success = false;
-                        if (filepath != null) {
-                            success = true;
-                        }
-                        stopPreview();
-                        callback.onCapture(success, filepath);
-                    }
-                });
+            public void run() {
+                callback.onCapture(false, null);
             }
         });
     }
 
     /**
-     * Crop and save photos
-     *
-     * @param data
-     * @return
+     * Take photo from the current preview frame
+     * Skips focus and the full-resolution shot, the crop is taken from the preview resolution
      */
-    private String savePicture(byte[] data) {
-        File imgFileDir = getImageDir();
-        if (!imgFileDir.exists() && !imgFileDir.mkdirs()) {
-            return null;
+    public void fastCapture(final OnCaptureCallback callback) {
+        CameraBackend backend = this.cameraThread.getBackend();
+        if (backend != null && !(backend instanceof LegacyCameraBackend)) {
+            //Stills are already uncompressed frames without a focus run
+            this.tackPicture(callback);
+            return;
         }
-        //File path
-        String imgFilePath = imgFileDir.getPath() + File.separator + this.generateFileName();
-        ;
-        Bitmap b = this.cutImage(data);
-        File imgFile = new File(imgFilePath);
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
-        try {
-            fos = new FileOutputStream(imgFile);
-            bos = new BufferedOutputStream(fos);
-            b.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-        } catch (Exception error) {
-            return null;
-        } finally {
-            try {
-                if (fos != null) {
-                    fos.flush();
-                    fos.close();
-                }
-                if (bos != null) {
-                    bos.flush();
-                    bos.close();
+        this.cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                CameraBackend backend = cameraThread.getBackend();
+                Camera camera = getCamera();
+                LegacyCameraBackend legacy = camera == null ? null : (LegacyCameraBackend) backend;
+                //The frame capture needs the preview callback for itself
+                previewAnalyzer.detach();
+                if (legacy == null || legacy.getPreviewSize() == null || !legacy.isPreviewing()
+                        || !previewCapture.capture(camera, legacy.getPreviewSize().width, legacy.getPreviewSize().height, callback)) {
+                    attachPreviewAnalyzer();
+                    fail(callback);
                 }
-            } catch (IOException e) {
             }
-        }
-        return imgFilePath;
+        });
     }
 
     /**
-     * Generate picture name
+     * Look for the document in the preview, outline it on the mask and crop captures to it
+     * Only the legacy camera delivers preview frames, with camera2 the mask is used as before
      *
+     * @param autoCrop
      * @return
      */
-    private String generateFileName() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddhhmmss", Locale.getDefault());
-        String strDate = dateFormat.format(new Date());
-        return "img_" + strDate + ".jpg";
+    public CropCameraHelper setAutoCrop(final boolean autoCrop) {
+        this.autoCrop = autoCrop;
+        this.cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                attachPreviewAnalyzer();
+                if (!autoCrop) {
+                    clearDetectedQuad();
+                }
+            }
+        });
+        return helper;
     }
 
     /**
+     * Take pictures on their own once the preview is sharp and still
+     * A shot is taken after {@link #setAutoCaptureThresholds} is met for some frames in a row, then auto-capture
+     * waits for the scene to move before the next one. The picture is taken without another focus run.
+     * Only the legacy camera delivers preview frames
+     *
+     * @param callback Receives each auto-captured picture, null to turn auto-capture off
      * @return
      */
-    private File getImageDir() {
-        String path = null;
-        if (this.filePath == null || this.filePath.equals("")) {
-            path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getPath();
+    public CropCameraHelper setAutoCapture(OnCaptureCallback callback) {
+        if (callback != null) {
+            this.autoCapture.start(callback);
         } else {
-            path = Environment.getExternalStorageDirectory().getPath() + filePath;
-        }
-        File file = new File(path);
-        if (!file.exists()) {
-            file.mkdir();
+            this.autoCapture.stop();
         }
-        return file;
+        this.cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                attachPreviewAnalyzer();
+            }
+        });
+        return helper;
+    }
+
+    /**
+     * @param minSharpness Laplacian variance of the preview luma a frame needs, higher is stricter
+     * @param maxMotion    Mean luma change between frames (0-255) still counted as holding still
+     * @param stableFrames Frames in a row that must pass both
+     * @return
+     */
+    public CropCameraHelper setAutoCaptureThresholds(double minSharpness, double maxMotion, int stableFrames) {
+        this.autoCapture.setThresholds(minSharpness, maxMotion, stableFrames);
+        return helper;
     }
 
     /**
-     * Initialize camera parameters
+     * Sharpness and motion of the last analysed preview frame, to tune the thresholds
      *
-     * @param holder       SurfaceHolder
-     * @param format
-     * @param width
-     * @param height
-     * @param screenWidth
-     * @param screenHeight
+     * @return {sharpness, motion}
+     */
+    public double[] getLastFrameQuality() {
+        return this.autoCapture.getLastQuality();
+    }
+
+    /**
+     * Preview analysis cost, to check it keeps up with the preview
+     *
+     * @return {frames analysed, frames dropped, last analysis nanoseconds, slowest, total}
      */
-    private void initParameters(SurfaceHolder holder, int format, int width, int height, int screenWidth, int screenHeight) {
-        try {
-            Parameters p = this.camera.getParameters();
+    public long[] getPreviewAnalysisStats() {
+        return this.previewAnalyzer.getStats();
+    }
 
-            this.camera.setPreviewDisplay(holder);
+    /**
+     * Document corners found in the preview, TL, TR, BR, BL as fractions of the camera image,
+     * or null when auto-crop is off or nothing was found recently
+     */
+    public float[] getDetectedQuad() {
+        float[] quad = this.detectedQuad;
+        if (quad == null || SystemClock.uptimeMillis() - this.detectedAt > DETECTION_MAX_AGE_MS) {
+            return null;
+        }
+        return quad.clone();
+    }
 
-            if (width > height) {
-                //Horizontal screen
-                this.camera.setDisplayOrientation(0);
-            } else {
-                //Portrait
-                this.camera.setDisplayOrientation(90);
+    /**
+     * Capture frames back to back
+     * Focus is only re-run when it is not locked, and frame k+1 is taken while frame k is processed
+     *
+     * @param frames   Number of frames, 0 to capture until {@link #stopBurst()}
+     * @param callback
+     */
+    public void startBurst(final int frames, final OnBurstCaptureCallback callback) {
+        this.cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                if (getCamera() == null || burst != null) {
+                    return;
+                }
+                //Shots are chained on the camera thread
+                burst = new BurstCapture(CropCameraHelper.this, frames, callback);
+                burst.start();
             }
+        });
+    }
+
+    /**
+     * Stop a running burst, frames already taken are still delivered
+     */
+    public void stopBurst() {
+        BurstCapture burst = this.burst;
+        if (burst != null) {
+            burst.stop();
+        }
+    }
 
-            //Photo quality
-            p.set("jpeg-quality", picQuality);
+    void onBurstFinished(BurstCapture burst) {
+        if (this.burst == burst) {
+            this.burst = null;
+        }
+    }
 
-            p.setPictureFormat(PixelFormat.JPEG);
+    /**
+     * The android.hardware.Camera, or null when the camera is closed or another backend is in use
+     */
+    Camera getCamera() {
+        CameraBackend backend = this.cameraThread.getBackend();
+        return backend instanceof LegacyCameraBackend ? ((LegacyCameraBackend) backend).getCamera() : null;
+    }
 
-            //Set the flash
-            p.setFlashMode(this.flashlightStatus);
+    /**
+     * The capture pipeline, started again after a release
+     */
+    synchronized CapturePipeline getPipeline() {
+        if (this.pipeline == null) {
+            this.pipeline = new CapturePipeline(CapturePipeline.DEFAULT_QUEUE_CAPACITY, this.bitmapPool);
+        }
+        return this.pipeline;
+    }
 
-            //Set the best preview size
-            List<Size> previewSizes = p.getSupportedPreviewSizes();
-            //Set preview resolution
-            if (this.resolution == null) {
-                this.resolution = this.getOptimalPreviewSize(previewSizes, width, height);
-            }
-            try {
-                p.setPreviewSize(this.resolution.width, this.resolution.height);
-            } catch (Exception e) {
-                Log.e(TAG, "Unsupported camera preview resolution: " + this.resolution.width + " × " + this.resolution.height);
-            }
+    ShutterCallback getShutterCallback() {
+        return this.shutterCallback;
+    }
 
-            if (this.pictureSize == null) {
-                List<Size> pictureSizes = p.getSupportedPictureSizes();
-                this.setPicutreSize(pictureSizes, screenWidth, screenHeight);
-            }
-            try {
-                p.setPictureSize(this.pictureSize.width, this.pictureSize.height);
-            } catch (Exception e) {
-                Log.e(TAG, "Unsupported photo size: " + this.pictureSize.width + " × " + this.pictureSize.height);
-            }
+    boolean isFocusLocked() {
+        CameraBackend backend = this.cameraThread.getBackend();
+        return backend instanceof LegacyCameraBackend && ((LegacyCameraBackend) backend).isFocusLocked();
+    }
 
-            this.camera.setParameters(p);
-        } catch (Exception e) {
-            Log.e(TAG, "Camera parameter setting error");
+    /**
+     * Camera thread: keep a locked focus across shots, see {@link LegacyCameraBackend#setHoldFocus}
+     */
+    void setHoldFocus(boolean holdFocus) {
+        CameraBackend backend = this.cameraThread.getBackend();
+        if (backend instanceof LegacyCameraBackend) {
+            ((LegacyCameraBackend) backend).setHoldFocus(holdFocus);
         }
     }
 
+    CameraThread getCameraThread() {
+        return this.cameraThread;
+    }
+
     /**
-     * release Camera
+     * Camera thread: the camera was opened and configured
      */
-    public void releaseCamera() {
-        if (this.camera != null) {
-            if (this.isPreviewing) {
-                this.stopPreview();
-            }
-            this.camera.setPreviewCallback(null);
-            isPreviewing = false;
-            this.camera.release();
-            this.camera = null;
-        }
+    void onCameraOpened(int orientation) {
+        this.orientation = orientation;
     }
 
-    private void stopPreview() {
-        if (this.camera != null && this.isPreviewing) {
-            this.camera.stopPreview();
-            this.isPreviewing = false;
-        }
+    /**
+     * Camera thread: the camera is about to be released
+     */
+    void onCameraClosing() {
+        this.stopBurst();
+        this.previewCapture.cancel();
+        this.previewAnalyzer.detach();
+        this.clearDetectedQuad();
     }
 
-    public void startPreview() {
-        if (this.camera != null) {
-            this.camera.startPreview();
-            this.camera.autoFocus(null);
-            this.isPreviewing = true;
-        }
+    /**
+     * Camera thread: preview frames are flowing, the first-frame callback has taken the preview
+     * callback slot and handed it back
+     */
+    void onPreviewRunning() {
+        this.attachPreviewAnalyzer();
+    }
+
+    /**
+     * Camera thread: the fast capture got its frame and no longer holds the preview callback
+     */
+    void onPreviewCallbackReleased() {
+        this.attachPreviewAnalyzer();
     }
 
     /**
-     * Crop photos
+     * Analyser thread: a preview frame was searched for the document
      *
-     * @param data
-     * @return
+     * @param quad  Corners as fractions of the camera image, null if no document was found
+     * @param nanos Time the analysis took
      */
-    private Bitmap cutImage(byte[] data) {
-        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-        if (this.surfaceView.getWidth() < this.surfaceView.getHeight()) {
-            //Rotate photos in portrait
-            Matrix matrix = new Matrix();
-            matrix.reset();
-            matrix.setRotate(90);
-            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    void onDocumentDetected(float[] quad, long nanos) {
+        if (!this.autoCrop) {
+            return;
         }
-
-        if (this.surfaceView == null) {
-            return bitmap;
+        long now = SystemClock.uptimeMillis();
+        if (quad != null) {
+            this.detectedQuad = quad;
+            this.detectedAt = now;
+        } else if (this.detectedQuad == null || now - this.detectedAt <= DETECTION_MAX_AGE_MS) {
+            //Keep the outline through a few missed frames instead of flickering
+            return;
         } else {
-            int[] sizes = this.surfaceView.getMaskSize();
-            if (sizes[0] == 0 || sizes[1] == 0) {
-                return bitmap;
-            }
-            int w = bitmap.getWidth();
-            int h = bitmap.getHeight();
-            int x = (w - sizes[0]) / 2;
-            int y = (h - sizes[1]) / 2;
-            return Bitmap.createBitmap(bitmap, x, y, sizes[0], sizes[1]);
+            this.detectedQuad = null;
         }
+        this.showDetectedQuad(this.detectedQuad);
     }
 
     /**
-     * Get the best preview size
+     * Analyser thread: a preview frame was scored for auto-capture
+     *
+     * @param sharpness Laplacian variance
+     * @param motion    Mean luma change since the previous frame
+     * @param nanos     Time the scoring took
      */
-    private Size getOptimalPreviewSize(List<Size> sizes, int width, int height) {
-        final double ASPECT_TOLERANCE = 0.05;
-        double targetRatio = (double) width / height;
-        if (sizes == null)
-            return null;
+    void onFrameQuality(double sharpness, double motion, long nanos) {
+        OnCaptureCallback callback = this.autoCapture.onFrame(sharpness, motion);
+        if (callback != null) {
+            Log.i(TAG, "Auto-capture at sharpness " + (int) sharpness + ", motion " + motion);
+            this.capture(callback, true);
+        }
+    }
 
-        Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
+    /**
+     * Feed preview frames to the analyser while auto-crop or auto-capture is on, camera thread
+     */
+    private void attachPreviewAnalyzer() {
+        this.previewAnalyzer.setTasks(this.autoCrop, this.autoCapture.isEnabled());
+        Camera camera = this.getCamera();
+        if (!this.previewAnalyzer.hasTasks() || camera == null) {
+            this.previewAnalyzer.detach();
+            return;
+        }
+        LegacyCameraBackend legacy = (LegacyCameraBackend) this.cameraThread.getBackend();
+        Camera.Size size = legacy.getPreviewSize();
+        if (size != null && legacy.isPreviewing()) {
+            this.previewAnalyzer.attach(camera, size.width, size.height);
+        }
+    }
 
-        int targetHeight = height;
+    private void clearDetectedQuad() {
+        if (this.detectedQuad != null) {
+            this.detectedQuad = null;
+            this.showDetectedQuad(null);
+        }
+    }
 
-        // Try to find an size match aspect ratio and size
-        for (Size size : sizes) {
-            double r = size.width * 1.0 / size.height * 1.0;
-            if (r != 4 / 3 || r != 3 / 4 || r != 16 / 9 || r != 9 / 16) {
-                continue;
+    /**
+     * Outline the document on the mask, turning camera image fractions into display fractions
+     */
+    private void showDetectedQuad(float[] quad) {
+        final CameraSurfaceView view = this.surfaceView;
+        if (view == null) {
+            return;
+        }
+        final float[] shown = quad == null ? null : new float[8];
+        if (quad != null) {
+            int orientation = this.orientation;
+            for (int i = 0; i < 8; i += 2) {
+                float x = quad[i];
+                float y = quad[i + 1];
+                switch (orientation) {
+                    case 90:
+                        shown[i] = 1 - y;
+                        shown[i + 1] = x;
+                        break;
+                    case 180:
+                        shown[i] = 1 - x;
+                        shown[i + 1] = 1 - y;
+                        break;
+                    case 270:
+                        shown[i] = y;
+                        shown[i + 1] = 1 - x;
+                        break;
+                    default:
+                        shown[i] = x;
+                        shown[i + 1] = y;
+                        break;
+                }
             }
-
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
-                continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
+        }
+        this.mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                view.setDetectedQuad(shown);
             }
+        });
+    }
+
+    CaptureJob newPreviewFrameJob(byte[] frame, int width, int height, CaptureJob.BufferRecycler recycler,
+                                  OnCaptureCallback callback) {
+        int[] maskSize = this.surfaceView == null ? null : this.surfaceView.getMaskSize();
+        CaptureJob job = CaptureJob.forPreviewFrame(frame, width, height, recycler, maskSize, this.filePath, callback);
+        this.applySettings(job);
+        return job;
+    }
+
+    private void applySettings(CaptureJob job) {
+        job.parallel = this.transformMode == TransformMode.PARALLEL;
+        job.quality = this.picQuality;
+        job.syncOnSave = this.syncOnSave;
+        job.losslessCrop = this.losslessCrop;
+        job.exifOrientation = this.rotationMode == RotationMode.EXIF;
+        job.orientation = this.orientation;
+        job.writeMetadata = this.writeMetadata;
+        int[] output = SizeSelector.orientLike(this.outputWidth, this.outputHeight, job.maskSize);
+        if (output != null) {
+            job.outputWidth = output[0];
+            job.outputHeight = output[1];
         }
+        job.quad = this.getDetectedQuad();
+        job.perspective = this.cropMode == CropMode.PERSPECTIVE;
+        job.assessQuality = this.qualityGate != QualityGate.OFF;
+        job.rejectPoorQuality = this.qualityGate == QualityGate.REJECT;
+        job.minSharpness = this.minSharpness;
+        job.maxClipping = this.maxClipping;
+        job.maxGlare = this.maxGlare;
+        job.uploadQueue = this.uploadQueue;
+        job.reviewLoader = this.reviewHandoff ? this.reviewImageLoader : null;
+        if (this.captureMetrics.isEnabled()) {
+            job.metrics = this.captureMetrics;
+            //Replaced by the shot request time for taken pictures
+            job.requestNanos = System.nanoTime();
+        }
+    }
 
-        // Cannot find the one match the aspect ratio, ignore the requirement
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
-            }
+    /**
+     * Current display rotation in degrees
+     */
+    private int getDisplayRotation() {
+        if (this.surfaceView == null) {
+            return 0;
+        }
+        WindowManager windowManager = (WindowManager) this.surfaceView.getContext()
+                .getSystemService(Context.WINDOW_SERVICE);
+        switch (windowManager.getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                return 90;
+            case Surface.ROTATION_180:
+                return 180;
+            case Surface.ROTATION_270:
+                return 270;
+            default:
+                return 0;
         }
-        return optimalSize;
     }
 
     /**
-     * Set the photo size to the closest screen size
-     *
-     * @param list
-     * @return
+     * Backend for the next open, reusing the current one when the API has not changed
+     */
+    private CameraBackend selectBackend() {
+        if (this.injectedBackend != null) {
+            return this.injectedBackend;
+        }
+        CameraBackend backend = this.cameraThread.getBackend();
+        boolean camera2 = this.cameraApi == CameraApi.CAMERA2
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && this.surfaceView != null;
+        if (camera2) {
+            return backend instanceof Camera2Backend ? backend : new Camera2Backend();
+        }
+        return backend instanceof LegacyCameraBackend ? backend : new LegacyCameraBackend();
+    }
+
+    CaptureJob newYuvJob(YuvFrame frame, CaptureJob.FrameReleaser releaser, OnCaptureCallback callback) {
+        int[] maskSize = this.surfaceView == null ? null : this.surfaceView.getMaskSize();
+        CaptureJob job = CaptureJob.forYuvFrame(frame, releaser, maskSize, this.filePath, callback);
+        this.applySettings(job);
+        return job;
+    }
+
+    /**
+     * Snapshot the current settings for a capture
      */
-    private void setPicutreSize(List<Size> list, int screenWidth, int screenHeight) {
-        int approach = Integer.MAX_VALUE;
+    CaptureJob newCaptureJob(byte[] data, OnCaptureCallback callback) {
+        int[] maskSize = this.surfaceView == null ? null : this.surfaceView.getMaskSize();
+        CaptureJob job = new CaptureJob(data, maskSize, this.filePath, callback);
+        this.applySettings(job);
+        return job;
+    }
 
-        for (Size size : list) {
-            int temp = Math.abs(size.width - screenWidth + size.height - screenHeight);
-            System.out.println("approach: " + approach + ", temp: " + temp + ", size.width: " + size.width + ", size.height: " + size.height);
-            if (approach > temp) {
-                approach = temp;
-                this.pictureSize = size;
+    /**
+     * release Camera
+     * Blocks until the camera thread has closed it, the preview surface may go away right after
+     */
+    public void releaseCamera() {
+        this.stopBurst();
+        this.cameraThread.release();
+        //No more stills can come in, captures already queued are still saved and delivered
+        synchronized (this) {
+            if (this.pipeline != null) {
+                this.pipeline.shutdown();
+                this.pipeline = null;
             }
         }
-//		//Descending
-//		if(list.get(0).width>list.get(list.size()-1).width){
-//			int len = list.size();
-//			list = list.subList(0, len/2==0? len/2 : (len+1)/2);
-//			this.pictureSize = list.get(list.size()-1);
-//		}else{
-//			int len = list.size();
-//			list = list.subList(len/2==0? len/2 : (len-1)/2, len-1);
-//			this.pictureSize = list.get(0);
-//		}
+    }
+
+    public void startPreview() {
+        this.cameraThread.startPreview();
     }
 }
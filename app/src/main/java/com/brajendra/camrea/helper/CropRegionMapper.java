@@ -0,0 +1,139 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Maps the mask rectangle shown over the preview back into sensor (JPEG) coordinates,
+ * so that only the masked region of a capture has to be decoded.
+ * <p>
+ * Rectangles are passed around as {left, top, right, bottom} int arrays.
+ */
+public final class CropRegionMapper {
+
+    private CropRegionMapper() {
+    }
+
+    /**
+     * Map a mask centered in the view onto the un-rotated sensor image
+     *
+     * @param maskWidth   Mask width in view pixels, oriented like the view
+     * @param maskHeight  Mask height in view pixels, oriented like the view
+     * @param viewWidth   Preview view width
+     * @param viewHeight  Preview view height
+     * @param imageWidth  Sensor image width
+     * @param imageHeight Sensor image height
+     * @param rotation    Clockwise rotation applied to the sensor image for display (0, 90, 180, 270)
+     * @param out         Receives {left, top, right, bottom} in sensor coordinates
+     * @return out, or null if the mask does not intersect the image
+     */
+    public static int[] mapCenteredMask(int maskWidth, int maskHeight, int viewWidth, int viewHeight,
+                                        int imageWidth, int imageHeight, int rotation, int[] out) {
+        int left = (viewWidth - maskWidth) / 2;
+        int top = (viewHeight - maskHeight) / 2;
+        return mapViewRect(left, top, left + maskWidth, top + maskHeight,
+                viewWidth, viewHeight, imageWidth, imageHeight, rotation, out);
+    }
+
+    /**
+     * Bounding box of a quadrilateral given as fractions of the sensor image
+     *
+     * @param quad        {x0, y0, x1, y1, x2, y2, x3, y3}, each between 0 and 1
+     * @param imageWidth  Sensor image width
+     * @param imageHeight Sensor image height
+     * @param out         Receives {left, top, right, bottom} in sensor coordinates
+     * @return out, or null if the box is empty
+     */
+    public static int[] mapQuadBounds(float[] quad, int imageWidth, int imageHeight, int[] out) {
+        float minX = 1;
+        float minY = 1;
+        float maxX = 0;
+        float maxY = 0;
+        for (int i = 0; i < 8; i += 2) {
+            minX = Math.min(minX, quad[i]);
+            maxX = Math.max(maxX, quad[i]);
+            minY = Math.min(minY, quad[i + 1]);
+            maxY = Math.max(maxY, quad[i + 1]);
+        }
+        int l = clamp((int) Math.floor(minX * imageWidth), 0, imageWidth);
+        int t = clamp((int) Math.floor(minY * imageHeight), 0, imageHeight);
+        int r = clamp((int) Math.ceil(maxX * imageWidth), 0, imageWidth);
+        int b = clamp((int) Math.ceil(maxY * imageHeight), 0, imageHeight);
+        if (r <= l || b <= t) {
+            return null;
+        }
+        out[0] = l;
+        out[1] = t;
+        out[2] = r;
+        out[3] = b;
+        return out;
+    }
+
+    /**
+     * Map a rectangle in view coordinates onto the un-rotated sensor image.
+     * The preview is assumed to be stretched over the whole view.
+     *
+     * @return out, or null if the rectangle does not intersect the image
+     */
+    public static int[] mapViewRect(int left, int top, int right, int bottom, int viewWidth, int viewHeight,
+                                    int imageWidth, int imageHeight, int rotation, int[] out) {
+        if (viewWidth <= 0 || viewHeight <= 0 || imageWidth <= 0 || imageHeight <= 0) {
+            return null;
+        }
+        boolean swap = rotation == 90 || rotation == 270;
+        int displayWidth = swap ? imageHeight : imageWidth;
+        int displayHeight = swap ? imageWidth : imageHeight;
+
+        //View -> displayed (rotated) image
+        int l = clamp(scale(left, displayWidth, viewWidth), 0, displayWidth);
+        int t = clamp(scale(top, displayHeight, viewHeight), 0, displayHeight);
+        int r = clamp(scale(right, displayWidth, viewWidth), 0, displayWidth);
+        int b = clamp(scale(bottom, displayHeight, viewHeight), 0, displayHeight);
+        if (r <= l || b <= t) {
+            return null;
+        }
+        return rotateToSensor(l, t, r, b, imageWidth, imageHeight, rotation, out);
+    }
+
+    /**
+     * Undo a clockwise display rotation for a rectangle in displayed-image coordinates
+     *
+     * @return out
+     */
+    public static int[] rotateToSensor(int l, int t, int r, int b, int imageWidth, int imageHeight,
+                                       int rotation, int[] out) {
+        switch (rotation) {
+            case 90:
+                //sensor (x, y) is displayed at (H - y, x)
+                out[0] = t;
+                out[1] = imageHeight - r;
+                out[2] = b;
+                out[3] = imageHeight - l;
+                break;
+            case 180:
+                out[0] = imageWidth - r;
+                out[1] = imageHeight - b;
+                out[2] = imageWidth - l;
+                out[3] = imageHeight - t;
+                break;
+            case 270:
+                //sensor (x, y) is displayed at (y, W - x)
+                out[0] = imageWidth - b;
+                out[1] = l;
+                out[2] = imageWidth - t;
+                out[3] = r;
+                break;
+            default:
+                out[0] = l;
+                out[1] = t;
+                out[2] = r;
+                out[3] = b;
+        }
+        return out;
+    }
+
+    private static int scale(int value, int to, int from) {
+        return (int) ((long) value * to / from);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : (value > max ? max : value);
+    }
+}
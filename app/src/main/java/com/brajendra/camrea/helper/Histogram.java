@@ -0,0 +1,100 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Fixed-memory histogram of non-negative values for percentile queries.
+ * <p>
+ * Values below 32 get a bucket each; above that every power of two is split into 16 buckets,
+ * so a reported percentile is within about 6% of the true value. Values past 2^41 land in the
+ * last bucket, which has no upper bound and reports the largest value. Recording is an index
+ * computation and an increment, with no allocation.
+ */
+class Histogram {
+
+    //Values counted exactly, and the power of two they end at
+    private static final int LINEAR = 32;
+    private static final int LINEAR_BITS = 5;
+    //Buckets per power of two above LINEAR
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+
+    private final long[] counts = new long[LINEAR + (MAX_EXPONENT - LINEAR_BITS + 1) * SUB_COUNT];
+    private long count;
+    private long sum;
+    private long max;
+
+    synchronized void record(long value) {
+        value = Math.max(0, value);
+        this.counts[indexOf(value)]++;
+        this.count++;
+        this.sum += value;
+        this.max = Math.max(this.max, value);
+    }
+
+    synchronized long getCount() {
+        return this.count;
+    }
+
+    synchronized long getMax() {
+        return this.max;
+    }
+
+    synchronized long getMean() {
+        return this.count == 0 ? 0 : this.sum / this.count;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the middle of the bucket the percentile falls in, at most the largest value, 0 when empty
+     */
+    synchronized long getPercentile(double percentile) {
+        if (this.count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                if (i == this.counts.length - 1) {
+                    return this.max;
+                }
+                return Math.min(this.max, (lowerBound(i) + lowerBound(i + 1) - 1) / 2);
+            }
+        }
+        return this.max;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] = 0;
+        }
+        this.count = 0;
+        this.sum = 0;
+        this.max = 0;
+    }
+
+    private int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return this.counts.length - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR + (exponent - LINEAR_BITS) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Smallest value counted in a bucket
+     */
+    private static long lowerBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_COUNT + LINEAR_BITS;
+        int sub = (index - LINEAR) % SUB_COUNT;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+    }
+}
@@ -0,0 +1,179 @@
+package com.brajendra.camrea.helper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Just enough EXIF to tag a JPEG with its orientation, without going through ExifInterface
+ * (which rewrites the whole file after it has been saved).
+ */
+final class JpegExif {
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    private JpegExif() {
+    }
+
+    /**
+     * EXIF orientation value for a clockwise rotation
+     *
+     * @param degrees 0, 90, 180 or 270
+     * @return 1, 6, 3 or 8
+     */
+    static int toExifOrientation(int degrees) {
+        switch (degrees) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * APP1 segment holding a single IFD0 entry: the orientation
+     */
+    static byte[] orientationSegment(int exifOrientation) {
+        byte[] segment = new byte[]{
+                //Marker, and the length filled in below
+                (byte) 0xFF, (byte) 0xE1, 0, 0,
+                'E', 'x', 'i', 'f', 0, 0,
+                //Big endian TIFF header, IFD0 at offset 8
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                //One entry: orientation, SHORT, count 1
+                0, 1,
+                (byte) (TAG_ORIENTATION >> 8), (byte) TAG_ORIENTATION, 0, TYPE_SHORT, 0, 0, 0, 1,
+                0, (byte) exifOrientation, 0, 0,
+                //No IFD1
+                0, 0, 0, 0
+        };
+        //The length counts itself and the payload, not the marker
+        int length = segment.length - 2;
+        segment[2] = (byte) (length >> 8);
+        segment[3] = (byte) length;
+        return segment;
+    }
+
+    /**
+     * Stream that inserts the orientation segment right after the SOI marker written through it
+     */
+    static OutputStream withOrientation(OutputStream out, int exifOrientation) {
+        return new OrientationStream(out, orientationSegment(exifOrientation));
+    }
+
+    /**
+     * Whether the JPEG already has an EXIF segment
+     */
+    static boolean hasExif(byte[] jpeg) {
+        return findExif(jpeg) >= 0;
+    }
+
+    /**
+     * Overwrite the orientation in an existing EXIF segment
+     *
+     * @return false if the JPEG has no orientation entry to patch
+     */
+    static boolean patchOrientation(byte[] jpeg, int exifOrientation) {
+        int tiff = findExif(jpeg);
+        if (tiff < 0 || tiff + 8 > jpeg.length) {
+            return false;
+        }
+        boolean little = jpeg[tiff] == 'I';
+        int ifd = tiff + (int) read(jpeg, tiff + 4, 4, little);
+        if (ifd < tiff || ifd + 2 > jpeg.length) {
+            return false;
+        }
+        int entries = (int) read(jpeg, ifd, 2, little);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > jpeg.length) {
+                return false;
+            }
+            if (read(jpeg, entry, 2, little) == TAG_ORIENTATION && read(jpeg, entry + 2, 2, little) == TYPE_SHORT) {
+                jpeg[entry + 8] = (byte) (little ? exifOrientation : 0);
+                jpeg[entry + 9] = (byte) (little ? 0 : exifOrientation);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return offset of the TIFF header inside the first EXIF segment, or -1
+     */
+    private static int findExif(byte[] jpeg) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return -1;
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xFF) == 0xFF) {
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xDA || marker == 0xD9) {
+                break;
+            }
+            int length = (int) read(jpeg, pos + 2, 2, false);
+            if (marker == 0xE1 && length >= 16 && pos + 10 <= jpeg.length
+                    && jpeg[pos + 4] == 'E' && jpeg[pos + 5] == 'x' && jpeg[pos + 6] == 'i' && jpeg[pos + 7] == 'f') {
+                return pos + 10;
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    private static long read(byte[] data, int offset, int bytes, boolean littleEndian) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            int b = data[offset + (littleEndian ? bytes - 1 - i : i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static class OrientationStream extends FilterOutputStream {
+        private byte[] segment;
+        private int written;
+
+        OrientationStream(OutputStream out, byte[] segment) {
+            super(out);
+            this.segment = segment;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.afterHead(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.segment == null) {
+                this.out.write(b, off, len);
+                return;
+            }
+            int head = Math.min(len, 2 - this.written);
+            this.out.write(b, off, head);
+            this.afterHead(head);
+            if (len > head) {
+                this.out.write(b, off + head, len - head);
+            }
+        }
+
+        private void afterHead(int count) throws IOException {
+            if (this.segment == null) {
+                return;
+            }
+            this.written += count;
+            if (this.written >= 2) {
+                //SOI is out, the segment goes right behind it
+                this.out.write(this.segment);
+                this.segment = null;
+            }
+        }
+    }
+}
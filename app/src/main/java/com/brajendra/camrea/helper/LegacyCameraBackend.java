@@ -0,0 +1,347 @@
+package com.brajendra.camrea.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.hardware.Camera.Size;
+import android.util.Log;
+
+/**
+ * {@link CameraBackend} on android.hardware.Camera: JPEG stills, NV21 preview frames.
+ * Fast capture and burst need the Camera object itself and only work on this backend.
+ */
+class LegacyCameraBackend implements CameraBackend {
+    private final String TAG = "LegacyCameraBackend";
+
+    private Camera camera;
+    private int cameraId;
+    private int orientation;
+    private boolean isPreviewing;
+
+    //	Whether the last focus run succeeded and has not been reset since
+    private boolean focusLocked;
+    //	Restart the preview after a shot without resetting the focus, for a burst
+    private boolean holdFocus;
+
+    //	Preview resolution and photo size
+    private Size resolution;
+    private Size pictureSize;
+    //	The sizes came from the capability cache
+    private boolean warmOpen;
+
+    private PreviewListener previewListener;
+    private final Camera.PreviewCallback firstFrame = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            PreviewListener listener = previewListener;
+            if (listener != null) {
+                listener.onFirstFrame();
+            }
+        }
+    };
+
+    @Override
+    public void open(OpenRequest request) {
+        this.release();
+        this.focusLocked = false;
+        this.cameraId = findBackCamera();
+        this.camera = Camera.open(this.cameraId);
+        this.initParameters(request);
+    }
+
+    @Override
+    public void startPreview() {
+        if (this.camera != null) {
+            if (this.previewListener != null) {
+                this.camera.setOneShotPreviewCallback(this.firstFrame);
+            }
+            this.camera.startPreview();
+            this.focusLocked = false;
+            this.camera.autoFocus(null);
+            this.isPreviewing = true;
+        }
+    }
+
+    /**
+     * Restart the preview after a shot without triggering a new focus run
+     */
+    void resumePreview() {
+        if (this.camera != null) {
+            this.camera.startPreview();
+            this.isPreviewing = true;
+        }
+    }
+
+    @Override
+    public void setPreviewListener(PreviewListener listener) {
+        this.previewListener = listener;
+    }
+
+    @Override
+    public void stopPreview() {
+        if (this.camera != null && this.isPreviewing) {
+            this.camera.stopPreview();
+            this.isPreviewing = false;
+        }
+    }
+
+    @Override
+    public boolean isPreviewing() {
+        return this.isPreviewing;
+    }
+
+    @Override
+    public void capture(final CaptureListener listener) {
+        if (this.camera == null) {
+            listener.onFailure();
+            return;
+        }
+        this.camera.autoFocus(new AutoFocusCallback() {
+            @Override
+            public void onAutoFocus(boolean flag, Camera camera) {
+                focusLocked = flag;
+                listener.onFocused();
+                takePicture(listener);
+            }
+        });
+    }
+
+    /**
+     * Take the picture with the focus as it is, without a focus run first
+     */
+    void takePicture(final CaptureListener listener) {
+        if (this.camera == null) {
+            listener.onFailure();
+            return;
+        }
+        ShutterCallback shutter = new ShutterCallback() {
+            @Override
+            public void onShutter() {
+                listener.onShutter();
+            }
+        };
+        this.camera.takePicture(shutter, null, new PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                //The preview stopped for the shot, bring it back while the capture is processed
+                if (holdFocus) {
+                    resumePreview();
+                } else {
+                    isPreviewing = false;
+                    startPreview();
+                }
+                listener.onJpeg(data);
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        this.focusLocked = false;
+        this.holdFocus = false;
+        if (this.camera != null) {
+            this.stopPreview();
+            this.camera.setPreviewCallback(null);
+            this.isPreviewing = false;
+            this.camera.release();
+            this.camera = null;
+        }
+    }
+
+    @Override
+    public int getOrientation() {
+        return this.orientation;
+    }
+
+    @Override
+    public boolean isWarmOpen() {
+        return this.warmOpen;
+    }
+
+    Camera getCamera() {
+        return this.camera;
+    }
+
+    Size getPreviewSize() {
+        return this.resolution;
+    }
+
+    boolean isFocusLocked() {
+        return this.focusLocked;
+    }
+
+    /**
+     * Keep a locked focus across shots instead of starting a new focus run after each one
+     */
+    void setHoldFocus(boolean holdFocus) {
+        this.holdFocus = holdFocus;
+    }
+
+    /**
+     * Clockwise rotation from a sensor image to the display
+     *
+     * @param sensorOrientation CameraInfo.orientation / SENSOR_ORIENTATION
+     * @param front             Front-facing camera
+     * @param displayRotation   Display rotation in degrees
+     */
+    static int displayOrientation(int sensorOrientation, boolean front, int displayRotation) {
+        if (front) {
+            return (sensorOrientation + displayRotation) % 360;
+        }
+        return (sensorOrientation - displayRotation + 360) % 360;
+    }
+
+    /**
+     * Id of the first back-facing camera, the one Camera.open() picks
+     */
+    private static int findBackCamera() {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        for (int id = 0; id < Camera.getNumberOfCameras(); id++) {
+            Camera.getCameraInfo(id, info);
+            if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Initialize camera parameters
+     *
+     * @param request
+     */
+    private void initParameters(OpenRequest request) {
+        int width = request.viewWidth;
+        int height = request.viewHeight;
+        try {
+            Parameters p = this.camera.getParameters();
+
+            this.camera.setPreviewDisplay(request.holder);
+
+            if (request.sensorOrientation) {
+                //The preview is shown exactly as the EXIF tag will turn the picture
+                Camera.CameraInfo info = new Camera.CameraInfo();
+                Camera.getCameraInfo(this.cameraId, info);
+                this.orientation = displayOrientation(info.orientation,
+                        info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT, request.displayRotation);
+            } else if (width > height) {
+                //Horizontal screen
+                this.orientation = 0;
+            } else {
+                //Portrait
+                this.orientation = 90;
+            }
+            this.camera.setDisplayOrientation(this.orientation);
+
+            //Photo quality
+            p.set("jpeg-quality", request.jpegQuality);
+
+            p.setPictureFormat(PixelFormat.JPEG);
+
+            //Preview frames are cropped in NV21 by fastCapture
+            p.setPreviewFormat(ImageFormat.NV21);
+
+            //Set the flash
+            p.setFlashMode(request.flashMode);
+
+            //Sizes negotiated by an earlier open skip the size search, as long as the camera still lists them
+            List<int[]> previewSizes = toList(p.getSupportedPreviewSizes());
+            List<int[]> pictureSizes = toList(p.getSupportedPictureSizes());
+            CameraCapabilityCache cache = request.capabilities;
+            String key = CameraCapabilityCache.key("legacy", String.valueOf(this.cameraId), request);
+            int[] cached = cache == null ? null : cache.get(key);
+            if (cached != null && !(contains(previewSizes, cached[0], cached[1])
+                    && contains(pictureSizes, cached[2], cached[3]))) {
+                Log.w(TAG, "Cached camera sizes are no longer supported, negotiating again");
+                cache.remove(key);
+                cached = null;
+            }
+            this.warmOpen = cached != null;
+            if (cached != null) {
+                this.resolution = this.camera.new Size(cached[0], cached[1]);
+                this.pictureSize = this.camera.new Size(cached[2], cached[3]);
+            } else {
+                this.selectSizes(request, previewSizes, pictureSizes);
+            }
+            this.applySizes(p);
+
+            try {
+                this.camera.setParameters(p);
+            } catch (RuntimeException e) {
+                if (cached == null) {
+                    throw e;
+                }
+                //The camera refused sizes an earlier open got away with, forget them so later opens do not repeat this
+                Log.w(TAG, "Camera rejected cached sizes, negotiating again", e);
+                cache.remove(key);
+                cached = null;
+                this.warmOpen = false;
+                this.selectSizes(request, previewSizes, pictureSizes);
+                this.applySizes(p);
+                this.camera.setParameters(p);
+            }
+            if (cached == null && cache != null) {
+                cache.put(key, this.resolution.width, this.resolution.height,
+                        this.pictureSize.width, this.pictureSize.height);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Camera parameter setting error", e);
+        }
+    }
+
+    /**
+     * Search the supported sizes for the preview resolution and photo size
+     *
+     * @param request
+     * @param previewSizes Supported preview sizes
+     * @param pictureSizes Supported picture sizes
+     */
+    private void selectSizes(OpenRequest request, List<int[]> previewSizes, List<int[]> pictureSizes) {
+        //Set the best preview size
+        int[] preview = new SizeSelector(previewSizes)
+                .selectPreview(request.viewWidth, request.viewHeight, this.orientation);
+        this.resolution = this.camera.new Size(preview[0], preview[1]);
+        //The smallest photo that still gives the crop its size
+        int[] picture = new SizeSelector(pictureSizes).selectPicture(request, preview, this.orientation);
+        this.pictureSize = this.camera.new Size(picture[0], picture[1]);
+    }
+
+    private void applySizes(Parameters p) {
+        //Set preview resolution
+        try {
+            p.setPreviewSize(this.resolution.width, this.resolution.height);
+        } catch (Exception e) {
+            Log.e(TAG, "Unsupported camera preview resolution: " + this.resolution.width + " × " + this.resolution.height);
+        }
+
+        try {
+            p.setPictureSize(this.pictureSize.width, this.pictureSize.height);
+        } catch (Exception e) {
+            Log.e(TAG, "Unsupported photo size: " + this.pictureSize.width + " × " + this.pictureSize.height);
+        }
+    }
+
+    private static boolean contains(List<int[]> sizes, int width, int height) {
+        for (int[] size : sizes) {
+            if (size[0] == width && size[1] == height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<int[]> toList(List<Size> sizes) {
+        List<int[]> list = new ArrayList<>(sizes.size());
+        for (Size size : sizes) {
+            list.add(new int[]{size.width, size.height});
+        }
+        return list;
+    }
+}
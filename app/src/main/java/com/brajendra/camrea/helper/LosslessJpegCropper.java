@@ -0,0 +1,983 @@
+package com.brajendra.camrea.helper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Crops (and rotates by multiples of 90 degrees) a baseline JPEG without decoding pixels,
+ * the way jpegtran -crop does.
+ * <p>
+ * The entropy-coded data is Huffman-decoded into DCT coefficients, the blocks inside the crop are
+ * kept (MCU rows below the crop are never decoded) and re-encoded with Huffman tables built for the
+ * cropped data. Coefficients are not requantized, so nothing is lost beyond what the decoder's own
+ * rounding adds. Rotations move whole blocks and transpose or negate coefficients in place; for 90
+ * and 270 degrees the quantization tables are transposed with them, as jpegtran's transupp does.
+ * <p>
+ * Only sequential Huffman JPEGs with 8-bit samples and a single interleaved scan are handled, which
+ * is what camera firmware produces; {@link #parse} returns null for anything else. Crop edges are
+ * snapped to MCU boundaries by {@link #snap}. APPn segments (EXIF, thumbnails) are not copied.
+ */
+public final class LosslessJpegCropper {
+
+    //Natural (row-major) index of the k-th coefficient in zig-zag order
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    //Zig-zag position of each natural index
+    private static final int[] UNZIGZAG = new int[64];
+
+    static {
+        for (int k = 0; k < 64; k++) {
+            UNZIGZAG[ZIGZAG[k]] = k;
+        }
+    }
+
+    private final byte[] data;
+    private int width;
+    private int height;
+    private int componentCount;
+    private int[] componentIds;
+    private int[] hSamp;
+    private int[] vSamp;
+    private int[] quantTables;
+    private int[] dcSelectors;
+    private int[] acSelectors;
+    private int hMax;
+    private int vMax;
+    private int restartInterval;
+    private int scanOffset;
+    //DQT segments, {offset, length} of each including the marker
+    private final List<int[]> quantSegments = new ArrayList<>();
+    private final HuffmanDecoder[] dcDecoders = new HuffmanDecoder[4];
+    private final HuffmanDecoder[] acDecoders = new HuffmanDecoder[4];
+
+    private LosslessJpegCropper(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Read the JPEG headers
+     *
+     * @param jpeg
+     * @return the cropper, or null if the JPEG cannot be cropped losslessly
+     */
+    public static LosslessJpegCropper parse(byte[] jpeg) {
+        LosslessJpegCropper cropper = new LosslessJpegCropper(jpeg);
+        try {
+            return cropper.readHeaders() ? cropper : null;
+        } catch (RuntimeException e) {
+            //Truncated or malformed headers
+            return null;
+        }
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public int getMcuWidth() {
+        return 8 * this.hMax;
+    }
+
+    public int getMcuHeight() {
+        return 8 * this.vMax;
+    }
+
+    /**
+     * Snap a crop to MCU boundaries.
+     * Left and top always move out to an MCU boundary. Right and bottom may stay anywhere unless the
+     * rotation turns them into the left or top edge of the output, in which case they are rounded
+     * out (or in, at the image border) to a boundary as well.
+     *
+     * @param region   {left, top, right, bottom} in source pixels
+     * @param rotation Clockwise rotation that will be applied: 0, 90, 180 or 270
+     * @return the snapped region, or null if nothing is left
+     */
+    public int[] snap(int[] region, int rotation) {
+        int mcuWidth = this.getMcuWidth();
+        int mcuHeight = this.getMcuHeight();
+        int left = Math.max(0, region[0]) / mcuWidth * mcuWidth;
+        int top = Math.max(0, region[1]) / mcuHeight * mcuHeight;
+        int right = Math.min(this.width, region[2]);
+        int bottom = Math.min(this.height, region[3]);
+        if (rotation == 180 || rotation == 270) {
+            right = alignEdge(right, mcuWidth, this.width);
+        }
+        if (rotation == 90 || rotation == 180) {
+            bottom = alignEdge(bottom, mcuHeight, this.height);
+        }
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+        return new int[]{left, top, right, bottom};
+    }
+
+    /**
+     * Write the cropped and rotated JPEG
+     *
+     * @param region   Region returned by {@link #snap} for the same rotation
+     * @param rotation Clockwise rotation: 0, 90, 180 or 270
+     * @param out
+     */
+    public void write(int[] region, int rotation, OutputStream out) throws IOException {
+        int mcuWidth = this.getMcuWidth();
+        int mcuHeight = this.getMcuHeight();
+        int mcuX0 = region[0] / mcuWidth;
+        int mcuY0 = region[1] / mcuHeight;
+        int mcuX1 = (region[2] + mcuWidth - 1) / mcuWidth;
+        int mcuY1 = (region[3] + mcuHeight - 1) / mcuHeight;
+
+        short[][] blocks = this.decodeBlocks(mcuX0, mcuY0, mcuX1, mcuY1);
+        int[] blocksX = new int[this.componentCount];
+        int[] blocksY = new int[this.componentCount];
+        for (int c = 0; c < this.componentCount; c++) {
+            blocksX[c] = (mcuX1 - mcuX0) * this.hSamp[c];
+            blocksY[c] = (mcuY1 - mcuY0) * this.vSamp[c];
+        }
+
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? region[3] - region[1] : region[2] - region[0];
+        int outHeight = swap ? region[2] - region[0] : region[3] - region[1];
+        int[] outH = swap ? this.vSamp : this.hSamp;
+        int[] outV = swap ? this.hSamp : this.vSamp;
+
+        ScanWriter scan = new ScanWriter(blocks, blocksX, blocksY, outH, outV, rotation,
+                (outWidth + 8 * (swap ? this.vMax : this.hMax) - 1) / (8 * (swap ? this.vMax : this.hMax)),
+                (outHeight + 8 * (swap ? this.hMax : this.vMax) - 1) / (8 * (swap ? this.hMax : this.vMax)));
+        int tableCount = this.componentCount == 1 ? 1 : 2;
+        HuffmanEncoder[] dc = new HuffmanEncoder[tableCount];
+        HuffmanEncoder[] ac = new HuffmanEncoder[tableCount];
+        scan.buildTables(dc, ac);
+
+        //SOI
+        out.write(0xFF);
+        out.write(0xD8);
+        for (int[] segment : this.quantSegments) {
+            if (swap) {
+                this.writeTransposedQuantTables(out, segment[0], segment[1]);
+            } else {
+                out.write(this.data, segment[0], segment[1]);
+            }
+        }
+        this.writeFrameHeader(out, outWidth, outHeight, outH, outV);
+        writeHuffmanTables(out, dc, ac);
+        this.writeScanHeader(out);
+        BitWriter bits = new BitWriter(out);
+        scan.encode(bits, dc, ac);
+        bits.flush();
+        //EOI
+        out.write(0xFF);
+        out.write(0xD9);
+    }
+
+    /**
+     * Copy a DQT segment with every table transposed, as the coefficients are for 90 and 270 degrees
+     *
+     * @param out
+     * @param offset Of the marker
+     * @param length Including the marker
+     */
+    private void writeTransposedQuantTables(OutputStream out, int offset, int length) throws IOException {
+        byte[] segment = new byte[length];
+        System.arraycopy(this.data, offset, segment, 0, length);
+        int pos = 4;
+        while (pos < length) {
+            //Entries are one byte, or two with the high precision bit set
+            int entrySize = (segment[pos] & 0xF0) != 0 ? 2 : 1;
+            int table = pos + 1;
+            if (table + 64 * entrySize > length) {
+                break;
+            }
+            for (int k = 0; k < 64; k++) {
+                int from = table + UNZIGZAG[transpose(ZIGZAG[k])] * entrySize;
+                int to = pos + 1 + k * entrySize;
+                for (int b = 0; b < entrySize; b++) {
+                    segment[to + b] = this.data[offset + from + b];
+                }
+            }
+            pos = table + 64 * entrySize;
+        }
+        out.write(segment, 0, length);
+    }
+
+    /**
+     * Natural index of the coefficient at the mirrored position across the diagonal
+     */
+    private static int transpose(int natural) {
+        return (natural & 7) * 8 + (natural >> 3);
+    }
+
+    private static int alignEdge(int edge, int unit, int limit) {
+        int aligned = (edge + unit - 1) / unit * unit;
+        return aligned <= limit ? aligned : limit / unit * unit;
+    }
+
+    // ---------------------------------------------------------------- headers
+
+    private boolean readHeaders() {
+        byte[] d = this.data;
+        if (d.length < 4 || (d[0] & 0xFF) != 0xFF || (d[1] & 0xFF) != 0xD8) {
+            return false;
+        }
+        int pos = 2;
+        boolean haveFrame = false;
+        while (pos + 4 <= d.length) {
+            if ((d[pos] & 0xFF) != 0xFF) {
+                return false;
+            }
+            int marker = d[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                //Fill byte
+                pos++;
+                continue;
+            }
+            int length = ((d[pos + 2] & 0xFF) << 8) | (d[pos + 3] & 0xFF);
+            int payload = pos + 4;
+            int end = pos + 2 + length;
+            if (end > d.length) {
+                return false;
+            }
+            switch (marker) {
+                case 0xC0:
+                case 0xC1:
+                    if (!this.readFrame(payload)) {
+                        return false;
+                    }
+                    haveFrame = true;
+                    break;
+                case 0xC4:
+                    this.readHuffmanTables(payload, end);
+                    break;
+                case 0xDB:
+                    this.quantSegments.add(new int[]{pos, length + 2});
+                    break;
+                case 0xDD:
+                    this.restartInterval = ((d[payload] & 0xFF) << 8) | (d[payload + 1] & 0xFF);
+                    break;
+                case 0xDA:
+                    this.scanOffset = end;
+                    return haveFrame && this.readScan(payload);
+                default:
+                    //Progressive, lossless, arithmetic and hierarchical frames are not supported
+                    if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                        return false;
+                    }
+                    //APPn, COM and anything else is skipped
+                    break;
+            }
+            pos = end;
+        }
+        return false;
+    }
+
+    private boolean readFrame(int pos) {
+        byte[] d = this.data;
+        if ((d[pos] & 0xFF) != 8) {
+            return false;
+        }
+        this.height = ((d[pos + 1] & 0xFF) << 8) | (d[pos + 2] & 0xFF);
+        this.width = ((d[pos + 3] & 0xFF) << 8) | (d[pos + 4] & 0xFF);
+        this.componentCount = d[pos + 5] & 0xFF;
+        if (this.width == 0 || this.height == 0 || (this.componentCount != 1 && this.componentCount != 3)) {
+            return false;
+        }
+        int n = this.componentCount;
+        this.componentIds = new int[n];
+        this.hSamp = new int[n];
+        this.vSamp = new int[n];
+        this.quantTables = new int[n];
+        for (int c = 0; c < n; c++) {
+            int p = pos + 6 + c * 3;
+            this.componentIds[c] = d[p] & 0xFF;
+            this.hSamp[c] = (d[p + 1] & 0xFF) >> 4;
+            this.vSamp[c] = d[p + 1] & 0x0F;
+            this.quantTables[c] = d[p + 2] & 0xFF;
+            if (this.hSamp[c] < 1 || this.hSamp[c] > 4 || this.vSamp[c] < 1 || this.vSamp[c] > 4) {
+                return false;
+            }
+        }
+        if (n == 1) {
+            //A single-component scan is never interleaved: one block per MCU
+            this.hSamp[0] = 1;
+            this.vSamp[0] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            this.hMax = Math.max(this.hMax, this.hSamp[c]);
+            this.vMax = Math.max(this.vMax, this.vSamp[c]);
+        }
+        return true;
+    }
+
+    private void readHuffmanTables(int pos, int end) {
+        byte[] d = this.data;
+        while (pos < end) {
+            int tableClass = (d[pos] & 0xFF) >> 4;
+            int id = d[pos] & 0x0F;
+            int[] counts = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                counts[i] = d[pos + i] & 0xFF;
+                total += counts[i];
+            }
+            int[] symbols = new int[total];
+            for (int i = 0; i < total; i++) {
+                symbols[i] = d[pos + 17 + i] & 0xFF;
+            }
+            HuffmanDecoder decoder = new HuffmanDecoder(counts, symbols);
+            if (tableClass == 0) {
+                this.dcDecoders[id & 3] = decoder;
+            } else {
+                this.acDecoders[id & 3] = decoder;
+            }
+            pos += 17 + total;
+        }
+    }
+
+    private boolean readScan(int pos) {
+        byte[] d = this.data;
+        int n = d[pos] & 0xFF;
+        if (n != this.componentCount) {
+            //Multi-scan sequential files are not handled
+            return false;
+        }
+        this.dcSelectors = new int[n];
+        this.acSelectors = new int[n];
+        for (int i = 0; i < n; i++) {
+            int id = d[pos + 1 + i * 2] & 0xFF;
+            int tables = d[pos + 2 + i * 2] & 0xFF;
+            int c = this.componentIndex(id);
+            if (c != i) {
+                return false;
+            }
+            this.dcSelectors[c] = tables >> 4;
+            this.acSelectors[c] = tables & 0x0F;
+            if (this.dcDecoders[this.dcSelectors[c] & 3] == null || this.acDecoders[this.acSelectors[c] & 3] == null) {
+                return false;
+            }
+        }
+        int ss = d[pos + 1 + n * 2] & 0xFF;
+        int se = d[pos + 2 + n * 2] & 0xFF;
+        int approximation = d[pos + 3 + n * 2] & 0xFF;
+        return ss == 0 && se == 63 && approximation == 0;
+    }
+
+    private int componentIndex(int id) {
+        for (int c = 0; c < this.componentCount; c++) {
+            if (this.componentIds[c] == id) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private void writeFrameHeader(OutputStream out, int width, int height, int[] h, int[] v) throws IOException {
+        int n = this.componentCount;
+        int length = 8 + 3 * n;
+        out.write(0xFF);
+        out.write(0xC0);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(8);
+        out.write(height >> 8);
+        out.write(height & 0xFF);
+        out.write(width >> 8);
+        out.write(width & 0xFF);
+        out.write(n);
+        for (int c = 0; c < n; c++) {
+            out.write(this.componentIds[c]);
+            out.write((h[c] << 4) | v[c]);
+            out.write(this.quantTables[c]);
+        }
+    }
+
+    private static void writeHuffmanTables(OutputStream out, HuffmanEncoder[] dc, HuffmanEncoder[] ac) throws IOException {
+        int length = 2;
+        for (int t = 0; t < dc.length; t++) {
+            length += 17 + dc[t].symbols.length + 17 + ac[t].symbols.length;
+        }
+        out.write(0xFF);
+        out.write(0xC4);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        for (int t = 0; t < dc.length; t++) {
+            dc[t].writeTable(out, t);
+            ac[t].writeTable(out, 0x10 | t);
+        }
+    }
+
+    private void writeScanHeader(OutputStream out) throws IOException {
+        int n = this.componentCount;
+        int length = 6 + 2 * n;
+        out.write(0xFF);
+        out.write(0xDA);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(n);
+        for (int c = 0; c < n; c++) {
+            out.write(this.componentIds[c]);
+            //Luma uses tables 0, chroma shares tables 1
+            out.write(c == 0 ? 0x00 : 0x11);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    // ---------------------------------------------------------------- decoding
+
+    /**
+     * Entropy-decode MCU rows up to mcuY1 and keep the blocks inside the MCU range
+     *
+     * @return per component, natural-order coefficients of the kept blocks, row by row
+     */
+    private short[][] decodeBlocks(int mcuX0, int mcuY0, int mcuX1, int mcuY1) {
+        int n = this.componentCount;
+        int mcusX = (this.width + this.getMcuWidth() - 1) / this.getMcuWidth();
+        short[][] blocks = new short[n][];
+        int[] keptX = new int[n];
+        for (int c = 0; c < n; c++) {
+            keptX[c] = (mcuX1 - mcuX0) * this.hSamp[c];
+            blocks[c] = new short[keptX[c] * (mcuY1 - mcuY0) * this.vSamp[c] * 64];
+        }
+        int[] predictors = new int[n];
+        BitReader bits = new BitReader(this.data, this.scanOffset);
+        int mcu = 0;
+        for (int my = 0; my < mcuY1; my++) {
+            for (int mx = 0; mx < mcusX; mx++) {
+                if (this.restartInterval > 0 && mcu > 0 && mcu % this.restartInterval == 0) {
+                    bits.restart();
+                    for (int c = 0; c < n; c++) {
+                        predictors[c] = 0;
+                    }
+                }
+                boolean keep = my >= mcuY0 && mx >= mcuX0 && mx < mcuX1;
+                for (int c = 0; c < n; c++) {
+                    HuffmanDecoder dc = this.dcDecoders[this.dcSelectors[c] & 3];
+                    HuffmanDecoder ac = this.acDecoders[this.acSelectors[c] & 3];
+                    for (int v = 0; v < this.vSamp[c]; v++) {
+                        for (int h = 0; h < this.hSamp[c]; h++) {
+                            int offset = -1;
+                            if (keep) {
+                                int bx = (mx - mcuX0) * this.hSamp[c] + h;
+                                int by = (my - mcuY0) * this.vSamp[c] + v;
+                                offset = (by * keptX[c] + bx) * 64;
+                            }
+                            predictors[c] = decodeBlock(bits, dc, ac, predictors[c], blocks[c], offset);
+                        }
+                    }
+                }
+                mcu++;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @param offset Where to store the block, or -1 to only advance past it
+     * @return the new DC predictor
+     */
+    private static int decodeBlock(BitReader bits, HuffmanDecoder dc, HuffmanDecoder ac, int predictor,
+                                   short[] out, int offset) {
+        int size = bits.decode(dc);
+        int dcValue = predictor + (size == 0 ? 0 : extend(bits.receive(size), size));
+        if (offset >= 0) {
+            out[offset] = (short) dcValue;
+        }
+        for (int k = 1; k < 64; ) {
+            int rs = bits.decode(ac);
+            int run = rs >> 4;
+            size = rs & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    //End of block
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += run;
+            int value = extend(bits.receive(size), size);
+            if (k > 63) {
+                throw new IllegalStateException("Corrupt JPEG: coefficient index out of range");
+            }
+            if (offset >= 0) {
+                out[offset + ZIGZAG[k]] = (short) value;
+            }
+            k++;
+        }
+        return dcValue;
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    private static final class HuffmanDecoder {
+        private static final int LOOKAHEAD = 9;
+
+        //(length << 8) | symbol for codes up to LOOKAHEAD bits, 0 if longer
+        private final int[] lookup = new int[1 << LOOKAHEAD];
+        private final int[] maxCode = new int[18];
+        private final int[] minCode = new int[17];
+        private final int[] valueOffset = new int[17];
+        private final int[] symbols;
+
+        HuffmanDecoder(int[] counts, int[] symbols) {
+            this.symbols = symbols;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                this.valueOffset[length] = k;
+                this.minCode[length] = code;
+                for (int i = 0; i < counts[length]; i++) {
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        int base = code << shift;
+                        for (int fill = 0; fill < (1 << shift); fill++) {
+                            this.lookup[base + fill] = (length << 8) | symbols[k];
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                this.maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            this.maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] data;
+        private int pos;
+        private int buffer;
+        private int count;
+        private boolean atMarker;
+
+        BitReader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        int decode(HuffmanDecoder table) {
+            this.fill();
+            int peek = (this.buffer >>> (this.count - HuffmanDecoder.LOOKAHEAD)) & ((1 << HuffmanDecoder.LOOKAHEAD) - 1);
+            int entry = table.lookup[peek];
+            if (entry != 0) {
+                this.count -= entry >> 8;
+                return entry & 0xFF;
+            }
+            for (int length = HuffmanDecoder.LOOKAHEAD + 1; length <= 16; length++) {
+                int code = (this.buffer >>> (this.count - length)) & ((1 << length) - 1);
+                if (code <= table.maxCode[length]) {
+                    this.count -= length;
+                    return table.symbols[table.valueOffset[length] + code - table.minCode[length]];
+                }
+            }
+            throw new IllegalStateException("Corrupt JPEG: bad Huffman code");
+        }
+
+        int receive(int size) {
+            this.fill();
+            int value = (this.buffer >>> (this.count - size)) & ((1 << size) - 1);
+            this.count -= size;
+            return value;
+        }
+
+        /**
+         * Skip to the byte after the next RSTn marker
+         */
+        void restart() {
+            this.buffer = 0;
+            this.count = 0;
+            this.atMarker = false;
+            byte[] d = this.data;
+            while (this.pos + 1 < d.length) {
+                if ((d[this.pos] & 0xFF) == 0xFF && ((d[this.pos + 1] & 0xFF) & 0xF8) == 0xD0) {
+                    this.pos += 2;
+                    return;
+                }
+                this.pos++;
+            }
+        }
+
+        private void fill() {
+            while (this.count <= 24) {
+                this.buffer = (this.buffer << 8) | this.nextByte();
+                this.count += 8;
+            }
+        }
+
+        private int nextByte() {
+            //Past a marker the decoder sees zero bits, like libjpeg
+            if (this.atMarker || this.pos >= this.data.length) {
+                return 0;
+            }
+            int b = this.data[this.pos] & 0xFF;
+            if (b == 0xFF) {
+                int next = this.pos + 1 < this.data.length ? this.data[this.pos + 1] & 0xFF : 0xD9;
+                if (next != 0) {
+                    this.atMarker = true;
+                    return 0;
+                }
+                //Stuffed zero
+                this.pos += 2;
+                return 0xFF;
+            }
+            this.pos++;
+            return b;
+        }
+    }
+
+    // ---------------------------------------------------------------- encoding
+
+    /**
+     * Walks the output blocks in MCU order, picking the rotated source block for each
+     */
+    private static final class ScanWriter {
+        private final short[][] blocks;
+        private final int[] blocksX;
+        private final int[] blocksY;
+        private final int[] outH;
+        private final int[] outV;
+        private final int rotation;
+        private final int mcusX;
+        private final int mcusY;
+        private final int[] coefficients = new int[64];
+
+        ScanWriter(short[][] blocks, int[] blocksX, int[] blocksY, int[] outH, int[] outV, int rotation,
+                   int mcusX, int mcusY) {
+            this.blocks = blocks;
+            this.blocksX = blocksX;
+            this.blocksY = blocksY;
+            this.outH = outH;
+            this.outV = outV;
+            this.rotation = rotation;
+            this.mcusX = mcusX;
+            this.mcusY = mcusY;
+        }
+
+        /**
+         * First pass: count symbols and build optimal tables
+         */
+        void buildTables(HuffmanEncoder[] dc, HuffmanEncoder[] ac) {
+            long[][] dcFrequencies = new long[dc.length][257];
+            long[][] acFrequencies = new long[ac.length][257];
+            int[] predictors = new int[this.blocks.length];
+            for (int my = 0; my < this.mcusY; my++) {
+                for (int mx = 0; mx < this.mcusX; mx++) {
+                    for (int c = 0; c < this.blocks.length; c++) {
+                        int t = c == 0 ? 0 : dc.length - 1;
+                        for (int v = 0; v < this.outV[c]; v++) {
+                            for (int h = 0; h < this.outH[c]; h++) {
+                                int[] coef = this.load(c, mx * this.outH[c] + h, my * this.outV[c] + v);
+                                dcFrequencies[t][bitLength(coef[0] - predictors[c])]++;
+                                predictors[c] = coef[0];
+                                int run = 0;
+                                for (int k = 1; k < 64; k++) {
+                                    int value = coef[ZIGZAG[k]];
+                                    if (value == 0) {
+                                        run++;
+                                        continue;
+                                    }
+                                    while (run > 15) {
+                                        acFrequencies[t][0xF0]++;
+                                        run -= 16;
+                                    }
+                                    acFrequencies[t][(run << 4) | bitLength(value)]++;
+                                    run = 0;
+                                }
+                                if (run > 0) {
+                                    acFrequencies[t][0x00]++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            for (int t = 0; t < dc.length; t++) {
+                dc[t] = HuffmanEncoder.optimal(dcFrequencies[t]);
+                ac[t] = HuffmanEncoder.optimal(acFrequencies[t]);
+            }
+        }
+
+        /**
+         * Second pass: write the entropy-coded data
+         */
+        void encode(BitWriter bits, HuffmanEncoder[] dc, HuffmanEncoder[] ac) throws IOException {
+            int[] predictors = new int[this.blocks.length];
+            for (int my = 0; my < this.mcusY; my++) {
+                for (int mx = 0; mx < this.mcusX; mx++) {
+                    for (int c = 0; c < this.blocks.length; c++) {
+                        int t = c == 0 ? 0 : dc.length - 1;
+                        for (int v = 0; v < this.outV[c]; v++) {
+                            for (int h = 0; h < this.outH[c]; h++) {
+                                int[] coef = this.load(c, mx * this.outH[c] + h, my * this.outV[c] + v);
+                                int diff = coef[0] - predictors[c];
+                                predictors[c] = coef[0];
+                                int size = bitLength(diff);
+                                dc[t].write(bits, size);
+                                if (size > 0) {
+                                    bits.write(diff < 0 ? diff - 1 : diff, size);
+                                }
+                                int run = 0;
+                                for (int k = 1; k < 64; k++) {
+                                    int value = coef[ZIGZAG[k]];
+                                    if (value == 0) {
+                                        run++;
+                                        continue;
+                                    }
+                                    while (run > 15) {
+                                        ac[t].write(bits, 0xF0);
+                                        run -= 16;
+                                    }
+                                    size = bitLength(value);
+                                    ac[t].write(bits, (run << 4) | size);
+                                    bits.write(value < 0 ? value - 1 : value, size);
+                                    run = 0;
+                                }
+                                if (run > 0) {
+                                    ac[t].write(bits, 0x00);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Natural-order coefficients of output block (bx, by) of component c
+         */
+        private int[] load(int c, int bx, int by) {
+            int nx = this.blocksX[c];
+            int ny = this.blocksY[c];
+            int sx;
+            int sy;
+            switch (this.rotation) {
+                case 90:
+                    sx = by;
+                    sy = ny - 1 - bx;
+                    break;
+                case 180:
+                    sx = nx - 1 - bx;
+                    sy = ny - 1 - by;
+                    break;
+                case 270:
+                    sx = nx - 1 - by;
+                    sy = bx;
+                    break;
+                default:
+                    sx = bx;
+                    sy = by;
+            }
+            int[] out = this.coefficients;
+            if (sx < 0 || sy < 0 || sx >= nx || sy >= ny) {
+                //Padding block of a partial MCU
+                for (int i = 0; i < 64; i++) {
+                    out[i] = 0;
+                }
+                return out;
+            }
+            short[] src = this.blocks[c];
+            int base = (sy * nx + sx) * 64;
+            for (int i = 0; i < 8; i++) {
+                for (int j = 0; j < 8; j++) {
+                    int value = src[base + i * 8 + j];
+                    switch (this.rotation) {
+                        case 90:
+                            //Transpose, then negate odd vertical frequencies
+                            out[j * 8 + i] = (i & 1) != 0 ? -value : value;
+                            break;
+                        case 180:
+                            out[i * 8 + j] = ((i + j) & 1) != 0 ? -value : value;
+                            break;
+                        case 270:
+                            out[j * 8 + i] = (j & 1) != 0 ? -value : value;
+                            break;
+                        default:
+                            out[i * 8 + j] = value;
+                    }
+                }
+            }
+            return out;
+        }
+
+        private static int bitLength(int value) {
+            if (value < 0) {
+                value = -value;
+            }
+            return 32 - Integer.numberOfLeadingZeros(value);
+        }
+    }
+
+    private static final class HuffmanEncoder {
+        private final int[] counts = new int[17];
+        private int[] symbols;
+        private final int[] codes = new int[256];
+        private final int[] lengths = new int[256];
+
+        /**
+         * Length-limited optimal table, as in JPEG Annex K.2 / libjpeg's jpeg_gen_optimal_table
+         *
+         * @param frequencies Symbol counts, index 256 is reserved
+         */
+        static HuffmanEncoder optimal(long[] frequencies) {
+            long[] freq = frequencies.clone();
+            //Reserved symbol, guarantees no code is all ones
+            freq[256] = 1;
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            for (int i = 0; i < 257; i++) {
+                others[i] = -1;
+            }
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v) {
+                        v = freq[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                        v = freq[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                freq[c1] += freq[c2];
+                freq[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+            int[] bits = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    bits[codeSize[i]]++;
+                }
+            }
+            //Limit code lengths to 16 bits
+            for (int i = 32; i > 16; i--) {
+                while (bits[i] > 0) {
+                    int j = i - 2;
+                    while (bits[j] == 0) {
+                        j--;
+                    }
+                    bits[i] -= 2;
+                    bits[i - 1]++;
+                    bits[j + 1] += 2;
+                    bits[j]--;
+                }
+            }
+            int longest = 16;
+            while (bits[longest] == 0) {
+                longest--;
+            }
+            //Drop the reserved symbol's code
+            bits[longest]--;
+
+            HuffmanEncoder encoder = new HuffmanEncoder();
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                encoder.counts[i] = bits[i];
+                total += bits[i];
+            }
+            encoder.symbols = new int[total];
+            int k = 0;
+            for (int length = 1; length <= 32 && k < total; length++) {
+                for (int s = 0; s < 256 && k < total; s++) {
+                    if (codeSize[s] == length) {
+                        encoder.symbols[k++] = s;
+                    }
+                }
+            }
+            //Canonical codes
+            int code = 0;
+            k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < encoder.counts[length]; i++) {
+                    int symbol = encoder.symbols[k++];
+                    encoder.codes[symbol] = code++;
+                    encoder.lengths[symbol] = length;
+                }
+                code <<= 1;
+            }
+            return encoder;
+        }
+
+        void write(BitWriter bits, int symbol) throws IOException {
+            bits.write(this.codes[symbol], this.lengths[symbol]);
+        }
+
+        void writeTable(OutputStream out, int tableClassAndId) throws IOException {
+            out.write(tableClassAndId);
+            for (int i = 1; i <= 16; i++) {
+                out.write(this.counts[i]);
+            }
+            for (int symbol : this.symbols) {
+                out.write(symbol);
+            }
+        }
+    }
+
+    private static final class BitWriter {
+        private final OutputStream out;
+        private int buffer;
+        private int count;
+
+        BitWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(int value, int length) throws IOException {
+            this.buffer = (this.buffer << length) | (value & ((1 << length) - 1));
+            this.count += length;
+            while (this.count >= 8) {
+                int b = (this.buffer >>> (this.count - 8)) & 0xFF;
+                this.out.write(b);
+                if (b == 0xFF) {
+                    this.out.write(0);
+                }
+                this.count -= 8;
+            }
+        }
+
+        /**
+         * Pad the last byte with one bits
+         */
+        void flush() throws IOException {
+            if (this.count > 0) {
+                this.write(0x7F, 8 - this.count);
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Burst capture results, delivered on the main thread in capture order
+ */
+public interface OnBurstCaptureCallback {
+
+    public void onBurstFrame(int index, boolean success, String filePath);
+
+    public void onBurstComplete(int frames, float framesPerSecond);
+}
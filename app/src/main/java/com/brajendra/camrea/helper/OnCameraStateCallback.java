@@ -0,0 +1,24 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Camera lifecycle, delivered on the main thread
+ */
+public interface OnCameraStateCallback {
+
+    public void onCameraStateChanged(CropCameraHelper.CameraState state);
+
+    /**
+     * The camera was opened and configured
+     *
+     * @param millis How long opening and configuring took
+     * @param warm   The sizes came from the capability cache instead of being negotiated
+     */
+    public void onCameraOpened(long millis, boolean warm);
+
+    /**
+     * The first preview frame arrived
+     *
+     * @param millis Time since the camera was asked to open
+     */
+    public void onFirstPreviewFrame(long millis);
+}
@@ -0,0 +1,15 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * Capture callback that is also told when each pipeline stage finishes.
+ * {@link #onStageComplete} and {@link #onCaptureReport} run on the pipeline thread, {@link #onCapture} on the main thread.
+ */
+public interface OnCaptureStageCallback extends OnCaptureCallback {
+
+    public void onStageComplete(CaptureStage stage, long elapsedNanos);
+
+    /**
+     * Called once the file is in place, or once the quality gate dropped the capture, before {@link #onCapture}
+     */
+    public void onCaptureReport(CaptureReport report);
+}
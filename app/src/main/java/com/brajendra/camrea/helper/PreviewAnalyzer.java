@@ -0,0 +1,221 @@
+package com.brajendra.camrea.helper;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.brajendra.camrea.kernel.DocumentDetector;
+import com.brajendra.camrea.kernel.SharpnessMeter;
+
+/**
+ * Analyses live preview frames for auto-crop ({@link CropCameraHelper#setAutoCrop}) and
+ * auto-capture ({@link CropCameraHelper#setAutoCapture}).
+ * <p>
+ * Frames come in through setPreviewCallbackWithBuffer on the camera thread and are analysed on a
+ * private "PreviewAnalyzer" thread: a {@link DocumentDetector} looks for the page and a
+ * {@link SharpnessMeter} scores focus and shake. Two buffers circulate: one being filled by the
+ * camera, one being analysed. A frame that arrives while the previous one is still being analysed
+ * goes straight back to the camera, so a slow device analyses fewer frames instead of falling
+ * behind the preview.
+ */
+class PreviewAnalyzer implements Camera.PreviewCallback {
+    private static final String TAG = "PreviewAnalyzer";
+
+    private static final int POOL_SIZE = 2;
+
+    //Per-frame document detection budget, half a frame at 30 fps
+    private static final long BUDGET_NANOS = 16000000L;
+
+    private final CropCameraHelper helper;
+    private final DocumentDetector detector = new DocumentDetector(DocumentDetector.DEFAULT_ANALYSIS_WIDTH, BUDGET_NANOS);
+    private final SharpnessMeter meter = new SharpnessMeter(SharpnessMeter.DEFAULT_GRID_WIDTH);
+    private final byte[][] buffers = new byte[POOL_SIZE][];
+    private Handler handler;
+
+    //What the frames are analysed for
+    private volatile boolean detect;
+    private volatile boolean measure;
+
+    //Camera the buffers are queued in, null while detached
+    private Camera camera;
+    private int frameWidth;
+    private int frameHeight;
+    //Buffer being analysed and its size, null when idle
+    private byte[] inFlight;
+    private int inFlightWidth;
+    private int inFlightHeight;
+    //Re-attached since the last frame was analysed, motion has nothing to compare with
+    private boolean restarted;
+
+    //Frame counts and analysis time, read by getStats
+    private long frames;
+    private long droppedFrames;
+    private long lastNanos;
+    private long maxNanos;
+    private long totalNanos;
+
+    //Only one frame is analysed at a time, so a single task is reused for all of them
+    private final Runnable analyseTask = new Runnable() {
+        @Override
+        public void run() {
+            byte[] data;
+            int width;
+            int height;
+            synchronized (PreviewAnalyzer.this) {
+                data = inFlight;
+                width = inFlightWidth;
+                height = inFlightHeight;
+                if (restarted) {
+                    restarted = false;
+                    meter.reset();
+                }
+            }
+            if (data != null) {
+                analyse(data, width, height);
+            }
+        }
+    };
+
+    PreviewAnalyzer(CropCameraHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Choose what frames are analysed for
+     *
+     * @param detect  Look for the document
+     * @param measure Score sharpness and motion
+     */
+    void setTasks(boolean detect, boolean measure) {
+        this.detect = detect;
+        this.measure = measure;
+    }
+
+    boolean hasTasks() {
+        return this.detect || this.measure;
+    }
+
+    /**
+     * Start receiving preview frames, camera thread
+     * Safe to call again after another preview callback replaced this one
+     *
+     * @param camera
+     * @param width  Preview width
+     * @param height Preview height
+     */
+    synchronized void attach(Camera camera, int width, int height) {
+        if (this.handler == null) {
+            HandlerThread thread = new HandlerThread("PreviewAnalyzer");
+            thread.start();
+            this.handler = new Handler(thread.getLooper());
+        }
+        int size = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        this.camera = camera;
+        this.frameWidth = width;
+        this.frameHeight = height;
+        this.restarted = true;
+        //Start from an empty queue so no buffer is queued twice
+        camera.setPreviewCallbackWithBuffer(null);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (this.buffers[i] == null || this.buffers[i].length != size) {
+                this.buffers[i] = new byte[size];
+            }
+            if (this.buffers[i] != this.inFlight) {
+                camera.addCallbackBuffer(this.buffers[i]);
+            }
+        }
+        camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    /**
+     * Stop receiving preview frames, camera thread
+     * The camera drops the queued buffers when its callback is cleared
+     */
+    synchronized void detach() {
+        if (this.camera != null) {
+            this.camera.setPreviewCallbackWithBuffer(null);
+            this.camera = null;
+        }
+    }
+
+    synchronized boolean isAttached() {
+        return this.camera != null;
+    }
+
+    /**
+     * @return {frames analysed, frames dropped, last analysis nanoseconds, slowest, total}
+     */
+    synchronized long[] getStats() {
+        return new long[]{this.frames, this.droppedFrames, this.lastNanos, this.maxNanos, this.totalNanos};
+    }
+
+    private boolean isPooled(byte[] buffer) {
+        for (byte[] pooled : this.buffers) {
+            if (pooled == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        synchronized (this) {
+            if (this.camera != camera) {
+                return;
+            }
+            if (this.inFlight != null) {
+                //Still busy with the previous frame
+                this.droppedFrames++;
+                camera.addCallbackBuffer(data);
+                return;
+            }
+            this.inFlight = data;
+            this.inFlightWidth = this.frameWidth;
+            this.inFlightHeight = this.frameHeight;
+        }
+        this.handler.post(this.analyseTask);
+    }
+
+    /**
+     * PreviewAnalyzer thread
+     */
+    private void analyse(byte[] data, int width, int height) {
+        long start = System.nanoTime();
+        boolean detect = this.detect;
+        boolean measure = this.measure;
+        float[] quad = null;
+        try {
+            if (detect) {
+                quad = this.detector.detect(data, width, height, width);
+            }
+            if (measure) {
+                this.meter.measure(data, width, height, width);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Preview analysis failed", e);
+            detect = false;
+            measure = false;
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            this.inFlight = null;
+            //Only hand the buffer back if it is still in the pool and a camera is still feeding us
+            if (this.camera != null && isPooled(data)) {
+                this.camera.addCallbackBuffer(data);
+            }
+            this.frames++;
+            this.lastNanos = nanos;
+            this.totalNanos += nanos;
+            this.maxNanos = Math.max(this.maxNanos, nanos);
+        }
+        if (detect) {
+            this.helper.onDocumentDetected(quad, this.detector.getLastNanos());
+        }
+        if (measure) {
+            this.helper.onFrameQuality(this.meter.getSharpness(), this.meter.getMotion(), this.meter.getLastNanos());
+        }
+    }
+}
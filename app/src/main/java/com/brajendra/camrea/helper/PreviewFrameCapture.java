@@ -0,0 +1,121 @@
+package com.brajendra.camrea.helper;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * Fast capture from the live preview, used by {@link CropCameraHelper#fastCapture}.
+ * <p>
+ * Frames are received through setPreviewCallbackWithBuffer into a small pool of NV21 buffers
+ * sized for the preview resolution. The buffers are allocated once and handed back to the pool
+ * after the {@link CapturePipeline} has cropped them, so steady-state captures allocate no pixel memory.
+ */
+class PreviewFrameCapture implements Camera.PreviewCallback, CaptureJob.BufferRecycler {
+
+    //One frame being filled by the camera, one being cropped, one spare
+    private static final int POOL_SIZE = 3;
+
+    private final CropCameraHelper helper;
+
+    private final byte[][] buffers = new byte[POOL_SIZE][];
+    //Buffers currently held by the pipeline
+    private final boolean[] busy = new boolean[POOL_SIZE];
+    private int frameWidth;
+    private int frameHeight;
+
+    private Camera camera;
+    private OnCaptureCallback pending;
+
+    PreviewFrameCapture(CropCameraHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Grab the next preview frame
+     *
+     * @param camera
+     * @param width    Preview width
+     * @param height   Preview height
+     * @param callback
+     * @return false if a fast capture is already waiting for a frame or every buffer is still being cropped
+     */
+    synchronized boolean capture(Camera camera, int width, int height, OnCaptureCallback callback) {
+        if (this.pending != null) {
+            return false;
+        }
+        int size = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        this.frameWidth = width;
+        this.frameHeight = height;
+        int queued = 0;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (this.busy[i]) {
+                continue;
+            }
+            //Buffers are only reallocated when the preview resolution changes
+            if (this.buffers[i] == null || this.buffers[i].length != size) {
+                this.buffers[i] = new byte[size];
+            }
+            camera.addCallbackBuffer(this.buffers[i]);
+            queued++;
+        }
+        if (queued == 0) {
+            return false;
+        }
+        this.camera = camera;
+        this.pending = callback;
+        camera.setPreviewCallbackWithBuffer(this);
+        return true;
+    }
+
+    /**
+     * Stop waiting for a frame, e.g. because the camera is being released
+     */
+    synchronized void cancel() {
+        if (this.camera != null) {
+            this.camera.setPreviewCallbackWithBuffer(null);
+            this.camera = null;
+        }
+        this.pending = null;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        OnCaptureCallback callback;
+        int width;
+        int height;
+        synchronized (this) {
+            callback = this.pending;
+            if (callback == null) {
+                camera.addCallbackBuffer(data);
+                return;
+            }
+            this.pending = null;
+            //Drops the buffers still queued in the camera, they all belong to the pool
+            camera.setPreviewCallbackWithBuffer(null);
+            this.camera = null;
+            this.markBusy(data, true);
+            width = this.frameWidth;
+            height = this.frameHeight;
+        }
+        this.helper.onPreviewCallbackReleased();
+        CaptureJob job = this.helper.newPreviewFrameJob(data, width, height, this, callback);
+        if (!this.helper.getPipeline().submit(job)) {
+            this.recycle(data);
+            callback.onCapture(false, null);
+        }
+    }
+
+    @Override
+    public synchronized void recycle(byte[] buffer) {
+        this.markBusy(buffer, false);
+    }
+
+    private void markBusy(byte[] buffer, boolean value) {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (this.buffers[i] == buffer) {
+                this.busy[i] = value;
+                return;
+            }
+        }
+    }
+}
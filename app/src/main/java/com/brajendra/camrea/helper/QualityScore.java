@@ -0,0 +1,62 @@
+package com.brajendra.camrea.helper;
+
+/**
+ * How a capture scored before it was saved, see {@link CropCameraHelper#setQualityGate}
+ */
+public class QualityScore {
+    double sharpness;
+    double shadowClipping;
+    double highlightClipping;
+    double glare;
+    long analysisNanos;
+    boolean acceptable;
+
+    /**
+     * Laplacian variance of a downsampled copy, higher is sharper
+     */
+    public double getSharpness() {
+        return this.sharpness;
+    }
+
+    /**
+     * Share of pixels crushed to black, 0 to 1
+     */
+    public double getShadowClipping() {
+        return this.shadowClipping;
+    }
+
+    /**
+     * Share of pixels blown out to white, 0 to 1
+     */
+    public double getHighlightClipping() {
+        return this.highlightClipping;
+    }
+
+    /**
+     * How much more blown out the worst part of the picture is than the picture on average, 0 to 1
+     */
+    public double getGlare() {
+        return this.glare;
+    }
+
+    /**
+     * Time spent scoring
+     */
+    public long getAnalysisNanos() {
+        return this.analysisNanos;
+    }
+
+    /**
+     * The capture met every threshold
+     */
+    public boolean isAcceptable() {
+        return this.acceptable;
+    }
+
+    @Override
+    public String toString() {
+        return "QualityScore{sharpness=" + (int) this.sharpness + ", shadowClipping=" + this.shadowClipping
+                + ", highlightClipping=" + this.highlightClipping + ", glare=" + this.glare
+                + ", acceptable=" + this.acceptable + "}";
+    }
+}
@@ -0,0 +1,170 @@
+package com.brajendra.camrea.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.LruCache;
+
+/**
+ * Bitmaps for reviewing saved captures, at the size they are shown rather than the size they were saved.
+ * <p>
+ * A capture is decoded with inSampleSize picked from its bounds, so a 12 MP crop shown on a 1080p
+ * screen decodes a quarter or less of its pixels. With {@link CropCameraHelper#setReviewImageSize}
+ * the pipeline also hands over the crop it just encoded, scaled down to the review size, and the
+ * first review of a capture does not touch the file at all.
+ * <p>
+ * Bitmaps are kept in an LRU cache keyed by {@link CaptureStore} id and bounded in bytes. They may
+ * be on screen, so evicted bitmaps are left to the garbage collector instead of being recycled or
+ * pooled; callers must not put them into the {@link BitmapPool} either.
+ */
+public class ReviewImageLoader {
+
+    //Default cache budget
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    //Size decoded to when no review size was set
+    public static final int DEFAULT_TARGET_SIZE = 1280;
+
+    private final BitmapPool bitmapPool;
+    private final LruCache<Long, Bitmap> cache;
+    private volatile int targetWidth = DEFAULT_TARGET_SIZE;
+    private volatile int targetHeight = DEFAULT_TARGET_SIZE;
+
+    //Scales the pipeline's crop, only touched on the pipeline thread
+    private final Canvas canvas = new Canvas();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect rect = new Rect();
+
+    //Read by getStats
+    private long decodes;
+    private long offers;
+    private long lastDecodeNanos;
+
+    public ReviewImageLoader(BitmapPool bitmapPool, int maxBytes) {
+        this.bitmapPool = bitmapPool;
+        this.cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                        ? value.getAllocationByteCount() : value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Size review images are shown at, e.g. the screen size; larger images are decoded down towards it
+     *
+     * @param width
+     * @param height
+     */
+    public void setTargetSize(int width, int height) {
+        this.targetWidth = Math.max(1, width);
+        this.targetHeight = Math.max(1, height);
+    }
+
+    /**
+     * The review bitmap of a capture, from the cache or decoded from its file
+     * Decoding runs on the calling thread
+     *
+     * @param id   {@link CaptureReport#getCaptureId()}, or {@link CaptureStore#idOf} of the path; negative to skip the cache
+     * @param path Saved file
+     * @return the bitmap, or null if the file cannot be decoded
+     */
+    public Bitmap load(long id, String path) {
+        if (id >= 0) {
+            Bitmap cached = this.cache.get(id);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long start = System.nanoTime();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = sampleSizeFor(bounds.outWidth, bounds.outHeight, this.targetWidth, this.targetHeight);
+        Bitmap bitmap = this.bitmapPool.decodeFile(path, sampleSize);
+        synchronized (this) {
+            this.decodes++;
+            this.lastDecodeNanos = System.nanoTime() - start;
+        }
+        if (bitmap != null && id >= 0) {
+            this.cache.put(id, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Largest power-of-two subsampling that still fills a width x height view
+     *
+     * @param imageWidth
+     * @param imageHeight
+     * @param width       View width
+     * @param height      View height
+     * @return inSampleSize
+     */
+    public static int sampleSizeFor(int imageWidth, int imageHeight, int width, int height) {
+        //The image is fitted inside the view, so its longer side relative to the view decides
+        double ratio = Math.max((double) imageWidth / width, (double) imageHeight / height);
+        int sampleSize = 1;
+        while (sampleSize * 2 <= ratio) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Cache a review copy of a crop the pipeline just encoded, pipeline thread
+     * The crop itself stays with the pipeline
+     *
+     * @param id   Capture id
+     * @param crop
+     */
+    void offer(long id, Bitmap crop) {
+        int width = crop.getWidth();
+        int height = crop.getHeight();
+        double scale = Math.min(1, Math.min((double) this.targetWidth / width, (double) this.targetHeight / height));
+        int outWidth = Math.max(1, (int) Math.round(width * scale));
+        int outHeight = Math.max(1, (int) Math.round(height * scale));
+        Bitmap copy = this.bitmapPool.get(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        if (copy == null) {
+            copy = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        }
+        this.rect.set(0, 0, outWidth, outHeight);
+        this.canvas.setBitmap(copy);
+        this.canvas.drawBitmap(crop, null, this.rect, this.paint);
+        this.canvas.setBitmap(null);
+        this.cache.put(id, copy);
+        synchronized (this) {
+            this.offers++;
+        }
+    }
+
+    /**
+     * Forget a capture, e.g. when it is deleted
+     *
+     * @param id
+     */
+    public void evict(long id) {
+        this.cache.remove(id);
+    }
+
+    public void clear() {
+        this.cache.evictAll();
+    }
+
+    /**
+     * @return {cache hits, cache misses, crops taken from the pipeline, file decodes,
+     * last decode nanoseconds, cached bytes}
+     */
+    public long[] getStats() {
+        synchronized (this) {
+            return new long[]{this.cache.hitCount(), this.cache.missCount(), this.offers, this.decodes,
+                    this.lastDecodeNanos, this.cache.size()};
+        }
+    }
+}
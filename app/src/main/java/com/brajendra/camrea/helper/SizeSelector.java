@@ -0,0 +1,203 @@
+package com.brajendra.camrea.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks preview and picture sizes out of the ones a camera supports.
+ * <p>
+ * The sizes are indexed once: grouped by aspect ratio, each group sorted by area. A query looks
+ * at one candidate per group, the smallest size covering the requested minimum (found by binary
+ * search on area), or the group's largest size when none does. Candidates are scored by ratio
+ * error, by how far they fall short of or overshoot the minimum, and by the cost of decoding that
+ * many pixels; the lowest score wins. Sizes are {width, height} in sensor orientation.
+ */
+final class SizeSelector {
+
+    //Ratios this close share a group
+    private static final double RATIO_TOLERANCE = 0.02;
+
+    //Score per unit of relative ratio error, a 4:3 size for a 16:9 target costs about 5
+    private static final double RATIO_WEIGHT = 20;
+    //Score per halving of the pixels missing from the minimum
+    private static final double SHORTFALL_WEIGHT = 4;
+    //Score per doubling of the pixels beyond the minimum
+    private static final double EXCESS_WEIGHT = 1;
+    //Score per megapixel decoded
+    private static final double COST_WEIGHT = 0.05;
+
+    private final int[][][] groups;
+
+    /**
+     * @param sizes {width, height} pairs
+     */
+    SizeSelector(List<int[]> sizes) {
+        int[][] sorted = sizes.toArray(new int[sizes.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                int byRatio = Double.compare(ratio(a), ratio(b));
+                return byRatio != 0 ? byRatio : compareArea(a, b);
+            }
+        });
+        List<int[][]> groups = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if (i == sorted.length || ratio(sorted[i]) - ratio(sorted[start]) > RATIO_TOLERANCE) {
+                int[][] group = Arrays.copyOfRange(sorted, start, i);
+                //Within a group the ratio barely moves, order by area for the search
+                Arrays.sort(group, new Comparator<int[]>() {
+                    @Override
+                    public int compare(int[] a, int[] b) {
+                        return compareArea(a, b);
+                    }
+                });
+                groups.add(group);
+                start = i;
+            }
+        }
+        this.groups = groups.toArray(new int[groups.size()][][]);
+    }
+
+    boolean isEmpty() {
+        return this.groups.length == 0;
+    }
+
+    /**
+     * Best size for an aspect ratio and a minimum size
+     *
+     * @param ratio     Wanted width / height
+     * @param minWidth  Smallest useful width
+     * @param minHeight Smallest useful height
+     * @return {width, height}, or null if there are no sizes
+     */
+    int[] select(double ratio, int minWidth, int minHeight) {
+        minWidth = Math.max(1, minWidth);
+        minHeight = Math.max(1, minHeight);
+        int[] best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int[][] group : this.groups) {
+            int index = firstCovering(group, minWidth, minHeight);
+            int[] candidate = index < 0 ? group[group.length - 1] : group[index];
+            double score = score(candidate, ratio, minWidth, minHeight);
+            if (score < bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best == null ? null : best.clone();
+    }
+
+    /**
+     * Preview size for a view, in sensor orientation
+     *
+     * @param viewWidth   View size as displayed
+     * @param viewHeight
+     * @param orientation Clockwise rotation from the sensor to the display
+     */
+    int[] selectPreview(int viewWidth, int viewHeight, int orientation) {
+        boolean swap = orientation == 90 || orientation == 270;
+        int width = swap ? viewHeight : viewWidth;
+        int height = swap ? viewWidth : viewHeight;
+        return this.select((double) width / height, width, height);
+    }
+
+    /**
+     * Smallest picture size, with the preview's field of view, on which the mask crop still comes
+     * out at the requested crop size. Without a mask the picture has to cover the screen
+     *
+     * @param request     Open request with the view, mask and crop sizes
+     * @param preview     Chosen preview size, in sensor orientation
+     * @param orientation Clockwise rotation from the sensor to the display
+     */
+    int[] selectPicture(CameraBackend.OpenRequest request, int[] preview, int orientation) {
+        int width;
+        int height;
+        if (request.maskWidth > 0 && request.maskHeight > 0 && request.cropWidth > 0 && request.cropHeight > 0) {
+            //The mask covers maskWidth / viewWidth of the displayed picture
+            width = (int) Math.ceil((double) request.cropWidth * request.viewWidth / request.maskWidth);
+            height = (int) Math.ceil((double) request.cropHeight * request.viewHeight / request.maskHeight);
+        } else {
+            width = request.screenWidth;
+            height = request.screenHeight;
+        }
+        boolean swap = orientation == 90 || orientation == 270;
+        double ratio = preview == null ? (double) Math.max(width, height) / Math.min(width, height)
+                : (double) preview[0] / preview[1];
+        return this.select(ratio, swap ? height : width, swap ? width : height);
+    }
+
+    /**
+     * An output size turned to the orientation of the mask as the view shows it
+     *
+     * @param width    Output width, either orientation
+     * @param height   Output height
+     * @param maskSize CameraSurfaceView.getMaskSize(), or null without a mask
+     * @return {width, height}, or null if no output size is set
+     */
+    static int[] orientLike(int width, int height, int[] maskSize) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        if (maskSize != null && ((maskSize[1] > maskSize[0] && width > height)
+                || (maskSize[1] < maskSize[0] && width < height))) {
+            return new int[]{height, width};
+        }
+        return new int[]{width, height};
+    }
+
+    /**
+     * Index of the smallest size at least minWidth x minHeight, -1 if there is none
+     */
+    private static int firstCovering(int[][] group, int minWidth, int minHeight) {
+        long minArea = (long) minWidth * minHeight;
+        int low = 0;
+        int high = group.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (area(group[mid]) < minArea) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        //Sizes in a group share a ratio, so the first one with enough area almost always fits
+        for (int i = low; i < group.length; i++) {
+            if (group[i][0] >= minWidth && group[i][1] >= minHeight) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static double score(int[] size, double ratio, int minWidth, int minHeight) {
+        double score = RATIO_WEIGHT * Math.abs(ratio(size) - ratio) / ratio;
+        double coverage = Math.min((double) size[0] / minWidth, (double) size[1] / minHeight);
+        if (coverage < 1) {
+            //Linear shortfall, squared for area
+            score += SHORTFALL_WEIGHT * -2 * log2(coverage);
+        } else {
+            score += EXCESS_WEIGHT * log2((double) area(size) / ((long) minWidth * minHeight));
+        }
+        return score + COST_WEIGHT * area(size) / 1e6;
+    }
+
+    private static double ratio(int[] size) {
+        return (double) size[0] / size[1];
+    }
+
+    private static long area(int[] size) {
+        return (long) size[0] * size[1];
+    }
+
+    private static int compareArea(int[] a, int[] b) {
+        long diff = area(a) - area(b);
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+}
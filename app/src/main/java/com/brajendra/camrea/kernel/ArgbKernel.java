@@ -0,0 +1,73 @@
+package com.brajendra.camrea.kernel;
+
+/**
+ * Crop, rotate and mirror packed ARGB pixels (as returned by Bitmap.getPixels)
+ * <p>
+ * Same walk as {@link Nv21Kernel}: contiguous rows are copied with System.arraycopy and
+ * rotated copies go through 32x32 tiles.
+ */
+public final class ArgbKernel {
+
+    private ArgbKernel() {
+    }
+
+    /**
+     * @param src       Source pixels, srcWidth per row
+     * @param srcWidth
+     * @param srcHeight
+     * @param left      Crop left
+     * @param top       Crop top
+     * @param width     Crop width
+     * @param height    Crop height
+     * @param rotation  0, 90, 180 or 270
+     * @param mirror    Flip the rotated output horizontally
+     * @param dst       Output, at least width * height; it is height x width for 90 and 270
+     * @param stripes   Executor for multi-core processing, or null to run on the calling thread
+     */
+    public static void cropRotate(final int[] src, int srcWidth, int srcHeight, int left, int top, int width, int height,
+                                  int rotation, boolean mirror, final int[] dst, StripeExecutor stripes) {
+        if (left < 0 || top < 0 || left + width > srcWidth || top + height > srcHeight) {
+            throw new IllegalArgumentException("Crop outside of the image");
+        }
+        final SourceWalk walk = new SourceWalk(0, srcWidth, 1, left, top, width, height, rotation, mirror);
+        StripeExecutor.StripeTask task = new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                transformRows(src, walk, dst, rowStart, rowEnd);
+            }
+        };
+        if (stripes == null) {
+            task.run(0, walk.outHeight);
+        } else {
+            stripes.run(walk.outHeight, walk.outWidth, 1, task);
+        }
+    }
+
+    static void transformRows(int[] src, SourceWalk walk, int[] dst, int rowStart, int rowEnd) {
+        int outWidth = walk.outWidth;
+        int origin = walk.origin;
+        int dx = walk.dx;
+        int dy = walk.dy;
+        if (dx == 1) {
+            for (int y = rowStart; y < rowEnd; y++) {
+                System.arraycopy(src, origin + y * dy, dst, y * outWidth, outWidth);
+            }
+            return;
+        }
+        int tile = Nv21Kernel.TILE;
+        for (int ty = rowStart; ty < rowEnd; ty += tile) {
+            int yEnd = Math.min(ty + tile, rowEnd);
+            for (int tx = 0; tx < outWidth; tx += tile) {
+                int xEnd = Math.min(tx + tile, outWidth);
+                for (int y = ty; y < yEnd; y++) {
+                    int s = origin + y * dy + tx * dx;
+                    int d = y * outWidth + tx;
+                    for (int x = tx; x < xEnd; x++) {
+                        dst[d++] = src[s];
+                        s += dx;
+                    }
+                }
+            }
+        }
+    }
+}
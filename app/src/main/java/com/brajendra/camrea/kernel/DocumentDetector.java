@@ -0,0 +1,459 @@
+package com.brajendra.camrea.kernel;
+
+import java.util.Arrays;
+
+/**
+ * Finds the outline of a document in a luma plane.
+ * <p>
+ * The frame is box-filtered down to a small analysis size, edges are found with a Sobel
+ * gradient, and each edge pixel votes in a Hough accumulator only for the line directions
+ * close to its gradient. The strongest near-horizontal and near-vertical lines are paired up and
+ * the pair of pairs that encloses the best supported convex quadrilateral wins.
+ * <p>
+ * No Android dependencies, so it can be benchmarked on a desktop JVM. Buffers are reused
+ * between frames; one instance per thread.
+ */
+public final class DocumentDetector {
+
+    //Width frames are scaled down to before analysis
+    public static final int DEFAULT_ANALYSIS_WIDTH = 160;
+
+    //Line normals are quantized to whole degrees
+    private static final int THETA_BINS = 180;
+    //Edge pixels vote for directions within this many degrees of their gradient
+    private static final int VOTE_SPREAD = 5;
+    //Sobel magnitude (|gx| + |gy|) an edge needs at least, and as a multiple of the frame's mean
+    private static final int MIN_EDGE = 48;
+    private static final int EDGE_OVER_MEAN = 3;
+    //Strongest lines kept per family
+    private static final int LINES_PER_FAMILY = 6;
+    //Opposite sides may differ in direction by this many degrees, for perspective
+    private static final int MAX_SIDE_ANGLE = 25;
+    //Smallest document, as a fraction of the frame side and area
+    private static final float MIN_SIDE = 0.2f;
+    private static final float MIN_AREA = 0.1f;
+    //How far outside the frame a corner may fall, as a fraction of the frame side
+    private static final float CORNER_MARGIN = 0.05f;
+
+    private static final float[] COS = new float[THETA_BINS];
+    private static final float[] SIN = new float[THETA_BINS];
+
+    static {
+        for (int t = 0; t < THETA_BINS; t++) {
+            COS[t] = (float) Math.cos(Math.toRadians(t));
+            SIN[t] = (float) Math.sin(Math.toRadians(t));
+        }
+    }
+
+    private final int analysisWidth;
+    private final long budgetNanos;
+
+    //Reused between frames
+    private int[] small = new int[0];
+    private int[] edgeX = new int[0];
+    private int[] edgeY = new int[0];
+    private int[] edgeTheta = new int[0];
+    private int[] accumulator = new int[0];
+    private final int[][] peaks = new int[LINES_PER_FAMILY * 4][3];
+    private final double[][] horizontal = new double[LINES_PER_FAMILY][3];
+    private final double[][] vertical = new double[LINES_PER_FAMILY][3];
+    private final double[] candidate = new double[8];
+    private final double[] corners = new double[8];
+
+    private long lastNanos;
+    private int frameCount;
+    private int timeoutCount;
+
+    /**
+     * @param analysisWidth Width frames are scaled down to, e.g. {@link #DEFAULT_ANALYSIS_WIDTH}
+     * @param budgetNanos   Give up on a frame once it has taken this long, 0 for no limit
+     */
+    public DocumentDetector(int analysisWidth, long budgetNanos) {
+        this.analysisWidth = analysisWidth;
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * @param luma      Luma plane, e.g. the start of an NV21 frame
+     * @param width     Frame width
+     * @param height    Frame height
+     * @param rowStride Bytes between rows
+     * @return corners {x0, y0, x1, y1, x2, y2, x3, y3} as fractions of the frame size, clockwise from
+     * top-left; null if there is no document or the time budget ran out
+     */
+    public float[] detect(byte[] luma, int width, int height, int rowStride) {
+        long start = System.nanoTime();
+        this.frameCount++;
+        try {
+            int factor = Math.max(1, (width + this.analysisWidth - 1) / this.analysisWidth);
+            int sw = width / factor;
+            int sh = height / factor;
+            if (sw < 8 || sh < 8) {
+                return null;
+            }
+            this.downscale(luma, rowStride, factor, sw, sh);
+            int edges = this.findEdges(sw, sh);
+            if (this.overBudget(start)) {
+                return null;
+            }
+            int diagonal = (int) Math.ceil(Math.sqrt((double) sw * sw + (double) sh * sh));
+            this.vote(edges, diagonal);
+            if (this.overBudget(start)) {
+                return null;
+            }
+            int peakCount = this.findPeaks(diagonal, Math.min(sw, sh) / 4);
+            if (!this.bestQuad(peakCount, sw, sh)) {
+                return null;
+            }
+            float[] quad = new float[8];
+            for (int i = 0; i < 8; i += 2) {
+                quad[i] = clamp((float) ((this.corners[i] + 0.5) * factor / width));
+                quad[i + 1] = clamp((float) ((this.corners[i + 1] + 0.5) * factor / height));
+            }
+            return quad;
+        } finally {
+            this.lastNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Time the last {@link #detect} took
+     */
+    public long getLastNanos() {
+        return this.lastNanos;
+    }
+
+    public int getFrameCount() {
+        return this.frameCount;
+    }
+
+    /**
+     * Frames given up on because they ran over the budget
+     */
+    public int getTimeoutCount() {
+        return this.timeoutCount;
+    }
+
+    private boolean overBudget(long start) {
+        if (this.budgetNanos > 0 && System.nanoTime() - start > this.budgetNanos) {
+            this.timeoutCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Average factor x factor blocks into {@link #small}
+     */
+    private void downscale(byte[] luma, int rowStride, int factor, int sw, int sh) {
+        if (this.small.length < sw * sh) {
+            this.small = new int[sw * sh];
+        }
+        int[] small = this.small;
+        int area = factor * factor;
+        for (int y = 0; y < sh; y++) {
+            int row = y * sw;
+            Arrays.fill(small, row, row + sw, 0);
+            for (int dy = 0; dy < factor; dy++) {
+                int s = (y * factor + dy) * rowStride;
+                for (int x = 0; x < sw; x++) {
+                    int sum = 0;
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += luma[s++] & 0xff;
+                    }
+                    small[row + x] += sum;
+                }
+            }
+            for (int x = 0; x < sw; x++) {
+                small[row + x] /= area;
+            }
+        }
+    }
+
+    /**
+     * Sobel over the scaled frame, keeping pixels well above the mean gradient
+     *
+     * @return number of edge pixels
+     */
+    private int findEdges(int sw, int sh) {
+        int capacity = sw * sh;
+        if (this.edgeX.length < capacity) {
+            this.edgeX = new int[capacity];
+            this.edgeY = new int[capacity];
+            this.edgeTheta = new int[capacity];
+        }
+        int[] p = this.small;
+        //First pass for the mean, second for the edges; the frame is small enough to run twice
+        long total = 0;
+        for (int y = 1; y < sh - 1; y++) {
+            for (int x = 1; x < sw - 1; x++) {
+                int i = y * sw + x;
+                total += Math.abs(gx(p, i, sw)) + Math.abs(gy(p, i, sw));
+            }
+        }
+        int threshold = Math.max(MIN_EDGE, (int) (EDGE_OVER_MEAN * total / ((sw - 2) * (sh - 2))));
+        int count = 0;
+        for (int y = 1; y < sh - 1; y++) {
+            for (int x = 1; x < sw - 1; x++) {
+                int i = y * sw + x;
+                int gx = gx(p, i, sw);
+                int gy = gy(p, i, sw);
+                if (Math.abs(gx) + Math.abs(gy) < threshold) {
+                    continue;
+                }
+                //The gradient is the line's normal
+                int theta = (int) Math.round(Math.toDegrees(Math.atan2(gy, gx)));
+                this.edgeX[count] = x;
+                this.edgeY[count] = y;
+                this.edgeTheta[count] = ((theta % THETA_BINS) + THETA_BINS) % THETA_BINS;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int gx(int[] p, int i, int sw) {
+        return (p[i - sw + 1] + 2 * p[i + 1] + p[i + sw + 1]) - (p[i - sw - 1] + 2 * p[i - 1] + p[i + sw - 1]);
+    }
+
+    private static int gy(int[] p, int i, int sw) {
+        return (p[i + sw - 1] + 2 * p[i + sw] + p[i + sw + 1]) - (p[i - sw - 1] + 2 * p[i - sw] + p[i - sw + 1]);
+    }
+
+    /**
+     * Hough voting, rho = x cos(theta) + y sin(theta) offset by the diagonal
+     */
+    private void vote(int edges, int diagonal) {
+        int rhoBins = 2 * diagonal + 1;
+        int size = THETA_BINS * rhoBins;
+        if (this.accumulator.length < size) {
+            this.accumulator = new int[size];
+        } else {
+            Arrays.fill(this.accumulator, 0, size, 0);
+        }
+        int[] acc = this.accumulator;
+        for (int e = 0; e < edges; e++) {
+            int x = this.edgeX[e];
+            int y = this.edgeY[e];
+            int theta = this.edgeTheta[e];
+            for (int d = -VOTE_SPREAD; d <= VOTE_SPREAD; d++) {
+                int t = (theta + d + THETA_BINS) % THETA_BINS;
+                int rho = Math.round(x * COS[t] + y * SIN[t]);
+                acc[t * rhoBins + rho + diagonal]++;
+            }
+        }
+    }
+
+    /**
+     * Local maxima of the accumulator, strongest first, with near duplicates suppressed
+     *
+     * @return number of peaks in {@link #peaks}, as {theta, rho, votes}
+     */
+    private int findPeaks(int diagonal, int minVotes) {
+        int rhoBins = 2 * diagonal + 1;
+        int[] acc = this.accumulator;
+        int[][] peaks = this.peaks;
+        int count = 0;
+        for (int t = 0; t < THETA_BINS; t++) {
+            for (int r = 1; r < rhoBins - 1; r++) {
+                int votes = acc[t * rhoBins + r];
+                if (votes < minVotes || !isLocalMax(acc, t, r, rhoBins, votes)) {
+                    continue;
+                }
+                //Insert into the list sorted by votes, dropping the weakest when full
+                if (count == peaks.length && votes <= peaks[count - 1][2]) {
+                    continue;
+                }
+                int[] slot = count < peaks.length ? peaks[count++] : peaks[count - 1];
+                int at = count - 1;
+                while (at > 0 && peaks[at - 1][2] < votes) {
+                    peaks[at] = peaks[at - 1];
+                    at--;
+                }
+                peaks[at] = slot;
+                slot[0] = t;
+                slot[1] = r - diagonal;
+                slot[2] = votes;
+            }
+        }
+        //Drop peaks that are the same line as a stronger one
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            boolean duplicate = false;
+            for (int j = 0; j < kept && !duplicate; j++) {
+                duplicate = sameLine(peaks[i], peaks[j]);
+            }
+            if (!duplicate) {
+                int[] swap = peaks[kept];
+                peaks[kept] = peaks[i];
+                peaks[i] = swap;
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    private static boolean isLocalMax(int[] acc, int t, int r, int rhoBins, int votes) {
+        for (int dt = -1; dt <= 1; dt++) {
+            int row = ((t + dt + THETA_BINS) % THETA_BINS) * rhoBins;
+            for (int dr = -1; dr <= 1; dr++) {
+                int other = acc[row + r + dr];
+                //Ties go to the first cell in scan order
+                if (other > votes || (other == votes && (dt < 0 || (dt == 0 && dr < 0)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameLine(int[] a, int[] b) {
+        int dt = Math.abs(a[0] - b[0]);
+        if (dt > THETA_BINS / 2) {
+            //Near 0 and near 180 degrees are the same direction with rho negated
+            return THETA_BINS - dt <= 8 && Math.abs(a[1] + b[1]) <= 6;
+        }
+        return dt <= 8 && Math.abs(a[1] - b[1]) <= 6;
+    }
+
+    /**
+     * Pick two near-horizontal and two near-vertical lines enclosing the best supported quadrilateral
+     *
+     * @return true with the corners in {@link #corners}
+     */
+    private boolean bestQuad(int peakCount, int sw, int sh) {
+        int hCount = 0;
+        int vCount = 0;
+        for (int i = 0; i < peakCount; i++) {
+            int[] peak = this.peaks[i];
+            int theta = peak[0];
+            if (theta >= 45 && theta < 135) {
+                if (hCount < LINES_PER_FAMILY) {
+                    set(this.horizontal[hCount++], theta, peak[1], peak[2]);
+                }
+            } else if (vCount < LINES_PER_FAMILY) {
+                //Fold to -45..45 so opposite sides compare directly and rho is roughly x
+                if (theta >= 135) {
+                    set(this.vertical[vCount++], theta - THETA_BINS, -peak[1], peak[2]);
+                } else {
+                    set(this.vertical[vCount++], theta, peak[1], peak[2]);
+                }
+            }
+        }
+        double bestScore = 0;
+        double[] quad = this.candidate;
+        double frameArea = (double) sw * sh;
+        for (int a = 0; a < hCount; a++) {
+            for (int b = a + 1; b < hCount; b++) {
+                double[] top = this.horizontal[a][1] < this.horizontal[b][1] ? this.horizontal[a] : this.horizontal[b];
+                double[] bottom = top == this.horizontal[a] ? this.horizontal[b] : this.horizontal[a];
+                if (!validPair(top, bottom, sh)) {
+                    continue;
+                }
+                for (int c = 0; c < vCount; c++) {
+                    for (int d = c + 1; d < vCount; d++) {
+                        double[] left = this.vertical[c][1] < this.vertical[d][1] ? this.vertical[c] : this.vertical[d];
+                        double[] right = left == this.vertical[c] ? this.vertical[d] : this.vertical[c];
+                        if (!validPair(left, right, sw)) {
+                            continue;
+                        }
+                        if (!intersect(top, left, quad, 0) || !intersect(top, right, quad, 2)
+                                || !intersect(bottom, right, quad, 4) || !intersect(bottom, left, quad, 6)) {
+                            continue;
+                        }
+                        if (!insideFrame(quad, sw, sh) || !isConvex(quad)) {
+                            continue;
+                        }
+                        double area = area(quad) / frameArea;
+                        if (area < MIN_AREA) {
+                            continue;
+                        }
+                        //Edge support, favouring the outer outline over lines printed on the document
+                        double score = (top[2] + bottom[2] + left[2] + right[2]) * (0.5 + area);
+                        if (score > bestScore) {
+                            bestScore = score;
+                            System.arraycopy(quad, 0, this.corners, 0, 8);
+                        }
+                    }
+                }
+            }
+        }
+        return bestScore > 0;
+    }
+
+    private static void set(double[] line, int theta, int rho, int votes) {
+        line[0] = theta;
+        line[1] = rho;
+        line[2] = votes;
+    }
+
+    /**
+     * Opposite sides: close in direction and far enough apart
+     */
+    private static boolean validPair(double[] a, double[] b, int side) {
+        return Math.abs(a[0] - b[0]) <= MAX_SIDE_ANGLE && b[1] - a[1] >= side * MIN_SIDE;
+    }
+
+    /**
+     * Intersection of two {theta, rho} lines into quad[offset], quad[offset + 1]
+     */
+    private static boolean intersect(double[] a, double[] b, double[] quad, int offset) {
+        double ta = Math.toRadians(a[0]);
+        double tb = Math.toRadians(b[0]);
+        double ca = Math.cos(ta);
+        double sa = Math.sin(ta);
+        double cb = Math.cos(tb);
+        double sb = Math.sin(tb);
+        double det = ca * sb - sa * cb;
+        if (Math.abs(det) < 1e-6) {
+            return false;
+        }
+        quad[offset] = (a[1] * sb - b[1] * sa) / det;
+        quad[offset + 1] = (ca * b[1] - cb * a[1]) / det;
+        return true;
+    }
+
+    private static boolean insideFrame(double[] quad, int sw, int sh) {
+        double mx = sw * CORNER_MARGIN;
+        double my = sh * CORNER_MARGIN;
+        for (int i = 0; i < 8; i += 2) {
+            if (quad[i] < -mx || quad[i] > sw + mx || quad[i + 1] < -my || quad[i + 1] > sh + my) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isConvex(double[] quad) {
+        int sign = 0;
+        for (int i = 0; i < 4; i++) {
+            int a = i * 2;
+            int b = ((i + 1) % 4) * 2;
+            int c = ((i + 2) % 4) * 2;
+            double cross = (quad[b] - quad[a]) * (quad[c + 1] - quad[b + 1])
+                    - (quad[b + 1] - quad[a + 1]) * (quad[c] - quad[b]);
+            int s = cross > 0 ? 1 : (cross < 0 ? -1 : 0);
+            if (s == 0 || (sign != 0 && s != sign)) {
+                return false;
+            }
+            sign = s;
+        }
+        return true;
+    }
+
+    /**
+     * Shoelace area
+     */
+    private static double area(double[] quad) {
+        double sum = 0;
+        for (int i = 0; i < 8; i += 2) {
+            int j = (i + 2) % 8;
+            sum += quad[i] * quad[j + 1] - quad[j] * quad[i + 1];
+        }
+        return Math.abs(sum) / 2;
+    }
+
+    private static float clamp(float value) {
+        return value < 0 ? 0 : (value > 1 ? 1 : value);
+    }
+}
@@ -0,0 +1,123 @@
+package com.brajendra.camrea.kernel;
+
+/**
+ * Crop, rotate and mirror NV21 frames on plain byte arrays.
+ * <p>
+ * No Android dependencies, so it can be tested and benchmarked on a desktop JVM.
+ * Every transform is expressed as "walk the output row by row, stepping through the source
+ * with a constant stride": straight copies become System.arraycopy, and rotations are walked
+ * in square tiles so both the source and the destination stay in cache.
+ */
+public final class Nv21Kernel {
+
+    //Tile edge in pixels for rotated copies
+    public static final int TILE = 32;
+
+    private Nv21Kernel() {
+    }
+
+    /**
+     * Size of an NV21 frame
+     */
+    public static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Crop a region out of an NV21 frame, rotate it clockwise and optionally mirror it horizontally
+     *
+     * @param src        Source frame
+     * @param srcWidth   Source frame width
+     * @param srcHeight  Source frame height
+     * @param left       Crop left, must be even
+     * @param top        Crop top, must be even
+     * @param width      Crop width, must be even
+     * @param height     Crop height, must be even
+     * @param rotation   0, 90, 180 or 270
+     * @param mirror     Flip the rotated output horizontally
+     * @param dst        Output, at least {@link #frameSize}(width, height) bytes;
+     *                   it is height x width for 90 and 270
+     */
+    public static void cropRotate(byte[] src, int srcWidth, int srcHeight, int left, int top, int width, int height,
+                                  int rotation, boolean mirror, byte[] dst) {
+        cropRotate(src, srcWidth, srcHeight, left, top, width, height, rotation, mirror, dst, null);
+    }
+
+    /**
+     * {@link #cropRotate} split into stripes of output rows on a {@link StripeExecutor}
+     *
+     * @param stripes Executor, or null to run on the calling thread
+     */
+    public static void cropRotate(final byte[] src, final int srcWidth, int srcHeight, final int left, final int top,
+                                  final int width, final int height, final int rotation, final boolean mirror,
+                                  final byte[] dst, StripeExecutor stripes) {
+        if (((left | top | width | height) & 1) != 0) {
+            throw new IllegalArgumentException("NV21 crop must be on even coordinates");
+        }
+        if (left < 0 || top < 0 || left + width > srcWidth || top + height > srcHeight) {
+            throw new IllegalArgumentException("Crop outside of the frame");
+        }
+        //Luma, one byte per pixel
+        final SourceWalk luma = new SourceWalk(0, srcWidth, 1, left, top, width, height, rotation, mirror);
+        //Interleaved VU at quarter resolution, two bytes per sample
+        final SourceWalk chroma = new SourceWalk(srcWidth * srcHeight, srcWidth, 2, left / 2, top / 2,
+                width / 2, height / 2, rotation, mirror);
+        final int chromaOffset = width * height;
+        StripeExecutor.StripeTask task = new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                transformRows(src, luma, 1, dst, 0, rowStart, rowEnd);
+                transformRows(src, chroma, 2, dst, chromaOffset, rowStart / 2, rowEnd / 2);
+            }
+        };
+        if (stripes == null) {
+            task.run(0, luma.outHeight);
+        } else {
+            stripes.run(luma.outHeight, luma.outWidth, 2, task);
+        }
+    }
+
+    /**
+     * Transform output rows [rowStart, rowEnd) of one plane
+     *
+     * @param pixelBytes Bytes per sample: 1 for luma, 2 for interleaved chroma
+     */
+    static void transformRows(byte[] src, SourceWalk walk, int pixelBytes, byte[] dst, int dstOffset,
+                              int rowStart, int rowEnd) {
+        int outWidth = walk.outWidth;
+        int origin = walk.origin;
+        int dx = walk.dx;
+        int dy = walk.dy;
+        int rowBytes = outWidth * pixelBytes;
+        if (dx == pixelBytes) {
+            //Rows are contiguous in the source
+            for (int y = rowStart; y < rowEnd; y++) {
+                System.arraycopy(src, origin + y * dy, dst, dstOffset + y * rowBytes, rowBytes);
+            }
+            return;
+        }
+        for (int ty = rowStart; ty < rowEnd; ty += TILE) {
+            int yEnd = Math.min(ty + TILE, rowEnd);
+            for (int tx = 0; tx < outWidth; tx += TILE) {
+                int xEnd = Math.min(tx + TILE, outWidth);
+                for (int y = ty; y < yEnd; y++) {
+                    int s = origin + y * dy + tx * dx;
+                    int d = dstOffset + y * rowBytes + tx * pixelBytes;
+                    if (pixelBytes == 1) {
+                        for (int x = tx; x < xEnd; x++) {
+                            dst[d++] = src[s];
+                            s += dx;
+                        }
+                    } else {
+                        for (int x = tx; x < xEnd; x++) {
+                            dst[d] = src[s];
+                            dst[d + 1] = src[s + 1];
+                            d += 2;
+                            s += dx;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
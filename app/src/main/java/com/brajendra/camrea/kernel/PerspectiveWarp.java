@@ -0,0 +1,256 @@
+package com.brajendra.camrea.kernel;
+
+/**
+ * Straighten a quadrilateral out of an image into a rectangle (perspective correction)
+ * <p>
+ * The quad-to-rectangle homography is worked out once per capture. Output rows are walked with
+ * the homography's numerators and denominator advanced by a constant step per pixel, so each
+ * pixel costs three additions and one division before it is sampled bilinearly with 8-bit
+ * fixed-point weights. Coordinates are continuous, pixel centers sit at +0.5.
+ */
+public final class PerspectiveWarp {
+
+    private PerspectiveWarp() {
+    }
+
+    /**
+     * Output size that keeps the quad's resolution: its longer horizontal and vertical edges
+     *
+     * @param quad Corners TL, TR, BR, BL as {x0, y0, ..., x3, y3} in source pixels
+     * @return {width, height}, both even and at least 2
+     */
+    public static int[] outputSize(float[] quad) {
+        double top = Math.hypot(quad[2] - quad[0], quad[3] - quad[1]);
+        double bottom = Math.hypot(quad[4] - quad[6], quad[5] - quad[7]);
+        double left = Math.hypot(quad[6] - quad[0], quad[7] - quad[1]);
+        double right = Math.hypot(quad[4] - quad[2], quad[5] - quad[3]);
+        int width = Math.max(2, (int) Math.round(Math.max(top, bottom)) & ~1);
+        int height = Math.max(2, (int) Math.round(Math.max(left, right)) & ~1);
+        return new int[]{width, height};
+    }
+
+    /**
+     * Homography taking the output rectangle onto the quad
+     *
+     * @param quad      Corners TL, TR, BR, BL in source pixels; they land on the output's corners
+     * @param outWidth
+     * @param outHeight
+     * @return 3x3 row-major matrix from output coordinates to source coordinates
+     */
+    public static double[] quadToRect(float[] quad, int outWidth, int outHeight) {
+        double x0 = quad[0], y0 = quad[1];
+        double x1 = quad[2], y1 = quad[3];
+        double x2 = quad[4], y2 = quad[5];
+        double x3 = quad[6], y3 = quad[7];
+        //Unit square onto the quad (Heckbert)
+        double dx3 = x0 - x1 + x2 - x3;
+        double dy3 = y0 - y1 + y2 - y3;
+        double a, b, d, e, g, h;
+        if (dx3 == 0 && dy3 == 0) {
+            //Parallelogram, the mapping is affine
+            a = x1 - x0;
+            b = x3 - x0;
+            d = y1 - y0;
+            e = y3 - y0;
+            g = 0;
+            h = 0;
+        } else {
+            double dx1 = x1 - x2;
+            double dx2 = x3 - x2;
+            double dy1 = y1 - y2;
+            double dy2 = y3 - y2;
+            double det = dx1 * dy2 - dx2 * dy1;
+            if (det == 0) {
+                throw new IllegalArgumentException("Degenerate quad");
+            }
+            g = (dx3 * dy2 - dx2 * dy3) / det;
+            h = (dx1 * dy3 - dx3 * dy1) / det;
+            a = x1 - x0 + g * x1;
+            b = x3 - x0 + h * x3;
+            d = y1 - y0 + g * y1;
+            e = y3 - y0 + h * y3;
+        }
+        //Output pixels onto the unit square
+        return new double[]{
+                a / outWidth, b / outHeight, x0,
+                d / outWidth, e / outHeight, y0,
+                g / outWidth, h / outHeight, 1
+        };
+    }
+
+    /**
+     * Warp packed ARGB pixels
+     *
+     * @param src        Source pixels, srcWidth per row, at least 2x2
+     * @param srcWidth
+     * @param srcHeight
+     * @param homography From {@link #quadToRect}
+     * @param dst        Output, at least outWidth * outHeight
+     * @param outWidth
+     * @param outHeight
+     * @param stripes    Executor for multi-core processing, or null to run on the calling thread
+     */
+    public static void warpArgb(final int[] src, final int srcWidth, final int srcHeight, final double[] homography,
+                                final int[] dst, final int outWidth, int outHeight, StripeExecutor stripes) {
+        checkSource(srcWidth, srcHeight);
+        StripeExecutor.StripeTask task = new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                warpArgbRows(src, srcWidth, srcHeight, homography, dst, outWidth, rowStart, rowEnd);
+            }
+        };
+        if (stripes == null) {
+            task.run(0, outHeight);
+        } else {
+            stripes.run(outHeight, outWidth, 1, task);
+        }
+    }
+
+    /**
+     * Warp an NV21 frame into an NV21 frame
+     *
+     * @param src        Source frame
+     * @param srcWidth   Even, at least 4
+     * @param srcHeight  Even, at least 4
+     * @param homography From {@link #quadToRect}, in luma pixels
+     * @param dst        Output, at least {@link Nv21Kernel#frameSize}(outWidth, outHeight)
+     * @param outWidth   Even
+     * @param outHeight  Even
+     * @param stripes    Executor for multi-core processing, or null to run on the calling thread
+     */
+    public static void warpNv21(final byte[] src, final int srcWidth, final int srcHeight, final double[] homography,
+                                final byte[] dst, final int outWidth, final int outHeight, StripeExecutor stripes) {
+        checkSource(srcWidth / 2, srcHeight / 2);
+        if ((outWidth & 1) != 0 || (outHeight & 1) != 0) {
+            throw new IllegalArgumentException("NV21 output size must be even");
+        }
+        //Chroma output pixel c covers luma 2c..2c+2, its source is at half the luma position
+        final double[] chroma = {
+                homography[0], homography[1], homography[2] / 2,
+                homography[3], homography[4], homography[5] / 2,
+                homography[6] * 2, homography[7] * 2, homography[8]
+        };
+        final int srcChroma = srcWidth * srcHeight;
+        final int dstChroma = outWidth * outHeight;
+        StripeExecutor.StripeTask task = new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                warpPlaneRows(src, 0, srcWidth, srcHeight, srcWidth, 1, homography,
+                        dst, 0, outWidth, outWidth, 1, rowStart, rowEnd);
+                //Stripes start on even rows, so each owns its chroma rows
+                int chromaStart = rowStart / 2;
+                int chromaEnd = (rowEnd + 1) / 2;
+                //V then U, interleaved
+                warpPlaneRows(src, srcChroma, srcWidth / 2, srcHeight / 2, srcWidth, 2, chroma,
+                        dst, dstChroma, outWidth / 2, outWidth, 2, chromaStart, chromaEnd);
+                warpPlaneRows(src, srcChroma + 1, srcWidth / 2, srcHeight / 2, srcWidth, 2, chroma,
+                        dst, dstChroma + 1, outWidth / 2, outWidth, 2, chromaStart, chromaEnd);
+            }
+        };
+        if (stripes == null) {
+            task.run(0, outHeight);
+        } else {
+            stripes.run(outHeight, outWidth, 2, task);
+        }
+    }
+
+    private static void checkSource(int width, int height) {
+        if (width < 2 || height < 2) {
+            throw new IllegalArgumentException("Source too small to sample");
+        }
+    }
+
+    static void warpArgbRows(int[] src, int srcWidth, int srcHeight, double[] m, int[] dst, int outWidth,
+                             int rowStart, int rowEnd) {
+        double maxX = srcWidth - 1;
+        double maxY = srcHeight - 1;
+        int lastX = srcWidth - 2;
+        int lastY = srcHeight - 2;
+        for (int y = rowStart; y < rowEnd; y++) {
+            //Numerators and denominator at the center of the row's first pixel
+            double cy = y + 0.5;
+            double nx = m[0] * 0.5 + m[1] * cy + m[2];
+            double ny = m[3] * 0.5 + m[4] * cy + m[5];
+            double nw = m[6] * 0.5 + m[7] * cy + m[8];
+            int d = y * outWidth;
+            for (int x = 0; x < outWidth; x++) {
+                double inv = 1 / nw;
+                double sx = clamp(nx * inv - 0.5, maxX);
+                double sy = clamp(ny * inv - 0.5, maxY);
+                nx += m[0];
+                ny += m[3];
+                nw += m[6];
+
+                int ix = Math.min((int) sx, lastX);
+                int iy = Math.min((int) sy, lastY);
+                int fx = (int) ((sx - ix) * 256);
+                int fy = (int) ((sy - iy) * 256);
+                int s = iy * srcWidth + ix;
+                int p00 = src[s];
+                int p01 = src[s + 1];
+                int p10 = src[s + srcWidth];
+                int p11 = src[s + srcWidth + 1];
+
+                //Two channels per multiply: red and blue, then alpha and green
+                int top = lerp(p00 & 0xFF00FF, p01 & 0xFF00FF, fx);
+                int bottom = lerp(p10 & 0xFF00FF, p11 & 0xFF00FF, fx);
+                int rb = lerp(top, bottom, fy);
+                top = lerp((p00 >>> 8) & 0xFF00FF, (p01 >>> 8) & 0xFF00FF, fx);
+                bottom = lerp((p10 >>> 8) & 0xFF00FF, (p11 >>> 8) & 0xFF00FF, fx);
+                int ag = lerp(top, bottom, fy);
+                dst[d++] = rb | (ag << 8);
+            }
+        }
+    }
+
+    /**
+     * Warp rows of one 8-bit plane
+     *
+     * @param srcPixelStride Bytes between samples of the plane, 2 for interleaved chroma
+     */
+    static void warpPlaneRows(byte[] src, int srcOffset, int srcWidth, int srcHeight, int srcRowStride,
+                              int srcPixelStride, double[] m, byte[] dst, int dstOffset, int outWidth,
+                              int dstRowStride, int dstPixelStride, int rowStart, int rowEnd) {
+        double maxX = srcWidth - 1;
+        double maxY = srcHeight - 1;
+        int lastX = srcWidth - 2;
+        int lastY = srcHeight - 2;
+        for (int y = rowStart; y < rowEnd; y++) {
+            double cy = y + 0.5;
+            double nx = m[0] * 0.5 + m[1] * cy + m[2];
+            double ny = m[3] * 0.5 + m[4] * cy + m[5];
+            double nw = m[6] * 0.5 + m[7] * cy + m[8];
+            int d = dstOffset + y * dstRowStride;
+            for (int x = 0; x < outWidth; x++) {
+                double inv = 1 / nw;
+                double sx = clamp(nx * inv - 0.5, maxX);
+                double sy = clamp(ny * inv - 0.5, maxY);
+                nx += m[0];
+                ny += m[3];
+                nw += m[6];
+
+                int ix = Math.min((int) sx, lastX);
+                int iy = Math.min((int) sy, lastY);
+                int fx = (int) ((sx - ix) * 256);
+                int fy = (int) ((sy - iy) * 256);
+                int s = srcOffset + iy * srcRowStride + ix * srcPixelStride;
+                int top = lerp(src[s] & 0xFF, src[s + srcPixelStride] & 0xFF, fx);
+                s += srcRowStride;
+                int bottom = lerp(src[s] & 0xFF, src[s + srcPixelStride] & 0xFF, fx);
+                dst[d] = (byte) lerp(top, bottom, fy);
+                d += dstPixelStride;
+            }
+        }
+    }
+
+    /**
+     * Blend a to b by weight / 256; works on two 8-bit channels packed as 0x00AA00BB at once
+     */
+    private static int lerp(int a, int b, int weight) {
+        return ((a * (256 - weight) + b * weight) >>> 8) & 0xFF00FF;
+    }
+
+    private static double clamp(double value, double max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+}
@@ -0,0 +1,227 @@
+package com.brajendra.camrea.kernel;
+
+/**
+ * Scores a cropped capture for focus, exposure clipping and glare before it is saved.
+ * <p>
+ * The image is first box-averaged down to about {@link #DEFAULT_ANALYSIS_WIDTH} pixels of luma,
+ * which is all the scores need. Focus is the variance of the 4-neighbour Laplacian on that copy.
+ * Clipping is the share of pixels at the ends of the range. Glare is blown-out highlight
+ * concentrated in part of the page: the worst cell of a coarse grid, minus the average cell, so
+ * an evenly bright page does not count as glare.
+ * <p>
+ * No Android dependencies; the copy is reused between captures, one instance per thread.
+ */
+public final class QualityScorer {
+
+    //Width the luma copy is averaged down to
+    public static final int DEFAULT_ANALYSIS_WIDTH = 320;
+
+    //Luma at or beyond these counts as clipped
+    private static final int SHADOW_CLIP = 4;
+    private static final int HIGHLIGHT_CLIP = 251;
+    //Glare cells across and down
+    private static final int GLARE_GRID = 8;
+
+    private final int analysisWidth;
+    private byte[] small = new byte[0];
+    private int[] rowSums = new int[0];
+    private final int[] cellPixels = new int[GLARE_GRID * GLARE_GRID];
+    private final int[] cellClipped = new int[GLARE_GRID * GLARE_GRID];
+
+    private double sharpness;
+    private double shadowClipping;
+    private double highlightClipping;
+    private double glare;
+    private long lastNanos;
+
+    public QualityScorer(int analysisWidth) {
+        this.analysisWidth = Math.max(16, analysisWidth);
+    }
+
+    /**
+     * Score packed ARGB pixels
+     *
+     * @param argb   Pixels
+     * @param offset Index of the top-left pixel
+     * @param width
+     * @param height
+     * @param stride Pixels per row
+     */
+    public void scoreArgb(int[] argb, int offset, int width, int height, int stride) {
+        long start = System.nanoTime();
+        int factor = this.factorFor(width);
+        int smallWidth = width / factor;
+        int smallHeight = height / factor;
+        this.prepare(smallWidth, smallHeight);
+        int area = factor * factor;
+        int[] sums = this.rowSums;
+        for (int sy = 0; sy < smallHeight; sy++) {
+            for (int sx = 0; sx < smallWidth; sx++) {
+                sums[sx] = 0;
+            }
+            for (int dy = 0; dy < factor; dy++) {
+                int p = offset + (sy * factor + dy) * stride;
+                for (int sx = 0; sx < smallWidth; sx++) {
+                    int sum = 0;
+                    for (int dx = 0; dx < factor; dx++) {
+                        int c = argb[p++];
+                        //BT.601 luma in 8-bit fixed point
+                        sum += (77 * ((c >> 16) & 0xFF) + 150 * ((c >> 8) & 0xFF) + 29 * (c & 0xFF)) >> 8;
+                    }
+                    sums[sx] += sum;
+                }
+            }
+            int row = sy * smallWidth;
+            for (int sx = 0; sx < smallWidth; sx++) {
+                this.small[row + sx] = (byte) (sums[sx] / area);
+            }
+        }
+        this.measure(smallWidth, smallHeight);
+        this.lastNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Score a luma plane, e.g. the Y plane of an NV21 frame
+     *
+     * @param luma   Plane
+     * @param offset Index of the top-left sample
+     * @param width
+     * @param height
+     * @param stride Bytes per row
+     */
+    public void scoreLuma(byte[] luma, int offset, int width, int height, int stride) {
+        long start = System.nanoTime();
+        int factor = this.factorFor(width);
+        int smallWidth = width / factor;
+        int smallHeight = height / factor;
+        this.prepare(smallWidth, smallHeight);
+        int area = factor * factor;
+        int[] sums = this.rowSums;
+        for (int sy = 0; sy < smallHeight; sy++) {
+            for (int sx = 0; sx < smallWidth; sx++) {
+                sums[sx] = 0;
+            }
+            for (int dy = 0; dy < factor; dy++) {
+                int p = offset + (sy * factor + dy) * stride;
+                for (int sx = 0; sx < smallWidth; sx++) {
+                    int sum = 0;
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += luma[p++] & 0xFF;
+                    }
+                    sums[sx] += sum;
+                }
+            }
+            int row = sy * smallWidth;
+            for (int sx = 0; sx < smallWidth; sx++) {
+                this.small[row + sx] = (byte) (sums[sx] / area);
+            }
+        }
+        this.measure(smallWidth, smallHeight);
+        this.lastNanos = System.nanoTime() - start;
+    }
+
+    private int factorFor(int width) {
+        return Math.max(1, width / this.analysisWidth);
+    }
+
+    private void prepare(int width, int height) {
+        if (width < 3 || height < 3) {
+            throw new IllegalArgumentException("Image too small to score");
+        }
+        if (this.small.length < width * height) {
+            this.small = new byte[width * height];
+        }
+        if (this.rowSums.length < width) {
+            this.rowSums = new int[width];
+        }
+    }
+
+    private void measure(int width, int height) {
+        byte[] small = this.small;
+        int[] cellPixels = this.cellPixels;
+        int[] cellClipped = this.cellClipped;
+        for (int i = 0; i < cellPixels.length; i++) {
+            cellPixels[i] = 0;
+            cellClipped[i] = 0;
+        }
+        long sum = 0;
+        long sumSquares = 0;
+        int shadows = 0;
+        int highlights = 0;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int cellRow = y * GLARE_GRID / height * GLARE_GRID;
+            boolean inner = y > 0 && y < height - 1;
+            for (int x = 0; x < width; x++) {
+                int p = row + x;
+                int value = small[p] & 0xFF;
+                int cell = cellRow + x * GLARE_GRID / width;
+                cellPixels[cell]++;
+                if (value <= SHADOW_CLIP) {
+                    shadows++;
+                } else if (value >= HIGHLIGHT_CLIP) {
+                    highlights++;
+                    cellClipped[cell]++;
+                }
+                if (inner && x > 0 && x < width - 1) {
+                    int laplacian = 4 * value - (small[p - 1] & 0xFF) - (small[p + 1] & 0xFF)
+                            - (small[p - width] & 0xFF) - (small[p + width] & 0xFF);
+                    sum += laplacian;
+                    sumSquares += laplacian * laplacian;
+                }
+            }
+        }
+        int inner = (width - 2) * (height - 2);
+        double mean = (double) sum / inner;
+        this.sharpness = (double) sumSquares / inner - mean * mean;
+        int pixels = width * height;
+        this.shadowClipping = (double) shadows / pixels;
+        this.highlightClipping = (double) highlights / pixels;
+
+        double worst = 0;
+        double total = 0;
+        int cells = 0;
+        for (int i = 0; i < cellPixels.length; i++) {
+            if (cellPixels[i] == 0) {
+                continue;
+            }
+            double clipped = (double) cellClipped[i] / cellPixels[i];
+            worst = Math.max(worst, clipped);
+            total += clipped;
+            cells++;
+        }
+        this.glare = cells == 0 ? 0 : worst - total / cells;
+    }
+
+    /**
+     * Laplacian variance of the luma copy, higher is sharper
+     */
+    public double getSharpness() {
+        return this.sharpness;
+    }
+
+    /**
+     * Share of pixels crushed to black, 0 to 1
+     */
+    public double getShadowClipping() {
+        return this.shadowClipping;
+    }
+
+    /**
+     * Share of pixels blown out to white, 0 to 1
+     */
+    public double getHighlightClipping() {
+        return this.highlightClipping;
+    }
+
+    /**
+     * How much more blown out the worst part of the image is than the image on average, 0 to 1
+     */
+    public double getGlare() {
+        return this.glare;
+    }
+
+    public long getLastNanos() {
+        return this.lastNanos;
+    }
+}
@@ -0,0 +1,113 @@
+package com.brajendra.camrea.kernel;
+
+/**
+ * Measures focus and camera shake on a luma plane.
+ * <p>
+ * Both come from a fixed grid of sample points. Sharpness is the variance of the 4-neighbour
+ * Laplacian at those points, taken on the full-resolution plane so fine detail still counts.
+ * Motion is the mean absolute luma difference at the same points against the previous frame.
+ * The grid is allocated once per frame size, so measuring costs no memory per frame.
+ * <p>
+ * No Android dependencies; one instance per thread.
+ */
+public final class SharpnessMeter {
+
+    //Sample points across the frame width
+    public static final int DEFAULT_GRID_WIDTH = 128;
+
+    private final int gridWidth;
+
+    //Luma at the sample points, this frame and the last one
+    private int[] samples = new int[0];
+    private int[] previous = new int[0];
+    private int frameWidth;
+    private int frameHeight;
+    private boolean hasPrevious;
+
+    private double sharpness;
+    private double motion;
+    private long lastNanos;
+
+    public SharpnessMeter(int gridWidth) {
+        this.gridWidth = Math.max(8, gridWidth);
+    }
+
+    /**
+     * Measure a frame; the results are read with {@link #getSharpness()} and {@link #getMotion()}
+     *
+     * @param luma      Y plane, or an NV21 frame
+     * @param width     At least 3
+     * @param height    At least 3
+     * @param rowStride Bytes per row
+     */
+    public void measure(byte[] luma, int width, int height, int rowStride) {
+        long start = System.nanoTime();
+        int gridWidth = Math.min(this.gridWidth, width - 2);
+        int gridHeight = Math.max(1, Math.min(height - 2, gridWidth * height / width));
+        int count = gridWidth * gridHeight;
+        if (width != this.frameWidth || height != this.frameHeight || this.samples.length != count) {
+            this.samples = new int[count];
+            this.previous = new int[count];
+            this.frameWidth = width;
+            this.frameHeight = height;
+            this.hasPrevious = false;
+        }
+        int[] samples = this.samples;
+        int[] previous = this.previous;
+
+        long sum = 0;
+        long sumSquares = 0;
+        long difference = 0;
+        int i = 0;
+        for (int gy = 0; gy < gridHeight; gy++) {
+            //Sample points stay one pixel inside the frame for the Laplacian
+            int y = 1 + (int) ((long) gy * (height - 2) / gridHeight);
+            int row = y * rowStride;
+            for (int gx = 0; gx < gridWidth; gx++) {
+                int x = 1 + (int) ((long) gx * (width - 2) / gridWidth);
+                int p = row + x;
+                int center = luma[p] & 0xFF;
+                int laplacian = 4 * center - (luma[p - 1] & 0xFF) - (luma[p + 1] & 0xFF)
+                        - (luma[p - rowStride] & 0xFF) - (luma[p + rowStride] & 0xFF);
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+                difference += Math.abs(center - previous[i]);
+                samples[i++] = center;
+            }
+        }
+        double mean = (double) sum / count;
+        this.sharpness = (double) sumSquares / count - mean * mean;
+        this.motion = this.hasPrevious ? (double) difference / count : Double.MAX_VALUE;
+        this.hasPrevious = true;
+        //This frame becomes the previous one
+        this.samples = previous;
+        this.previous = samples;
+        this.lastNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Forget the previous frame, e.g. after the preview restarted
+     */
+    public void reset() {
+        this.hasPrevious = false;
+    }
+
+    /**
+     * Laplacian variance of the last frame, higher is sharper
+     */
+    public double getSharpness() {
+        return this.sharpness;
+    }
+
+    /**
+     * Mean absolute luma change since the frame before the last one (0 to 255),
+     * Double.MAX_VALUE when there was no frame before it
+     */
+    public double getMotion() {
+        return this.motion;
+    }
+
+    public long getLastNanos() {
+        return this.lastNanos;
+    }
+}
@@ -0,0 +1,68 @@
+package com.brajendra.camrea.kernel;
+
+/**
+ * How a crop/rotate/mirror transform walks its source: the source index of output (0, 0)
+ * and the source steps for one output column and one output row.
+ */
+final class SourceWalk {
+    final int outWidth;
+    final int outHeight;
+    final int origin;
+    final int dx;
+    final int dy;
+
+    /**
+     * @param srcOffset  Index of the plane's first sample
+     * @param srcStride  Elements per source row
+     * @param pixelSize  Elements per sample
+     * @param left       Crop left in samples
+     * @param top        Crop top in samples
+     * @param width      Crop width in samples
+     * @param height     Crop height in samples
+     * @param rotation   Clockwise rotation: 0, 90, 180 or 270
+     * @param mirror     Flip the rotated output horizontally
+     */
+    SourceWalk(int srcOffset, int srcStride, int pixelSize, int left, int top, int width, int height,
+               int rotation, boolean mirror) {
+        boolean swap = rotation == 90 || rotation == 270;
+        this.outWidth = swap ? height : width;
+        this.outHeight = swap ? width : height;
+
+        int origin;
+        int dx;
+        switch (rotation) {
+            case 90:
+                origin = index(srcOffset, srcStride, pixelSize, left, top + height - 1);
+                dx = -srcStride;
+                this.dy = pixelSize;
+                break;
+            case 180:
+                origin = index(srcOffset, srcStride, pixelSize, left + width - 1, top + height - 1);
+                dx = -pixelSize;
+                this.dy = -srcStride;
+                break;
+            case 270:
+                origin = index(srcOffset, srcStride, pixelSize, left + width - 1, top);
+                dx = srcStride;
+                this.dy = -pixelSize;
+                break;
+            case 0:
+                origin = index(srcOffset, srcStride, pixelSize, left, top);
+                dx = pixelSize;
+                this.dy = srcStride;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+        if (mirror) {
+            origin += (this.outWidth - 1) * dx;
+            dx = -dx;
+        }
+        this.origin = origin;
+        this.dx = dx;
+    }
+
+    private static int index(int offset, int stride, int pixelSize, int x, int y) {
+        return offset + y * stride + x * pixelSize;
+    }
+}
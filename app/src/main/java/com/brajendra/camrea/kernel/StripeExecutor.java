@@ -0,0 +1,118 @@
+package com.brajendra.camrea.kernel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits a per-row image transform into horizontal stripes and runs them on all cores.
+ * <p>
+ * Small images are processed on the calling thread, where handing work to other threads costs
+ * more than it saves. The calling thread always takes the first stripe itself.
+ */
+public final class StripeExecutor {
+
+    //Below this many output pixels a transform runs sequentially
+    public static final int MIN_PARALLEL_PIXELS = 512 * 1024;
+
+    //Stripes per thread, a little over-splitting evens out uneven cores
+    private static final int STRIPES_PER_THREAD = 2;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * Work on rows [rowStart, rowEnd) of the output
+     */
+    public interface StripeTask {
+        void run(int rowStart, int rowEnd);
+    }
+
+    /**
+     * @param threads Number of cores to use, including the calling thread
+     */
+    public StripeExecutor(int threads) {
+        this.threads = Math.max(1, threads);
+        if (this.threads == 1) {
+            this.executor = null;
+            return;
+        }
+        this.executor = Executors.newFixedThreadPool(this.threads - 1, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StripeExecutor-" + (++this.count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * One thread per available core
+     */
+    public static StripeExecutor forAvailableProcessors() {
+        return new StripeExecutor(Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Run a transform over all output rows and wait for it to finish
+     *
+     * @param rows        Output rows
+     * @param rowPixels   Output pixels per row
+     * @param rowAlign    Stripe boundaries are multiples of this (2 for NV21)
+     * @param task
+     */
+    public void run(int rows, int rowPixels, int rowAlign, final StripeTask task) {
+        if (this.executor == null || (long) rows * rowPixels < MIN_PARALLEL_PIXELS) {
+            task.run(0, rows);
+            return;
+        }
+        int stripes = this.threads * STRIPES_PER_THREAD;
+        int stripeRows = (rows + stripes - 1) / stripes;
+        stripeRows = (stripeRows + rowAlign - 1) / rowAlign * rowAlign;
+        stripes = (rows + stripeRows - 1) / stripeRows;
+
+        final CountDownLatch done = new CountDownLatch(stripes - 1);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        for (int i = 1; i < stripes; i++) {
+            final int start = i * stripeRows;
+            final int end = Math.min(rows, start + stripeRows);
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(start, end);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        task.run(0, Math.min(rows, stripeRows));
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for stripes", e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    public void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.brajendra.camrea.kernel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Crop, rotate and mirror a {@link YuvFrame} into an NV21 array, reading the planes in place.
+ * <p>
+ * Only the cropped samples are touched, so a crop out of a Camera2 Image costs one pass over
+ * the crop instead of a full-frame copy into a byte array first. Same walk as {@link Nv21Kernel}.
+ */
+public final class Yuv420Kernel {
+
+    private Yuv420Kernel() {
+    }
+
+    /**
+     * @param src      Source frame
+     * @param left     Crop left, must be even
+     * @param top      Crop top, must be even
+     * @param width    Crop width, must be even
+     * @param height   Crop height, must be even
+     * @param rotation 0, 90, 180 or 270
+     * @param mirror   Flip the rotated output horizontally
+     * @param dst      NV21 output, at least {@link Nv21Kernel#frameSize}(width, height) bytes;
+     *                 it is height x width for 90 and 270
+     * @param stripes  Executor for multi-core processing, or null to run on the calling thread
+     */
+    public static void cropRotate(final YuvFrame src, int left, int top, int width, int height, int rotation,
+                                  boolean mirror, final byte[] dst, StripeExecutor stripes) {
+        if (((left | top | width | height) & 1) != 0) {
+            throw new IllegalArgumentException("YUV 4:2:0 crop must be on even coordinates");
+        }
+        if (left < 0 || top < 0 || left + width > src.width || top + height > src.height) {
+            throw new IllegalArgumentException("Crop outside of the frame");
+        }
+        final SourceWalk luma = new SourceWalk(0, src.yRowStride, 1, left, top, width, height, rotation, mirror);
+        final SourceWalk chroma = new SourceWalk(0, src.uvRowStride, src.uvPixelStride, left / 2, top / 2,
+                width / 2, height / 2, rotation, mirror);
+        final int chromaOffset = width * height;
+        StripeExecutor.StripeTask task = new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                //Each stripe reads through its own view, buffer positions are not shared
+                lumaRows(src.y.duplicate(), luma, dst, rowStart, rowEnd);
+                chromaRows(src.v, src.u, chroma, dst, chromaOffset, rowStart / 2, rowEnd / 2);
+            }
+        };
+        if (stripes == null) {
+            task.run(0, luma.outHeight);
+        } else {
+            stripes.run(luma.outHeight, luma.outWidth, 2, task);
+        }
+    }
+
+    static void lumaRows(ByteBuffer y, SourceWalk walk, byte[] dst, int rowStart, int rowEnd) {
+        int outWidth = walk.outWidth;
+        int origin = walk.origin;
+        int dx = walk.dx;
+        int dy = walk.dy;
+        if (dx == 1) {
+            //Rows are contiguous in the plane
+            for (int row = rowStart; row < rowEnd; row++) {
+                y.position(origin + row * dy);
+                y.get(dst, row * outWidth, outWidth);
+            }
+            return;
+        }
+        int tile = Nv21Kernel.TILE;
+        for (int ty = rowStart; ty < rowEnd; ty += tile) {
+            int yEnd = Math.min(ty + tile, rowEnd);
+            for (int tx = 0; tx < outWidth; tx += tile) {
+                int xEnd = Math.min(tx + tile, outWidth);
+                for (int row = ty; row < yEnd; row++) {
+                    int s = origin + row * dy + tx * dx;
+                    int d = row * outWidth + tx;
+                    for (int x = tx; x < xEnd; x++) {
+                        dst[d++] = y.get(s);
+                        s += dx;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Interleave V and U into NV21 chroma
+     */
+    static void chromaRows(ByteBuffer v, ByteBuffer u, SourceWalk walk, byte[] dst, int dstOffset,
+                           int rowStart, int rowEnd) {
+        int outWidth = walk.outWidth;
+        int origin = walk.origin;
+        int dx = walk.dx;
+        int dy = walk.dy;
+        int rowBytes = outWidth * 2;
+        int tile = Nv21Kernel.TILE;
+        for (int ty = rowStart; ty < rowEnd; ty += tile) {
+            int yEnd = Math.min(ty + tile, rowEnd);
+            for (int tx = 0; tx < outWidth; tx += tile) {
+                int xEnd = Math.min(tx + tile, outWidth);
+                for (int row = ty; row < yEnd; row++) {
+                    int s = origin + row * dy + tx * dx;
+                    int d = dstOffset + row * rowBytes + tx * 2;
+                    for (int x = tx; x < xEnd; x++) {
+                        dst[d] = v.get(s);
+                        dst[d + 1] = u.get(s);
+                        d += 2;
+                        s += dx;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.brajendra.camrea.kernel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV 4:2:0 frame as three planes with arbitrary strides, the layout of a YUV_420_888 Image.
+ * <p>
+ * The buffers are referenced, never copied: a frame wrapping an Image plane is only valid
+ * until the Image is closed. U and V share the same row and pixel stride.
+ */
+public final class YuvFrame {
+    public final int width;
+    public final int height;
+    public final ByteBuffer y;
+    public final ByteBuffer u;
+    public final ByteBuffer v;
+    public final int yRowStride;
+    public final int uvRowStride;
+    public final int uvPixelStride;
+
+    public YuvFrame(int width, int height, ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                    int uvRowStride, int uvPixelStride) {
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.u = u;
+        this.v = v;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+    }
+
+    /**
+     * View an NV21 frame as planes, without copying it
+     *
+     * @param nv21
+     * @param width
+     * @param height
+     * @return
+     */
+    public static YuvFrame fromNv21(byte[] nv21, int width, int height) {
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 2;
+        ByteBuffer y = ByteBuffer.wrap(nv21, 0, lumaSize).slice();
+        //Interleaved VU: V first, U one byte later
+        ByteBuffer v = ByteBuffer.wrap(nv21, lumaSize, chromaSize).slice();
+        ByteBuffer u = ByteBuffer.wrap(nv21, lumaSize + 1, chromaSize - 1).slice();
+        return new YuvFrame(width, height, y, width, u, v, width, 2);
+    }
+}
@@ -0,0 +1,51 @@
+package com.brajendra.camrea.upload;
+
+/**
+ * Base64 (RFC 4648, no line breaks) into a caller's buffer, so chunks are encoded without
+ * allocating. android.util.Base64 only returns new arrays and java.util.Base64 needs API 26.
+ */
+public final class Base64Encoder {
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private Base64Encoder() {
+    }
+
+    /**
+     * Bytes needed to encode length bytes
+     */
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * @param src    Bytes to encode
+     * @param offset
+     * @param length
+     * @param dst    Output, at least {@link #encodedLength}(length)
+     * @return bytes written to dst
+     */
+    public static int encode(byte[] src, int offset, int length, byte[] dst) {
+        int end = offset + length;
+        int whole = offset + length / 3 * 3;
+        int d = 0;
+        int s = offset;
+        while (s < whole) {
+            int bits = (src[s++] & 0xFF) << 16 | (src[s++] & 0xFF) << 8 | (src[s++] & 0xFF);
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[d++] = ALPHABET[(bits >>> 6) & 0x3F];
+            dst[d++] = ALPHABET[bits & 0x3F];
+        }
+        int left = end - s;
+        if (left > 0) {
+            int bits = (src[s] & 0xFF) << 16 | (left == 2 ? (src[s + 1] & 0xFF) << 8 : 0);
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[d++] = left == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+            dst[d++] = '=';
+        }
+        return d;
+    }
+}
@@ -0,0 +1,246 @@
+package com.brajendra.camrea.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of the captures waiting to be uploaded, so they survive the app being killed.
+ * <p>
+ * One line per event, tab separated and ending in a CRC32 of the rest of the line:
+ * <ul>
+ * <li>A id bytes path: a capture was queued</li>
+ * <li>D id: it reached the server</li>
+ * <li>X id: it was dropped without being sent</li>
+ * </ul>
+ * Every {@link #append} is fsynced. {@link #replay} skips a line that does not check out, which is
+ * what a crash in the middle of an append leaves at the end of the file. {@link #compact} rewrites
+ * the file with only the live captures, through a temporary file that is renamed into place.
+ * Not thread safe: {@link UploadQueue} calls it from its journal thread only.
+ */
+class CaptureJournal {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final char ADDED = 'A';
+    private static final char DONE = 'D';
+    private static final char DROPPED = 'X';
+
+    private final File file;
+    private FileOutputStream out;
+    //Lines in the file, and how many of them replay could not read
+    private int records;
+    private int corruptRecords;
+    //The last append failed and may have left part of a line
+    private boolean torn;
+
+    CaptureJournal(File file) {
+        this.file = file;
+    }
+
+    static String added(UploadItem item) {
+        return ADDED + "\t" + item.id + "\t" + item.bytes + "\t" + item.path;
+    }
+
+    static String done(String id) {
+        return DONE + "\t" + id;
+    }
+
+    static String dropped(String id) {
+        return DROPPED + "\t" + id;
+    }
+
+    /**
+     * Read back the captures that were queued and not finished
+     *
+     * @return them in the order they were queued
+     */
+    List<UploadItem> replay() throws IOException {
+        Map<String, UploadItem> live = new LinkedHashMap<>();
+        this.records = 0;
+        this.corruptRecords = 0;
+        if (!this.file.exists()) {
+            return new ArrayList<>();
+        }
+        byte[] data = readAll(this.file);
+        int lineStart = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            String line = new String(data, lineStart, i - lineStart, "UTF-8");
+            lineStart = i + 1;
+            this.records++;
+            String record = checked(line);
+            if (record == null) {
+                this.corruptRecords++;
+                continue;
+            }
+            String[] fields = record.split("\t", 4);
+            if (fields[0].length() != 1 || fields.length < 2) {
+                this.corruptRecords++;
+                continue;
+            }
+            switch (fields[0].charAt(0)) {
+                case ADDED:
+                    if (fields.length == 4) {
+                        try {
+                            live.put(fields[1], new UploadItem(fields[1], fields[3], Long.parseLong(fields[2])));
+                        } catch (NumberFormatException e) {
+                            this.corruptRecords++;
+                        }
+                    }
+                    break;
+                case DONE:
+                case DROPPED:
+                    live.remove(fields[1]);
+                    break;
+                default:
+                    this.corruptRecords++;
+                    break;
+            }
+        }
+        if (lineStart < data.length) {
+            //Torn append at the end of the file, cut it off so the next append starts a clean line
+            this.corruptRecords++;
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                raf.setLength(lineStart);
+            } finally {
+                raf.close();
+            }
+        }
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * Write records and fsync them as one
+     *
+     * @param lines From {@link #added}, {@link #done} and {@link #dropped}
+     */
+    void append(List<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        if (this.out == null) {
+            this.out = new FileOutputStream(this.file, true);
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(lines.size() * 96);
+        if (this.torn) {
+            //End whatever part of the failed write landed, replay skips it
+            buffer.write('\n');
+        }
+        for (String line : lines) {
+            buffer.write(sealed(line));
+        }
+        try {
+            buffer.writeTo(this.out);
+            this.out.getFD().sync();
+        } catch (IOException e) {
+            this.torn = true;
+            this.close();
+            throw e;
+        }
+        this.torn = false;
+        this.records += lines.size();
+    }
+
+    /**
+     * Replace the file with one holding only the given captures
+     */
+    void compact(Collection<UploadItem> live) throws IOException {
+        File temp = new File(this.file.getPath() + TEMP_SUFFIX);
+        FileOutputStream tempOut = new FileOutputStream(temp);
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(live.size() * 96 + 16);
+            for (UploadItem item : live) {
+                buffer.write(sealed(added(item)));
+            }
+            buffer.writeTo(tempOut);
+            tempOut.getFD().sync();
+        } catch (IOException e) {
+            tempOut.close();
+            temp.delete();
+            throw e;
+        }
+        tempOut.close();
+        this.close();
+        if (!temp.renameTo(this.file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + this.file);
+        }
+        this.records = live.size();
+        this.corruptRecords = 0;
+        this.torn = false;
+    }
+
+    /**
+     * Lines in the file, live or not
+     */
+    int getRecords() {
+        return this.records;
+    }
+
+    /**
+     * Lines the last replay skipped
+     */
+    int getCorruptRecords() {
+        return this.corruptRecords;
+    }
+
+    void close() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+            }
+            this.out = null;
+        }
+    }
+
+    private static byte[] sealed(String record) throws IOException {
+        byte[] bytes = record.getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (record + "\t" + Long.toHexString(crc.getValue()) + "\n").getBytes("UTF-8");
+    }
+
+    /**
+     * @return the record without its checksum, null if the checksum does not match
+     */
+    private static String checked(String line) throws IOException {
+        int tab = line.lastIndexOf('\t');
+        if (tab <= 0) {
+            return null;
+        }
+        String record = line.substring(0, tab);
+        byte[] bytes = record.getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return Long.toHexString(crc.getValue()).equals(line.substring(tab + 1)) ? record : null;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), 1 << 20));
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package com.brajendra.camrea.upload;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads saved pictures straight from disk in fixed-size chunks.
+ * <p>
+ * Only one chunk of a file is in memory at a time, read into a buffer the upload reuses, and
+ * Base64-encoded into a second reused buffer when the server wants text. Uploads run on a small
+ * pool of "Uploader" threads, so a burst of captures does not open a connection each.
+ * <p>
+ * Protocol, offsets are always in file bytes:
+ * <ul>
+ * <li>HEAD with Upload-Id: the server answers with the Upload-Offset it already has (404: none)</li>
+ * <li>POST with Upload-Id, Upload-Offset and Upload-Length, the chunk as the body (Base64 chunks also
+ * carry Upload-Encoding: base64): the server answers 2xx with its new Upload-Offset, or 409 with the
+ * offset it expected</li>
+ * </ul>
+ * A failed chunk, or a 409 that does not move the upload forward, is retried from the offset the
+ * server reports with a growing delay. An offset missing from a 409, going backwards or past the
+ * end of the file ends the upload with a ProtocolException, since retrying cannot fix it. An
+ * upload that gave up picks up where it stopped when the same id is uploaded again. Small files
+ * can instead be sent several to a request with {@link #sendBatch}. No Android dependencies, so
+ * it can be run against a stand-in server on a desktop JVM.
+ */
+public final class ChunkedUploader {
+
+    /**
+     * Progress of a {@link #send} on its calling thread
+     */
+    public interface ProgressListener {
+        void onProgress(String uploadId, long uploaded, long total);
+    }
+
+    //256 KB rounded down to whole Base64 groups
+    public static final int DEFAULT_CHUNK_SIZE = 255 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MS = 500;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private final URL endpoint;
+    private final int chunkSize;
+    private final boolean base64;
+    private final ThreadPoolExecutor executor;
+    private final Executor callbackExecutor;
+
+    /**
+     * @param endpoint         Upload URL
+     * @param chunkSize        File bytes per request, rounded down to a multiple of 3 for Base64
+     * @param concurrency      Files uploaded at the same time
+     * @param base64           Send chunks as Base64 text instead of raw bytes
+     * @param callbackExecutor Where {@link UploadCallback} methods run
+     */
+    public ChunkedUploader(String endpoint, int chunkSize, int concurrency, boolean base64, Executor callbackExecutor) {
+        try {
+            this.endpoint = new URL(endpoint);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Bad upload endpoint " + endpoint, e);
+        }
+        this.base64 = base64;
+        this.chunkSize = base64 ? Math.max(3, chunkSize / 3 * 3) : Math.max(1, chunkSize);
+        this.callbackExecutor = callbackExecutor;
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, "Uploader-" + (++this.count));
+            }
+        });
+    }
+
+    /**
+     * Queue a file for upload
+     *
+     * @param file
+     * @param uploadId Names the upload on the server, the same id resumes it
+     * @param callback
+     * @return cancel it to stop the upload between chunks
+     */
+    public Future<?> upload(final File file, final String uploadId, final UploadCallback callback) {
+        return this.executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                runUpload(file, uploadId, callback);
+            }
+        });
+    }
+
+    /**
+     * Stop taking uploads, queued ones still run
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * Batch several small files into one multipart/form-data POST, one part per file named after
+     * its upload id. Parts are streamed from disk through one reused buffer, Base64 parts carry
+     * Content-Transfer-Encoding: base64. Calling thread, not retried: a failed batch is sent again
+     * whole by the caller.
+     *
+     * @param files
+     * @param uploadIds Same order as files
+     * @return bytes of the files sent
+     */
+    public long sendBatch(List<File> files, List<String> uploadIds) throws IOException {
+        String boundary = "CameraCropper" + Long.toHexString(System.nanoTime());
+        int count = files.size();
+        byte[][] headers = new byte[count][];
+        long[] lengths = new long[count];
+        long fileBytes = 0;
+        long bodyLength = 0;
+        for (int i = 0; i < count; i++) {
+            File file = files.get(i);
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            lengths[i] = file.length();
+            StringBuilder header = new StringBuilder();
+            header.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(uploadIds.get(i))
+                    .append("\"; filename=\"").append(file.getName()).append("\"\r\n")
+                    .append("Content-Type: image/jpeg\r\n");
+            if (this.base64) {
+                header.append("Content-Transfer-Encoding: base64\r\n");
+            }
+            header.append("\r\n");
+            headers[i] = header.toString().getBytes("US-ASCII");
+            long partLength = this.base64 ? (lengths[i] + 2) / 3 * 4 : lengths[i];
+            bodyLength += headers[i].length + partLength + 2;
+            fileBytes += lengths[i];
+        }
+        byte[] closing = ("--" + boundary + "--\r\n").getBytes("US-ASCII");
+        bodyLength += closing.length;
+
+        byte[] chunk = new byte[this.chunkSize];
+        byte[] encoded = this.base64 ? new byte[Base64Encoder.encodedLength(chunk.length)] : null;
+        byte[] lineEnd = {'\r', '\n'};
+        HttpURLConnection connection = this.open(null);
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Upload-Batch", String.valueOf(count));
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+            if (bodyLength <= Integer.MAX_VALUE) {
+                //The long overload is API 19
+                connection.setFixedLengthStreamingMode((int) bodyLength);
+            } else {
+                connection.setChunkedStreamingMode(this.chunkSize);
+            }
+            OutputStream out = connection.getOutputStream();
+            try {
+                for (int i = 0; i < count; i++) {
+                    out.write(headers[i]);
+                    InputStream in = new FileInputStream(files.get(i));
+                    try {
+                        long remaining = lengths[i];
+                        while (remaining > 0) {
+                            if (Thread.interrupted()) {
+                                throw new InterruptedIOException("Upload cancelled");
+                            }
+                            int length = (int) Math.min(chunk.length, remaining);
+                            readFully(in, chunk, length);
+                            if (encoded != null) {
+                                out.write(encoded, 0, Base64Encoder.encode(chunk, 0, length, encoded));
+                            } else {
+                                out.write(chunk, 0, length);
+                            }
+                            remaining -= length;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    out.write(lineEnd);
+                }
+                out.write(closing);
+            } finally {
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException("Batch upload failed with HTTP " + code);
+            }
+            drain(connection);
+            return fileBytes;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Upload a file on the calling thread, resuming from what the server already has
+     *
+     * @param file
+     * @param uploadId Names the upload on the server, the same id resumes it
+     * @param listener Told after every chunk on the calling thread, may be null
+     * @return what the upload took
+     * @throws IOException once a chunk failed several times in a row, the server keeps what it got
+     */
+    public UploadReport send(File file, String uploadId, ProgressListener listener) throws IOException {
+        UploadReport report = new UploadReport();
+        report.uploadId = uploadId;
+        long start = System.nanoTime();
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        long total = file.length();
+        report.bytes = total;
+        long offset = checkOffset(this.queryOffset(uploadId), 0, total);
+        report.resumedFrom = offset;
+
+        byte[] chunk = new byte[(int) Math.min(this.chunkSize, Math.max(1, total))];
+        byte[] encoded = this.base64 ? new byte[Base64Encoder.encodedLength(chunk.length)] : null;
+        report.bufferBytes = chunk.length + (encoded == null ? 0 : encoded.length);
+        Runtime runtime = Runtime.getRuntime();
+        report.peakHeapBytes = runtime.totalMemory() - runtime.freeMemory();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            int attempts = 0;
+            while (offset < total) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Upload cancelled");
+                }
+                int length = (int) Math.min(chunk.length, total - offset);
+                in.seek(offset);
+                in.readFully(chunk, 0, length);
+                try {
+                    long next = this.sendChunk(uploadId, offset, total, chunk, length, encoded);
+                    if (next == offset) {
+                        //A 409 at the offset that was just sent, the server is not taking the chunk
+                        throw new IOException("Upload stuck at offset " + offset);
+                    }
+                    offset = next;
+                    attempts = 0;
+                    report.chunks++;
+                } catch (IOException e) {
+                    if (++attempts >= MAX_ATTEMPTS || e instanceof InterruptedIOException
+                            || e instanceof ProtocolException) {
+                        throw e;
+                    }
+                    report.retries++;
+                    sleep(RETRY_DELAY_MS << (attempts - 1));
+                    offset = checkOffset(this.queryOffset(uploadId, offset), 0, total);
+                }
+                report.peakHeapBytes = Math.max(report.peakHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+                if (listener != null) {
+                    listener.onProgress(uploadId, offset, total);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    private void runUpload(File file, final String uploadId, final UploadCallback callback) {
+        //Last offset the server confirmed, for onFailure
+        final long[] uploaded = new long[1];
+        try {
+            final UploadReport report = this.send(file, uploadId, new ProgressListener() {
+                @Override
+                public void onProgress(String id, long offset, long total) {
+                    uploaded[0] = offset;
+                    progress(callback, id, offset, total);
+                }
+            });
+            this.callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onComplete(report);
+                }
+            });
+        } catch (final IOException e) {
+            this.callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFailure(uploadId, uploaded[0], e);
+                }
+            });
+        }
+    }
+
+    private void progress(final UploadCallback callback, final String uploadId, final long uploaded, final long total) {
+        this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onProgress(uploadId, uploaded, total);
+            }
+        });
+    }
+
+    /**
+     * Bytes the server already has for an upload
+     */
+    private long queryOffset(String uploadId) throws IOException {
+        HttpURLConnection connection = this.open(uploadId);
+        try {
+            connection.setRequestMethod("HEAD");
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                return 0;
+            }
+            if (code / 100 != 2) {
+                throw new IOException("Upload offset query failed with HTTP " + code);
+            }
+            return parseOffset(connection, 0);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Bytes the server has after a failed chunk, or the local offset if it cannot be asked
+     */
+    private long queryOffset(String uploadId, long fallback) {
+        try {
+            return this.queryOffset(uploadId);
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * @return the server's offset after the chunk
+     */
+    private long sendChunk(String uploadId, long offset, long total, byte[] chunk, int length, byte[] encoded)
+            throws IOException {
+        HttpURLConnection connection = this.open(uploadId);
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Upload-Offset", String.valueOf(offset));
+            connection.setRequestProperty("Upload-Length", String.valueOf(total));
+            byte[] body = chunk;
+            int bodyLength = length;
+            if (encoded != null) {
+                bodyLength = Base64Encoder.encode(chunk, 0, length, encoded);
+                body = encoded;
+                //Content-Transfer-Encoding is one of the headers HttpURLConnection may drop
+                connection.setRequestProperty("Content-Type", "text/plain");
+                connection.setRequestProperty("Upload-Encoding", "base64");
+            } else {
+                connection.setRequestProperty("Content-Type", "application/octet-stream");
+            }
+            //Streams the body instead of buffering it to work out its length
+            connection.setFixedLengthStreamingMode(bodyLength);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body, 0, bodyLength);
+            } finally {
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_CONFLICT) {
+                //The server is further on in the file, carry on from there
+                return checkOffset(parseOffset(connection, -1), offset, total);
+            }
+            if (code / 100 != 2) {
+                throw new IOException("Chunk upload failed with HTTP " + code);
+            }
+            drain(connection);
+            return checkOffset(parseOffset(connection, offset + length), offset, total);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String uploadId) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) this.endpoint.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setUseCaches(false);
+        if (uploadId != null) {
+            connection.setRequestProperty("Upload-Id", uploadId);
+        }
+        return connection;
+    }
+
+    /**
+     * @param offset An offset the server reported, -1 if it left it out
+     * @param min    Smallest offset that makes sense here
+     * @param total  File length
+     * @return offset
+     * @throws ProtocolException if the offset is missing or out of range
+     */
+    private static long checkOffset(long offset, long min, long total) throws ProtocolException {
+        if (offset < 0) {
+            throw new ProtocolException("Upload-Offset missing");
+        }
+        if (offset < min || offset > total) {
+            throw new ProtocolException("Upload-Offset " + offset + " outside " + min + ".." + total);
+        }
+        return offset;
+    }
+
+    private static long parseOffset(HttpURLConnection connection, long fallback) throws IOException {
+        String value = connection.getHeaderField("Upload-Offset");
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Upload-Offset " + value);
+        }
+    }
+
+    /**
+     * Read the response body so the connection can be kept alive
+     */
+    private static void drain(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[512];
+            while (in.read(buffer) != -1) {
+                //Discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buffer, read, length - read);
+            if (count < 0) {
+                throw new EOFException("File shrank while it was uploaded");
+            }
+            read += count;
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload cancelled");
+        }
+    }
+}
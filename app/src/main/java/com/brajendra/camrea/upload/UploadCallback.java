@@ -0,0 +1,22 @@
+package com.brajendra.camrea.upload;
+
+/**
+ * Upload progress, delivered on the executor given to {@link ChunkedUploader}
+ */
+public interface UploadCallback {
+
+    /**
+     * @param uploaded File bytes the server has confirmed
+     * @param total    File size
+     */
+    public void onProgress(String uploadId, long uploaded, long total);
+
+    public void onComplete(UploadReport report);
+
+    /**
+     * The upload gave up; uploading the same file with the same id again resumes it
+     *
+     * @param uploaded File bytes the server had confirmed
+     */
+    public void onFailure(String uploadId, long uploaded, Exception e);
+}
@@ -0,0 +1,89 @@
+package com.brajendra.camrea.upload;
+
+/**
+ * One capture in an {@link UploadQueue}, a snapshot taken when it is handed out
+ */
+public class UploadItem {
+
+    public enum State {
+        //Waiting for its turn or for its backoff to run out
+        PENDING,
+        UPLOADING,
+        UPLOADED,
+        //The file was cancelled or is gone, it will not be sent
+        DROPPED
+    }
+
+    String id;
+    String path;
+    long bytes;
+    long uploaded;
+    int attempts;
+    State state = State.PENDING;
+    //Not tried again before this, System.currentTimeMillis
+    long nextAttemptAt;
+
+    UploadItem(String id, String path, long bytes) {
+        this.id = id;
+        this.path = path;
+        this.bytes = bytes;
+    }
+
+    UploadItem copy() {
+        UploadItem copy = new UploadItem(this.id, this.path, this.bytes);
+        copy.uploaded = this.uploaded;
+        copy.attempts = this.attempts;
+        copy.state = this.state;
+        copy.nextAttemptAt = this.nextAttemptAt;
+        return copy;
+    }
+
+    /**
+     * Upload id, stays the same across restarts so an interrupted upload resumes
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * File size when it was queued
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * File bytes the server has confirmed
+     */
+    public long getUploaded() {
+        return this.uploaded;
+    }
+
+    /**
+     * Failed attempts so far, reset when the app restarts
+     */
+    public int getAttempts() {
+        return this.attempts;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * When a failed item is tried again, System.currentTimeMillis
+     */
+    public long getNextAttemptAt() {
+        return this.nextAttemptAt;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadItem{id=" + this.id + ", state=" + this.state + ", uploaded=" + this.uploaded + "/" + this.bytes
+                + ", attempts=" + this.attempts + ", path=" + this.path + "}";
+    }
+}
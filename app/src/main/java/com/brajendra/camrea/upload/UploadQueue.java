@@ -0,0 +1,580 @@
+package com.brajendra.camrea.upload;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps saved captures until the server has them, across network loss and app restarts.
+ * <p>
+ * {@link #enqueue} only adds the capture to memory and hands its journal record to a private
+ * "CaptureJournal" thread, which writes and fsyncs whatever records piled up in one go; the
+ * caller, typically the capture pipeline, never waits on the disk. Captures are sent in order
+ * on an "UploadQueue" thread: files up to one chunk are batched several to a request with
+ * {@link ChunkedUploader#sendBatch}, larger ones are sent alone in resumable chunks. A failed
+ * request pauses the whole queue with an exponential backoff, since it usually means the
+ * network is gone; {@link #retryNow} cuts the wait short when it comes back.
+ * <p>
+ * {@link #start} replays the journal, so captures queued before the app was killed are sent
+ * again under the same upload ids and large ones resume where the server stopped.
+ */
+public final class UploadQueue {
+
+    public static final int DEFAULT_BATCH_ITEMS = 8;
+    public static final long DEFAULT_BATCH_BYTES = 1024 * 1024;
+
+    private static final long BASE_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    //Window the drain rate is averaged over, and completions remembered for it
+    private static final long RATE_WINDOW_MS = 60 * 1000;
+    private static final int RATE_SAMPLES = 256;
+    //Finished records the journal may hold before it is rewritten
+    private static final int COMPACT_SLACK = 256;
+
+    private final CaptureJournal journal;
+    private final ChunkedUploader uploader;
+    private final int batchItems;
+    private final long batchBytes;
+    private final Executor callbackExecutor;
+    private final ExecutorService journalExecutor;
+    private final ScheduledExecutorService drainExecutor;
+    private volatile UploadQueueListener listener;
+
+    //Captures not uploaded yet, in queue order
+    private final Map<String, UploadItem> items = new LinkedHashMap<>();
+    //Journal records not written yet
+    private List<String> unwritten = new ArrayList<>();
+    private long sequence;
+    //No request is made before this, System.currentTimeMillis
+    private long pausedUntil;
+    private int failures;
+    //When the next drain is scheduled, Long.MAX_VALUE if none is
+    private long drainAt = Long.MAX_VALUE;
+
+    //Read by getStats
+    private long enqueued;
+    private long uploadedItems;
+    private long uploadedBytes;
+    private long failedRequests;
+    private long droppedItems;
+    private long requests;
+    private long journalWrites;
+    private long journalNanos;
+    private long journalErrors;
+    //Completion times of the last uploads, a ring for getDrainRate
+    private final long[] completions = new long[RATE_SAMPLES];
+    private int completionCount;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushJournal();
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UploadQueue.this) {
+                drainAt = Long.MAX_VALUE;
+            }
+            drain();
+        }
+    };
+
+    /**
+     * @param journalFile      Where the queue is kept, e.g. in Context.getFilesDir()
+     * @param uploader         Sends the captures
+     * @param batchItems       Most captures sent in one request
+     * @param batchBytes       Most file bytes sent in one request
+     * @param callbackExecutor Where {@link UploadQueueListener} methods run
+     */
+    public UploadQueue(File journalFile, ChunkedUploader uploader, int batchItems, long batchBytes,
+                       Executor callbackExecutor) {
+        this.journal = new CaptureJournal(journalFile);
+        this.uploader = uploader;
+        this.batchItems = Math.max(1, batchItems);
+        this.batchBytes = Math.max(1, batchBytes);
+        this.callbackExecutor = callbackExecutor;
+        this.journalExecutor = Executors.newSingleThreadExecutor(named("CaptureJournal"));
+        this.drainExecutor = Executors.newSingleThreadScheduledExecutor(named("UploadQueue"));
+    }
+
+    public void setListener(UploadQueueListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Bring back the captures the journal still holds and start sending
+     */
+    public void start() {
+        this.journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recover();
+            }
+        });
+    }
+
+    /**
+     * Queue a saved capture, does not touch the disk beyond the file size
+     *
+     * @param file
+     * @return its upload id
+     */
+    public String enqueue(File file) {
+        UploadItem item;
+        synchronized (this) {
+            String id = Long.toString(System.currentTimeMillis(), 36) + "-" + (++this.sequence);
+            item = new UploadItem(id, file.getPath(), file.length());
+            this.items.put(id, item);
+            this.unwritten.add(CaptureJournal.added(item));
+            this.enqueued++;
+            item = item.copy();
+        }
+        this.flushLater();
+        this.notifyChanged(item);
+        this.scheduleDrain(0);
+        return item.id;
+    }
+
+    /**
+     * Take a capture out of the queue, e.g. before its file is deleted
+     *
+     * @param path File path it was queued with
+     * @return false if it is not queued or already being sent
+     */
+    public boolean remove(String path) {
+        UploadItem removed = null;
+        synchronized (this) {
+            for (Iterator<UploadItem> it = this.items.values().iterator(); it.hasNext(); ) {
+                UploadItem item = it.next();
+                if (item.path.equals(path) && item.state == UploadItem.State.PENDING) {
+                    it.remove();
+                    item.state = UploadItem.State.DROPPED;
+                    this.unwritten.add(CaptureJournal.dropped(item.id));
+                    this.droppedItems++;
+                    removed = item.copy();
+                    break;
+                }
+            }
+        }
+        if (removed == null) {
+            return false;
+        }
+        this.flushLater();
+        this.notifyChanged(removed);
+        return true;
+    }
+
+    /**
+     * Drop the backoff and try the queue now, e.g. when the network comes back
+     */
+    public void retryNow() {
+        synchronized (this) {
+            this.pausedUntil = 0;
+            for (UploadItem item : this.items.values()) {
+                item.nextAttemptAt = 0;
+            }
+        }
+        this.scheduleDrain(0);
+    }
+
+    /**
+     * Captures not uploaded yet
+     */
+    public synchronized int getQueueDepth() {
+        return this.items.size();
+    }
+
+    /**
+     * File bytes not uploaded yet
+     */
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (UploadItem item : this.items.values()) {
+            bytes += item.bytes - item.uploaded;
+        }
+        return bytes;
+    }
+
+    /**
+     * Captures uploaded per second over the last minute
+     */
+    public synchronized double getDrainRate() {
+        long since = System.currentTimeMillis() - RATE_WINDOW_MS;
+        int count = 0;
+        int samples = Math.min(this.completionCount, RATE_SAMPLES);
+        for (int i = 0; i < samples; i++) {
+            if (this.completions[i] >= since) {
+                count++;
+            }
+        }
+        return count * 1000.0 / RATE_WINDOW_MS;
+    }
+
+    /**
+     * @return snapshots of the captures not uploaded yet, in queue order
+     */
+    public synchronized List<UploadItem> getItems() {
+        List<UploadItem> copies = new ArrayList<>(this.items.size());
+        for (UploadItem item : this.items.values()) {
+            copies.add(item.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * @return {queue depth, pending bytes, captures queued, uploaded, bytes uploaded, dropped,
+     * requests, failed requests, journal writes, journal nanoseconds, journal errors}
+     */
+    public synchronized long[] getStats() {
+        long pendingBytes = this.getPendingBytes();
+        return new long[]{this.items.size(), pendingBytes, this.enqueued, this.uploadedItems, this.uploadedBytes,
+                this.droppedItems, this.requests, this.failedRequests, this.journalWrites, this.journalNanos,
+                this.journalErrors};
+    }
+
+    /**
+     * Stop sending and close the journal; what is left is sent after the next start
+     */
+    public void shutdown() {
+        this.drainExecutor.shutdownNow();
+        this.journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushJournal();
+                journal.close();
+            }
+        });
+        this.journalExecutor.shutdown();
+    }
+
+    /**
+     * Journal thread
+     */
+    private void recover() {
+        List<UploadItem> recovered;
+        try {
+            recovered = this.journal.replay();
+        } catch (IOException e) {
+            recovered = new ArrayList<>();
+            synchronized (this) {
+                this.journalErrors++;
+            }
+        }
+        List<UploadItem> live;
+        synchronized (this) {
+            //Recovered captures go ahead of the ones queued since the app started
+            Map<String, UploadItem> merged = new LinkedHashMap<>();
+            for (UploadItem item : recovered) {
+                if (new File(item.path).isFile()) {
+                    merged.put(item.id, item);
+                }
+            }
+            merged.putAll(this.items);
+            this.items.clear();
+            this.items.putAll(merged);
+        }
+        //Rewrite the journal without finished, missing and torn records; whatever is queued from
+        //here on is appended after the rewrite
+        this.flushJournal();
+        synchronized (this) {
+            live = new ArrayList<>(this.items.size());
+            for (UploadItem item : this.items.values()) {
+                live.add(item.copy());
+            }
+        }
+        try {
+            this.journal.compact(live);
+        } catch (IOException e) {
+            synchronized (this) {
+                this.journalErrors++;
+            }
+        }
+        this.scheduleDrain(0);
+    }
+
+    /**
+     * Journal thread
+     */
+    private void flushJournal() {
+        List<String> lines;
+        synchronized (this) {
+            if (this.unwritten.isEmpty()) {
+                return;
+            }
+            lines = this.unwritten;
+            this.unwritten = new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            this.journal.append(lines);
+        } catch (IOException e) {
+            failed = true;
+        }
+        List<UploadItem> live = null;
+        synchronized (this) {
+            this.journalWrites++;
+            this.journalNanos += System.nanoTime() - start;
+            if (failed) {
+                this.journalErrors++;
+                //Keep them for the next flush
+                lines.addAll(this.unwritten);
+                this.unwritten = lines;
+            } else if (this.journal.getRecords() > this.items.size() * 2 + COMPACT_SLACK) {
+                live = new ArrayList<>(this.items.size());
+                for (UploadItem item : this.items.values()) {
+                    live.add(item.copy());
+                }
+            }
+        }
+        if (live != null) {
+            try {
+                this.journal.compact(live);
+            } catch (IOException e) {
+                synchronized (this) {
+                    this.journalErrors++;
+                }
+            }
+        }
+    }
+
+    private void flushLater() {
+        try {
+            this.journalExecutor.execute(this.flushTask);
+        } catch (RejectedExecutionException e) {
+            //Shut down, the record is lost and the capture is sent again after a restart
+        }
+    }
+
+    private void scheduleDrain(long delayMillis) {
+        long at = System.currentTimeMillis() + delayMillis;
+        synchronized (this) {
+            if (this.drainAt <= at) {
+                return;
+            }
+            this.drainAt = at;
+        }
+        try {
+            this.drainExecutor.schedule(this.drainTask, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //Shut down
+        }
+    }
+
+    /**
+     * UploadQueue thread
+     */
+    private void drain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<UploadItem> batch = this.nextBatch();
+            if (batch == null) {
+                return;
+            }
+            if (batch.size() == 1 && batch.get(0).bytes > this.uploader.getChunkSize()) {
+                this.sendAlone(batch.get(0));
+            } else {
+                this.sendBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Pick what to send next and mark it uploading
+     *
+     * @return null when nothing can be sent now, after scheduling the next drain
+     */
+    private List<UploadItem> nextBatch() {
+        List<UploadItem> batch = new ArrayList<>();
+        List<UploadItem> missing = new ArrayList<>();
+        long wakeAt = Long.MAX_VALUE;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now < this.pausedUntil) {
+                wakeAt = this.pausedUntil;
+            } else {
+                long bytes = 0;
+                for (Iterator<UploadItem> it = this.items.values().iterator(); it.hasNext(); ) {
+                    UploadItem item = it.next();
+                    if (item.state != UploadItem.State.PENDING) {
+                        continue;
+                    }
+                    if (item.nextAttemptAt > now) {
+                        wakeAt = Math.min(wakeAt, item.nextAttemptAt);
+                        continue;
+                    }
+                    if (!new File(item.path).isFile()) {
+                        it.remove();
+                        missing.add(item);
+                        continue;
+                    }
+                    boolean large = item.bytes > this.uploader.getChunkSize();
+                    if (large && batch.isEmpty()) {
+                        //Sent alone, in chunks
+                        batch.add(item);
+                        break;
+                    }
+                    if (large || batch.size() == this.batchItems
+                            || (!batch.isEmpty() && bytes + item.bytes > this.batchBytes)) {
+                        break;
+                    }
+                    batch.add(item);
+                    bytes += item.bytes;
+                }
+            }
+            for (UploadItem item : batch) {
+                item.state = UploadItem.State.UPLOADING;
+            }
+        }
+        for (UploadItem item : missing) {
+            this.finish(item, UploadItem.State.DROPPED);
+        }
+        for (UploadItem item : batch) {
+            this.notifyChanged(item);
+        }
+        if (batch.isEmpty()) {
+            if (wakeAt != Long.MAX_VALUE) {
+                this.scheduleDrain(Math.max(0, wakeAt - System.currentTimeMillis()));
+            }
+            return null;
+        }
+        return batch;
+    }
+
+    private void sendAlone(final UploadItem item) {
+        this.countRequest();
+        try {
+            this.uploader.send(new File(item.path), item.id, new ChunkedUploader.ProgressListener() {
+                @Override
+                public void onProgress(String uploadId, long uploaded, long total) {
+                    synchronized (UploadQueue.this) {
+                        item.uploaded = uploaded;
+                    }
+                    notifyChanged(item);
+                }
+            });
+            this.finish(item, UploadItem.State.UPLOADED);
+        } catch (FileNotFoundException e) {
+            this.finish(item, UploadItem.State.DROPPED);
+        } catch (IOException e) {
+            this.fail(Collections.singletonList(item));
+        }
+    }
+
+    private void sendBatch(List<UploadItem> batch) {
+        List<File> files = new ArrayList<>(batch.size());
+        List<String> ids = new ArrayList<>(batch.size());
+        for (UploadItem item : batch) {
+            files.add(new File(item.path));
+            ids.add(item.id);
+        }
+        this.countRequest();
+        try {
+            this.uploader.sendBatch(files, ids);
+            for (UploadItem item : batch) {
+                this.finish(item, UploadItem.State.UPLOADED);
+            }
+        } catch (FileNotFoundException e) {
+            //A file went away since the batch was picked, drop it and send the rest again
+            synchronized (this) {
+                for (UploadItem item : batch) {
+                    item.state = UploadItem.State.PENDING;
+                }
+            }
+        } catch (IOException e) {
+            this.fail(batch);
+        }
+    }
+
+    /**
+     * Take an item off the queue for good
+     */
+    private void finish(UploadItem item, UploadItem.State state) {
+        UploadItem copy;
+        synchronized (this) {
+            this.items.remove(item.id);
+            item.state = state;
+            if (state == UploadItem.State.UPLOADED) {
+                item.uploaded = item.bytes;
+                this.unwritten.add(CaptureJournal.done(item.id));
+                this.uploadedItems++;
+                this.uploadedBytes += item.bytes;
+                this.completions[this.completionCount++ % RATE_SAMPLES] = System.currentTimeMillis();
+                this.failures = 0;
+            } else {
+                this.unwritten.add(CaptureJournal.dropped(item.id));
+                this.droppedItems++;
+            }
+            copy = item.copy();
+        }
+        this.flushLater();
+        this.notifyChanged(copy);
+    }
+
+    /**
+     * A request failed, back off the whole queue
+     */
+    private void fail(List<UploadItem> batch) {
+        long delay;
+        synchronized (this) {
+            this.failedRequests++;
+            this.failures++;
+            delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(this.failures - 1, 16));
+            long now = System.currentTimeMillis();
+            this.pausedUntil = now + delay;
+            for (UploadItem item : batch) {
+                item.state = UploadItem.State.PENDING;
+                item.attempts++;
+                item.nextAttemptAt = now + delay;
+            }
+        }
+        for (UploadItem item : batch) {
+            this.notifyChanged(item);
+        }
+    }
+
+    private synchronized void countRequest() {
+        this.requests++;
+    }
+
+    private void notifyChanged(UploadItem item) {
+        final UploadQueueListener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+        final UploadItem copy;
+        synchronized (this) {
+            copy = item.copy();
+        }
+        this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onItemChanged(copy);
+            }
+        });
+    }
+
+    private static ThreadFactory named(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name);
+            }
+        };
+    }
+}
@@ -0,0 +1,14 @@
+package com.brajendra.camrea.upload;
+
+/**
+ * Per-capture progress of an {@link UploadQueue}, delivered on the executor given to it
+ */
+public interface UploadQueueListener {
+
+    /**
+     * A capture was queued, started, made progress, was uploaded, failed or was dropped
+     *
+     * @param item Snapshot of the capture
+     */
+    public void onItemChanged(UploadItem item);
+}
@@ -0,0 +1,72 @@
+package com.brajendra.camrea.upload;
+
+/**
+ * What one finished upload cost, see {@link UploadCallback#onComplete}
+ */
+public class UploadReport {
+    String uploadId;
+    long bytes;
+    long resumedFrom;
+    int chunks;
+    int retries;
+    long nanos;
+    long bufferBytes;
+    long peakHeapBytes;
+
+    public String getUploadId() {
+        return this.uploadId;
+    }
+
+    /**
+     * File size
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Offset the server already had when the upload started, 0 for a fresh upload
+     */
+    public long getResumedFrom() {
+        return this.resumedFrom;
+    }
+
+    /**
+     * Requests that carried data
+     */
+    public int getChunks() {
+        return this.chunks;
+    }
+
+    /**
+     * Chunks sent again after a failed request
+     */
+    public int getRetries() {
+        return this.retries;
+    }
+
+    public long getNanos() {
+        return this.nanos;
+    }
+
+    /**
+     * Chunk and encoding buffers this upload held, the only memory it needs whatever the file size
+     */
+    public long getBufferBytes() {
+        return this.bufferBytes;
+    }
+
+    /**
+     * Highest heap use of the whole process seen between chunks
+     */
+    public long getPeakHeapBytes() {
+        return this.peakHeapBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadReport{id=" + this.uploadId + ", bytes=" + this.bytes + ", resumedFrom=" + this.resumedFrom
+                + ", chunks=" + this.chunks + ", retries=" + this.retries + ", ms=" + this.nanos / 1000000
+                + ", bufferBytes=" + this.bufferBytes + ", peakHeapBytes=" + this.peakHeapBytes + "}";
+    }
+}
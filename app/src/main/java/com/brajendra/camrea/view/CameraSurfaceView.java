@@ -5,9 +5,9 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
+import android.graphics.Path;
 import android.graphics.PixelFormat;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.Display;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -53,20 +53,57 @@ public class CameraSurfaceView extends FrameLayout {
     public void setMaskSize(Integer width, Integer height) {
         maskHeight = height;
         maskWidth = width;
+        maskView.rebuild();
     }
 
+    /**
+     * Outline the document found in the preview, main thread
+     *
+     * @param quad Corners TL, TR, BR, BL as fractions of the view, null to remove the outline
+     */
+    public void setDetectedQuad(float[] quad) {
+        maskView.setQuad(quad);
+    }
+
+    /**
+     * @return {maskWidth, maskHeight, width, height}, the mask turned to the view's orientation
+     */
     public int[] getMaskSize() {
         return new MaskSize().size;
     }
 
+    /**
+     * Overlay draw cost, to check it stays off the frame budget; any thread
+     *
+     * @return {draws, geometry rebuilds, total draw nanoseconds, slowest draw nanoseconds}
+     */
+    public long[] getOverlayDrawStats() {
+        synchronized (maskView.stats) {
+            return new long[]{maskView.drawCount, maskView.rebuildCount, maskView.drawNanos, maskView.maxDrawNanos};
+        }
+    }
+
     private class MaskSize {
         private int[] size;
 
         private MaskSize() {
-            this.size = new int[]{maskWidth, maskHeight, width, height};
+            int[] mask = orientedMask(width, height);
+            this.size = new int[]{mask[0], mask[1], width, height};
         }
     }
 
+    /**
+     * The mask as set, or turned by 90 degrees when it is oriented against the view
+     *
+     * @return {maskWidth, maskHeight}
+     */
+    private int[] orientedMask(int viewWidth, int viewHeight) {
+        if ((viewHeight > viewWidth && maskHeight < maskWidth) || (viewHeight < viewWidth && maskHeight > maskWidth)) {
+            return new int[]{maskHeight, maskWidth};
+        }
+        return new int[]{maskWidth, maskHeight};
+    }
+
     /**
      * Layout to host the camera
      */
@@ -84,8 +121,9 @@ public class CameraSurfaceView extends FrameLayout {
 
         @Override
         public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
-            width = w;
-            height = h;
+            //w and h are the buffer size, which the backend may have set apart from the view's
+            width = this.getWidth();
+            height = this.getHeight();
             CropCameraHelper.getInstance().openCamera(holder, format, width, height, screenWidth, screenHeight);
         }
 
@@ -108,10 +146,36 @@ public class CameraSurfaceView extends FrameLayout {
         private Paint rectPaint;
         private Paint topTextPaint;
         private Paint bottomTextPaint;
+        private Paint quadPaint;
+
+        //Detected document, as view fractions, and its outline in view pixels
+        private float[] quad;
+        private final Path quadOutline = new Path();
+
+        //Overlay geometry, only rebuilt when the view or mask size changes
+        private final Path shadow = new Path();
+        private boolean visible;
+        private float maskLeft;
+        private float maskTop;
+        private float maskRight;
+        private float maskBottom;
+        private float topTextX;
+        private float bottomTextX;
+        private float textY;
+
+        //Draw cost, written on the main thread and read by getOverlayDrawStats from any thread under stats
+        private final Object stats = new Object();
+        private long drawCount;
+        private long rebuildCount;
+        private long drawNanos;
+        private long maxDrawNanos;
 
         public MaskView(Context context) {
             super(context);
 
+            //Keep the rendered overlay in a GPU layer, it is composited over each preview frame without being redrawn
+            this.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+
             //Paint that draws the rectangular boundary of the transparent area in the middle
             linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
             linePaint.setColor(Color.TRANSPARENT);//Set the color of the middle area to transparent
@@ -138,56 +202,109 @@ public class CameraSurfaceView extends FrameLayout {
             //bottomTextPaint.setStyle(Paint.Style.FILL);
             bottomTextPaint.setTextAlign(Paint.Align.CENTER);//Put the x,y coordinates in the middle of the font (default x,y coordinates are the font head)
             bottomTextPaint.setTextSize(Util.sp2px(context, 12));
+
+            //Outline of the document found by auto-crop
+            quadPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            quadPaint.setColor(Color.GREEN);
+            quadPaint.setStyle(Style.STROKE);
+            quadPaint.setStrokeWidth(4f);
         }
 
-        @Override
-        protected void onDraw(Canvas canvas) {
-            if (maskHeight == 0 && maskWidth == 0) {
+        private void setQuad(float[] quad) {
+            if (quad == null && this.quad == null) {
                 return;
             }
-            if (maskHeight == height || maskWidth == width) {
+            this.quad = quad;
+            this.rebuildQuad();
+            this.invalidate();
+        }
+
+        private void rebuildQuad() {
+            this.quadOutline.reset();
+            if (this.quad == null) {
                 return;
             }
+            int width = this.getWidth();
+            int height = this.getHeight();
+            this.quadOutline.moveTo(this.quad[0] * width, this.quad[1] * height);
+            for (int i = 2; i < 8; i += 2) {
+                this.quadOutline.lineTo(this.quad[i] * width, this.quad[i + 1] * height);
+            }
+            this.quadOutline.close();
+        }
 
-            if ((height > width && maskHeight < maskWidth) || (height < width && maskHeight > maskWidth)) {
-                int temp = maskHeight;
-                maskHeight = maskWidth;
-                maskWidth = temp;
+        @Override
+        protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+            super.onSizeChanged(w, h, oldw, oldh);
+            this.rebuild();
+        }
+
+        /**
+         * Work out the overlay for the current view and mask size, then redraw it
+         */
+        private void rebuild() {
+            synchronized (this.stats) {
+                this.rebuildCount++;
             }
+            int width = this.getWidth();//View width
+            int height = this.getHeight();//View height
+            int[] mask = orientedMask(width, height);
+            int maskWidth = mask[0];//Width of middle transparent area
+            int maskHeight = mask[1];//Middle transparent area height
+            this.shadow.reset();
+            this.visible = !(maskHeight == 0 && maskWidth == 0) && maskHeight != height && maskWidth != width;
+            if (this.visible) {
+                int h = Math.abs((height - maskHeight) / 2);//Top shadow height
+                int w = Math.abs((width - maskWidth) / 2);//Right shadow width
 
-            //height：Screen height
-            //width：Screen width
-            //maskHeight：Middle transparent area height
-            //maskWidth：Width of middle transparent area
-            int h = Math.abs((height - maskHeight) / 2);//Top shadow height
-            int w = Math.abs((width - maskWidth) / 2);//Right shadow width
-
-            //Upper shadow
-            canvas.drawRect(0, 0, width, h, this.rectPaint);
-            //Right shadow
-            canvas.drawRect(width - w, h, width, height - h, this.rectPaint);
-            //Lower shadow
-            canvas.drawRect(0, height - h, width, height, this.rectPaint);
-            //Left shadow
-            canvas.drawRect(0, h, w, h + maskHeight, this.rectPaint);
-            //Medium and transparent
-            canvas.drawRect(w, h, w + maskWidth, h + maskHeight, this.linePaint);
-            canvas.save();//Save the top, bottom, left, and right
-            //Middle-top-font
-            canvas.rotate(90, width - w / 2, height / 2);//Rotate the canvas 90 degrees
-            canvas.drawText("Please scan", width - w / 2, height / 2, topTextPaint);
-            canvas.restore();//Restore the canvas to the last saved position to prevent this rotation from affecting the following operations
-            canvas.save();//Save the top font
-            //Middle-bottom-font
-            canvas.rotate(90, w / 2, height / 2);//Rotate 90 degrees
-            canvas.drawText("Please keep the light well, the background clean", w / 2, height / 2, bottomTextPaint);
-            canvas.restore();//Restore the canvas to the last saved position to prevent this rotation from affecting the following operations
-            canvas.save();//Save the bottom font
-
-            //Print logo
-            Log.e("Height width", "height:" + height + ",width:" + width + ",h:" + h + ",w:" + w + ",mskHeight:" + maskHeight + ",maskWidth:" + maskWidth);
+                //The four shadows are the view minus the transparent area
+                this.shadow.setFillType(Path.FillType.EVEN_ODD);
+                this.shadow.addRect(0, 0, width, height, Path.Direction.CW);
+                this.shadow.addRect(w, h, w + maskWidth, h + maskHeight, Path.Direction.CW);
+                this.maskLeft = w;
+                this.maskTop = h;
+                this.maskRight = w + maskWidth;
+                this.maskBottom = h + maskHeight;
+                this.topTextX = width - w / 2;
+                this.bottomTextX = w / 2;
+                this.textY = height / 2;
+            }
+            this.rebuildQuad();
+            this.invalidate();
+        }
 
+        @Override
+        protected void onDraw(Canvas canvas) {
+            long start = System.nanoTime();
+            if (this.visible) {
+                //Shadow around the middle
+                canvas.drawPath(this.shadow, this.rectPaint);
+                //Medium and transparent
+                canvas.drawRect(this.maskLeft, this.maskTop, this.maskRight, this.maskBottom, this.linePaint);
+                canvas.save();
+                //Middle-top-font
+                canvas.rotate(90, this.topTextX, this.textY);//Rotate the canvas 90 degrees
+                canvas.drawText("Please scan", this.topTextX, this.textY, topTextPaint);
+                canvas.restore();//Restore the canvas to prevent this rotation from affecting the following operations
+                canvas.save();
+                //Middle-bottom-font
+                canvas.rotate(90, this.bottomTextX, this.textY);//Rotate 90 degrees
+                canvas.drawText("Please keep the light well, the background clean", this.bottomTextX, this.textY, bottomTextPaint);
+                canvas.restore();
+            }
+            if (this.quad != null) {
+                canvas.drawPath(this.quadOutline, this.quadPaint);
+            }
             super.onDraw(canvas);
+
+            long nanos = System.nanoTime() - start;
+            synchronized (this.stats) {
+                this.drawCount++;
+                this.drawNanos += nanos;
+                if (nanos > this.maxDrawNanos) {
+                    this.maxDrawNanos = nanos;
+                }
+            }
         }
     }
 }
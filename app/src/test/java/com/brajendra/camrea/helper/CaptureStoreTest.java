@@ -0,0 +1,131 @@
+package com.brajendra.camrea.helper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CaptureStoreTest {
+
+    private static final int[] CROP = {10, 20, 110, 220};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void idsIncreaseWithinAMillisecondAndWhenTheClockStepsBack() throws IOException {
+        CaptureStore store = CaptureStore.open(this.folder.newFolder());
+        long first = store.newId(1000);
+        assertEquals(1000000, first);
+        assertEquals(first + 1, store.newId(1000));
+        assertEquals(first + 2, store.newId(999));
+        assertEquals(2000000, store.newId(2000));
+    }
+
+    @Test
+    public void bucketsAreSpreadForShutterTimeIds() {
+        //One capture per millisecond gives ids that are all multiples of 1000
+        Set<Integer> buckets = new HashSet<>();
+        int[] counts = new int[256];
+        for (long ms = 1600000000000L; ms < 1600000000000L + 25600; ms++) {
+            int bucket = CaptureStore.bucketOf(ms * 1000);
+            buckets.add(bucket);
+            counts[bucket]++;
+        }
+        assertEquals(256, buckets.size());
+        for (int count : counts) {
+            assertTrue("bucket holds " + count, count > 50 && count < 150);
+        }
+    }
+
+    @Test
+    public void savedCapturesAreListedNewestFirst() throws IOException {
+        File root = this.folder.newFolder();
+        CaptureStore store = CaptureStore.open(root);
+        long[] ids = new long[5];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = this.save(store, 1000 + i);
+        }
+        assertEquals(5, store.size());
+        List<CaptureEntry> page = store.list(1, 2);
+        assertEquals(2, page.size());
+        assertEquals(ids[3], page.get(0).getId());
+        assertEquals(ids[2], page.get(1).getId());
+        assertTrue(store.list(5, 10).isEmpty());
+
+        CaptureEntry entry = store.get(ids[0]);
+        assertArrayEquals(CROP, entry.getCropRect());
+        assertEquals(ids[0], CaptureStore.idOf(entry.getFile().getPath()));
+        assertEquals(CaptureStore.Status.SAVED, entry.getStatus());
+        assertTrue(entry.getFile().getParentFile().getParentFile().equals(root));
+        assertNull(store.get(12345));
+    }
+
+    @Test
+    public void indexSurvivesReopening() throws Exception {
+        File root = this.folder.newFolder();
+        CaptureStore store = CaptureStore.open(root);
+        long kept = this.save(store, 1000);
+        long uploaded = this.save(store, 1001);
+        long deleted = this.save(store, 1002);
+        assertTrue(store.setStatus(uploaded, CaptureStore.Status.UPLOADED));
+        File deletedFile = store.get(deleted).getFile();
+        assertTrue(store.delete(deleted));
+        assertFalse(deletedFile.exists());
+        assertFalse(store.delete(deleted));
+
+        CaptureStore reopened = reopen(root);
+        assertEquals(2, reopened.size());
+        assertEquals(CaptureStore.Status.SAVED, reopened.get(kept).getStatus());
+        assertEquals(CaptureStore.Status.UPLOADED, reopened.get(uploaded).getStatus());
+        assertNull(reopened.get(deleted));
+        //The deleted id is not handed out again
+        assertTrue(reopened.newId(1002) > deleted);
+    }
+
+    @Test
+    public void deletedIdsAreNotReusedAfterCompaction() throws Exception {
+        File root = this.folder.newFolder();
+        CaptureStore store = CaptureStore.open(root);
+        long last = 0;
+        for (int i = 0; i < 100; i++) {
+            last = this.save(store, 5000);
+            assertTrue(store.delete(last));
+        }
+        assertEquals(0, store.size());
+        CaptureStore reopened = reopen(root);
+        assertEquals(0, reopened.size());
+        assertTrue(reopened.newId(5000) > last);
+    }
+
+    private long save(CaptureStore store, long timestamp) throws IOException {
+        long id = store.newId(timestamp);
+        File file = store.fileFor(id);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        } finally {
+            out.close();
+        }
+        store.add(id, timestamp, CROP, file.length(), false);
+        return id;
+    }
+
+    /**
+     * A second store on the same directory, as after a restart; open would return the cached one
+     */
+    private static CaptureStore reopen(File root) throws Exception {
+        Constructor<CaptureStore> constructor = CaptureStore.class.getDeclaredConstructor(File.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(root);
+    }
+}
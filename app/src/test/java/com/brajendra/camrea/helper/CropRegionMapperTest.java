@@ -0,0 +1,79 @@
+package com.brajendra.camrea.helper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CropRegionMapperTest {
+
+    @Test
+    public void portraitMaskMapsToSensorRegion() {
+        int[] region = CropRegionMapper.mapCenteredMask(900, 600, 1080, 1920, 4000, 3000, 90, new int[4]);
+        assertArrayEquals(new int[]{1375, 250, 2625, 2750}, region);
+    }
+
+    @Test
+    public void landscapeMaskIsOnlyScaled() {
+        int[] region = CropRegionMapper.mapCenteredMask(1000, 500, 2000, 1000, 4000, 2000, 0, new int[4]);
+        assertArrayEquals(new int[]{1000, 500, 3000, 1500}, region);
+    }
+
+    @Test
+    public void rotateToSensorCoversExactlyTheDisplayedPixels() {
+        int imageWidth = 12;
+        int imageHeight = 8;
+        int[] rotations = {0, 90, 180, 270};
+        for (int rotation : rotations) {
+            boolean swap = rotation == 90 || rotation == 270;
+            int displayWidth = swap ? imageHeight : imageWidth;
+            int displayHeight = swap ? imageWidth : imageHeight;
+            int[] display = {1, 2, displayWidth - 3, displayHeight - 1};
+            int[] sensor = CropRegionMapper.rotateToSensor(display[0], display[1], display[2], display[3],
+                    imageWidth, imageHeight, rotation, new int[4]);
+            for (int y = 0; y < imageHeight; y++) {
+                for (int x = 0; x < imageWidth; x++) {
+                    //Where sensor pixel (x, y) is shown after a clockwise rotation
+                    int dx;
+                    int dy;
+                    switch (rotation) {
+                        case 90:
+                            dx = imageHeight - 1 - y;
+                            dy = x;
+                            break;
+                        case 180:
+                            dx = imageWidth - 1 - x;
+                            dy = imageHeight - 1 - y;
+                            break;
+                        case 270:
+                            dx = y;
+                            dy = imageWidth - 1 - x;
+                            break;
+                        default:
+                            dx = x;
+                            dy = y;
+                    }
+                    boolean inSensor = x >= sensor[0] && x < sensor[2] && y >= sensor[1] && y < sensor[3];
+                    boolean inDisplay = dx >= display[0] && dx < display[2] && dy >= display[1] && dy < display[3];
+                    assertEquals("rotation " + rotation + " at " + x + "," + y, inDisplay, inSensor);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void maskOutsideTheViewIsClamped() {
+        int[] region = CropRegionMapper.mapViewRect(-50, -50, 500, 400, 1000, 800, 2000, 1600, 0, new int[4]);
+        assertArrayEquals(new int[]{0, 0, 1000, 800}, region);
+        assertNull(CropRegionMapper.mapViewRect(1200, 0, 1300, 100, 1000, 800, 2000, 1600, 0, new int[4]));
+        assertNull(CropRegionMapper.mapViewRect(0, 0, 100, 100, 0, 800, 2000, 1600, 0, new int[4]));
+    }
+
+    @Test
+    public void quadBoundsAreRoundedOut() {
+        float[] quad = {0.1f, 0.2f, 0.9f, 0.25f, 0.85f, 0.8f, 0.15f, 0.75f};
+        int[] bounds = CropRegionMapper.mapQuadBounds(quad, 1000, 500, new int[4]);
+        assertArrayEquals(new int[]{100, 100, 900, 400}, bounds);
+        assertNull(CropRegionMapper.mapQuadBounds(new float[]{0.5f, 0.5f, 0.5f, 0.5f, 0.5f, 0.5f, 0.5f, 0.5f},
+                1000, 500, new int[4]));
+    }
+}
@@ -0,0 +1,161 @@
+package com.brajendra.camrea.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.brajendra.camrea.kernel.YuvFrame;
+
+/**
+ * {@link CameraBackend} that replays recorded stills instead of talking to a camera.
+ * <p>
+ * Each capture delivers the next recording on the calling thread, cycling through them. It counts
+ * what it was asked to do and how many YUV frames were handed back, to catch leaks.
+ * <p>
+ * Test only. On a JVM it drives the camera side of a capture and the pure-Java kernels; the
+ * helper and the pipeline decode and encode through android.graphics, so running them on it
+ * (installed with {@link CropCameraHelper#setCameraBackend}) needs a device or an emulator.
+ */
+class FakeCameraBackend implements CameraBackend {
+
+    private final List<byte[]> jpegs = new ArrayList<>();
+    private final List<YuvFrame> frames = new ArrayList<>();
+    private final int sensorOrientation;
+    private int next;
+
+    private boolean opened;
+    private boolean isPreviewing;
+    private int orientation;
+    private PreviewListener previewListener;
+
+    private int openCount;
+    private int captureCount;
+    private int releasedFrames;
+
+    /**
+     * @param sensorOrientation Orientation the recordings were made with, like CameraInfo.orientation
+     */
+    FakeCameraBackend(int sensorOrientation) {
+        this.sensorOrientation = sensorOrientation;
+    }
+
+    /**
+     * Replay a JPEG still
+     */
+    synchronized FakeCameraBackend addJpeg(byte[] jpeg) {
+        this.jpegs.add(jpeg);
+        this.frames.add(null);
+        return this;
+    }
+
+    /**
+     * Replay an NV21 frame as a YUV still
+     */
+    synchronized FakeCameraBackend addNv21(byte[] nv21, int width, int height) {
+        this.jpegs.add(null);
+        this.frames.add(YuvFrame.fromNv21(nv21, width, height));
+        return this;
+    }
+
+    @Override
+    public synchronized void open(OpenRequest request) {
+        this.opened = true;
+        this.openCount++;
+        if (request.sensorOrientation) {
+            this.orientation = LegacyCameraBackend.displayOrientation(this.sensorOrientation, false,
+                    request.displayRotation);
+        } else {
+            this.orientation = request.viewWidth > request.viewHeight ? 0 : 90;
+        }
+    }
+
+    @Override
+    public void startPreview() {
+        PreviewListener listener;
+        synchronized (this) {
+            this.isPreviewing = this.opened;
+            listener = this.isPreviewing ? this.previewListener : null;
+        }
+        if (listener != null) {
+            listener.onFirstFrame();
+        }
+    }
+
+    @Override
+    public synchronized void setPreviewListener(PreviewListener listener) {
+        this.previewListener = listener;
+    }
+
+    @Override
+    public synchronized void stopPreview() {
+        this.isPreviewing = false;
+    }
+
+    @Override
+    public synchronized boolean isPreviewing() {
+        return this.isPreviewing;
+    }
+
+    @Override
+    public void capture(CaptureListener listener) {
+        byte[] jpeg;
+        YuvFrame frame;
+        synchronized (this) {
+            if (!this.opened || this.jpegs.isEmpty()) {
+                jpeg = null;
+                frame = null;
+            } else {
+                int index = this.next;
+                this.next = (index + 1) % this.jpegs.size();
+                this.captureCount++;
+                jpeg = this.jpegs.get(index);
+                frame = this.frames.get(index);
+            }
+        }
+        if (jpeg == null && frame == null) {
+            listener.onFailure();
+            return;
+        }
+        listener.onShutter();
+        if (jpeg != null) {
+            //The pipeline owns the array it is given
+            listener.onJpeg(jpeg.clone());
+        } else {
+            listener.onFrame(frame, new CaptureJob.FrameReleaser() {
+                @Override
+                public void release(YuvFrame frame) {
+                    synchronized (FakeCameraBackend.this) {
+                        releasedFrames++;
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        this.opened = false;
+        this.isPreviewing = false;
+    }
+
+    @Override
+    public synchronized int getOrientation() {
+        return this.orientation;
+    }
+
+    @Override
+    public boolean isWarmOpen() {
+        return false;
+    }
+
+    synchronized int getOpenCount() {
+        return this.openCount;
+    }
+
+    synchronized int getCaptureCount() {
+        return this.captureCount;
+    }
+
+    synchronized int getReleasedFrames() {
+        return this.releasedFrames;
+    }
+}
@@ -0,0 +1,152 @@
+package com.brajendra.camrea.helper;
+
+import com.brajendra.camrea.kernel.Nv21Kernel;
+import com.brajendra.camrea.kernel.Yuv420Kernel;
+import com.brajendra.camrea.kernel.YuvFrame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the camera side of a capture through {@link FakeCameraBackend}, and crops replayed YUV
+ * stills with the same kernel the pipeline uses for Camera2 captures
+ */
+public class FakeCameraBackendTest {
+
+    @Test
+    public void captureFailsUntilOpened() {
+        FakeCameraBackend backend = new FakeCameraBackend(90).addJpeg(new byte[]{1, 2, 3});
+        RecordingListener listener = new RecordingListener();
+        backend.capture(listener);
+        assertEquals(Arrays.asList("failure"), listener.events);
+        assertEquals(0, backend.getCaptureCount());
+    }
+
+    @Test
+    public void jpegsAreReplayedInTurnAsCopies() {
+        byte[] first = {1, 2, 3};
+        byte[] second = {4, 5};
+        FakeCameraBackend backend = new FakeCameraBackend(90).addJpeg(first).addJpeg(second);
+        backend.open(request(1080, 1920, true, 0));
+        RecordingListener listener = new RecordingListener();
+        backend.capture(listener);
+        backend.capture(listener);
+        backend.capture(listener);
+        assertEquals(Arrays.asList("shutter", "jpeg", "shutter", "jpeg", "shutter", "jpeg"), listener.events);
+        assertArrayEquals(first, listener.jpegs.get(0));
+        assertArrayEquals(second, listener.jpegs.get(1));
+        assertArrayEquals(first, listener.jpegs.get(2));
+        //The pipeline may write into what it is given, the recording must survive
+        assertNotSame(first, listener.jpegs.get(0));
+        assertEquals(3, backend.getCaptureCount());
+        assertEquals(1, backend.getOpenCount());
+    }
+
+    @Test
+    public void orientationFollowsSensorAndDisplayRotation() {
+        FakeCameraBackend backend = new FakeCameraBackend(90);
+        backend.open(request(1080, 1920, true, 0));
+        assertEquals(90, backend.getOrientation());
+        backend.open(request(1920, 1080, true, 90));
+        assertEquals(0, backend.getOrientation());
+        backend.open(request(1920, 1080, false, 0));
+        assertEquals(0, backend.getOrientation());
+        backend.open(request(1080, 1920, false, 0));
+        assertEquals(90, backend.getOrientation());
+    }
+
+    @Test
+    public void previewReportsFirstFrameOnlyWhileOpen() {
+        FakeCameraBackend backend = new FakeCameraBackend(90);
+        final int[] frames = new int[1];
+        backend.setPreviewListener(new CameraBackend.PreviewListener() {
+            @Override
+            public void onFirstFrame() {
+                frames[0]++;
+            }
+        });
+        backend.startPreview();
+        assertFalse(backend.isPreviewing());
+        backend.open(request(1080, 1920, true, 0));
+        backend.startPreview();
+        assertTrue(backend.isPreviewing());
+        backend.release();
+        assertFalse(backend.isPreviewing());
+        assertEquals(1, frames[0]);
+    }
+
+    @Test
+    public void replayedYuvStillIsCroppedAndReleased() {
+        int width = 320;
+        int height = 240;
+        byte[] nv21 = new byte[Nv21Kernel.frameSize(width, height)];
+        new Random(7).nextBytes(nv21);
+        FakeCameraBackend backend = new FakeCameraBackend(90).addNv21(nv21, width, height);
+        backend.open(request(1080, 1920, true, 0));
+        RecordingListener listener = new RecordingListener();
+        backend.capture(listener);
+        assertEquals(Arrays.asList("shutter", "frame"), listener.events);
+
+        //What the pipeline does with a YUV still: crop it upright, then hand the frame back
+        int rotation = backend.getOrientation();
+        byte[] crop = new byte[Nv21Kernel.frameSize(160, 120)];
+        Yuv420Kernel.cropRotate(listener.frame, 40, 60, 160, 120, rotation, false, crop, null);
+        listener.releaser.release(listener.frame);
+
+        byte[] expected = new byte[crop.length];
+        Nv21Kernel.cropRotate(nv21, width, height, 40, 60, 160, 120, rotation, false, expected);
+        assertArrayEquals(expected, crop);
+        assertEquals(1, backend.getReleasedFrames());
+    }
+
+    private static CameraBackend.OpenRequest request(int viewWidth, int viewHeight, boolean sensorOrientation,
+                                                     int displayRotation) {
+        CameraBackend.OpenRequest request = new CameraBackend.OpenRequest();
+        request.viewWidth = viewWidth;
+        request.viewHeight = viewHeight;
+        request.sensorOrientation = sensorOrientation;
+        request.displayRotation = displayRotation;
+        return request;
+    }
+
+    private static class RecordingListener implements CameraBackend.CaptureListener {
+        final List<String> events = new ArrayList<>();
+        final List<byte[]> jpegs = new ArrayList<>();
+        YuvFrame frame;
+        CaptureJob.FrameReleaser releaser;
+
+        @Override
+        public void onFocused() {
+            this.events.add("focused");
+        }
+
+        @Override
+        public void onShutter() {
+            this.events.add("shutter");
+        }
+
+        @Override
+        public void onJpeg(byte[] jpeg) {
+            this.events.add("jpeg");
+            this.jpegs.add(jpeg);
+        }
+
+        @Override
+        public void onFrame(YuvFrame frame, CaptureJob.FrameReleaser releaser) {
+            this.events.add("frame");
+            this.frame = frame;
+            this.releaser = releaser;
+        }
+
+        @Override
+        public void onFailure() {
+            this.events.add("failure");
+        }
+    }
+}
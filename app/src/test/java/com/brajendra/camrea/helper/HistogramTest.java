@@ -0,0 +1,78 @@
+package com.brajendra.camrea.helper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int value = 0; value < 20; value++) {
+            histogram.record(value);
+        }
+        assertEquals(9, histogram.getPercentile(50));
+        assertEquals(19, histogram.getPercentile(100));
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(19, histogram.getMax());
+        assertEquals(9, histogram.getMean());
+    }
+
+    @Test
+    public void percentilesAreWithinBucketError() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(7);
+        long[] values = new long[20000];
+        for (int i = 0; i < values.length; i++) {
+            //Log-normal spread, like latencies in nanoseconds
+            values[i] = (long) Math.exp(13 + 1.5 * random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{1, 10, 50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getPercentile(percentile);
+            assertEquals("p" + percentile, exact, reported, exact * 0.065);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[values.length - 1], histogram.getPercentile(100), values[values.length - 1] * 0.065);
+        assertEquals(values.length, histogram.getCount());
+    }
+
+    @Test
+    public void negativeAndHugeValuesAreKept() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(1L << 50);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(1L << 50, histogram.getPercentile(100));
+        assertEquals(1L << 49, histogram.getMean());
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+        histogram.record(2000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+        histogram.record(40);
+        assertEquals(40, histogram.getMax());
+        assertEquals(40, histogram.getPercentile(50), 40 * 0.065);
+    }
+}
@@ -0,0 +1,110 @@
+package com.brajendra.camrea.helper;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class JpegExifTest {
+
+    @Test
+    public void segmentLengthCoversThePayload() {
+        byte[] segment = JpegExif.orientationSegment(6);
+        assertEquals(0xFF, segment[0] & 0xFF);
+        assertEquals(0xE1, segment[1] & 0xFF);
+        assertEquals(segment.length - 2, ((segment[2] & 0xFF) << 8) | (segment[3] & 0xFF));
+    }
+
+    @Test
+    public void taggedJpegHasAnUnbrokenMarkerChain() throws Exception {
+        byte[] jpeg = encode(64, 48);
+        for (int degrees : new int[]{0, 90, 180, 270}) {
+            int orientation = JpegExif.toExifOrientation(degrees);
+            //Written the way the pipeline does, a byte at a time for the first few
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            OutputStream out = JpegExif.withOrientation(buffer, orientation);
+            out.write(jpeg[0]);
+            out.write(jpeg, 1, jpeg.length - 1);
+            out.close();
+            byte[] tagged = buffer.toByteArray();
+
+            List<Integer> markers = markers(tagged);
+            assertEquals("rotation " + degrees, 0xE1, (int) markers.get(0));
+            assertEquals("rotation " + degrees, 0xDA, (int) markers.get(markers.size() - 1));
+            assertEquals(markers(jpeg).size() + 1, markers.size());
+            assertTrue(JpegExif.hasExif(tagged));
+            assertEquals(orientation, orientationOf(tagged));
+            assertNotNull(ImageIO.read(new ByteArrayInputStream(tagged)));
+        }
+    }
+
+    @Test
+    public void patchRewritesTheOrientation() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = JpegExif.withOrientation(buffer, 1);
+        out.write(encode(32, 32));
+        out.close();
+        byte[] tagged = buffer.toByteArray();
+        assertTrue(JpegExif.patchOrientation(tagged, 8));
+        assertEquals(8, orientationOf(tagged));
+        markers(tagged);
+    }
+
+    @Test
+    public void plainJpegHasNoExif() throws Exception {
+        byte[] jpeg = encode(32, 32);
+        assertFalse(JpegExif.hasExif(jpeg));
+        assertFalse(JpegExif.patchOrientation(jpeg, 6));
+    }
+
+    /**
+     * Markers from SOI up to and including SOS, each segment length followed to the next marker
+     */
+    private static List<Integer> markers(byte[] jpeg) {
+        assertEquals(0xFF, jpeg[0] & 0xFF);
+        assertEquals(0xD8, jpeg[1] & 0xFF);
+        List<Integer> markers = new ArrayList<>();
+        int pos = 2;
+        while (true) {
+            assertTrue("marker expected at " + pos, pos + 4 <= jpeg.length);
+            assertEquals("marker expected at " + pos, 0xFF, jpeg[pos] & 0xFF);
+            int marker = jpeg[pos + 1] & 0xFF;
+            markers.add(marker);
+            if (marker == 0xDA) {
+                return markers;
+            }
+            pos += 2 + (((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF));
+        }
+    }
+
+    /**
+     * Orientation from the segment JpegExif writes: big endian, the first IFD0 entry
+     */
+    private static int orientationOf(byte[] jpeg) {
+        int tiff = 2 + 10;
+        assertEquals('M', jpeg[tiff]);
+        int entry = tiff + 8 + 2;
+        assertEquals(0x0112, ((jpeg[entry] & 0xFF) << 8) | (jpeg[entry + 1] & 0xFF));
+        return ((jpeg[entry + 8] & 0xFF) << 8) | (jpeg[entry + 9] & 0xFF);
+    }
+
+    private static byte[] encode(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 5) << 8 | (x + y));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", out));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,147 @@
+package com.brajendra.camrea.helper;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crops baseline JPEGs written by ImageIO, with the standard (asymmetric) quantization tables,
+ * and compares the decoded crops against the decoded source cut and rotated in pixels.
+ */
+public class LosslessJpegCropperTest {
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+    private static final int[] REGION = {37, 21, 181, 133};
+
+    @Test
+    public void grayCropsMatchSourceAtAllRotations() throws Exception {
+        byte[] jpeg = encode(pattern(224, 160, BufferedImage.TYPE_BYTE_GRAY));
+        for (int rotation : ROTATIONS) {
+            assertCropMatches(jpeg, rotation, 0.5, 8);
+        }
+    }
+
+    @Test
+    public void colorCropsMatchSourceAtAllRotations() throws Exception {
+        byte[] jpeg = encode(pattern(224, 160, BufferedImage.TYPE_INT_RGB));
+        for (int rotation : ROTATIONS) {
+            //Chroma is upsampled from different neighbours along the crop edge, so single pixels there differ more
+            assertCropMatches(jpeg, rotation, 1.0, 64);
+        }
+    }
+
+    @Test
+    public void snapAlignsEdgesThatBecomeLeftOrTop() {
+        LosslessJpegCropper cropper = LosslessJpegCropper.parse(encodeUnchecked(pattern(224, 160, BufferedImage.TYPE_INT_RGB)));
+        assertNotNull(cropper);
+        assertEquals(16, cropper.getMcuWidth());
+        assertEquals(16, cropper.getMcuHeight());
+        assertArrayEquals(new int[]{32, 16, 181, 133}, cropper.snap(REGION, 0));
+        assertArrayEquals(new int[]{32, 16, 181, 144}, cropper.snap(REGION, 90));
+        assertArrayEquals(new int[]{32, 16, 192, 144}, cropper.snap(REGION, 180));
+        assertArrayEquals(new int[]{32, 16, 192, 133}, cropper.snap(REGION, 270));
+    }
+
+    @Test
+    public void parseRejectsNonJpeg() {
+        assertNull(LosslessJpegCropper.parse(new byte[]{1, 2, 3, 4, 5}));
+        assertNull(LosslessJpegCropper.parse(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}));
+    }
+
+    private static void assertCropMatches(byte[] jpeg, int rotation, double maxMeanError, int maxError)
+            throws Exception {
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(jpeg));
+        LosslessJpegCropper cropper = LosslessJpegCropper.parse(jpeg);
+        assertNotNull(cropper);
+        int[] region = cropper.snap(REGION, rotation);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cropper.write(region, rotation, out);
+        BufferedImage crop = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull("rotation " + rotation, crop);
+
+        int width = region[2] - region[0];
+        int height = region[3] - region[1];
+        boolean swap = rotation == 90 || rotation == 270;
+        assertEquals("rotation " + rotation, swap ? height : width, crop.getWidth());
+        assertEquals("rotation " + rotation, swap ? width : height, crop.getHeight());
+
+        long sum = 0;
+        int max = 0;
+        int samples = 0;
+        for (int y = 0; y < crop.getHeight(); y++) {
+            for (int x = 0; x < crop.getWidth(); x++) {
+                //Source pixel that lands on (x, y) after a clockwise rotation
+                int sx;
+                int sy;
+                switch (rotation) {
+                    case 90:
+                        sx = y;
+                        sy = height - 1 - x;
+                        break;
+                    case 180:
+                        sx = width - 1 - x;
+                        sy = height - 1 - y;
+                        break;
+                    case 270:
+                        sx = width - 1 - y;
+                        sy = x;
+                        break;
+                    default:
+                        sx = x;
+                        sy = y;
+                }
+                int expected = source.getRGB(region[0] + sx, region[1] + sy);
+                int actual = crop.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int error = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                    sum += error;
+                    max = Math.max(max, error);
+                    samples++;
+                }
+            }
+        }
+        double mean = (double) sum / samples;
+        assertTrue("rotation " + rotation + " mean error " + mean, mean <= maxMeanError);
+        assertTrue("rotation " + rotation + " max error " + max, max <= maxError);
+    }
+
+    /**
+     * Detail in both directions at different frequencies, so a transposed table shows
+     */
+    private static BufferedImage pattern(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = clamp(128 + 90 * Math.sin(x * 0.9) * Math.cos(y * 0.21));
+                int g = clamp(128 + 70 * Math.cos(x * 0.13 + y * 0.7));
+                int b = ((x / 5 + y / 3) & 1) != 0 ? 200 : 40;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(double value) {
+        return Math.max(0, Math.min(255, (int) Math.round(value)));
+    }
+
+    private static byte[] encode(BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", out));
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeUnchecked(BufferedImage image) {
+        try {
+            return encode(image);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.brajendra.camrea.helper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SizeSelectorTest {
+
+    //A typical back camera: 4:3 and 16:9 sizes, plus an odd square one
+    private static final int[][] SIZES = {
+            {4000, 3000}, {3264, 2448}, {2592, 1944}, {2048, 1536}, {1600, 1200}, {1280, 960}, {640, 480},
+            {3840, 2160}, {1920, 1080}, {1280, 720}, {960, 540},
+            {1080, 1080}
+    };
+
+    @Test
+    public void emptyListSelectsNothing() {
+        SizeSelector selector = new SizeSelector(new ArrayList<int[]>());
+        assertTrue(selector.isEmpty());
+        assertNull(selector.select(4.0 / 3, 640, 480));
+    }
+
+    @Test
+    public void smallestCoveringSizeOfTheRightRatioWins() {
+        SizeSelector selector = new SizeSelector(sizes());
+        assertArrayEquals(new int[]{1920, 1080}, selector.select(16.0 / 9, 1600, 900));
+        assertArrayEquals(new int[]{1600, 1200}, selector.select(4.0 / 3, 1500, 1100));
+        assertArrayEquals(new int[]{4000, 3000}, selector.select(4.0 / 3, 3300, 2500));
+    }
+
+    @Test
+    public void largestSizeWhenNothingCovers() {
+        SizeSelector selector = new SizeSelector(sizes());
+        assertArrayEquals(new int[]{4000, 3000}, selector.select(4.0 / 3, 8000, 6000));
+    }
+
+    @Test
+    public void previewIsPickedInSensorOrientation() {
+        SizeSelector selector = new SizeSelector(sizes());
+        //Portrait 1080 x 1920 view over a landscape sensor
+        assertArrayEquals(new int[]{1920, 1080}, selector.selectPreview(1080, 1920, 90));
+        assertArrayEquals(new int[]{1920, 1080}, selector.selectPreview(1920, 1080, 0));
+    }
+
+    @Test
+    public void pictureWithoutMaskCoversTheScreen() {
+        SizeSelector selector = new SizeSelector(sizes());
+        CameraBackend.OpenRequest request = request(1080, 1920, 0, 0, 0, 0);
+        request.screenWidth = 1080;
+        request.screenHeight = 1920;
+        assertArrayEquals(new int[]{1920, 1080}, selector.selectPicture(request, new int[]{1920, 1080}, 90));
+    }
+
+    @Test
+    public void pictureIsJustLargeEnoughForTheCrop() {
+        SizeSelector selector = new SizeSelector(sizes());
+        //The mask is half the view each way, so the picture needs twice the crop
+        CameraBackend.OpenRequest request = request(1080, 1920, 540, 960, 700, 1200);
+        int[] picture = selector.selectPicture(request, new int[]{1920, 1080}, 90);
+        assertArrayEquals(new int[]{3840, 2160}, picture);
+        request = request(1080, 1920, 540, 960, 300, 500);
+        assertArrayEquals(new int[]{1280, 720}, selector.selectPicture(request, new int[]{1920, 1080}, 90));
+    }
+
+    @Test
+    public void outputSizeIsTurnedLikeTheMask() {
+        //Portrait screen: a 900 x 600 mask is shown as 600 x 900
+        int[] portraitMask = {600, 900, 1080, 1920};
+        assertArrayEquals(new int[]{638, 1011}, SizeSelector.orientLike(1011, 638, portraitMask));
+        assertArrayEquals(new int[]{638, 1011}, SizeSelector.orientLike(638, 1011, portraitMask));
+        int[] landscapeMask = {900, 600, 1920, 1080};
+        assertArrayEquals(new int[]{1011, 638}, SizeSelector.orientLike(638, 1011, landscapeMask));
+        assertArrayEquals(new int[]{800, 800}, SizeSelector.orientLike(800, 800, portraitMask));
+        assertArrayEquals(new int[]{1011, 638}, SizeSelector.orientLike(1011, 638, null));
+        assertNull(SizeSelector.orientLike(0, 0, portraitMask));
+    }
+
+    @Test
+    public void landscapeOutputForPortraitMaskNeedsTheSamePicture() {
+        SizeSelector selector = new SizeSelector(sizes());
+        int[] mask = {540, 960, 1080, 1920};
+        int[] asSet = SizeSelector.orientLike(1200, 700, mask);
+        CameraBackend.OpenRequest request = request(1080, 1920, mask[0], mask[1], asSet[0], asSet[1]);
+        assertArrayEquals(new int[]{3840, 2160}, selector.selectPicture(request, new int[]{1920, 1080}, 90));
+    }
+
+    static CameraBackend.OpenRequest request(int viewWidth, int viewHeight, int maskWidth, int maskHeight,
+                                             int cropWidth, int cropHeight) {
+        CameraBackend.OpenRequest request = new CameraBackend.OpenRequest();
+        request.viewWidth = viewWidth;
+        request.viewHeight = viewHeight;
+        request.maskWidth = maskWidth;
+        request.maskHeight = maskHeight;
+        request.cropWidth = cropWidth;
+        request.cropHeight = cropHeight;
+        return request;
+    }
+
+    private static List<int[]> sizes() {
+        List<int[]> sizes = new ArrayList<>();
+        for (int[] size : SIZES) {
+            sizes.add(size);
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,64 @@
+package com.brajendra.camrea.kernel;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ArgbKernelTest {
+
+    @Test
+    public void cropRotateMatchesReferenceForAllRotationsAndMirror() {
+        int srcWidth = 90;
+        int srcHeight = 70;
+        int[] src = randomPixels(srcWidth * srcHeight, 3);
+        int left = 5;
+        int top = 3;
+        int width = 67;
+        int height = 41;
+        for (int rotation : Nv21KernelTest.ROTATIONS) {
+            for (int m = 0; m < 2; m++) {
+                boolean mirror = m == 1;
+                int[] dst = new int[width * height];
+                ArgbKernel.cropRotate(src, srcWidth, srcHeight, left, top, width, height, rotation, mirror, dst, null);
+                assertArrayEquals("rotation " + rotation + " mirror " + mirror,
+                        reference(src, srcWidth, left, top, width, height, rotation, mirror), dst);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cropOutsideTheImageIsRejected() {
+        ArgbKernel.cropRotate(new int[64 * 48], 64, 48, 0, 20, 32, 32, 0, false, new int[32 * 32], null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedRotationIsRejected() {
+        ArgbKernel.cropRotate(new int[64 * 48], 64, 48, 0, 0, 32, 32, 45, false, new int[32 * 32], null);
+    }
+
+    static int[] randomPixels(int count, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    static int[] reference(int[] src, int srcWidth, int left, int top, int width, int height,
+                           int rotation, boolean mirror) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        int[] out = new int[width * height];
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int[] s = Nv21KernelTest.sourceOf(mirror ? outWidth - 1 - x : x, y, width, height, rotation);
+                out[y * outWidth + x] = src[(top + s[1]) * srcWidth + left + s[0]];
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,69 @@
+package com.brajendra.camrea.kernel;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DocumentDetectorTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void findsATiltedDocument() {
+        //TL, TR, BR, BL in pixels, slightly in perspective
+        float[] corners = {130, 90, 520, 110, 500, 400, 150, 380};
+        byte[] luma = frameWith(corners);
+        DocumentDetector detector = new DocumentDetector(DocumentDetector.DEFAULT_ANALYSIS_WIDTH, 0);
+        float[] quad = detector.detect(luma, WIDTH, HEIGHT, WIDTH);
+        assertNotNull(quad);
+        for (int i = 0; i < 8; i += 2) {
+            assertEquals("corner " + i / 2 + " x", corners[i] / WIDTH, quad[i], 0.03);
+            assertEquals("corner " + i / 2 + " y", corners[i + 1] / HEIGHT, quad[i + 1], 0.03);
+        }
+        assertEquals(1, detector.getFrameCount());
+    }
+
+    @Test
+    public void plainFrameHasNoDocument() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(luma, (byte) 90);
+        assertNull(new DocumentDetector(DocumentDetector.DEFAULT_ANALYSIS_WIDTH, 0).detect(luma, WIDTH, HEIGHT, WIDTH));
+    }
+
+    @Test
+    public void tinyFrameIsSkipped() {
+        assertNull(new DocumentDetector(DocumentDetector.DEFAULT_ANALYSIS_WIDTH, 0).detect(new byte[16], 4, 4, 4));
+    }
+
+    /**
+     * Light paper on a dark table
+     */
+    private static byte[] frameWith(float[] corners) {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma[y * WIDTH + x] = (byte) (inside(corners, x + 0.5f, y + 0.5f) ? 220 : 40);
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * Inside a convex quad given clockwise (in image coordinates)
+     */
+    private static boolean inside(float[] quad, float x, float y) {
+        for (int i = 0; i < 4; i++) {
+            float ax = quad[i * 2];
+            float ay = quad[i * 2 + 1];
+            float bx = quad[(i * 2 + 2) % 8];
+            float by = quad[(i * 2 + 3) % 8];
+            if ((bx - ax) * (y - ay) - (by - ay) * (x - ax) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
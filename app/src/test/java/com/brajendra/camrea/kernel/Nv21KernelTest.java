@@ -0,0 +1,104 @@
+package com.brajendra.camrea.kernel;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Nv21KernelTest {
+
+    static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    @Test
+    public void cropRotateMatchesReferenceForAllRotationsAndMirror() {
+        int srcWidth = 100;
+        int srcHeight = 74;
+        byte[] src = randomFrame(srcWidth, srcHeight, 1);
+        //Wider than a tile so the tiled walk crosses tile edges
+        int left = 6;
+        int top = 10;
+        int width = 70;
+        int height = 46;
+        for (int rotation : ROTATIONS) {
+            for (int m = 0; m < 2; m++) {
+                boolean mirror = m == 1;
+                byte[] dst = new byte[Nv21Kernel.frameSize(width, height)];
+                Nv21Kernel.cropRotate(src, srcWidth, srcHeight, left, top, width, height, rotation, mirror, dst);
+                assertArrayEquals("rotation " + rotation + " mirror " + mirror,
+                        reference(src, srcWidth, srcHeight, left, top, width, height, rotation, mirror), dst);
+            }
+        }
+    }
+
+    @Test
+    public void fullFrameCopyIsUnchanged() {
+        byte[] src = randomFrame(64, 48, 2);
+        byte[] dst = new byte[src.length];
+        Nv21Kernel.cropRotate(src, 64, 48, 0, 0, 64, 48, 0, false, dst);
+        assertArrayEquals(src, dst);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddCropIsRejected() {
+        Nv21Kernel.cropRotate(new byte[Nv21Kernel.frameSize(64, 48)], 64, 48, 1, 0, 32, 32, 0, false,
+                new byte[Nv21Kernel.frameSize(32, 32)]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cropOutsideTheFrameIsRejected() {
+        Nv21Kernel.cropRotate(new byte[Nv21Kernel.frameSize(64, 48)], 64, 48, 40, 0, 32, 32, 0, false,
+                new byte[Nv21Kernel.frameSize(32, 32)]);
+    }
+
+    static byte[] randomFrame(int width, int height, long seed) {
+        byte[] frame = new byte[Nv21Kernel.frameSize(width, height)];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    /**
+     * Pixel by pixel: output (x, y) reads the source sample a clockwise rotation puts there
+     */
+    static byte[] reference(byte[] src, int srcWidth, int srcHeight, int left, int top, int width, int height,
+                            int rotation, boolean mirror) {
+        byte[] out = new byte[Nv21Kernel.frameSize(width, height)];
+        copyPlane(src, 0, srcWidth, 1, left, top, width, height, rotation, mirror, out, 0);
+        copyPlane(src, srcWidth * srcHeight, srcWidth, 2, left / 2, top / 2, width / 2, height / 2,
+                rotation, mirror, out, width * height);
+        return out;
+    }
+
+    private static void copyPlane(byte[] src, int srcOffset, int srcStride, int pixelSize, int left, int top,
+                                  int width, int height, int rotation, boolean mirror, byte[] out, int outOffset) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int[] s = sourceOf(mirror ? outWidth - 1 - x : x, y, width, height, rotation);
+                int from = srcOffset + (top + s[1]) * srcStride + (left + s[0]) * pixelSize;
+                int to = outOffset + (y * outWidth + x) * pixelSize;
+                for (int b = 0; b < pixelSize; b++) {
+                    out[to + b] = src[from + b];
+                }
+            }
+        }
+    }
+
+    /**
+     * Crop coordinates shown at output (x, y) after rotating a width x height crop clockwise
+     */
+    static int[] sourceOf(int x, int y, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90:
+                return new int[]{y, height - 1 - x};
+            case 180:
+                return new int[]{width - 1 - x, height - 1 - y};
+            case 270:
+                return new int[]{width - 1 - y, x};
+            default:
+                return new int[]{x, y};
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.brajendra.camrea.kernel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PerspectiveWarpTest {
+
+    @Test
+    public void outputSizeKeepsTheLongerEdges() {
+        float[] quad = {10, 10, 210, 20, 200, 160, 15, 150};
+        int[] size = PerspectiveWarp.outputSize(quad);
+        assertEquals(200, size[0]);
+        assertEquals(140, size[1]);
+        assertArrayEquals(new int[]{2, 2}, PerspectiveWarp.outputSize(new float[8]));
+    }
+
+    @Test
+    public void homographyTakesOutputCornersOntoTheQuad() {
+        float[] quad = {30, 20, 300, 45, 280, 250, 10, 230};
+        int outWidth = 256;
+        int outHeight = 200;
+        double[] m = PerspectiveWarp.quadToRect(quad, outWidth, outHeight);
+        double[][] corners = {{0, 0}, {outWidth, 0}, {outWidth, outHeight}, {0, outHeight}};
+        for (int i = 0; i < 4; i++) {
+            double[] p = apply(m, corners[i][0], corners[i][1]);
+            assertEquals("corner " + i + " x", quad[i * 2], p[0], 1e-6);
+            assertEquals("corner " + i + " y", quad[i * 2 + 1], p[1], 1e-6);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void degenerateQuadIsRejected() {
+        PerspectiveWarp.quadToRect(new float[]{0, 0, 10, 0, 10, 0, 0, 5}, 10, 10);
+    }
+
+    @Test
+    public void axisAlignedQuadIsAPlainCrop() {
+        int srcWidth = 64;
+        int srcHeight = 48;
+        int[] src = ArgbKernelTest.randomPixels(srcWidth * srcHeight, 8);
+        float[] quad = {8, 6, 40, 6, 40, 30, 8, 30};
+        int[] dst = new int[32 * 24];
+        PerspectiveWarp.warpArgb(src, srcWidth, srcHeight, PerspectiveWarp.quadToRect(quad, 32, 24), dst, 32, 24, null);
+        for (int y = 0; y < 24; y++) {
+            for (int x = 0; x < 32; x++) {
+                assertEquals(x + "," + y, src[(y + 6) * srcWidth + x + 8], dst[y * 32 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void warpSamplesTheSourceAlongTheHomography() {
+        int srcWidth = 320;
+        int srcHeight = 240;
+        int[] src = new int[srcWidth * srcHeight];
+        for (int y = 0; y < srcHeight; y++) {
+            for (int x = 0; x < srcWidth; x++) {
+                src[y * srcWidth + x] = 0xFF000000 | (smooth(x, y) << 16) | (smooth(y, x) << 8) | 0x40;
+            }
+        }
+        float[] quad = {40, 30, 290, 50, 270, 220, 20, 200};
+        int outWidth = 200;
+        int outHeight = 150;
+        double[] m = PerspectiveWarp.quadToRect(quad, outWidth, outHeight);
+        int[] dst = new int[outWidth * outHeight];
+        PerspectiveWarp.warpArgb(src, srcWidth, srcHeight, m, dst, outWidth, outHeight, null);
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                double[] p = apply(m, x + 0.5, y + 0.5);
+                double sx = p[0] - 0.5;
+                double sy = p[1] - 0.5;
+                int pixel = dst[y * outWidth + x];
+                assertEquals(0xFF, pixel >>> 24);
+                assertEquals(x + "," + y, smoothAt(sx, sy), (pixel >> 16) & 0xFF, 2.0);
+                assertEquals(x + "," + y, smoothAt(sy, sx), (pixel >> 8) & 0xFF, 2.0);
+                assertEquals(0x40, pixel & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void stripedNv21WarpMatchesSequential() {
+        int srcWidth = 1600;
+        int srcHeight = 1200;
+        byte[] src = Nv21KernelTest.randomFrame(srcWidth, srcHeight, 9);
+        float[] quad = {100, 80, 1500, 140, 1450, 1100, 60, 1050};
+        int[] size = PerspectiveWarp.outputSize(quad);
+        double[] m = PerspectiveWarp.quadToRect(quad, size[0], size[1]);
+        byte[] sequential = new byte[Nv21Kernel.frameSize(size[0], size[1])];
+        byte[] striped = new byte[sequential.length];
+        PerspectiveWarp.warpNv21(src, srcWidth, srcHeight, m, sequential, size[0], size[1], null);
+        StripeExecutor stripes = new StripeExecutor(4);
+        try {
+            PerspectiveWarp.warpNv21(src, srcWidth, srcHeight, m, striped, size[0], size[1], stripes);
+        } finally {
+            stripes.shutdown();
+        }
+        assertArrayEquals(sequential, striped);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddNv21OutputIsRejected() {
+        PerspectiveWarp.warpNv21(new byte[Nv21Kernel.frameSize(16, 16)], 16, 16,
+                PerspectiveWarp.quadToRect(new float[]{0, 0, 16, 0, 16, 16, 0, 16}, 15, 16),
+                new byte[Nv21Kernel.frameSize(16, 16)], 15, 16, null);
+    }
+
+    private static double[] apply(double[] m, double x, double y) {
+        double w = m[6] * x + m[7] * y + m[8];
+        return new double[]{(m[0] * x + m[1] * y + m[2]) / w, (m[3] * x + m[4] * y + m[5]) / w};
+    }
+
+    /**
+     * A gentle ramp plus a slow wave, so bilinear sampling is close to exact
+     */
+    private static double smoothAt(double x, double y) {
+        return 40 + 0.5 * x + 20 * Math.sin(y / 23.0);
+    }
+
+    private static int smooth(int x, int y) {
+        return (int) Math.round(smoothAt(x, y));
+    }
+}
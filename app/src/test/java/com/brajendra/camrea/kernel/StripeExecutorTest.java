@@ -0,0 +1,118 @@
+package com.brajendra.camrea.kernel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Striped transforms must produce the same output as the sequential ones
+ */
+public class StripeExecutorTest {
+
+    private StripeExecutor stripes;
+
+    @Before
+    public void setUp() {
+        this.stripes = new StripeExecutor(4);
+    }
+
+    @After
+    public void tearDown() {
+        this.stripes.shutdown();
+    }
+
+    @Test
+    public void stripedNv21MatchesSequential() {
+        int srcWidth = 1600;
+        int srcHeight = 1200;
+        byte[] src = Nv21KernelTest.randomFrame(srcWidth, srcHeight, 4);
+        int width = 1280;
+        int height = 960;
+        for (int rotation : Nv21KernelTest.ROTATIONS) {
+            for (int m = 0; m < 2; m++) {
+                boolean mirror = m == 1;
+                byte[] sequential = new byte[Nv21Kernel.frameSize(width, height)];
+                byte[] striped = new byte[sequential.length];
+                Nv21Kernel.cropRotate(src, srcWidth, srcHeight, 100, 120, width, height, rotation, mirror,
+                        sequential, null);
+                Nv21Kernel.cropRotate(src, srcWidth, srcHeight, 100, 120, width, height, rotation, mirror,
+                        striped, this.stripes);
+                assertArrayEquals("rotation " + rotation + " mirror " + mirror, sequential, striped);
+            }
+        }
+    }
+
+    @Test
+    public void stripedArgbMatchesSequential() {
+        int srcWidth = 1200;
+        int srcHeight = 900;
+        int[] src = ArgbKernelTest.randomPixels(srcWidth * srcHeight, 5);
+        int width = 1001;
+        int height = 777;
+        for (int rotation : Nv21KernelTest.ROTATIONS) {
+            int[] sequential = new int[width * height];
+            int[] striped = new int[width * height];
+            ArgbKernel.cropRotate(src, srcWidth, srcHeight, 33, 17, width, height, rotation, true, sequential, null);
+            ArgbKernel.cropRotate(src, srcWidth, srcHeight, 33, 17, width, height, rotation, true, striped,
+                    this.stripes);
+            assertArrayEquals("rotation " + rotation, sequential, striped);
+        }
+    }
+
+    @Test
+    public void stripesCoverEveryRowOnceOnAlignedBoundaries() {
+        final int rows = 1001;
+        final AtomicInteger[] visits = new AtomicInteger[rows];
+        for (int i = 0; i < rows; i++) {
+            visits[i] = new AtomicInteger();
+        }
+        final AtomicInteger misaligned = new AtomicInteger();
+        this.stripes.run(rows, 1024, 2, new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                if ((rowStart & 1) != 0) {
+                    misaligned.incrementAndGet();
+                }
+                for (int y = rowStart; y < rowEnd; y++) {
+                    visits[y].incrementAndGet();
+                }
+            }
+        });
+        assertEquals(0, misaligned.get());
+        for (int i = 0; i < rows; i++) {
+            assertEquals("row " + i, 1, visits[i].get());
+        }
+    }
+
+    @Test
+    public void smallTransformsRunOnTheCallingThread() {
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger calls = new AtomicInteger();
+        this.stripes.run(100, 100, 1, new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                assertSame(caller, Thread.currentThread());
+                assertEquals(0, rowStart);
+                assertEquals(100, rowEnd);
+                calls.incrementAndGet();
+            }
+        });
+        assertEquals(1, calls.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stripeFailureIsRethrown() {
+        this.stripes.run(2048, 1024, 1, new StripeExecutor.StripeTask() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                if (rowStart > 0) {
+                    throw new IllegalStateException("stripe " + rowStart);
+                }
+            }
+        });
+    }
+}
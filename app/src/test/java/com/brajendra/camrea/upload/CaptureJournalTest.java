@@ -0,0 +1,128 @@
+package com.brajendra.camrea.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayKeepsCapturesThatAreNotFinished() throws IOException {
+        File file = new File(this.folder.getRoot(), "journal");
+        CaptureJournal journal = new CaptureJournal(file);
+        assertTrue(journal.replay().isEmpty());
+        journal.append(Arrays.asList(
+                CaptureJournal.added(new UploadItem("a", "/pictures/a.jpg", 100)),
+                CaptureJournal.added(new UploadItem("b", "/pictures/with\ttab.jpg", 200)),
+                CaptureJournal.added(new UploadItem("c", "/pictures/c.jpg", 300))));
+        journal.append(Arrays.asList(CaptureJournal.done("a"), CaptureJournal.dropped("c")));
+        journal.close();
+
+        CaptureJournal reopened = new CaptureJournal(file);
+        List<UploadItem> live = reopened.replay();
+        assertEquals(1, live.size());
+        assertEquals("b", live.get(0).getId());
+        assertEquals("/pictures/with\ttab.jpg", live.get(0).getPath());
+        assertEquals(200, live.get(0).getBytes());
+        assertEquals(5, reopened.getRecords());
+        assertEquals(0, reopened.getCorruptRecords());
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        File file = new File(this.folder.getRoot(), "journal");
+        CaptureJournal journal = new CaptureJournal(file);
+        journal.append(Collections.singletonList(CaptureJournal.added(new UploadItem("a", "/a.jpg", 1))));
+        journal.close();
+        long clean = file.length();
+        //A crash in the middle of the next append
+        appendRaw(file, "A\tb\t2\t/b.j");
+
+        CaptureJournal reopened = new CaptureJournal(file);
+        List<UploadItem> live = reopened.replay();
+        assertEquals(1, live.size());
+        assertEquals("a", live.get(0).getId());
+        assertEquals(1, reopened.getCorruptRecords());
+        assertEquals(clean, file.length());
+
+        //The next append starts on a clean line and reads back
+        reopened.append(Collections.singletonList(CaptureJournal.added(new UploadItem("c", "/c.jpg", 3))));
+        reopened.close();
+        CaptureJournal again = new CaptureJournal(file);
+        assertEquals(2, again.replay().size());
+        assertEquals(0, again.getCorruptRecords());
+    }
+
+    @Test
+    public void lineWithBadChecksumIsSkipped() throws IOException {
+        File file = new File(this.folder.getRoot(), "journal");
+        CaptureJournal journal = new CaptureJournal(file);
+        journal.append(Arrays.asList(
+                CaptureJournal.added(new UploadItem("a", "/a.jpg", 1)),
+                CaptureJournal.added(new UploadItem("b", "/b.jpg", 2))));
+        journal.close();
+        //Flip the id of the first record, its checksum no longer matches
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(2);
+            raf.write('z');
+        } finally {
+            raf.close();
+        }
+
+        CaptureJournal reopened = new CaptureJournal(file);
+        List<UploadItem> live = reopened.replay();
+        assertEquals(1, live.size());
+        assertEquals("b", live.get(0).getId());
+        assertEquals(2, reopened.getRecords());
+        assertEquals(1, reopened.getCorruptRecords());
+    }
+
+    @Test
+    public void compactKeepsOnlyTheLiveCaptures() throws IOException {
+        File file = new File(this.folder.getRoot(), "journal");
+        CaptureJournal journal = new CaptureJournal(file);
+        for (int i = 0; i < 50; i++) {
+            journal.append(Arrays.asList(
+                    CaptureJournal.added(new UploadItem("id" + i, "/" + i + ".jpg", i)),
+                    CaptureJournal.done("id" + i)));
+        }
+        journal.append(Collections.singletonList(CaptureJournal.added(new UploadItem("last", "/last.jpg", 9))));
+        long before = file.length();
+        List<UploadItem> live = new CaptureJournal(file).replay();
+        journal.compact(live);
+        assertEquals(1, journal.getRecords());
+        assertTrue(file.length() < before);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        //Appends after a compaction go to the new file
+        journal.append(Collections.singletonList(CaptureJournal.added(new UploadItem("next", "/next.jpg", 10))));
+        journal.close();
+        List<UploadItem> replayed = new CaptureJournal(file).replay();
+        assertEquals(2, replayed.size());
+        assertEquals("last", replayed.get(0).getId());
+        assertEquals("next", replayed.get(1).getId());
+    }
+
+    private static void appendRaw(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.brajendra.camrea.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link ChunkedUploader} against a stand-in server on the loopback interface
+ */
+public class ChunkedUploaderTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private StandInServer handler;
+    private String endpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.handler = new StandInServer();
+        this.server.createContext("/upload", this.handler);
+        this.server.start();
+        this.endpoint = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/upload";
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void fileArrivesWholeInChunks() throws Exception {
+        byte[] content = randomBytes(10000, 1);
+        ChunkedUploader uploader = new ChunkedUploader(this.endpoint, 4096, 1, false, DIRECT);
+        final AtomicInteger progress = new AtomicInteger();
+        UploadReport report = uploader.send(this.file(content), "a", new ChunkedUploader.ProgressListener() {
+            @Override
+            public void onProgress(String uploadId, long uploaded, long total) {
+                progress.incrementAndGet();
+                assertEquals(10000, total);
+            }
+        });
+        assertArrayEquals(content, this.handler.received("a"));
+        assertEquals(3, report.chunks);
+        assertEquals(3, progress.get());
+        assertEquals(0, report.retries);
+        assertEquals(0, report.resumedFrom);
+        uploader.shutdown();
+    }
+
+    @Test
+    public void base64ChunksAreDecodedByTheServer() throws Exception {
+        byte[] content = randomBytes(7001, 2);
+        ChunkedUploader uploader = new ChunkedUploader(this.endpoint, 1000, 1, true, DIRECT);
+        assertEquals(999, uploader.getChunkSize());
+        uploader.send(this.file(content), "b", null);
+        assertArrayEquals(content, this.handler.received("b"));
+        uploader.shutdown();
+    }
+
+    @Test
+    public void uploadResumesFromWhatTheServerHas() throws Exception {
+        byte[] content = randomBytes(9000, 3);
+        this.handler.preload("c", Arrays.copyOf(content, 4096));
+        ChunkedUploader uploader = new ChunkedUploader(this.endpoint, 4096, 1, false, DIRECT);
+        UploadReport report = uploader.send(this.file(content), "c", null);
+        assertEquals(4096, report.resumedFrom);
+        assertEquals(2, report.chunks);
+        assertArrayEquals(content, this.handler.received("c"));
+        uploader.shutdown();
+    }
+
+    @Test
+    public void failedChunkIsRetried() throws Exception {
+        byte[] content = randomBytes(5000, 4);
+        this.handler.failNextPosts = 1;
+        ChunkedUploader uploader = new ChunkedUploader(this.endpoint, 4096, 1, false, DIRECT);
+        UploadReport report = uploader.send(this.file(content), "d", null);
+        assertEquals(1, report.retries);
+        assertArrayEquals(content, this.handler.received("d"));
+        uploader.shutdown();
+    }
+
+    @Test
+    public void conflictThatDoesNotAdvanceGivesUp() throws Exception {
+        this.handler.conflictOffset = "0";
+        ChunkedUploader uploader = new ChunkedUploader(this.endpoint, 4096, 1, false, DIRECT);
+        try {
+            uploader.send(this.file(randomBytes(5000, 5)), "e", null);
+            fail("send must give up");
+        } catch (IOException expected) {
+            assertFalse(expected instanceof ProtocolException);
+        }
+        //Four attempts, not a busy loop
+        assertEquals(4, this.handler.posts.get());
+        uploader.shutdown();
+    }
+
+    @Test
+    public void conflictWithoutOffsetFails() throws Exception {
+        this.handler.conflictOffset = null;
+        this.handler.alwaysConflict = true;
+        this.assertProtocolError();
+    }
+
+    @Test
+    public void conflictPastTheEndFails() throws Exception {
+        this.handler.conflictOffset = "999999";
+        this.assertProtocolError();
+    }
+
+    @Test
+    public void batchSendsEveryFileAsAPart() throws Exception {
+        byte[] first = randomBytes(300, 6);
+        byte[] second = randomBytes(500, 7);
+        ChunkedUploader uploader = new ChunkedUploader(this.endpoint, 256, 1, false, DIRECT);
+        long bytes = uploader.sendBatch(Arrays.asList(this.file(first), this.file(second)), Arrays.asList("f1", "f2"));
+        assertEquals(800, bytes);
+        assertEquals("2", this.handler.lastBatchCount);
+        String body = new String(this.handler.lastBatch, "ISO-8859-1");
+        assertTrue(body.contains("name=\"f1\""));
+        assertTrue(body.contains("name=\"f2\""));
+        assertTrue(body.contains(new String(first, "ISO-8859-1")));
+        assertTrue(body.contains(new String(second, "ISO-8859-1")));
+        uploader.shutdown();
+    }
+
+    private void assertProtocolError() throws IOException {
+        ChunkedUploader uploader = new ChunkedUploader(this.endpoint, 4096, 1, false, DIRECT);
+        try {
+            uploader.send(this.file(randomBytes(5000, 8)), "g", null);
+            fail("send must fail");
+        } catch (ProtocolException expected) {
+        }
+        //Not retried
+        assertEquals(1, this.handler.posts.get());
+        uploader.shutdown();
+    }
+
+    private File file(byte[] content) throws IOException {
+        File file = this.folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Keeps uploads in memory and speaks the HEAD / POST offset protocol
+     */
+    private static class StandInServer implements HttpHandler {
+        private final Map<String, ByteArrayOutputStream> uploads = new HashMap<>();
+        final AtomicInteger posts = new AtomicInteger();
+        volatile int failNextPosts;
+        //Answer every chunk with 409 and this Upload-Offset, null to leave it out
+        volatile String conflictOffset;
+        volatile boolean alwaysConflict;
+        volatile byte[] lastBatch;
+        volatile String lastBatchCount;
+
+        synchronized void preload(String id, byte[] content) {
+            ByteArrayOutputStream upload = new ByteArrayOutputStream();
+            upload.write(content, 0, content.length);
+            this.uploads.put(id, upload);
+        }
+
+        synchronized byte[] received(String id) {
+            return this.uploads.get(id).toByteArray();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body = readAll(exchange.getRequestBody());
+                String id = exchange.getRequestHeaders().getFirst("Upload-Id");
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    synchronized (this) {
+                        ByteArrayOutputStream upload = this.uploads.get(id);
+                        if (upload == null) {
+                            exchange.sendResponseHeaders(404, -1);
+                        } else {
+                            exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.size()));
+                            exchange.sendResponseHeaders(200, -1);
+                        }
+                    }
+                    return;
+                }
+                if (id == null) {
+                    this.lastBatch = body;
+                    this.lastBatchCount = exchange.getRequestHeaders().getFirst("Upload-Batch");
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                this.posts.incrementAndGet();
+                if (this.failNextPosts > 0) {
+                    this.failNextPosts--;
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                }
+                if (this.conflictOffset != null || this.alwaysConflict) {
+                    if (this.conflictOffset != null) {
+                        exchange.getResponseHeaders().set("Upload-Offset", this.conflictOffset);
+                    }
+                    exchange.sendResponseHeaders(409, -1);
+                    return;
+                }
+                if ("base64".equals(exchange.getRequestHeaders().getFirst("Upload-Encoding"))) {
+                    body = Base64.getDecoder().decode(body);
+                }
+                long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+                synchronized (this) {
+                    ByteArrayOutputStream upload = this.uploads.get(id);
+                    if (upload == null) {
+                        upload = new ByteArrayOutputStream();
+                        this.uploads.put(id, upload);
+                    }
+                    if (offset != upload.size()) {
+                        exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.size()));
+                        exchange.sendResponseHeaders(409, -1);
+                        return;
+                    }
+                    upload.write(body, 0, body.length);
+                    exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.size()));
+                }
+                exchange.sendResponseHeaders(200, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+}
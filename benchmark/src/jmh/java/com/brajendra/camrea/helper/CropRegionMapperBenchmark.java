@@ -0,0 +1,99 @@
+package com.brajendra.camrea.helper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.brajendra.camrea.kernel.ArgbKernel;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CropRegionMapper} on a 12 MP capture, and the pixel buffers the crop needs with and
+ * without it.
+ * <p>
+ * mapMask and mapQuad time the mapping alone, with the output array reused the way
+ * CapturePipeline does. fullFrame and region stand in for the two ways of cutting the mask out:
+ * decode the whole frame, rotate it and cut the mask, or map the mask back to the sensor, decode
+ * just that region and rotate it. The decode is an array copy from pixels prepared in setup, so
+ * only the buffers and the rotation are measured. Run with -prof gc to get the bytes allocated per
+ * call (gc.alloc.rate.norm).
+ * <p>
+ * The mask is a 600x900 card over a 1080x1920 portrait view.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CropRegionMapperBenchmark {
+
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final int MASK_WIDTH = 600;
+    private static final int MASK_HEIGHT = 900;
+    private static final float[] QUAD = {0.12f, 0.1f, 0.9f, 0.14f, 0.86f, 0.88f, 0.1f, 0.84f};
+
+    @Param({"0", "90", "180", "270"})
+    public int rotation;
+
+    private final int[] out = new int[4];
+    private int[] decoded;
+
+    @Setup
+    public void setUp() {
+        this.decoded = new int[WIDTH * HEIGHT];
+        Random random = new Random(1);
+        for (int i = 0; i < this.decoded.length; i++) {
+            this.decoded[i] = random.nextInt();
+        }
+    }
+
+    @Benchmark
+    public int[] mapMask() {
+        return CropRegionMapper.mapCenteredMask(MASK_WIDTH, MASK_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT,
+                WIDTH, HEIGHT, this.rotation, this.out);
+    }
+
+    @Benchmark
+    public int[] mapQuad() {
+        return CropRegionMapper.mapQuadBounds(QUAD, WIDTH, HEIGHT, this.out);
+    }
+
+    @Benchmark
+    public int[] fullFrame() {
+        int[] frame = new int[WIDTH * HEIGHT];
+        System.arraycopy(this.decoded, 0, frame, 0, frame.length);
+        int[] turned = new int[frame.length];
+        ArgbKernel.cropRotate(frame, WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, this.rotation, false, turned, null);
+        boolean swap = this.rotation == 90 || this.rotation == 270;
+        int turnedWidth = swap ? HEIGHT : WIDTH;
+        int turnedHeight = swap ? WIDTH : HEIGHT;
+        //The mask, scaled from the view to the turned frame
+        int width = (int) ((long) MASK_WIDTH * turnedWidth / VIEW_WIDTH);
+        int height = (int) ((long) MASK_HEIGHT * turnedHeight / VIEW_HEIGHT);
+        int[] crop = new int[width * height];
+        ArgbKernel.cropRotate(turned, turnedWidth, turnedHeight, (turnedWidth - width) / 2, (turnedHeight - height) / 2,
+                width, height, 0, false, crop, null);
+        return crop;
+    }
+
+    @Benchmark
+    public int[] region() {
+        int[] region = CropRegionMapper.mapCenteredMask(MASK_WIDTH, MASK_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT,
+                WIDTH, HEIGHT, this.rotation, this.out);
+        int width = region[2] - region[0];
+        int height = region[3] - region[1];
+        int[] pixels = new int[width * height];
+        ArgbKernel.cropRotate(this.decoded, WIDTH, HEIGHT, region[0], region[1], width, height, 0, false, pixels, null);
+        int[] crop = new int[pixels.length];
+        ArgbKernel.cropRotate(pixels, width, height, 0, 0, width, height, this.rotation, false, crop, null);
+        return crop;
+    }
+}
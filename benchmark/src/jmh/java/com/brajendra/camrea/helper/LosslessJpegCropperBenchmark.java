@@ -0,0 +1,91 @@
+package com.brajendra.camrea.helper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.brajendra.camrea.kernel.ArgbKernel;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Capture JPEG to cropped JPEG: {@link LosslessJpegCropper} on the DCT blocks against the pixel
+ * path, decode, cut, rotate with {@link ArgbKernel} and encode again, done here with ImageIO in
+ * place of BitmapFactory and Bitmap.compress.
+ * The source is a 12 MP baseline JPEG from ImageIO and the crop a centered 3:2 card at 80% of the
+ * frame width.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LosslessJpegCropperBenchmark {
+
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    private byte[] jpeg;
+    private int[] region;
+
+    @Setup
+    public void setUp() throws IOException {
+        //Smooth shading with noise, so the file is about the size of a camera JPEG
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(5);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = (x * 255 / WIDTH + random.nextInt(24)) & 0xFF;
+                int g = (y * 255 / HEIGHT + random.nextInt(24)) & 0xFF;
+                int b = ((x + y) * 255 / (WIDTH + HEIGHT) + random.nextInt(24)) & 0xFF;
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        this.jpeg = out.toByteArray();
+        int width = WIDTH * 4 / 5;
+        int height = width * 2 / 3;
+        this.region = new int[]{(WIDTH - width) / 2, (HEIGHT - height) / 2, (WIDTH + width) / 2, (HEIGHT + height) / 2};
+    }
+
+    @Benchmark
+    public byte[] lossless() throws IOException {
+        LosslessJpegCropper cropper = LosslessJpegCropper.parse(this.jpeg);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.jpeg.length);
+        cropper.write(cropper.snap(this.region, this.rotation), this.rotation, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] pixels() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(this.jpeg));
+        int width = this.region[2] - this.region[0];
+        int height = this.region[3] - this.region[1];
+        int[] pixels = image.getRGB(this.region[0], this.region[1], width, height, null, 0, width);
+        //Rotated the way the app's pixel path does it
+        int[] turned = new int[pixels.length];
+        ArgbKernel.cropRotate(pixels, width, height, 0, 0, width, height, this.rotation, false, turned, null);
+        boolean swap = this.rotation == 90 || this.rotation == 270;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        BufferedImage crop = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+        crop.setRGB(0, 0, outWidth, outHeight, turned, 0, outWidth);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.jpeg.length);
+        ImageIO.write(crop, "jpg", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,232 @@
+package com.brajendra.camrea.kernel;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link DocumentDetector#detect} over a corpus of preview frames, one frame per call, without a
+ * time budget so every frame is analysed in full.
+ * <p>
+ * The default corpus is generated: 1280x720 frames of a light card or page on a darker table,
+ * at different sizes, angles and perspective, under uneven light, with sensor noise and clutter
+ * on the table; every eighth frame has no document. Recorded frames can be used instead with
+ * -p corpus=&lt;directory&gt;, which reads every file named like name_1280x720.nv21 (an NV21 frame,
+ * or just its luma plane) in it.
+ * <p>
+ * Besides the time per frame, counters report the frames analysed, how many of them have a drawn
+ * document (generated corpus only), how many gave a quad, and how many quads had every corner
+ * within 3% of the frame size of the drawn document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DocumentDetectorBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int GENERATED_FRAMES = 32;
+    private static final Pattern FRAME_NAME = Pattern.compile(".*_(\\d+)x(\\d+)\\.nv21");
+
+    @Param({""})
+    public String corpus;
+
+    private final List<Frame> frames = new ArrayList<>();
+    private DocumentDetector detector;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (this.corpus.isEmpty()) {
+            for (int i = 0; i < GENERATED_FRAMES; i++) {
+                this.frames.add(generate(i));
+            }
+        } else {
+            this.load(new File(this.corpus));
+        }
+        this.detector = new DocumentDetector(DocumentDetector.DEFAULT_ANALYSIS_WIDTH, 0);
+    }
+
+    @Benchmark
+    public float[] detect(Results results) {
+        Frame frame = this.frames.get(this.next);
+        this.next = (this.next + 1) % this.frames.size();
+        float[] quad = this.detector.detect(frame.luma, frame.width, frame.height, frame.width);
+        results.frames++;
+        if (frame.corners != null) {
+            results.documents++;
+        }
+        if (quad != null) {
+            results.found++;
+            if (frame.corners != null && matches(quad, frame)) {
+                results.correct++;
+            }
+        }
+        return quad;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Results {
+        public long frames;
+        public long documents;
+        public long found;
+        public long correct;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            this.frames = 0;
+            this.documents = 0;
+            this.found = 0;
+            this.correct = 0;
+        }
+    }
+
+    private static final class Frame {
+        final byte[] luma;
+        final int width;
+        final int height;
+        //Drawn document in pixels, TL, TR, BR, BL; null without one or for recorded frames
+        final float[] corners;
+
+        Frame(byte[] luma, int width, int height, float[] corners) {
+            this.luma = luma;
+            this.width = width;
+            this.height = height;
+            this.corners = corners;
+        }
+    }
+
+    private static boolean matches(float[] quad, Frame frame) {
+        for (int i = 0; i < 8; i += 2) {
+            if (Math.abs(quad[i] - frame.corners[i] / frame.width) > 0.03f
+                    || Math.abs(quad[i + 1] - frame.corners[i + 1] / frame.height) > 0.03f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void load(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            Matcher matcher = FRAME_NAME.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            int width = Integer.parseInt(matcher.group(1));
+            int height = Integer.parseInt(matcher.group(2));
+            byte[] luma = new byte[width * height];
+            InputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < luma.length) {
+                    int count = in.read(luma, read, luma.length - read);
+                    if (count < 0) {
+                        throw new IOException(file + " is shorter than a " + width + "x" + height + " luma plane");
+                    }
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+            this.frames.add(new Frame(luma, width, height, null));
+        }
+        if (this.frames.isEmpty()) {
+            throw new IOException("No name_WxH.nv21 frames in " + directory);
+        }
+    }
+
+    private static Frame generate(int index) {
+        Random random = new Random(index);
+        float[] corners = null;
+        if (index % 8 != 7) {
+            //A card or page, 40 to 75% of the frame width, turned and tilted away from the camera
+            float width = WIDTH * (0.4f + 0.35f * random.nextFloat());
+            float height = Math.min(HEIGHT * 0.85f, width / (1.4f + 0.2f * random.nextFloat()));
+            float cx = WIDTH / 2f + (random.nextFloat() - 0.5f) * (WIDTH - width) * 0.5f;
+            float cy = HEIGHT / 2f + (random.nextFloat() - 0.5f) * (HEIGHT - height) * 0.5f;
+            double angle = Math.toRadians((random.nextFloat() - 0.5f) * 30);
+            float shrink = 0.15f * random.nextFloat();
+            float[] local = {
+                    -width / 2 * (1 - shrink), -height / 2, width / 2 * (1 - shrink), -height / 2,
+                    width / 2, height / 2, -width / 2, height / 2
+            };
+            corners = new float[8];
+            for (int i = 0; i < 8; i += 2) {
+                corners[i] = cx + (float) (local[i] * Math.cos(angle) - local[i + 1] * Math.sin(angle));
+                corners[i + 1] = cy + (float) (local[i] * Math.sin(angle) + local[i + 1] * Math.cos(angle));
+            }
+        }
+        int table = 30 + random.nextInt(50);
+        int paper = 170 + random.nextInt(60);
+        //Light falling off across the frame
+        float lightX = (random.nextFloat() - 0.5f) * 40 / WIDTH;
+        float lightY = (random.nextFloat() - 0.5f) * 40 / HEIGHT;
+        //Clutter on the table: darker and lighter patches smaller than the document
+        int[][] clutter = new int[random.nextInt(4)][];
+        for (int i = 0; i < clutter.length; i++) {
+            int w = 20 + random.nextInt(120);
+            int h = 20 + random.nextInt(120);
+            int x = random.nextInt(WIDTH - w);
+            int y = random.nextInt(HEIGHT - h);
+            clutter[i] = new int[]{x, y, x + w, y + h, table + random.nextInt(60) - 20};
+        }
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = table;
+                for (int[] patch : clutter) {
+                    if (x >= patch[0] && x < patch[2] && y >= patch[1] && y < patch[3]) {
+                        value = patch[4];
+                    }
+                }
+                if (corners != null && inside(corners, x + 0.5f, y + 0.5f)) {
+                    value = paper;
+                }
+                value += (int) ((x - WIDTH / 2) * lightX + (y - HEIGHT / 2) * lightY) + random.nextInt(17) - 8;
+                luma[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return new Frame(luma, WIDTH, HEIGHT, corners);
+    }
+
+    /**
+     * Inside a convex quad given clockwise (in image coordinates)
+     */
+    private static boolean inside(float[] quad, float x, float y) {
+        for (int i = 0; i < 4; i++) {
+            float ax = quad[i * 2];
+            float ay = quad[i * 2 + 1];
+            float bx = quad[(i * 2 + 2) % 8];
+            float by = quad[(i * 2 + 3) % 8];
+            if ((bx - ax) * (y - ay) - (by - ay) * (x - ax) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
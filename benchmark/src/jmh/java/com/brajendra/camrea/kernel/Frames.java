@@ -0,0 +1,50 @@
+package com.brajendra.camrea.kernel;
+
+import java.util.Random;
+
+/**
+ * Sensor sizes and filled frames shared by the benchmarks
+ */
+final class Frames {
+
+    private Frames() {
+    }
+
+    /**
+     * Typical 4:3 sensor size, or 16:9 for 2 MP, for a megapixel tier
+     *
+     * @param megapixels 2, 5, 8, 12 or 48
+     * @return {width, height}
+     */
+    static int[] sensorSize(int megapixels) {
+        switch (megapixels) {
+            case 2:
+                return new int[]{1920, 1080};
+            case 5:
+                return new int[]{2592, 1944};
+            case 8:
+                return new int[]{3264, 2448};
+            case 12:
+                return new int[]{4000, 3000};
+            case 48:
+                return new int[]{8000, 6000};
+            default:
+                throw new IllegalArgumentException("No tier for " + megapixels + " MP");
+        }
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    static int[] randomPixels(int length, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[length];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt();
+        }
+        return pixels;
+    }
+}
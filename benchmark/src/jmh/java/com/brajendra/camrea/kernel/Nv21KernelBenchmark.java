@@ -0,0 +1,57 @@
+package com.brajendra.camrea.kernel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Nv21Kernel#cropRotate} on one core, per sensor tier and rotation. The crop is a centered
+ * 3:2 card at 80% of the frame width, about what the sample app's mask cuts out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Nv21KernelBenchmark {
+
+    @Param({"2", "5", "8", "12", "48"})
+    public int megapixels;
+
+    @Param({"0", "90", "180", "270"})
+    public int rotation;
+
+    private byte[] src;
+    private byte[] dst;
+    private int srcWidth;
+    private int srcHeight;
+    private int left;
+    private int top;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() {
+        int[] size = Frames.sensorSize(this.megapixels);
+        this.srcWidth = size[0];
+        this.srcHeight = size[1];
+        this.src = Frames.randomBytes(Nv21Kernel.frameSize(this.srcWidth, this.srcHeight), this.megapixels);
+        this.width = this.srcWidth * 4 / 5 & ~1;
+        this.height = Math.min(this.srcHeight, this.width * 2 / 3) & ~1;
+        this.left = (this.srcWidth - this.width) / 2 & ~1;
+        this.top = (this.srcHeight - this.height) / 2 & ~1;
+        this.dst = new byte[Nv21Kernel.frameSize(this.width, this.height)];
+    }
+
+    @Benchmark
+    public byte[] cropRotate() {
+        Nv21Kernel.cropRotate(this.src, this.srcWidth, this.srcHeight, this.left, this.top, this.width, this.height,
+                this.rotation, false, this.dst);
+        return this.dst;
+    }
+}
@@ -0,0 +1,94 @@
+package com.brajendra.camrea.kernel;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PerspectiveWarp} straightening a document that fills most of a 12 MP still, tilted and
+ * in perspective, into a rectangle of about 11 MP. Reported as warps per second, and through the
+ * megapixels counter as output megapixels per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PerspectiveWarpBenchmark {
+
+    //TL, TR, BR, BL in source pixels
+    private static final float[] QUAD = {100, 120, 3900, 60, 3850, 2950, 150, 2880};
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private StripeExecutor stripes;
+    private int srcWidth;
+    private int srcHeight;
+    private int outWidth;
+    private int outHeight;
+    private double[] homography;
+    private int[] argb;
+    private int[] argbOut;
+    private byte[] nv21;
+    private byte[] nv21Out;
+
+    @Setup
+    public void setUp() {
+        int[] size = Frames.sensorSize(12);
+        this.srcWidth = size[0];
+        this.srcHeight = size[1];
+        int[] out = PerspectiveWarp.outputSize(QUAD);
+        this.outWidth = out[0];
+        this.outHeight = out[1];
+        this.homography = PerspectiveWarp.quadToRect(QUAD, this.outWidth, this.outHeight);
+        this.stripes = this.threads > 1 ? new StripeExecutor(this.threads) : null;
+        this.argb = Frames.randomPixels(this.srcWidth * this.srcHeight, 3);
+        this.argbOut = new int[this.outWidth * this.outHeight];
+        this.nv21 = Frames.randomBytes(Nv21Kernel.frameSize(this.srcWidth, this.srcHeight), 4);
+        this.nv21Out = new byte[Nv21Kernel.frameSize(this.outWidth, this.outHeight)];
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (this.stripes != null) {
+            this.stripes.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int[] warpArgb(Throughput throughput) {
+        PerspectiveWarp.warpArgb(this.argb, this.srcWidth, this.srcHeight, this.homography, this.argbOut,
+                this.outWidth, this.outHeight, this.stripes);
+        throughput.megapixels += this.outWidth * this.outHeight / 1e6;
+        return this.argbOut;
+    }
+
+    @Benchmark
+    public byte[] warpNv21(Throughput throughput) {
+        PerspectiveWarp.warpNv21(this.nv21, this.srcWidth, this.srcHeight, this.homography, this.nv21Out,
+                this.outWidth, this.outHeight, this.stripes);
+        throughput.megapixels += this.outWidth * this.outHeight / 1e6;
+        return this.nv21Out;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        //Reported per second
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            this.megapixels = 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.brajendra.camrea.kernel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of the striped transforms with the number of cores: a whole 12 MP frame rotated by 90
+ * degrees, the portrait capture case, through {@link StripeExecutor}s of 1 to 8 threads. With one
+ * thread the executor runs the plain sequential loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StripeExecutorBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"12"})
+    public int megapixels;
+
+    private StripeExecutor stripes;
+    private int width;
+    private int height;
+    private byte[] nv21;
+    private byte[] nv21Out;
+    private int[] argb;
+    private int[] argbOut;
+
+    @Setup
+    public void setUp() {
+        int[] size = Frames.sensorSize(this.megapixels);
+        this.width = size[0];
+        this.height = size[1];
+        this.stripes = new StripeExecutor(this.threads);
+        this.nv21 = Frames.randomBytes(Nv21Kernel.frameSize(this.width, this.height), 1);
+        this.nv21Out = new byte[this.nv21.length];
+        this.argb = Frames.randomPixels(this.width * this.height, 2);
+        this.argbOut = new int[this.argb.length];
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.stripes.shutdown();
+    }
+
+    @Benchmark
+    public byte[] nv21Rotate90() {
+        Nv21Kernel.cropRotate(this.nv21, this.width, this.height, 0, 0, this.width, this.height, 90, false,
+                this.nv21Out, this.stripes);
+        return this.nv21Out;
+    }
+
+    @Benchmark
+    public int[] argbRotate90() {
+        ArgbKernel.cropRotate(this.argb, this.width, this.height, 0, 0, this.width, this.height, 90, false,
+                this.argbOut, this.stripes);
+        return this.argbOut;
+    }
+}